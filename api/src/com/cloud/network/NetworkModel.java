@@ -35,6 +35,7 @@ import com.cloud.network.element.UserDataServiceProvider;
 import com.cloud.offering.NetworkOffering;
 import com.cloud.offering.NetworkOffering.Detail;
 import com.cloud.user.Account;
+import com.cloud.utils.net.Ip4RangeBitmap;
 import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
 import com.cloud.vm.VirtualMachine;
@@ -242,6 +243,11 @@ public interface NetworkModel {
 
     Set<Long> getAvailableIps(Network network, String requestedIp);
 
+    /**
+     * @return the free guest addresses of the network cidr, null if the requested ip is already in use.
+     */
+    Ip4RangeBitmap getAvailableIpBitmap(Network network, String requestedIp);
+
     String getDomainNetworkDomain(long domainId, long zoneId);
 
     PublicIpAddress getSourceNatIpAddressForGuestNetwork(Account owner, Network guestNetwork);
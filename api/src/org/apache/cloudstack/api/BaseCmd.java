@@ -22,9 +22,9 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
@@ -90,7 +90,7 @@ public abstract class BaseCmd {
     public static final String USER_ERROR_MESSAGE = "Internal error executing command, please contact your system administrator";
     public static Pattern newInputDateFormat = Pattern.compile("[\\d]+-[\\d]+-[\\d]+ [\\d]+:[\\d]+:[\\d]+");
     private static final DateFormat s_outputFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-    protected static final Map<Class<?>, List<Field>> fieldsForCmdClass = new HashMap<Class<?>, List<Field>>();
+    protected static final Map<Class<?>, List<Field>> fieldsForCmdClass = new ConcurrentHashMap<Class<?>, List<Field>>();
     public static enum HTTPMethod {
         GET, POST, PUT, DELETE
     }
@@ -318,19 +318,7 @@ public abstract class BaseCmd {
             final Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
 
             //TODO: Annotate @Validate on API Cmd classes, FIXME how to process Validate
-            final RoleType[] allowedRoles = parameterAnnotation.authorized();
-            boolean roleIsAllowed = true;
-            if (allowedRoles.length > 0) {
-                roleIsAllowed = false;
-                for (final RoleType allowedRole : allowedRoles) {
-                    if (allowedRole.getValue() == caller.getType()) {
-                        roleIsAllowed = true;
-                        break;
-                    }
-                }
-            }
-
-            if (roleIsAllowed) {
+            if (isAuthorized(parameterAnnotation, caller)) {
                 validFields.add(field);
             } else {
                 s_logger.debug("Ignoring paremeter " + parameterAnnotation.name() + " as the caller is not authorized to pass it in");
@@ -340,6 +328,34 @@ public abstract class BaseCmd {
         return validFields;
     }
 
+    /**
+     * Unlike {@link #getParamFields()} this returns the exposed @{link Parameter} fields
+     * whatever the @{link RoleType} of the caller, so the result can be cached and shared
+     * between callers as long as {@link #isAuthorized(Parameter, Account)} is checked on
+     * every call.
+     *
+     * @return
+     */
+    public List<Field> getAllParamFields() {
+        return getAllFieldsForClass(this.getClass());
+    }
+
+    /**
+     * @return whether the caller's @{link RoleType} is allowed to pass in the parameter.
+     */
+    public static boolean isAuthorized(final Parameter parameterAnnotation, final Account caller) {
+        final RoleType[] allowedRoles = parameterAnnotation.authorized();
+        if (allowedRoles.length == 0) {
+            return true;
+        }
+        for (final RoleType allowedRole : allowedRoles) {
+            if (allowedRole.getValue() == caller.getType()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void setFullUrlParams(final Map<String, String> map) {
         fullUrlParams = map;
     }
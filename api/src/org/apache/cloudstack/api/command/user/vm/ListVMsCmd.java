@@ -19,6 +19,7 @@ package org.apache.cloudstack.api.command.user.vm;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.cloudstack.api.response.UserResponse;
 import org.apache.log4j.Logger;
@@ -29,9 +30,11 @@ import org.apache.cloudstack.api.APICommand;
 import org.apache.cloudstack.api.ApiCommandJobType;
 import org.apache.cloudstack.api.ApiConstants;
 import org.apache.cloudstack.api.ApiConstants.VMDetails;
+import org.apache.cloudstack.api.ApiErrorCode;
 import org.apache.cloudstack.api.BaseListTaggedResourcesCmd;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.ResponseObject.ResponseView;
+import org.apache.cloudstack.api.ServerApiException;
 import org.apache.cloudstack.api.response.HostResponse;
 import org.apache.cloudstack.api.response.InstanceGroupResponse;
 import org.apache.cloudstack.api.response.IsoVmResponse;
@@ -133,6 +136,11 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
     @Parameter(name = ApiConstants.USER_ID, type = CommandType.UUID, entityType = UserResponse.class, required = false, description = "the user ID that created the VM and is under the account that owns the VM")
     private Long userId;
 
+    @Parameter(name = ApiConstants.AFTER_ID, type = CommandType.UUID, entityType = UserVmResponse.class, description = "list only the vms that come after the vm with this ID, "
+        + "in the order they are listed; pass the ID of the last vm of a page to get the next page without the cost of skipping the previous ones, "
+        + "pagesize applies but page can't be used with it, count is the number of vms after this one", since = "4.6")
+    private Long afterId;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -149,6 +157,10 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
         return ids;
     }
 
+    public Long getAfterId() {
+        return afterId;
+    }
+
     public Long getUserId() {
         return userId;
     }
@@ -237,6 +249,18 @@ public class ListVMsCmd extends BaseListTaggedResourcesCmd {
         return ApiCommandJobType.VirtualMachine;
     }
 
+    @Override
+    public void validateSpecificParameters(final Map<String, String> params) {
+        if (params.get(ApiConstants.AFTER_ID) == null) {
+            super.validateSpecificParameters(params);
+            return;
+        }
+        // The page starts after the given vm, so pagesize is enough and a page number would be ambiguous
+        if (params.get(ApiConstants.PAGE) != null) {
+            throw new ServerApiException(ApiErrorCode.PARAM_ERROR, "\"page\" parameter can't be used with \"afterid\", the page starts after the given vm");
+        }
+    }
+
     @Override
     public void execute() {
         ListResponse<UserVmResponse> response = _queryService.searchForUserVMs(this);
@@ -0,0 +1,67 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.api.command.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import org.apache.cloudstack.api.ApiConstants;
+import org.apache.cloudstack.api.ApiErrorCode;
+import org.apache.cloudstack.api.ServerApiException;
+import org.apache.cloudstack.api.command.user.vm.ListVMsCmd;
+
+public class ListVMsCmdTest extends TestCase {
+
+    private Map<String, String> params(String... keyValues) {
+        Map<String, String> params = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            params.put(keyValues[i], keyValues[i + 1]);
+        }
+        return params;
+    }
+
+    @Test
+    public void testAfterIdWithPageSize() {
+        new ListVMsCmd().validateSpecificParameters(params(ApiConstants.AFTER_ID, "5", ApiConstants.PAGE_SIZE, "20"));
+        new ListVMsCmd().validateSpecificParameters(params(ApiConstants.AFTER_ID, "5"));
+    }
+
+    @Test
+    public void testAfterIdWithPageIsRejected() {
+        try {
+            new ListVMsCmd().validateSpecificParameters(params(ApiConstants.AFTER_ID, "5", ApiConstants.PAGE_SIZE, "20", ApiConstants.PAGE, "2"));
+            fail("page should be rejected with afterid");
+        } catch (ServerApiException e) {
+            assertEquals(ApiErrorCode.PARAM_ERROR, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testPageSizeStillNeedsPageWithoutAfterId() {
+        try {
+            new ListVMsCmd().validateSpecificParameters(params(ApiConstants.PAGE_SIZE, "20"));
+            fail("pagesize without page should still be rejected");
+        } catch (ServerApiException e) {
+            assertEquals(ApiErrorCode.PARAM_ERROR, e.getErrorCode());
+        }
+        new ListVMsCmd().validateSpecificParameters(params(ApiConstants.PAGE_SIZE, "20", ApiConstants.PAGE, "2"));
+    }
+}
@@ -36,6 +36,8 @@ public class DownloadAnswer extends Answer {
     private long templateSize = 0L;
     private long templatePhySicalSize = 0L;
     private String checkSum;
+    private long downloadedBytes;
+    private long downloadTime;
 
     public String getCheckSum() {
         return checkSum;
@@ -146,4 +148,30 @@ public class DownloadAnswer extends Answer {
         return templatePhySicalSize;
     }
 
+    public void setDownloadedBytes(long downloadedBytes) {
+        this.downloadedBytes = downloadedBytes;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public void setDownloadTime(long downloadTime) {
+        this.downloadTime = downloadTime;
+    }
+
+    /**
+     * @return milliseconds spent downloading so far.
+     */
+    public long getDownloadTime() {
+        return downloadTime;
+    }
+
+    /**
+     * @return average download rate in bytes per second.
+     */
+    public long getDownloadRate() {
+        return downloadTime == 0 ? 0 : downloadedBytes * 1000 / downloadTime;
+    }
+
 }
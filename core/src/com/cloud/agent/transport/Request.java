@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -103,6 +104,9 @@ public class Request {
     protected static final short FLAG_CONTROL = 0x40;
     protected static final short FLAG_COMPRESSED = 0x80;
 
+    /* Payloads at least this big are compressed before they go on the wire */
+    protected static final int COMPRESSION_THRESHOLD = 8192;
+
     protected Version _ver;
     protected long _session;
     protected long _seq;
@@ -277,7 +281,6 @@ public class Request {
     }
 
     public static ByteBuffer doDecompress(ByteBuffer buffer, int length) {
-        byte[] byteArrayIn = new byte[1024];
         ByteArrayInputStream byteIn;
         if (buffer.hasArray()) {
             byteIn = new ByteArrayInputStream(buffer.array(), buffer.position() + buffer.arrayOffset(), buffer.remaining());
@@ -286,14 +289,23 @@ public class Request {
             buffer.get(array);
             byteIn = new ByteArrayInputStream(array);
         }
+        // Inflate straight into the result, the uncompressed length is known up front
         ByteBuffer retBuff = ByteBuffer.allocate(length);
+        byte[] out = retBuff.array();
         int len = 0;
         try {
-            GZIPInputStream in = new GZIPInputStream(byteIn);
-            while ((len = in.read(byteArrayIn)) > 0) {
-                retBuff.put(byteArrayIn, 0, len);
+            GZIPInputStream in = new GZIPInputStream(byteIn, 8192);
+            while (retBuff.hasRemaining() && (len = in.read(out, retBuff.position(), retBuff.remaining())) > 0) {
+                retBuff.position(retBuff.position() + len);
             }
+            // The header declares the uncompressed length, don't pass on a truncated or corrupt request
+            boolean longer = !retBuff.hasRemaining() && in.read() != -1;
             in.close();
+            if (longer || retBuff.hasRemaining()) {
+                String msg = "Decompressed request is " + (longer ? "longer" : "shorter") + " than the declared length of " + length + " bytes";
+                s_logger.error(msg);
+                throw new CloudRuntimeException(msg);
+            }
         } catch (IOException e) {
             s_logger.error("Fail to decompress the request!", e);
         }
@@ -302,17 +314,25 @@ public class Request {
     }
 
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
+        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(Math.max(512, length / 4));
         byte[] array;
+        int offset = 0;
         if (buffer.hasArray()) {
             array = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
         } else {
-            array = new byte[buffer.capacity()];
+            array = new byte[length];
             buffer.get(array);
         }
         try {
-            GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
+            // Still plain gzip so any peer can inflate it, but favor speed over ratio
+            // as the payloads are JSON that compresses well at any level.
+            GZIPOutputStream out = new GZIPOutputStream(byteOut, 8192) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+            out.write(array, offset, length);
             out.finish();
             out.close();
         } catch (IOException e) {
@@ -331,7 +351,7 @@ public class Request {
         tmp = ByteBuffer.wrap(_content.getBytes());
         int capacity = tmp.capacity();
         /* Check if we need to compress the data */
-        if (capacity >= 8192) {
+        if (capacity >= COMPRESSION_THRESHOLD) {
             tmp = doCompress(tmp, capacity);
             _flags |= FLAG_COMPRESSED;
         }
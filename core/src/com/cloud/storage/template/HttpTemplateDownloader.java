@@ -23,9 +23,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 
 import org.apache.cloudstack.utils.imagestore.ImageStoreUtil;
@@ -68,6 +70,7 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
     private long remoteSize = 0;
     public long downloadTime = 0;
     public long totalBytes;
+    private String checksum;
     private final HttpClient client;
     private GetMethod request;
     private boolean resume = false;
@@ -232,10 +235,11 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
                 remoteSize = maxTemplateSizeInBytes;
             }
 
-            URL url = new URL(getDownloadUrl());
-            InputStream in = url.openStream();
+            // Read the body of the request made above, it has the range and the credentials
+            InputStream in = request.getResponseBodyAsStream();
 
             RandomAccessFile out = new RandomAccessFile(file, "rw");
+            MessageDigest digest = startChecksum(out, localFileSize);
             out.seek(localFileSize);
 
             s_logger.info("Starting download from " + getDownloadUrl() + " to " + toFile + " remoteSize=" + remoteSize + " , max size=" + maxTemplateSizeInBytes);
@@ -248,8 +252,10 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
             while (!done && status != Status.ABORTED && offset <= remoteSize) {
                 if ((bytes = in.read(block, 0, CHUNK_SIZE)) > -1) {
                     out.write(block, 0, bytes);
+                    if (digest != null) {
+                        digest.update(block, 0, bytes);
+                    }
                     offset += bytes;
-                    out.seek(offset);
                     totalBytes += bytes;
                         if (!verifiedFormat && (offset >= 1048576 || offset >= remoteSize)) { //let's check format after we get 1MB or full file
                         String uripath = null;
@@ -291,6 +297,9 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
             downloadTime += finish.getTime() - start.getTime();
             in.close();
             out.close();
+            if (status == TemplateDownloader.Status.DOWNLOAD_FINISHED && digest != null) {
+                checksum = String.format("%032x", new BigInteger(1, digest.digest()));
+            }
 
             return totalBytes;
         } catch (HttpException hte) {
@@ -311,6 +320,33 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         return 0;
     }
 
+    /**
+     * Starts the checksum of the file being downloaded, with the part of it
+     * downloaded before if the download resumes.
+     *
+     * @return the digest or null if md5 is not available.
+     */
+    private MessageDigest startChecksum(RandomAccessFile out, long localFileSize) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            s_logger.warn("Unable to compute the checksum while downloading " + getDownloadUrl(), e);
+            return null;
+        }
+        if (localFileSize > 0) {
+            byte[] block = new byte[CHUNK_SIZE];
+            int bytes;
+            out.seek(0);
+            long remaining = localFileSize;
+            while (remaining > 0 && (bytes = out.read(block, 0, (int)Math.min(CHUNK_SIZE, remaining))) > -1) {
+                digest.update(block, 0, bytes);
+                remaining -= bytes;
+            }
+        }
+        return digest;
+    }
+
     public String getDownloadUrl() {
         return downloadUrl;
     }
@@ -336,6 +372,11 @@ public class HttpTemplateDownloader extends ManagedContextRunnable implements Te
         return totalBytes;
     }
 
+    @Override
+    public String getDownloadedChecksum() {
+        return checksum;
+    }
+
     @Override
     @SuppressWarnings("fallthrough")
     public boolean stopDownload() {
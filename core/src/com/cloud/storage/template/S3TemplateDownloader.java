@@ -324,6 +324,11 @@ public class S3TemplateDownloader extends ManagedContextRunnable implements Temp
         return totalBytes;
     }
 
+    @Override
+    public String getDownloadedChecksum() {
+        return null;
+    }
+
     @Override
     @SuppressWarnings("fallthrough")
     public boolean stopDownload() {
@@ -72,6 +72,12 @@ public interface TemplateDownloader extends Runnable {
      */
     public long getDownloadedBytes();
 
+    /**
+     * Get the md5 checksum of the file, computed as it was downloaded
+     * @return the checksum or null if the downloader doesn't compute it
+     */
+    public String getDownloadedChecksum();
+
     /**
      * Get the error if any
      * @return error string if any
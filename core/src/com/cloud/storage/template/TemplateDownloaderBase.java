@@ -85,6 +85,11 @@ public abstract class TemplateDownloaderBase extends ManagedContextRunnable impl
         return _totalBytes;
     }
 
+    @Override
+    public String getDownloadedChecksum() {
+        return null;
+    }
+
     @Override
     public Status getStatus() {
         return _status;
@@ -20,6 +20,9 @@
 package com.cloud.agent.transport;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -47,6 +50,7 @@ import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.Storage.TemplateType;
 import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.template.VirtualMachineTemplate;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 /**
  *
@@ -210,6 +214,129 @@ public class RequestTest extends TestCase {
         }
     }
 
+    public void testSerDeserCompressed() {
+        s_logger.info("Testing a request big enough to be compressed survives the round trip");
+        SecStorageFirewallCfgCommand cmd = new SecStorageFirewallCfgCommand();
+        for (int i = 0; i < 500; i++) {
+            cmd.addPortConfig("10.1." + (i / 250) + "." + (i % 250), Integer.toString(1024 + i), true, "eth" + (i % 4));
+        }
+        Request sreq = new Request(2, 3, new Command[] {cmd}, true, true);
+        sreq.setSequence(892403719);
+
+        byte[] bytes = sreq.getBytes();
+        assert (bytes[3] & Request.FLAG_COMPRESSED) != 0 : "Request should have been compressed";
+
+        Request creq = null;
+        try {
+            creq = Request.parse(bytes);
+        } catch (ClassNotFoundException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        } catch (UnsupportedVersionException e) {
+            s_logger.error("Unable to parse bytes: ", e);
+        }
+
+        assert creq != null : "Couldn't get the request back";
+
+        compareRequest(creq, sreq);
+        assertEquals(500, ((SecStorageFirewallCfgCommand)creq.getCommand()).getPortConfigs().size());
+    }
+
+    public void testCompressRoundTripLargeCommand() throws Exception {
+        s_logger.info("Testing a large command survives compression and decompression unchanged");
+        SecStorageFirewallCfgCommand cmd = new SecStorageFirewallCfgCommand();
+        for (int i = 0; i < 5000; i++) {
+            cmd.addPortConfig("10." + (i / 62500) + "." + (i / 250 % 250) + "." + (i % 250), Integer.toString(1024 + i), i % 3 != 0, "eth" + (i % 4));
+        }
+        Request sreq = new Request(2, 3, new Command[] {cmd}, true, true);
+        sreq.setSequence(892403720);
+        byte[] bytes = sreq.getBytes();
+        assertTrue((bytes[3] & Request.FLAG_COMPRESSED) != 0);
+
+        byte[] content = sreq._content.getBytes();
+        ByteBuffer compressed = Request.doCompress(ByteBuffer.wrap(content), content.length);
+        assertTrue("compressed " + content.length + " bytes to " + compressed.remaining(), compressed.remaining() < content.length / 4);
+        ByteBuffer decompressed = Request.doDecompress(compressed, content.length);
+        byte[] result = new byte[decompressed.remaining()];
+        decompressed.get(result);
+        assertTrue(Arrays.equals(content, result));
+
+        Request creq = Request.parse(bytes);
+        compareRequest(creq, sreq);
+        List<SecStorageFirewallCfgCommand.PortConfig> sent = cmd.getPortConfigs();
+        List<SecStorageFirewallCfgCommand.PortConfig> received = ((SecStorageFirewallCfgCommand)creq.getCommand()).getPortConfigs();
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertEquals(sent.get(i).getSourceIp(), received.get(i).getSourceIp());
+            assertEquals(sent.get(i).getPort(), received.get(i).getPort());
+            assertEquals(sent.get(i).isAdd(), received.get(i).isAdd());
+            assertEquals(sent.get(i).getIntf(), received.get(i).getIntf());
+        }
+    }
+
+    public void testCompressRoundTripLargeResponse() throws Exception {
+        s_logger.info("Testing a large response that doesn't compress well survives the round trip");
+        GetHostStatsCommand cmd = new GetHostStatsCommand("hostguid", "hostname", 101);
+        Request sreq = new Request(2, 3, new Command[] {cmd, cmd}, true, true);
+        sreq.setSequence(892403721);
+
+        Random random = new Random(42);
+        Answer[] answers = new Answer[2];
+        for (int i = 0; i < answers.length; i++) {
+            char[] details = new char[3 * Request.COMPRESSION_THRESHOLD];
+            for (int j = 0; j < details.length; j++) {
+                details[j] = (char)('a' + random.nextInt(26));
+            }
+            answers[i] = new Answer(cmd, i == 0, new String(details));
+        }
+        Response sresp = new Response(sreq, answers);
+        byte[] bytes = sresp.getBytes();
+        assertTrue((bytes[3] & Request.FLAG_COMPRESSED) != 0);
+
+        Response cresp = (Response)Request.parse(bytes);
+        assertEquals(sresp.getSequence(), cresp.getSequence());
+        Answer[] received = cresp.getAnswers();
+        assertEquals(answers.length, received.length);
+        for (int i = 0; i < answers.length; i++) {
+            assertEquals(answers[i].getResult(), received[i].getResult());
+            assertEquals(answers[i].getDetails(), received[i].getDetails());
+        }
+    }
+
+    public void testCompressionThreshold() throws Exception {
+        s_logger.info("Testing payloads are compressed from the threshold on");
+        for (int size = Request.COMPRESSION_THRESHOLD - 1; size <= Request.COMPRESSION_THRESHOLD; size++) {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'a');
+            String content = new String(chars);
+            Request sreq = new Request(Request.Version.v1, 1, 2, 3, 4, (short)0, content);
+
+            byte[] bytes = sreq.getBytes();
+            assertEquals(size >= Request.COMPRESSION_THRESHOLD, (bytes[3] & Request.FLAG_COMPRESSED) != 0);
+
+            Request creq = Request.parse(bytes);
+            assertEquals(content, creq._content);
+        }
+    }
+
+    public void testDecompressLengthMismatch() {
+        s_logger.info("Testing a compressed payload not matching the declared length is rejected");
+        int len = 100;
+        ByteBuffer inputBuffer = ByteBuffer.allocate(len);
+        ByteBuffer compressedBuffer = Request.doCompress(inputBuffer, len);
+
+        assertEquals(len, Request.doDecompress(compressedBuffer.duplicate(), len).remaining());
+        try {
+            Request.doDecompress(compressedBuffer.duplicate(), len - 1);
+            fail("A payload longer than declared should not be truncated");
+        } catch (CloudRuntimeException e) {
+        }
+        try {
+            Request.doDecompress(compressedBuffer.duplicate(), len + 1);
+            fail("A payload shorter than declared should be rejected");
+        } catch (CloudRuntimeException e) {
+        }
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -0,0 +1,159 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+package com.cloud.storage.template;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.cloudstack.storage.command.DownloadCommand.ResourceType;
+
+import com.cloud.agent.api.storage.DownloadAnswer;
+import com.cloud.agent.api.storage.Proxy;
+import com.cloud.storage.VMTemplateStorageResourceAssoc;
+
+public class HttpTemplateDownloaderTest {
+    // The downloader refuses loopback urls, so the fixture is reached as the proxy of a TEST-NET address
+    private static final String URL = "http://192.0.2.1/template.raw";
+    private static final int SIZE = 3 * 1024 * 1024 + 123;
+
+    private byte[] _payload;
+    private HttpServer _server;
+    private File _dir;
+
+    @Before
+    public void setUp() throws Exception {
+        // Random bytes, "file" reports them as data which passes as a raw image
+        _payload = new byte[SIZE];
+        new Random(42).nextBytes(_payload);
+
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/template.raw", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int from = 0;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null) {
+                    from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + (SIZE - 1) + "/" + SIZE);
+                }
+                exchange.sendResponseHeaders(range != null ? 206 : 200, SIZE - from);
+                OutputStream out = exchange.getResponseBody();
+                out.write(_payload, from, SIZE - from);
+                out.close();
+            }
+        });
+        _server.start();
+
+        _dir = File.createTempFile("HttpTemplateDownloaderTest", "");
+        _dir.delete();
+        _dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop(0);
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    private HttpTemplateDownloader createDownloader() {
+        Proxy proxy = new Proxy("127.0.0.1", _server.getAddress().getPort(), null, null);
+        return new HttpTemplateDownloader(null, URL, _dir.getAbsolutePath(), null, SIZE * 2L, null, null, proxy, ResourceType.TEMPLATE);
+    }
+
+    private String md5(byte[] data) throws Exception {
+        return String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(data)));
+    }
+
+    @Test
+    public void testDownloadComputesChecksumAndRate() throws Exception {
+        HttpTemplateDownloader td = createDownloader();
+        assertNull(td.getDownloadedChecksum());
+
+        assertEquals(SIZE, td.download(false, null));
+        assertEquals(TemplateDownloader.Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(SIZE, new File(td.getToFile()).length());
+        assertEquals(md5(_payload), td.getDownloadedChecksum());
+        assertEquals(SIZE, td.getDownloadedBytes());
+        assertTrue(td.getDownloadTime() >= 0);
+
+        // Filled in the way DownloadManagerImpl reports the job
+        DownloadAnswer answer = new DownloadAnswer(null, VMTemplateStorageResourceAssoc.Status.DOWNLOADED);
+        answer.setDownloadedBytes(td.getDownloadedBytes());
+        answer.setDownloadTime(td.getDownloadTime());
+        assertEquals(SIZE, answer.getDownloadedBytes());
+        assertEquals(td.getDownloadTime(), answer.getDownloadTime());
+        if (td.getDownloadTime() > 0) {
+            assertEquals(SIZE * 1000L / td.getDownloadTime(), answer.getDownloadRate());
+        } else {
+            assertEquals(0, answer.getDownloadRate());
+        }
+    }
+
+    @Test
+    public void testResumedDownloadChecksumsTheWholeFile() throws Exception {
+        HttpTemplateDownloader td = createDownloader();
+        int part = SIZE / 3;
+        FileOutputStream out = new FileOutputStream(td.getToFile());
+        out.write(_payload, 0, part);
+        out.close();
+
+        assertEquals(SIZE - part, td.download(true, null));
+        assertEquals(TemplateDownloader.Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(SIZE, new File(td.getToFile()).length());
+        assertEquals(md5(_payload), td.getDownloadedChecksum());
+    }
+
+    @Test
+    public void testDownloadRate() {
+        DownloadAnswer answer = new DownloadAnswer(null, VMTemplateStorageResourceAssoc.Status.DOWNLOAD_IN_PROGRESS);
+        answer.setDownloadedBytes(10L * 1024 * 1024);
+        answer.setDownloadTime(2000);
+        assertEquals(5L * 1024 * 1024, answer.getDownloadRate());
+    }
+
+    @Test
+    public void testDownloadRateWithoutTime() {
+        DownloadAnswer answer = new DownloadAnswer(null, VMTemplateStorageResourceAssoc.Status.DOWNLOAD_IN_PROGRESS);
+        answer.setDownloadedBytes(1024);
+        answer.setDownloadTime(0);
+        assertEquals(0, answer.getDownloadRate());
+        assertEquals(0, new DownloadAnswer(null, VMTemplateStorageResourceAssoc.Status.NOT_DOWNLOADED).getDownloadRate());
+    }
+}
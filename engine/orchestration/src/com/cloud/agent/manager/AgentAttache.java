@@ -18,17 +18,16 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
@@ -65,7 +64,12 @@ import com.cloud.utils.concurrency.NamedThreadFactory;
 public abstract class AgentAttache {
     private static final Logger s_logger = Logger.getLogger(AgentAttache.class);
 
-    private static final ScheduledExecutorService s_listenerExecutor = Executors.newScheduledThreadPool(10, new NamedThreadFactory("ListenerTimer"));
+    private static final ScheduledThreadPoolExecutor s_listenerExecutor = new ScheduledThreadPoolExecutor(10, new NamedThreadFactory("ListenerTimer"));
+    static {
+        // Most listeners are answered long before their timeout, drop their alarms right away
+        // instead of keeping them in the timer queue until they expire.
+        s_listenerExecutor.setRemoveOnCancelPolicy(true);
+    }
     private static final Random s_rand = new Random(System.currentTimeMillis());
 
     protected static final Comparator<Request> s_reqComparator = new Comparator<Request>() {
@@ -83,25 +87,14 @@ public abstract class AgentAttache {
         }
     };
 
-    protected static final Comparator<Object> s_seqComparator = new Comparator<Object>() {
-        @Override
-        public int compare(final Object o1, final Object o2) {
-            long seq1 = ((Request)o1).getSequence();
-            long seq2 = (Long)o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected String _name = null;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
+    protected final ConcurrentHashMap<Long, ScheduledFuture<?>> _listenerAlarms;
+    // Keeps a listener and its alarm registered or unregistered together.
+    protected final Object _listenerLock = new Object();
+    // Requests waiting for the current in-sequence command to finish, ordered by sequence.
+    protected final ConcurrentSkipListMap<Long, Request> _requests;
     protected Long _currentSequence;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
@@ -123,9 +116,10 @@ public abstract class AgentAttache {
         _id = id;
         _name = name;
         _waitForList = new ConcurrentHashMap<Long, Listener>();
+        _listenerAlarms = new ConcurrentHashMap<Long, ScheduledFuture<?>>();
         _currentSequence = null;
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new ConcurrentSkipListMap<Long, Request>();
         _agentMgr = agentMgr;
         _nextSequence = new Long(s_rand.nextInt(Short.MAX_VALUE)).longValue() << 48;
     }
@@ -176,10 +170,9 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void addRequest(final Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+    protected void addRequest(final Request req) {
+        final Request existing = _requests.putIfAbsent(req.getSequence(), req);
+        assert (existing == null) : "How can we get the sequence again? " + req.toString();
     }
 
     protected void cancel(final Request req) {
@@ -187,26 +180,19 @@ public abstract class AgentAttache {
         cancel(seq);
     }
 
-    protected synchronized void cancel(final long seq) {
+    protected void cancel(final long seq) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Cancelling."));
         }
-        final Listener listener = _waitForList.remove(seq);
+        final Listener listener = unregisterListener(seq);
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
-        }
-    }
-
-    protected synchronized int findRequest(final Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
+        _requests.remove(seq);
     }
 
-    protected synchronized int findRequest(final long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+    protected Request findRequest(final long seq) {
+        return _requests.get(seq);
     }
 
     protected String log(final long seq, final String msg) {
@@ -217,17 +203,25 @@ public abstract class AgentAttache {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace(log(seq, "Registering listener"));
         }
-        if (listener.getTimeout() != -1) {
-            s_listenerExecutor.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS);
+        synchronized (_listenerLock) {
+            _waitForList.put(seq, listener);
+            if (listener.getTimeout() != -1) {
+                _listenerAlarms.put(seq, s_listenerExecutor.schedule(new Alarm(seq), listener.getTimeout(), TimeUnit.SECONDS));
+            }
         }
-        _waitForList.put(seq, listener);
     }
 
     protected Listener unregisterListener(final long sequence) {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace(log(sequence, "Unregistering listener"));
         }
-        return _waitForList.remove(sequence);
+        synchronized (_listenerLock) {
+            final ScheduledFuture<?> alarm = _listenerAlarms.remove(sequence);
+            if (alarm != null) {
+                alarm.cancel(false);
+            }
+            return _waitForList.remove(sequence);
+        }
     }
 
     protected Listener getListener(final long sequence) {
@@ -313,8 +307,11 @@ public abstract class AgentAttache {
             final Iterator<Map.Entry<Long, Listener>> it = entries.iterator();
             while (it.hasNext()) {
                 final Map.Entry<Long, Listener> entry = it.next();
-                it.remove();
-                final Listener monitor = entry.getValue();
+                final Listener monitor = unregisterListener(entry.getKey());
+                if (monitor == null) {
+                    // Answered or timed out in the meantime
+                    continue;
+                }
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug(log(entry.getKey(), "Sending disconnect to " + monitor.getClass()));
                 }
@@ -457,14 +454,15 @@ public abstract class AgentAttache {
 
     protected synchronized void sendNext(final long seq) {
         _currentSequence = null;
-        if (_requests.isEmpty()) {
+        final Map.Entry<Long, Request> next = _requests.pollFirstEntry();
+        if (next == null) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
             }
             return;
         }
 
-        Request req = _requests.pop();
+        Request req = next.getValue();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
         }
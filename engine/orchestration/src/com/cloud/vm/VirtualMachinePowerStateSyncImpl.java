@@ -75,21 +75,10 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
 
-        for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
-
-            if (s_logger.isDebugEnabled())
-                s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
-
-            if (_instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue())) {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
-
-                _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, entry.getKey());
-            } else {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
-            }
-        }
+        // the whole report is checked against the DB at once, only the VMs whose power state changed are written
+        List<Long> updatedVms = _instanceDao.updatePowerStates(hostId, translatedInfo);
+        if (s_logger.isDebugEnabled())
+            s_logger.debug("VM state report is updated. host: " + hostId + ", updated vms: " + updatedVms + ", unchanged vms: " + (translatedInfo.size() - updatedVms.size()));
 
         // for all running/stopping VMs, we provide monitoring of missing report
         List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
@@ -109,6 +98,7 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             // 2 times of sync-update interval for graceful period
             long milliSecondsGracefullPeriod = PingInterval.value() * 2000L;
 
+            Map<Long, VirtualMachine.PowerState> missingInfo = new HashMap<Long, VirtualMachine.PowerState>();
             for (VMInstanceVO instance : vmsThatAreMissingReport) {
 
                 Date vmStateUpdateTime = instance.getUpdateTime();
@@ -125,20 +115,21 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
 
                 if (milliSecondsSinceLastStateUpdate > milliSecondsGracefullPeriod) {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has passed graceful period");
-
-                    if (_instanceDao.updatePowerState(instance.getId(), hostId, VirtualMachine.PowerState.PowerReportMissing)) {
-                        if (s_logger.isDebugEnabled())
-                            s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + instance.getId() + ", power state: PowerReportMissing ");
-
-                        _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, instance.getId());
-                    } else {
-                        if (s_logger.isDebugEnabled())
-                            s_logger.debug("VM power state does not change, skip DB writing. vm id: " + instance.getId());
-                    }
+                    missingInfo.put(instance.getId(), VirtualMachine.PowerState.PowerReportMissing);
                 } else {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has not passed graceful period yet");
                 }
             }
+
+            List<Long> missingVms = _instanceDao.updatePowerStates(hostId, missingInfo);
+            if (s_logger.isDebugEnabled() && !missingVms.isEmpty())
+                s_logger.debug("VM state report is updated. host: " + hostId + ", power state: PowerReportMissing, vms: " + missingVms);
+            updatedVms.addAll(missingVms);
+        }
+
+        // the power state changes are only published once all of them are in the DB
+        for (Long vmId : updatedVms) {
+            _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, vmId);
         }
 
         if (s_logger.isDebugEnabled())
@@ -152,8 +143,14 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             return map;
         }
 
+        // look up all the reported VMs at once
+        Map<String, VMInstanceVO> vms = new HashMap<String, VMInstanceVO>();
+        for (VMInstanceVO vm : _instanceDao.listByInstanceNames(states.keySet())) {
+            vms.put(vm.getInstanceName(), vm);
+        }
+
         for (Map.Entry<String, HostVmStateReportEntry> entry : states.entrySet()) {
-            VMInstanceVO vm = findVM(entry.getKey());
+            VMInstanceVO vm = vms.get(entry.getKey());
             if (vm != null) {
                 map.put(vm.getId(), entry.getValue().getState());
             } else {
@@ -163,8 +160,4 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
 
         return map;
     }
-
-    private VMInstanceVO findVM(String vmName) {
-        return _instanceDao.findVMByInstanceName(vmName);
-    }
 }
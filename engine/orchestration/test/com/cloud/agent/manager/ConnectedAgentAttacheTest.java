@@ -16,12 +16,24 @@
 // under the License.
 package com.cloud.agent.manager;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.ScheduledFuture;
 
 import org.junit.Test;
 
+import com.cloud.agent.Listener;
+import com.cloud.agent.transport.Request;
+import com.cloud.host.Status;
 import com.cloud.utils.nio.Link;
 
 public class ConnectedAgentAttacheTest {
@@ -79,4 +91,78 @@ public class ConnectedAgentAttacheTest {
 
         assertFalse(agentAttache1.equals("abc"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testQueuedRequestsAreSentInSequenceOrder() throws Exception {
+
+        Link link = mock(Link.class);
+
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 1, null, link, false);
+        Request req1 = mockRequest(1);
+        Request req2 = mockRequest(2);
+        Request req3 = mockRequest(3);
+        agentAttache.addRequest(req3);
+        agentAttache.addRequest(req1);
+        agentAttache.addRequest(req2);
+
+        assertEquals(3, agentAttache.getQueueSize());
+
+        agentAttache.sendNext(0);
+        assertEquals(Long.valueOf(1), agentAttache._currentSequence);
+        assertNull(agentAttache.findRequest(1));
+        assertSame(req2, agentAttache.findRequest(2));
+
+        agentAttache.cancel(2);
+        assertEquals(1, agentAttache.getQueueSize());
+
+        agentAttache.sendNext(1);
+        assertEquals(Long.valueOf(3), agentAttache._currentSequence);
+        assertEquals(0, agentAttache.getQueueSize());
+
+        agentAttache.sendNext(3);
+        assertNull(agentAttache._currentSequence);
+    }
+
+    @Test
+    public void testListenerAndAlarmAreUnregisteredTogether() throws Exception {
+
+        Link link = mock(Link.class);
+        Listener listener = mock(Listener.class);
+        when(listener.getTimeout()).thenReturn(3600);
+
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 1, null, link, false);
+        agentAttache.registerListener(1, listener);
+        ScheduledFuture<?> alarm = agentAttache._listenerAlarms.get(1L);
+        assertNotNull(alarm);
+        assertSame(listener, agentAttache.getListener(1));
+
+        assertSame(listener, agentAttache.unregisterListener(1));
+        assertTrue(alarm.isCancelled());
+        assertTrue(agentAttache._listenerAlarms.isEmpty());
+        assertNull(agentAttache.getListener(1));
+        assertNull(agentAttache.unregisterListener(1));
+    }
+
+    @Test
+    public void testCancelAllCommandsDropsTheAlarms() throws Exception {
+
+        Link link = mock(Link.class);
+        Listener listener = mock(Listener.class);
+        when(listener.getTimeout()).thenReturn(3600);
+
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 1, null, link, false);
+        agentAttache.registerListener(1, listener);
+        agentAttache.registerListener(2, listener);
+
+        agentAttache.cancelAllCommands(Status.Disconnected, true);
+        assertTrue(agentAttache._listenerAlarms.isEmpty());
+        assertEquals(0, agentAttache.getNonRecurringListenersSize());
+        verify(listener, times(2)).processDisconnect(1, Status.Disconnected);
+    }
+
+    private Request mockRequest(long seq) {
+        Request req = mock(Request.class);
+        when(req.getSequence()).thenReturn(seq);
+        return req;
+    }
+}
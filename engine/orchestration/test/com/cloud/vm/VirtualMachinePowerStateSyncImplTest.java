@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class VirtualMachinePowerStateSyncImplTest {
+
+    VirtualMachinePowerStateSyncImpl _sync;
+    VMInstanceDao _instanceDao;
+    MessageBus _messageBus;
+
+    @Before
+    public void setup() {
+        _sync = new VirtualMachinePowerStateSyncImpl();
+        _instanceDao = mock(VMInstanceDao.class);
+        _messageBus = mock(MessageBus.class);
+        _sync._instanceDao = _instanceDao;
+        _sync._messageBus = _messageBus;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReportIsWrittenAtOnce() {
+        List<VMInstanceVO> vms = Arrays.asList(vm(1L, "i-2-1-VM", null), vm(2L, "i-2-2-VM", null), vm(3L, "i-2-3-VM", null));
+        when(_instanceDao.listByInstanceNames(anyCollectionOf(String.class))).thenReturn(vms);
+        when(_instanceDao.updatePowerStates(eq(10L), any(Map.class))).thenReturn(new ArrayList<Long>(Arrays.asList(2L)));
+        when(_instanceDao.findByHostInStates(anyLong(), any(VirtualMachine.State.class), any(VirtualMachine.State.class), any(VirtualMachine.State.class)))
+                .thenReturn(new ArrayList<VMInstanceVO>());
+
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        report.put("i-2-1-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        report.put("i-2-2-VM", new HostVmStateReportEntry(PowerState.PowerOff, "host"));
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        report.put("unknown", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        _sync.processHostVmStatePingReport(10L, report);
+
+        ArgumentCaptor<Map> states = ArgumentCaptor.forClass(Map.class);
+        verify(_instanceDao, times(1)).updatePowerStates(eq(10L), states.capture());
+        Assert.assertEquals(3, states.getValue().size());
+        Assert.assertEquals(PowerState.PowerOff, states.getValue().get(2L));
+        verify(_instanceDao, never()).findVMByInstanceName(anyString());
+        verify(_instanceDao, never()).updatePowerState(anyLong(), anyLong(), any(PowerState.class));
+        verify(_messageBus, times(1)).publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, 2L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMissingVmsAfterGracePeriod() {
+        Date longAgo = new Date(System.currentTimeMillis() - 3600 * 1000L);
+        List<VMInstanceVO> running = new ArrayList<VMInstanceVO>(Arrays.asList(vm(1L, "i-2-1-VM", longAgo), vm(2L, "i-2-2-VM", new Date()),
+                vm(3L, "i-2-3-VM", longAgo)));
+        when(_instanceDao.listByInstanceNames(anyCollectionOf(String.class))).thenReturn(Arrays.asList(running.get(2)));
+        when(_instanceDao.updatePowerStates(eq(10L), any(Map.class))).thenReturn(new ArrayList<Long>(), new ArrayList<Long>(Arrays.asList(1L)));
+        when(_instanceDao.findByHostInStates(anyLong(), any(VirtualMachine.State.class), any(VirtualMachine.State.class), any(VirtualMachine.State.class)))
+                .thenReturn(running);
+
+        Map<String, HostVmStateReportEntry> report = new HashMap<String, HostVmStateReportEntry>();
+        report.put("i-2-3-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        _sync.processHostVmStatePingReport(10L, report);
+
+        ArgumentCaptor<Map> states = ArgumentCaptor.forClass(Map.class);
+        verify(_instanceDao, times(2)).updatePowerStates(eq(10L), states.capture());
+        Map<Long, PowerState> missing = states.getAllValues().get(1);
+        Assert.assertEquals(1, missing.size());
+        Assert.assertEquals(PowerState.PowerReportMissing, missing.get(1L));
+        verify(_messageBus, times(1)).publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, 1L);
+    }
+
+    private VMInstanceVO vm(long id, String instanceName, Date updateTime) {
+        VMInstanceVO vm = mock(VMInstanceVO.class);
+        when(vm.getId()).thenReturn(id);
+        when(vm.getInstanceName()).thenReturn(instanceName);
+        when(vm.getUpdateTime()).thenReturn(updateTime);
+        return vm;
+    }
+}
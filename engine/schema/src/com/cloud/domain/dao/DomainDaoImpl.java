@@ -19,8 +19,10 @@ package com.cloud.domain.dao;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.ejb.Local;
@@ -50,6 +52,18 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
     protected GenericSearchBuilder<DomainVO, Long> FindIdsOfAllChildrenSearch;
     protected SearchBuilder<DomainVO> AllFieldsSearch;
 
+    /**
+     * Domains are never moved to another parent, so the index only goes stale
+     * when domains are created or removed.  That is picked up right away for
+     * the changes made through this management server and for the domains
+     * missing from the index, the domains removed on the other management
+     * servers drop out of the index within this many milliseconds.
+     */
+    protected static final long DOMAIN_INDEX_MAX_AGE = 60000;
+    // Reload at most once a second for domains that are missing from the index
+    protected static final long DOMAIN_INDEX_MIN_AGE = 1000;
+    private volatile DomainTreeIndex _domainIndex;
+
     public DomainDaoImpl() {
         DomainNameLikeSearch = createSearchBuilder();
         DomainNameLikeSearch.and("name", DomainNameLikeSearch.entity().getName(), SearchCriteria.Op.LIKE);
@@ -135,6 +149,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             update(parentDomain.getId(), parentDomain);
 
             txn.commit();
+            invalidateDomainIndex();
             return domain;
         } catch (Exception e) {
             s_logger.error("Unable to create domain due to " + e.getMessage(), e);
@@ -196,6 +211,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             update(parentDomain.getId(), parentDomain);
             success = super.remove(id);
             txn.commit();
+            invalidateDomainIndex();
         } catch (SQLException ex) {
             success = false;
             s_logger.error("error removing domain: " + id, ex);
@@ -250,6 +266,12 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             return true;
         }
 
+        DomainTreeIndex index = getDomainIndex();
+        if (index.contains(parentId) && index.contains(childId)) {
+            return index.isChildDomain(parentId, childId);
+        }
+
+        // Not in the index yet, the domain may have been created on another management server
         boolean result = false;
         SearchCriteria<DomainVO> sc = DomainPairSearch.create();
         sc.setParameters("id", parentId, childId);
@@ -257,6 +279,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
         List<DomainVO> domainPair = listBy(sc);
 
         if ((domainPair != null) && (domainPair.size() == 2)) {
+            invalidateDomainIndex(index);
             DomainVO d1 = domainPair.get(0);
             DomainVO d2 = domainPair.get(1);
 
@@ -279,9 +302,19 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
     @Override
     public Set<Long> getDomainParentIds(long domainId) {
         Set<Long> parentDomains = new HashSet<Long>();
+        DomainTreeIndex index = getDomainIndex();
+        long[] ancestors = index.getAncestors(domainId);
+        if (ancestors != null) {
+            for (long ancestor : ancestors) {
+                parentDomains.add(ancestor);
+            }
+            return parentDomains;
+        }
+
         Domain domain = findById(domainId);
 
         if (domain != null) {
+            invalidateDomainIndex(index);
             parentDomains.add(domain.getId());
 
             while (domain.getParent() != null) {
@@ -293,4 +326,41 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
         return parentDomains;
     }
 
+    protected DomainTreeIndex getDomainIndex() {
+        DomainTreeIndex index = _domainIndex;
+        if (index == null || System.currentTimeMillis() - index.getCreated() > DOMAIN_INDEX_MAX_AGE) {
+            index = loadDomainIndex(index);
+        }
+        return index;
+    }
+
+    private synchronized DomainTreeIndex loadDomainIndex(DomainTreeIndex staleIndex) {
+        DomainTreeIndex index = _domainIndex;
+        if (index != null && index != staleIndex) {
+            // Another thread loaded it in the meantime
+            return index;
+        }
+
+        List<DomainVO> domains = listAll();
+        Map<Long, Long> parents = new HashMap<Long, Long>(domains.size() * 2);
+        for (DomainVO domain : domains) {
+            parents.put(domain.getId(), domain.getParent());
+        }
+        index = new DomainTreeIndex(parents);
+        _domainIndex = index;
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Loaded the domain index with " + index.size() + " domains");
+        }
+        return index;
+    }
+
+    protected void invalidateDomainIndex() {
+        _domainIndex = null;
+    }
+
+    private void invalidateDomainIndex(DomainTreeIndex index) {
+        if (System.currentTimeMillis() - index.getCreated() > DOMAIN_INDEX_MIN_AGE) {
+            invalidateDomainIndex();
+        }
+    }
 }
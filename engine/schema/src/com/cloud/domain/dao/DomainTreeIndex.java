@@ -0,0 +1,98 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the domain hierarchy.  Every domain keeps the ids of
+ * its ancestors from the root down to itself, so whether a domain is an
+ * ancestor of another is a lookup in that array at the ancestor's depth.
+ * Domains whose parent is missing are left out of the index.
+ */
+public class DomainTreeIndex {
+    private final Map<Long, long[]> _ancestors;
+    private final long _created;
+
+    /**
+     * @param parents parent id of each domain, null for the root domain.
+     */
+    public DomainTreeIndex(Map<Long, Long> parents) {
+        _ancestors = new HashMap<Long, long[]>(parents.size() * 2);
+        for (Long id : parents.keySet()) {
+            getAncestors(id, parents, 0);
+        }
+        _created = System.currentTimeMillis();
+    }
+
+    private long[] getAncestors(Long id, Map<Long, Long> parents, int depth) {
+        long[] ancestors = _ancestors.get(id);
+        if (ancestors != null || !parents.containsKey(id) || depth > parents.size()) {
+            return ancestors;
+        }
+
+        Long parentId = parents.get(id);
+        if (parentId == null) {
+            ancestors = new long[] {id};
+        } else {
+            long[] parentAncestors = getAncestors(parentId, parents, depth + 1);
+            if (parentAncestors == null) {
+                return null;
+            }
+            ancestors = new long[parentAncestors.length + 1];
+            System.arraycopy(parentAncestors, 0, ancestors, 0, parentAncestors.length);
+            ancestors[parentAncestors.length] = id;
+        }
+        _ancestors.put(id, ancestors);
+        return ancestors;
+    }
+
+    public boolean contains(long id) {
+        return _ancestors.containsKey(id);
+    }
+
+    /**
+     * @return true if parentId is childId or one of its ancestors, false if
+     *         it isn't or either domain is not in the index.
+     */
+    public boolean isChildDomain(long parentId, long childId) {
+        long[] parentAncestors = _ancestors.get(parentId);
+        long[] childAncestors = _ancestors.get(childId);
+        if (parentAncestors == null || childAncestors == null) {
+            return false;
+        }
+        int depth = parentAncestors.length - 1;
+        return childAncestors.length > depth && childAncestors[depth] == parentId;
+    }
+
+    /**
+     * @return the ids of the domain and its ancestors, root first, or null if
+     *         the domain is not in the index.  The array must not be modified.
+     */
+    public long[] getAncestors(long id) {
+        return _ancestors.get(id);
+    }
+
+    public int size() {
+        return _ancestors.size();
+    }
+
+    public long getCreated() {
+        return _created;
+    }
+}
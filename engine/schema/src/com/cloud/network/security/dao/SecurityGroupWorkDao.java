@@ -16,6 +16,7 @@
 // under the License.
 package com.cloud.network.security.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -29,6 +30,8 @@ public interface SecurityGroupWorkDao extends GenericDao<SecurityGroupWorkVO, Lo
 
     SecurityGroupWorkVO findByVmIdStep(long vmId, Step step);
 
+    List<SecurityGroupWorkVO> listByVmIdsStep(Collection<Long> vmIds, Step step);
+
     SecurityGroupWorkVO take(long serverId);
 
     void updateStep(Long vmId, Long logSequenceNumber, Step done);
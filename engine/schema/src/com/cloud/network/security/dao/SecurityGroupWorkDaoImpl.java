@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.network.security.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -46,6 +48,7 @@ public class SecurityGroupWorkDaoImpl extends GenericDaoBase<SecurityGroupWorkVO
     private final SearchBuilder<SecurityGroupWorkVO> VmIdUnTakenSearch;
     private final SearchBuilder<SecurityGroupWorkVO> UntakenWorkSearch;
     private final SearchBuilder<SecurityGroupWorkVO> VmIdStepSearch;
+    private final SearchBuilder<SecurityGroupWorkVO> VmIdsStepSearch;
     private final SearchBuilder<SecurityGroupWorkVO> CleanupSearch;
 
     protected SecurityGroupWorkDaoImpl() {
@@ -80,6 +83,12 @@ public class SecurityGroupWorkDaoImpl extends GenericDaoBase<SecurityGroupWorkVO
 
         VmIdStepSearch.done();
 
+        VmIdsStepSearch = createSearchBuilder();
+        VmIdsStepSearch.and("vmIds", VmIdsStepSearch.entity().getInstanceId(), SearchCriteria.Op.IN);
+        VmIdsStepSearch.and("step", VmIdsStepSearch.entity().getStep(), SearchCriteria.Op.EQ);
+
+        VmIdsStepSearch.done();
+
         CleanupSearch = createSearchBuilder();
         CleanupSearch.and("taken", CleanupSearch.entity().getDateTaken(), Op.LTEQ);
         CleanupSearch.and("step", CleanupSearch.entity().getStep(), SearchCriteria.Op.IN);
@@ -175,6 +184,17 @@ public class SecurityGroupWorkDaoImpl extends GenericDaoBase<SecurityGroupWorkVO
         return findOneIncludingRemovedBy(sc);
     }
 
+    @Override
+    public List<SecurityGroupWorkVO> listByVmIdsStep(Collection<Long> vmIds, Step step) {
+        if (vmIds.isEmpty()) {
+            return new ArrayList<SecurityGroupWorkVO>();
+        }
+        SearchCriteria<SecurityGroupWorkVO> sc = VmIdsStepSearch.create();
+        sc.setParameters("vmIds", vmIds.toArray());
+        sc.setParameters("step", step);
+        return listIncludingRemovedBy(sc);
+    }
+
     @Override
     @DB
     public void updateStep(Long workId, Step step) {
@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.network.security.dao;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import com.cloud.network.security.VmRulesetLogVO;
@@ -24,6 +26,8 @@ import com.cloud.utils.db.GenericDao;
 public interface VmRulesetLogDao extends GenericDao<VmRulesetLogVO, Long> {
     VmRulesetLogVO findByVmId(long vmId);
 
+    List<VmRulesetLogVO> listByVmIds(Collection<Long> vmIds);
+
     int createOrUpdate(Set<Long> workItems);
 
 }
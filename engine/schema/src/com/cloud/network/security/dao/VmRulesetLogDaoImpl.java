@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.SQLTransactionRollbackException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -41,6 +42,7 @@ import com.cloud.utils.db.TransactionLegacy;
 public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> implements VmRulesetLogDao {
     protected static final Logger s_logger = Logger.getLogger(VmRulesetLogDaoImpl.class);
     private SearchBuilder<VmRulesetLogVO> VmIdSearch;
+    private SearchBuilder<VmRulesetLogVO> VmIdsSearch;
     private String InsertOrUpdateSQl = "INSERT INTO op_vm_ruleset_log (instance_id, created, logsequence) "
         + " VALUES(?, now(), 1) ON DUPLICATE KEY UPDATE logsequence=logsequence+1";
     private static HashMap<Integer, String> cachedPrepStmtStrings = new HashMap<Integer, String>();
@@ -69,6 +71,9 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
 
         VmIdSearch.done();
 
+        VmIdsSearch = createSearchBuilder();
+        VmIdsSearch.and("vmIds", VmIdsSearch.entity().getInstanceId(), SearchCriteria.Op.IN);
+        VmIdsSearch.done();
     }
 
     @Override
@@ -78,6 +83,16 @@ public class VmRulesetLogDaoImpl extends GenericDaoBase<VmRulesetLogVO, Long> im
         return findOneIncludingRemovedBy(sc);
     }
 
+    @Override
+    public List<VmRulesetLogVO> listByVmIds(Collection<Long> vmIds) {
+        if (vmIds.isEmpty()) {
+            return new ArrayList<VmRulesetLogVO>();
+        }
+        SearchCriteria<VmRulesetLogVO> sc = VmIdsSearch.create();
+        sc.setParameters("vmIds", vmIds.toArray());
+        return listIncludingRemovedBy(sc);
+    }
+
     @Override
     public int createOrUpdate(Set<Long> workItems) {
         //return createOrUpdateUsingBatch(workItems);
@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -84,6 +85,8 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected SearchBuilder<VMInstanceVO> HostIdUpTypesSearch;
     protected SearchBuilder<VMInstanceVO> HostUpSearch;
     protected SearchBuilder<VMInstanceVO> InstanceNameSearch;
+    protected SearchBuilder<VMInstanceVO> InstanceNamesSearch;
+    protected SearchBuilder<VMInstanceVO> IdsSearch;
     protected SearchBuilder<VMInstanceVO> HostNameSearch;
     protected SearchBuilder<VMInstanceVO> HostNameAndZoneSearch;
     protected GenericSearchBuilder<VMInstanceVO, Long> FindIdsOfVirtualRoutersByAccount;
@@ -215,6 +218,14 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         InstanceNameSearch.and("instanceName", InstanceNameSearch.entity().getInstanceName(), Op.EQ);
         InstanceNameSearch.done();
 
+        InstanceNamesSearch = createSearchBuilder();
+        InstanceNamesSearch.and("instanceNames", InstanceNamesSearch.entity().getInstanceName(), Op.IN);
+        InstanceNamesSearch.done();
+
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), Op.IN);
+        IdsSearch.done();
+
         HostNameSearch = createSearchBuilder();
         HostNameSearch.and("hostName", HostNameSearch.entity().getHostName(), Op.EQ);
         HostNameSearch.done();
@@ -413,6 +424,16 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return findOneBy(sc);
     }
 
+    @Override
+    public List<VMInstanceVO> listByInstanceNames(Collection<String> names) {
+        if (names.isEmpty()) {
+            return new ArrayList<VMInstanceVO>();
+        }
+        SearchCriteria<VMInstanceVO> sc = InstanceNamesSearch.create();
+        sc.setParameters("instanceNames", names.toArray(new Object[names.size()]));
+        return listBy(sc);
+    }
+
     @Override
     public VMInstanceVO findVMByHostName(String hostName) {
         SearchCriteria<VMInstanceVO> sc = HostNameSearch.create();
@@ -776,33 +797,63 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return Transaction.execute(new TransactionCallback<Boolean>() {
             @Override
             public Boolean doInTransaction(TransactionStatus status) {
-                boolean needToUpdate = false;
                 VMInstanceVO instance = findById(instanceId);
-                if (instance != null) {
-                    Long savedPowerHostId = instance.getPowerHostId();
-                    if (instance.getPowerState() != powerState || savedPowerHostId == null
-                            || savedPowerHostId.longValue() != powerHostId) {
-                        instance.setPowerState(powerState);
-                        instance.setPowerHostId(powerHostId);
-                        instance.setPowerStateUpdateCount(1);
-                        instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
-                        needToUpdate = true;
-                        update(instanceId, instance);
-                    } else {
-                        // to reduce DB updates, consecutive same state update for more than 3 times
-                        if (instance.getPowerStateUpdateCount() < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
-                            instance.setPowerStateUpdateCount(instance.getPowerStateUpdateCount() + 1);
-                            instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
-                            needToUpdate = true;
-                            update(instanceId, instance);
-                        }
+                if (instance != null && applyPowerState(instance, powerHostId, powerState)) {
+                    update(instanceId, instance);
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public List<Long> updatePowerStates(final long powerHostId, final Map<Long, VirtualMachine.PowerState> powerStates) {
+        if (powerStates.isEmpty()) {
+            return new ArrayList<Long>();
+        }
+        return Transaction.execute(new TransactionCallback<List<Long>>() {
+            @Override
+            public List<Long> doInTransaction(TransactionStatus status) {
+                SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+                sc.setParameters("ids", powerStates.keySet().toArray(new Object[powerStates.size()]));
+
+                List<VMInstanceVO> changed = new ArrayList<VMInstanceVO>();
+                List<Long> updatedIds = new ArrayList<Long>();
+                for (VMInstanceVO instance : listBy(sc)) {
+                    if (applyPowerState(instance, powerHostId, powerStates.get(instance.getId()))) {
+                        changed.add(instance);
+                        updatedIds.add(instance.getId());
                     }
                 }
-                return needToUpdate;
+                updateBatch(changed);
+                return updatedIds;
             }
         });
     }
 
+    /**
+     * @return true if the power state tracking of the instance changed and needs to be written.
+     */
+    private boolean applyPowerState(VMInstanceVO instance, long powerHostId, VirtualMachine.PowerState powerState) {
+        Long savedPowerHostId = instance.getPowerHostId();
+        if (instance.getPowerState() != powerState || savedPowerHostId == null
+                || savedPowerHostId.longValue() != powerHostId) {
+            instance.setPowerState(powerState);
+            instance.setPowerHostId(powerHostId);
+            instance.setPowerStateUpdateCount(1);
+            instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
+            return true;
+        }
+        // to reduce DB updates, consecutive same state update for more than 3 times
+        if (instance.getPowerStateUpdateCount() < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
+            instance.setPowerStateUpdateCount(instance.getPowerStateUpdateCount() + 1);
+            instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void resetVmPowerStateTracking(final long instanceId) {
         Transaction.execute(new TransactionCallbackNoReturn() {
@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DomainTreeIndexTest {
+    DomainTreeIndex _index;
+
+    @Before
+    public void setup() {
+        // 1 is the root, 2 and 3 its children, 4 a child of 2 and 5 a child of 4; 7 has a missing parent
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        parents.put(5L, 4L);
+        parents.put(4L, 2L);
+        parents.put(3L, 1L);
+        parents.put(2L, 1L);
+        parents.put(1L, null);
+        parents.put(7L, 6L);
+        _index = new DomainTreeIndex(parents);
+    }
+
+    @Test
+    public void testIsChildDomain() {
+        Assert.assertTrue(_index.isChildDomain(1L, 5L));
+        Assert.assertTrue(_index.isChildDomain(2L, 5L));
+        Assert.assertTrue(_index.isChildDomain(4L, 4L));
+        Assert.assertFalse(_index.isChildDomain(5L, 2L));
+        Assert.assertFalse(_index.isChildDomain(3L, 5L));
+        Assert.assertFalse(_index.isChildDomain(2L, 3L));
+    }
+
+    @Test
+    public void testAncestors() {
+        Assert.assertArrayEquals(new long[] {1L, 2L, 4L, 5L}, _index.getAncestors(5L));
+        Assert.assertArrayEquals(new long[] {1L}, _index.getAncestors(1L));
+    }
+
+    @Test
+    public void testMissingParent() {
+        Assert.assertFalse(_index.contains(7L));
+        Assert.assertNull(_index.getAncestors(7L));
+        Assert.assertFalse(_index.isChildDomain(1L, 7L));
+        Assert.assertEquals(5, _index.size());
+    }
+
+    @Test
+    public void testCycle() {
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        parents.put(1L, 2L);
+        parents.put(2L, 1L);
+        Assert.assertEquals(0, new DomainTreeIndex(parents).size());
+    }
+}
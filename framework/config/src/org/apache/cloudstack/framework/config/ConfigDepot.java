@@ -31,4 +31,10 @@ public interface ConfigDepot {
     <T> void set(ConfigKey<T> key, T value);
 
     <T> void createOrUpdateConfigObject(String componentName, ConfigKey<T> key, String value);
+
+    /**
+     * Drops the cached global and scoped values of the key, to be called after
+     * the key has been changed without going through the depot.
+     */
+    void invalidate(String key);
 }
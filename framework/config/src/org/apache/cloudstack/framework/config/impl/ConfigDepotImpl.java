@@ -23,6 +23,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -78,6 +80,20 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
 
     HashMap<ConfigKey.Scope, Set<ConfigKey<?>>> _scopeLevelConfigsMap = new HashMap<ConfigKey.Scope, Set<ConfigKey<?>>>();
 
+    /**
+     * Values read through ConfigKey are cached for at most this many
+     * milliseconds.  Changes made through this management server invalidate
+     * the cache right away, changes made on the other management servers or
+     * directly in the database are seen once the cached value expires.
+     */
+    long _cacheTtl = 30000;
+
+    // key name -> global ("") or scope and resource id -> value
+    final ConcurrentHashMap<String, ConcurrentHashMap<String, CachedValue>> _valueCache = new ConcurrentHashMap<String, ConcurrentHashMap<String, CachedValue>>(1007);
+    final AtomicLong _cacheVersion = new AtomicLong();
+    final AtomicLong _cacheHits = new AtomicLong();
+    final AtomicLong _cacheMisses = new AtomicLong();
+
     public ConfigDepotImpl() {
         ConfigKey.init(this);
         _scopeLevelConfigsMap.put(ConfigKey.Scope.Zone, new HashSet<ConfigKey<?>>());
@@ -135,6 +151,7 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
                 vo.setValue(value);
             }
             _configDao.persist(vo);
+            invalidate(key.key());
         } else {
             if (vo.isDynamic() != key.isDynamic() || !ObjectUtils.equals(vo.getDescription(), key.description()) || !ObjectUtils.equals(vo.getDefaultValue(), key.defaultValue()) ||
                 !ObjectUtils.equals(vo.getScope(), key.scope().toString()) ||
@@ -146,6 +163,7 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
                 vo.setComponent(componentName);
                 vo.setUpdated(date);
                 _configDao.persist(vo);
+                invalidate(key.key());
             }
         }
     }
@@ -174,6 +192,80 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
         throw new CloudRuntimeException("Unable to find config storage for this scope: " + config.scope() + " for " + config.key());
     }
 
+    /**
+     * Returns the value stored for the key, globally if id is null or else for
+     * the resource of the key's scope, going to the database only if the value
+     * isn't cached or has been cached for longer than the cache ttl.
+     *
+     * @return the stored value or null if there is none.
+     */
+    public String getConfigValue(ConfigKey<?> key, Long id) {
+        String name = key.key();
+        String slot = id == null ? "" : key.scope() + "-" + id;
+        long now = System.currentTimeMillis();
+
+        ConcurrentHashMap<String, CachedValue> values = _valueCache.get(name);
+        if (values != null) {
+            CachedValue cached = values.get(slot);
+            if (cached != null && now - cached._loaded < _cacheTtl) {
+                _cacheHits.incrementAndGet();
+                return cached._value;
+            }
+        }
+        _cacheMisses.incrementAndGet();
+
+        // Only cache what was loaded if nothing was invalidated in the meantime
+        long version = _cacheVersion.get();
+        String value;
+        if (id == null) {
+            ConfigurationVO vo = _configDao.findById(name);
+            value = vo != null ? vo.getValue() : null;
+        } else {
+            value = scoped(key).getConfigValue(id, key);
+        }
+
+        if (values == null) {
+            values = new ConcurrentHashMap<String, CachedValue>();
+            ConcurrentHashMap<String, CachedValue> previous = _valueCache.putIfAbsent(name, values);
+            if (previous != null) {
+                values = previous;
+            }
+        }
+        values.put(slot, new CachedValue(value, now));
+        if (_cacheVersion.get() != version) {
+            values.remove(slot);
+        }
+        return value;
+    }
+
+    @Override
+    public void invalidate(String key) {
+        _cacheVersion.incrementAndGet();
+        _valueCache.remove(key);
+    }
+
+    public void invalidateAll() {
+        _cacheVersion.incrementAndGet();
+        _valueCache.clear();
+    }
+
+    public long getCacheHits() {
+        return _cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return _cacheMisses.get();
+    }
+
+    public long getCacheTtl() {
+        return _cacheTtl;
+    }
+
+    public void setCacheTtl(long cacheTtl) {
+        _cacheTtl = cacheTtl;
+        invalidateAll();
+    }
+
     public List<ScopedConfigStorage> getScopedStorages() {
         return _scopedStorages;
     }
@@ -200,6 +292,7 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
     @Override
     public <T> void set(ConfigKey<T> key, T value) {
         _configDao.update(key.key(), value.toString());
+        invalidate(key.key());
     }
 
     @Override
@@ -207,4 +300,14 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
         createOrupdateConfigObject(new Date(), componentName, key, value);
 
     }
+
+    static class CachedValue {
+        final String _value;
+        final long _loaded;
+
+        CachedValue(String value, long loaded) {
+            _value = value;
+            _loaded = loaded;
+        }
+    }
 }
@@ -41,6 +41,7 @@ import com.cloud.utils.db.EntityManager;
 public class ConfigDepotAdminTest extends TestCase {
     private final static ConfigKey<Integer> DynamicIntCK = new ConfigKey<Integer>(Integer.class, "dynIntKey", "Advance", "10", "Test Key", true);
     private final static ConfigKey<Integer> StaticIntCK = new ConfigKey<Integer>(Integer.class, "statIntKey", "Advance", "10", "Test Key", false);
+    private final static ConfigKey<Integer> ClusterIntCK = new ConfigKey<Integer>(Integer.class, "clusterIntKey", "Advance", "10", "Test Key", true, ConfigKey.Scope.Cluster, null);
 
     @Mock
     Configurable _configurable;
@@ -98,4 +99,51 @@ public class ConfigDepotAdminTest extends TestCase {
         // This is two because DynamicIntCK also returns null.
         verify(_configDao, times(2)).persist(any(ConfigurationVO.class));
     }
+
+    @Test
+    public void testGlobalValueIsCached() {
+        ConfigurationVO dynamicIntCV = new ConfigurationVO("UnitTestComponent", DynamicIntCK);
+        dynamicIntCV.setValue("100");
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(dynamicIntCV);
+
+        assertEquals(100, DynamicIntCK.value().intValue());
+        assertEquals(100, DynamicIntCK.value().intValue());
+        verify(_configDao, times(1)).findById(DynamicIntCK.key());
+        assertEquals(1, _depotAdmin.getCacheHits());
+        assertEquals(1, _depotAdmin.getCacheMisses());
+
+        // Changes made through the depot are seen right away
+        dynamicIntCV.setValue("200");
+        _depotAdmin.set(DynamicIntCK, 200);
+        assertEquals(200, DynamicIntCK.value().intValue());
+        verify(_configDao, times(2)).findById(DynamicIntCK.key());
+    }
+
+    @Test
+    public void testScopedValueIsCached() {
+        when(_scopedStorage.getScope()).thenReturn(ConfigKey.Scope.Cluster);
+        when(_scopedStorage.getConfigValue(1L, ClusterIntCK)).thenReturn("20");
+        when(_scopedStorage.getConfigValue(2L, ClusterIntCK)).thenReturn("30");
+
+        assertEquals(20, ClusterIntCK.valueIn(1L).intValue());
+        assertEquals(30, ClusterIntCK.valueIn(2L).intValue());
+        assertEquals(20, ClusterIntCK.valueIn(1L).intValue());
+        verify(_scopedStorage, times(1)).getConfigValue(1L, ClusterIntCK);
+        verify(_scopedStorage, times(1)).getConfigValue(2L, ClusterIntCK);
+
+        _depotAdmin.invalidate(ClusterIntCK.key());
+        assertEquals(20, ClusterIntCK.valueIn(1L).intValue());
+        verify(_scopedStorage, times(2)).getConfigValue(1L, ClusterIntCK);
+    }
+
+    @Test
+    public void testExpiredValueIsReloaded() {
+        _depotAdmin.setCacheTtl(0);
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(null);
+
+        assertEquals(10, DynamicIntCK.value().intValue());
+        assertEquals(10, DynamicIntCK.value().intValue());
+        verify(_configDao, times(2)).findById(DynamicIntCK.key());
+        assertEquals(0, _depotAdmin.getCacheHits());
+    }
 }
@@ -84,12 +84,24 @@ public class Filter {
         } else {
             order.append(column.table());
         }
-        order.append(".").append(name).append(ascending ? " ASC " : " DESC ");
+        order.append(".").append(name);
+
+        addOrderBy(order.toString(), ascending);
+    }
+
+    /**
+     * Orders by an sql expression over the columns, e.g. a CASE ranking the values of a column.
+     * The expression is not checked, only pass in constant sql.
+     *
+     * @param expression sql expression with the column names qualified by table name.
+     */
+    public void addOrderBy(String expression, boolean ascending) {
+        StringBuilder order = new StringBuilder(expression).append(ascending ? " ASC " : " DESC ");
 
         if (_orderBy == null) {
             _orderBy = order.insert(0, " ORDER BY ").toString();
         } else {
-            _orderBy = order.insert(0, _orderBy).toString();
+            _orderBy = order.insert(0, _orderBy + ", ").toString();
         }
     }
 
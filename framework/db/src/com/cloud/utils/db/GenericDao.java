@@ -17,6 +17,7 @@
 package com.cloud.utils.db;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -59,6 +60,9 @@ public interface GenericDao<T, ID extends Serializable> {
     // Finds one unique VO using uuid including removed entities
     T findByUuidIncludingRemoved(String uuid);
 
+    // Lists the VOs with any of the uuids including removed entities
+    List<T> listByUuidsIncludingRemoved(Collection<String> uuids);
+
     /**
      * @return VO object ready to be used for update.  It won't have any fields filled in.
      */
@@ -133,6 +137,14 @@ public interface GenericDao<T, ID extends Serializable> {
 
     boolean update(ID id, T entity);
 
+    /**
+     * Updates the changes made to the entity beans with batched statements,
+     * the entities changing the same columns share one statement.
+     * @param entities entity beans obtained from this dao.
+     * @return number of rows updated.
+     */
+    int updateBatch(List<T> entities);
+
     int update(T entity, SearchCriteria<T> sc);
 
     /**
@@ -199,6 +211,15 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
 
+    /**
+     * Persists the entity beans with batched inserts, one batch per table of
+     * the entity.  Entity beans obtained from this dao are updated instead.
+     * @param entities entity beans to persist.
+     * @return the persisted entity beans, in the same order.  A null is
+     * returned if there's no primary key specified in the VO object.
+     */
+    List<T> persistBatch(List<T> entities);
+
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
@@ -22,9 +22,7 @@ import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -39,6 +37,8 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -147,6 +147,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected Map<String, Attribute> _allAttributes;
     protected List<Attribute> _ecAttributes;
     protected Map<Pair<String, String>, Attribute> _allColumns;
+    protected final ConcurrentHashMap<String, RowMapper> _rowMappers = new ConcurrentHashMap<String, RowMapper>();
     protected Enhancer _enhancer;
     protected Factory _factory;
     protected Enhancer _searchEnhancer;
@@ -157,6 +158,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     protected static final String FOR_UPDATE_CLAUSE = " FOR UPDATE ";
     protected static final String SHARE_MODE_CLAUSE = " LOCK IN SHARE MODE";
     protected static final String SELECT_LAST_INSERT_ID_SQL = "SELECT LAST_INSERT_ID()";
+    protected static final int BATCH_SIZE = 500;
 
     protected static final SequenceFetcher s_seqFetcher = SequenceFetcher.getInstance();
 
@@ -518,142 +520,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     @DB()
     protected void setField(Object entity, Field field, ResultSet rs, int index) throws SQLException {
         try {
-            final Class<?> type = field.getType();
-            if (type == String.class) {
-                byte[] bytes = rs.getBytes(index);
-                if (bytes != null) {
-                    try {
-                        Encrypt encrypt = field.getAnnotation(Encrypt.class);
-                        if (encrypt != null && encrypt.encrypt()) {
-                            field.set(entity, DBEncryptionUtil.decrypt(new String(bytes, "UTF-8")));
-                        } else {
-                            field.set(entity, new String(bytes, "UTF-8"));
-                        }
-                    } catch (IllegalArgumentException e) {
-                        assert (false);
-                        throw new CloudRuntimeException("IllegalArgumentException when converting UTF-8 data");
-                    } catch (UnsupportedEncodingException e) {
-                        assert (false);
-                        throw new CloudRuntimeException("UnsupportedEncodingException when converting UTF-8 data");
-                    }
-                } else {
-                    field.set(entity, null);
-                }
-            } else if (type == long.class) {
-                field.setLong(entity, rs.getLong(index));
-            } else if (type == Long.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getLong(index));
-                }
-            } else if (type.isEnum()) {
-                final Enumerated enumerated = field.getAnnotation(Enumerated.class);
-                final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
-
-                final Enum<?>[] enums = (Enum<?>[])field.getType().getEnumConstants();
-                for (final Enum<?> e : enums) {
-                    if ((enumType == EnumType.STRING && e.name().equalsIgnoreCase(rs.getString(index))) ||
-                            (enumType == EnumType.ORDINAL && e.ordinal() == rs.getInt(index))) {
-                        field.set(entity, e);
-                        return;
-                    }
-                }
-            } else if (type == int.class) {
-                field.set(entity, rs.getInt(index));
-            } else if (type == Integer.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getInt(index));
-                }
-            } else if (type == Date.class) {
-                final Object data = rs.getDate(index);
-                if (data == null) {
-                    field.set(entity, null);
-                    return;
-                }
-                field.set(entity, DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index)));
-            } else if (type == Calendar.class) {
-                final Object data = rs.getDate(index);
-                if (data == null) {
-                    field.set(entity, null);
-                    return;
-                }
-                final Calendar cal = Calendar.getInstance();
-                cal.setTime(DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index)));
-                field.set(entity, cal);
-            } else if (type == boolean.class) {
-                field.setBoolean(entity, rs.getBoolean(index));
-            } else if (type == Boolean.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getBoolean(index));
-                }
-            } else if (type == URI.class) {
-                try {
-                    String str = rs.getString(index);
-                    field.set(entity, str == null ? null : new URI(str));
-                } catch (URISyntaxException e) {
-                    throw new CloudRuntimeException("Invalid URI: " + rs.getString(index), e);
-                }
-            } else if (type == URL.class) {
-                try {
-                    String str = rs.getString(index);
-                    field.set(entity, str != null ? new URL(str) : null);
-                } catch (MalformedURLException e) {
-                    throw new CloudRuntimeException("Invalid URL: " + rs.getString(index), e);
-                }
-            } else if (type == Ip.class) {
-                final Enumerated enumerated = field.getAnnotation(Enumerated.class);
-                final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
-
-                Ip ip = null;
-                if (enumType == EnumType.STRING) {
-                    String s = rs.getString(index);
-                    ip = s == null ? null : new Ip(NetUtils.ip2Long(s));
-                } else {
-                    ip = new Ip(rs.getLong(index));
-                }
-                field.set(entity, ip);
-            } else if (type == short.class) {
-                field.setShort(entity, rs.getShort(index));
-            } else if (type == Short.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getShort(index));
-                }
-            } else if (type == float.class) {
-                field.setFloat(entity, rs.getFloat(index));
-            } else if (type == Float.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getFloat(index));
-                }
-            } else if (type == double.class) {
-                field.setDouble(entity, rs.getDouble(index));
-            } else if (type == Double.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getDouble(index));
-                }
-            } else if (type == byte.class) {
-                field.setByte(entity, rs.getByte(index));
-            } else if (type == Byte.class) {
-                if (rs.getObject(index) == null) {
-                    field.set(entity, null);
-                } else {
-                    field.set(entity, rs.getByte(index));
-                }
-            } else if (type == byte[].class) {
-                field.set(entity, rs.getBytes(index));
-            } else {
-                field.set(entity, rs.getObject(index));
-            }
+            RowMapper.getSetter(field).set(entity, rs, index);
         } catch (final IllegalAccessException e) {
             throw new CloudRuntimeException("Yikes! ", e);
         }
@@ -964,6 +831,17 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return findOneIncludingRemovedBy(sc);
     }
 
+    @Override
+    @DB()
+    public List<T> listByUuidsIncludingRemoved(final Collection<String> uuids) {
+        if (uuids == null || uuids.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        SearchCriteria<T> sc = createSearchCriteria();
+        sc.addAnd("uuid", SearchCriteria.Op.IN, uuids.toArray());
+        return listIncludingRemovedBy(sc);
+    }
+
     @Override
     @DB()
     public T findByIdIncludingRemoved(ID id) {
@@ -1408,6 +1286,221 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<T> persistBatch(final List<T> entities) {
+        final List<T> newEntities = new ArrayList<T>(entities.size());
+        final List<T> enhancedEntities = new ArrayList<T>();
+        for (final T entity : entities) {
+            if (Enhancer.isEnhanced(entity.getClass())) {
+                enhancedEntities.add(entity);
+            } else {
+                newEntities.add(entity);
+            }
+        }
+        if (!enhancedEntities.isEmpty()) {
+            assert _idField != null : "Can't call persit if you don't have primary key";
+            updateBatch(enhancedEntities);
+        }
+        if (newEntities.isEmpty()) {
+            return entities;
+        }
+
+        final List<ID> ids = new ArrayList<ID>(newEntities.size());
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                final Attribute[] attrs = pair.second();
+                final List<Object> keys = new ArrayList<Object>(newEntities.size());
+                for (int from = 0; from < newEntities.size(); from += BATCH_SIZE) {
+                    final List<T> batch = newEntities.subList(from, Math.min(from + BATCH_SIZE, newEntities.size()));
+                    pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+                    for (final T entity : batch) {
+                        prepareAttributes(pstmt, entity, attrs, 1);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+
+                    if (ids.isEmpty()) {
+                        final ResultSet rs = pstmt.getGeneratedKeys();
+                        while (rs != null && rs.next()) {
+                            keys.add(rs.getObject(1));
+                        }
+                    }
+                }
+
+                // The ids come from the first table, the other tables of the entity reuse them
+                if (ids.isEmpty()) {
+                    if (!keys.isEmpty() && keys.size() != newEntities.size()) {
+                        throw new CloudRuntimeException("Got " + keys.size() + " generated keys for " + newEntities.size() + " rows inserted in " + _table);
+                    }
+                    for (int i = 0; i < newEntities.size(); i++) {
+                        final T entity = newEntities.get(i);
+                        ID id = keys.isEmpty() ? null : (ID)keys.get(i);
+                        if (_idField != null) {
+                            if (id != null) {
+                                _idField.set(entity, id);
+                            } else {
+                                id = (ID)_idField.get(entity);
+                            }
+                        }
+                        ids.add(id);
+                    }
+                }
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (int i = 0; i < newEntities.size(); i++) {
+                    final T entity = newEntities.get(i);
+                    final HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (final Attribute attr : _ecAttributes) {
+                        final Object ec = attr.field.get(entity);
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], ids.get(i), ecAttributes);
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Problem with getting the ec attribute ", e);
+        }
+
+        if (_idField == null) {
+            return null;
+        }
+        if (enhancedEntities.isEmpty()) {
+            return findByIdsIncludingRemoved(ids);
+        }
+
+        final List<T> persisted = new ArrayList<T>(entities.size());
+        final Iterator<T> found = findByIdsIncludingRemoved(ids).iterator();
+        for (final T entity : entities) {
+            persisted.add(Enhancer.isEnhanced(entity.getClass()) ? entity : found.next());
+        }
+        return persisted;
+    }
+
+    /**
+     * Loads the entities with one query and returns them in the order of the ids.
+     */
+    protected List<T> findByIdsIncludingRemoved(final List<ID> ids) {
+        final List<T> entities = new ArrayList<T>(ids.size());
+        if (_idField.getAnnotation(EmbeddedId.class) != null) {
+            for (final ID id : ids) {
+                entities.add(findByIdIncludingRemoved(id));
+            }
+            return entities;
+        }
+
+        final Map<Object, T> found = new HashMap<Object, T>();
+        try {
+            for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+                final List<ID> batch = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+                final SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.IN, batch.toArray(new Object[batch.size()]));
+                for (final T entity : searchIncludingRemoved(sc, null, null, true)) {
+                    found.put(_idField.get(entity), entity);
+                }
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+        for (final ID id : ids) {
+            entities.add(found.get(id));
+        }
+        return entities;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public int updateBatch(final List<T> entities) {
+        // Entities changing the same columns share the same statement
+        final Map<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>> statements = new LinkedHashMap<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>>();
+        final Attribute idAttribute = _idAttributes.get(_table)[0];
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        int rowsUpdated = 0;
+        try {
+            txn.start();
+            for (final T entity : entities) {
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+
+                final ID id = (ID)_idField.get(entity);
+                if (_cache != null) {
+                    _cache.remove(id);
+                }
+                final UpdateBuilder ub = getUpdateBuilder(entity);
+                if (ub.getCollectionChanges() != null) {
+                    insertElementCollection(entity, idAttribute, id, ub.getCollectionChanges());
+                }
+
+                final StringBuilder sql = ub.toSql(_tables);
+                if (sql == null) {
+                    continue;
+                }
+                final SearchCriteria<T> sc = createSearchCriteria();
+                sc.addAnd(idAttribute, SearchCriteria.Op.EQ, id);
+                sql.append(sc.getWhereClause());
+
+                List<Pair<UpdateBuilder, SearchCriteria<T>>> rows = statements.get(sql.toString());
+                if (rows == null) {
+                    rows = new ArrayList<Pair<UpdateBuilder, SearchCriteria<T>>>();
+                    statements.put(sql.toString(), rows);
+                }
+                rows.add(new Pair<UpdateBuilder, SearchCriteria<T>>(ub, sc));
+            }
+
+            for (final Map.Entry<String, List<Pair<UpdateBuilder, SearchCriteria<T>>>> statement : statements.entrySet()) {
+                final List<Pair<UpdateBuilder, SearchCriteria<T>>> rows = statement.getValue();
+                for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+                    final List<Pair<UpdateBuilder, SearchCriteria<T>>> batch = rows.subList(from, Math.min(from + BATCH_SIZE, rows.size()));
+                    pstmt = txn.prepareAutoCloseStatement(statement.getKey());
+                    for (final Pair<UpdateBuilder, SearchCriteria<T>> row : batch) {
+                        int i = 1;
+                        for (final Ternary<Attribute, Boolean, Object> value : row.first().getChanges()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.third());
+                        }
+                        for (final Pair<Attribute, Object> value : row.second().getValues()) {
+                            prepareAttribute(i++, pstmt, value.first(), value.second());
+                        }
+                        pstmt.addBatch();
+                    }
+                    for (final int count : pstmt.executeBatch()) {
+                        if (count > 0) {
+                            rowsUpdated += count;
+                        } else if (count == Statement.SUCCESS_NO_INFO) {
+                            rowsUpdated++;
+                        }
+                    }
+                    for (final Pair<UpdateBuilder, SearchCriteria<T>> row : batch) {
+                        row.first().clear();
+                    }
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists ", e);
+            }
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+        return rowsUpdated;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
@@ -1628,10 +1721,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
     @DB()
     protected void toEntityBean(final ResultSet result, final T entity) throws SQLException {
-        ResultSetMetaData meta = result.getMetaData();
-        for (int index = 1, max = meta.getColumnCount(); index <= max; index++) {
-            setField(entity, result, meta, index);
-        }
+        getRowMapper(result, entity.getClass()).map(entity, result);
         for (Attribute attr : _ecAttributes) {
             loadCollection(entity, attr);
         }
@@ -1729,18 +1819,48 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         }
     }
 
-    @DB()
-    protected void setField(final Object entity, final ResultSet rs, ResultSetMetaData meta, final int index) throws SQLException {
+    /**
+     * Returns the mapper for the columns of the result set.  The meta data is
+     * only looked at for the first row of a result set and the mapper itself is
+     * built once per column layout.
+     */
+    protected RowMapper getRowMapper(final ResultSet result, final Class<?> entityClass) throws SQLException {
+        RowMapper mapper = RowMapper.getCurrent(result, this, entityClass);
+        if (mapper != null) {
+            return mapper;
+        }
+
+        ResultSetMetaData meta = result.getMetaData();
+        int columnCount = meta.getColumnCount();
+        StringBuilder layout = new StringBuilder(entityClass.getName());
+        for (int index = 1; index <= columnCount; index++) {
+            layout.append(',').append(meta.getTableName(index)).append('.').append(meta.getColumnName(index)).append(' ').append(meta.getColumnLabel(index));
+        }
+        String key = layout.toString();
+        mapper = _rowMappers.get(key);
+        if (mapper == null) {
+            Field[] fields = new Field[columnCount];
+            for (int index = 1; index <= columnCount; index++) {
+                fields[index - 1] = getColumnAttribute(entityClass, meta, index).field;
+            }
+            mapper = new RowMapper(fields);
+            _rowMappers.put(key, mapper);
+        }
+        RowMapper.setCurrent(result, this, entityClass, mapper);
+        return mapper;
+    }
+
+    protected Attribute getColumnAttribute(final Class<?> entityClass, ResultSetMetaData meta, final int index) throws SQLException {
         Attribute attr = _allColumns.get(new Pair<String, String>(meta.getTableName(index), meta.getColumnName(index)));
         if (attr == null) {
             // work around for mysql bug to return original table name instead of view name in db view case
-            Table tbl = entity.getClass().getSuperclass().getAnnotation(Table.class);
+            Table tbl = entityClass.getSuperclass().getAnnotation(Table.class);
             if (tbl != null) {
                 attr = _allColumns.get(new Pair<String, String>(tbl.name(), meta.getColumnLabel(index)));
             }
         }
         assert (attr != null) : "How come I can't find " + meta.getCatalogName(index) + "." + meta.getColumnName(index);
-        setField(entity, attr.field, rs, index);
+        return attr;
     }
 
     @Override
@@ -22,31 +22,48 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
 
+/**
+ * Cluster wide locks kept in the op_lock table.  The locks are spread over
+ * db.cloud.lockConnections dedicated connections by the hash of their key so
+ * that locks on different keys don't queue behind each other on one
+ * connection.  A thread that already holds a lock re-acquires and releases it
+ * without going to the database, only the outermost acquire and release do.
+ * When rows are deleted behind the holders' backs, by a cleanup or a release
+ * from JMX, each thread checks its locks against op_lock once more before
+ * trusting its own bookkeeping again.
+ */
 public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final Logger s_logger = Logger.getLogger(Merovingian2.class);
 
+    private static final int DEFAULT_LOCK_CONNECTIONS = 4;
+    // Upper bounds in milliseconds of the acquire wait time buckets, the last bucket has no bound
+    private static final long[] WAIT_TIME_BUCKETS = {10, 100, 1000, 10000, 60000};
+
     private static final String ACQUIRE_SQL =
             "INSERT INTO op_lock (op_lock.key, op_lock.mac, op_lock.ip, op_lock.thread, op_lock.acquired_on, waiters) VALUES (?, ?, ?, ?, ?, 1)";
-    private static final String INCREMENT_SQL = "UPDATE op_lock SET waiters=waiters+1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String SELECT_SQL = "SELECT op_lock.key, mac, ip, thread, acquired_on, waiters FROM op_lock";
     private static final String INQUIRE_SQL = SELECT_SQL + " WHERE op_lock.key=?";
-    private static final String DECREMENT_SQL = "UPDATE op_lock SET waiters=waiters-1 where op_lock.key=? AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String RELEASE_LOCK_SQL = "DELETE FROM op_lock WHERE op_lock.key = ?";
-    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND waiters=0";
+    private static final String RELEASE_SQL = RELEASE_LOCK_SQL + " AND op_lock.mac=? AND op_lock.ip=? AND op_lock.thread=?";
     private static final String CLEANUP_MGMT_LOCKS_SQL = "DELETE FROM op_lock WHERE op_lock.mac = ?";
     private static final String SELECT_MGMT_LOCKS_SQL = SELECT_SQL + " WHERE mac=?";
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
@@ -57,23 +74,50 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private final long _msId;
 
     private static Merovingian2 s_instance = null;
+    // Connection for the locks of each shard, the first one also serves the queries over all locks
+    private final ConnectionConcierge[] _concierges;
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
 
+    private final AtomicLongArray _waitTimes = new AtomicLongArray(WAIT_TIME_BUCKETS.length + 1);
+    private final AtomicLong _waitTimeouts = new AtomicLong();
+    // Bumped whenever rows of this server are deleted outside of release()
+    private final AtomicLong _cleanups = new AtomicLong();
+
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
         _msId = msId;
+        int connections = Math.max(1, NumbersUtil.parseInt(DbProperties.getDbProperties().getProperty("db.cloud.lockConnections"), DEFAULT_LOCK_CONNECTIONS));
+        _concierges = new ConnectionConcierge[connections];
+        try {
+            for (int i = 0; i < connections; i++) {
+                _concierges[i] = createConcierge();
+            }
+        } catch (CloudRuntimeException e) {
+            for (ConnectionConcierge concierge : _concierges) {
+                if (concierge != null) {
+                    concierge.release();
+                }
+            }
+            throw e;
+        }
+        _concierge = _concierges[0];
+    }
+
+    private static ConnectionConcierge createConcierge() {
         Connection conn = null;
+        ConnectionConcierge concierge = null;
         try {
             conn = TransactionLegacy.getStandaloneConnectionWithException();
             conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
             conn.setAutoCommit(true);
-            _concierge = new ConnectionConcierge("LockMaster", conn, true);
+            concierge = new ConnectionConcierge("LockMaster", conn, true);
+            return concierge;
         } catch (SQLException e) {
             s_logger.error("Unable to get a new db connection", e);
             throw new CloudRuntimeException("Unable to initialize a connection to the database for locking purposes", e);
         } finally {
-            if (_concierge == null && conn != null) {
+            if (concierge == null && conn != null) {
                 try {
                     conn.close();
                 } catch (SQLException e) {
@@ -83,6 +127,13 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
     }
 
+    /**
+     * @return the connection the lock on the key goes through.
+     */
+    protected Connection conn(String key) {
+        return _concierges[(key.hashCode() & Integer.MAX_VALUE) % _concierges.length].conn();
+    }
+
     public static synchronized Merovingian2 createLockMaster(long msId) {
         assert s_instance == null : "No lock can serve two masters.  Either he will hate the one and love the other, or he will be devoted to the one and despise the other.";
         s_instance = new Merovingian2(msId);
@@ -99,23 +150,78 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
-    protected void incrCount() {
+    protected Count getCount() {
         Count count = s_tls.get();
         if (count == null) {
             count = new Count();
+            count.cleanups = _cleanups.get();
             s_tls.set(count);
         }
+        return count;
+    }
 
+    protected void incrCount(String key) {
+        Count count = getCount();
+        Integer held = count.held.get(key);
+        count.held.put(key, held == null ? 1 : held + 1);
         count.count++;
     }
 
-    protected void decrCount() {
+    /**
+     * @return number of times the thread still holds the lock.
+     */
+    protected int decrCount(String key) {
         Count count = s_tls.get();
         if (count == null) {
-            return;
+            return 0;
+        }
+        Integer held = count.held.get(key);
+        if (held == null) {
+            return 0;
         }
 
         count.count--;
+        if (held > 1) {
+            count.held.put(key, held - 1);
+            return held - 1;
+        }
+        count.held.remove(key);
+        return 0;
+    }
+
+    /**
+     * @return number of times this thread holds the lock according to its own bookkeeping.
+     */
+    protected int heldLocally(String key) {
+        Count count = s_tls.get();
+        if (count == null) {
+            return 0;
+        }
+        if (count.cleanups != _cleanups.get()) {
+            verifyHeld(count);
+        }
+        Integer held = count.held.get(key);
+        return held == null ? 0 : held;
+    }
+
+    /**
+     * Drops the locks whose op_lock row is no longer owned by this thread
+     * from the thread's bookkeeping.
+     */
+    protected void verifyHeld(Count count) {
+        long cleanups = _cleanups.get();
+        String threadId = Integer.toString(System.identityHashCode(Thread.currentThread()));
+        Iterator<Map.Entry<String, Integer>> it = count.held.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            Map<String, String> owner = isLocked(entry.getKey());
+            if (owner == null || !owner.get("mgmt").equals(Long.toString(_msId)) || !owner.get("tid").equals(threadId)) {
+                s_logger.warn("lck-" + entry.getKey() + " was released from under its holder, dropping it from the thread's locks");
+                count.count -= entry.getValue();
+                it.remove();
+            }
+        }
+        count.cleanups = cleanups;
     }
 
     public boolean acquire(String key, int timeInSeconds) {
@@ -126,17 +232,24 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
+        if (heldLocally(key) > 0) {
+            // Re-entrant acquire, the row in op_lock is already ours
+            incrCount(key);
+            return true;
+        }
+
         long startTime = InaccurateClock.getTime();
 
         while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000l)) {
-            int count = owns(key);
-
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
-                }
+            if (doAcquire(key, threadName, threadId)) {
+                recordWaitTime(InaccurateClock.getTime() - startTime);
+                return true;
+            }
+            if (owns(key) >= 1) {
+                // The lock was taken by this thread before the bookkeeping was reset
+                incrCount(key);
+                recordWaitTime(InaccurateClock.getTime() - startTime);
+                return true;
             }
             try {
                 if (s_logger.isTraceEnabled()) {
@@ -147,37 +260,24 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                 s_logger.debug("[ignored] interupted while aquiring " + key);
             }
         }
+        _waitTimeouts.incrementAndGet();
         String msg = "Timed out on acquiring lock " + key + " .  Waited for " + ((InaccurateClock.getTime() - startTime)/1000) +  "seconds";
         Exception e = new CloudRuntimeException(msg);
         s_logger.warn(msg, e);
         return false;
     }
 
-    protected boolean increment(String key, String threadName, int threadId) {
-      try (PreparedStatement pstmt = _concierge.conn().prepareStatement(INCREMENT_SQL);){
-            pstmt.setString(1, key);
-            pstmt.setLong(2, _msId);
-            pstmt.setString(3, threadName);
-            pstmt.setInt(4, threadId);
-            int rows = pstmt.executeUpdate();
-            assert (rows <= 1) : "hmm...non unique key? " + pstmt;
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + (rows == 1 ? " acquired again" : " failed to acquire again"));
-            }
-            if (rows == 1) {
-                incrCount();
-                return true;
-            }
-            return false;
-        } catch (Exception e) {
-            s_logger.error("increment:Exception:"+e.getMessage());
-            throw new CloudRuntimeException("increment:Exception:"+e.getMessage(), e);
+    protected void recordWaitTime(long waitTime) {
+        int bucket = 0;
+        while (bucket < WAIT_TIME_BUCKETS.length && waitTime >= WAIT_TIME_BUCKETS[bucket]) {
+            bucket++;
         }
+        _waitTimes.incrementAndGet(bucket);
     }
 
     protected boolean doAcquire(String key, String threadName, int threadId) {
         long startTime = InaccurateClock.getTime();
-        try(PreparedStatement pstmt = _concierge.conn().prepareStatement(ACQUIRE_SQL);) {
+        try(PreparedStatement pstmt = conn(key).prepareStatement(ACQUIRE_SQL);) {
             pstmt.setString(1, key);
             pstmt.setLong(2, _msId);
             pstmt.setString(3, threadName);
@@ -189,7 +289,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     if (s_logger.isTraceEnabled()) {
                         s_logger.trace("Acquired for lck-" + key);
                     }
-                    incrCount();
+                    incrCount(key);
                     return true;
                 }
             } catch (SQLException e) {
@@ -207,7 +307,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     protected Map<String, String> isLocked(String key) {
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(INQUIRE_SQL);){
+        try (PreparedStatement pstmt = conn(key).prepareStatement(INQUIRE_SQL);){
             pstmt.setString(1, key);
             try(ResultSet rs = pstmt.executeQuery();)
             {
@@ -237,6 +337,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                 try(PreparedStatement pstmt = _concierge.conn().prepareStatement(CLEANUP_MGMT_LOCKS_SQL);) {
                     pstmt.setLong(1, msId);
                     int rows = pstmt.executeUpdate();
+                    if (msId == _msId) {
+                        _cleanups.incrementAndGet();
+                    }
                     s_logger.info("Released " + rows + " locks for " + msId);
                 }catch (Exception e) {
                     s_logger.error("cleanupForServer:Exception:"+e.getMessage());
@@ -253,32 +356,33 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         Thread th = Thread.currentThread();
         String threadName = th.getName();
         int threadId = System.identityHashCode(th);
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(DECREMENT_SQL);)
+        if (heldLocally(key) == 0) {
+            String msg = ("Was unable to find lock for the key " + key + " and thread id " + threadId);
+            Exception e = new CloudRuntimeException(msg);
+            s_logger.warn(msg, e);
+            return false;
+        }
+        if (decrCount(key) > 0) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("lck-" + key + " released");
+            }
+            return true;
+        }
+
+        try (PreparedStatement pstmt = conn(key).prepareStatement(RELEASE_SQL);)
         {
             pstmt.setString(1, key);
             pstmt.setLong(2, _msId);
             pstmt.setString(3, threadName);
-            pstmt.setLong(4, threadId);
+            pstmt.setInt(4, threadId);
             int rows = pstmt.executeUpdate();
             assert (rows <= 1) : "hmmm....keys not unique? " + pstmt;
 
-            if (s_logger.isTraceEnabled()) {
-                s_logger.trace("lck-" + key + " released");
-            }
             if (rows == 1) {
-                try (PreparedStatement rel_sql_pstmt = _concierge.conn().prepareStatement(RELEASE_SQL);) {
-                    rel_sql_pstmt.setString(1, key);
-                    rel_sql_pstmt.setLong(2, _msId);
-                    int result = rel_sql_pstmt.executeUpdate();
-                    if (result == 1 && s_logger.isTraceEnabled()) {
-                        s_logger.trace("lck-" + key + " removed");
-                    }
-                    decrCount();
-                }catch (Exception e) {
-                    s_logger.error("release:Exception:"+ e.getMessage());
-                    throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("lck-" + key + " removed");
                 }
-            } else if (rows < 1) {
+            } else {
                 String msg = ("Was unable to find lock for the key " + key + " and thread id " + threadId);
                 Exception e = new CloudRuntimeException(msg);
                 s_logger.warn(msg, e);
@@ -340,6 +444,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     public int owns(String key) {
+        int held = heldLocally(key);
+        if (held > 0) {
+            return held;
+        }
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
         Map<String, String> owner = isLocked(key);
@@ -377,6 +485,7 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
         int c = count.count;
         count.count = 0;
+        count.held.clear();
 
         Thread th = Thread.currentThread();
         String threadName = th.getName();
@@ -398,10 +507,11 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     @Override
     public boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key) {
         s_logger.info("Releasing a lock from JMX lck-" + key);
-        try (PreparedStatement pstmt = _concierge.conn().prepareStatement(RELEASE_LOCK_SQL);)
+        try (PreparedStatement pstmt = conn(key).prepareStatement(RELEASE_LOCK_SQL);)
         {
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            _cleanups.incrementAndGet();
             return rows > 0;
         } catch (Exception e) {
             s_logger.error("releaseLockAsLastResortAndIReallyKnowWhatIAmDoing : Exception: " +  e.getMessage());
@@ -409,7 +519,29 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
     }
 
+    @Override
+    public Map<String, Long> getAcquireWaitTimes() {
+        Map<String, Long> waitTimes = new LinkedHashMap<String, Long>();
+        long lowerBound = 0;
+        for (int i = 0; i < WAIT_TIME_BUCKETS.length; i++) {
+            waitTimes.put(lowerBound + "-" + WAIT_TIME_BUCKETS[i] + "ms", _waitTimes.get(i));
+            lowerBound = WAIT_TIME_BUCKETS[i];
+        }
+        waitTimes.put(">=" + lowerBound + "ms", _waitTimes.get(WAIT_TIME_BUCKETS.length));
+        waitTimes.put("timeouts", _waitTimeouts.get());
+        return waitTimes;
+    }
+
+    @Override
+    public int getLockConnectionCount() {
+        return _concierges.length;
+    }
+
     protected static class Count {
         public int count = 0;
+        // Value of _cleanups when the held locks were last known to have their rows
+        public long cleanups = 0;
+        // Number of times the thread holds each lock
+        public final Map<String, Integer> held = new HashMap<String, Integer>();
     }
 }
@@ -28,4 +28,11 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
 
     void cleanupForServer(long msId);
+
+    /**
+     * @return number of acquires per wait time range and number of acquires that timed out.
+     */
+    Map<String, Long> getAcquireWaitTimes();
+
+    int getLockConnectionCount();
 }
@@ -0,0 +1,408 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.crypt.DBEncryptionUtil;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.NetUtils;
+
+/**
+ * Sets the columns of a result set row on the fields of an entity.  The
+ * mapper is built once for a given column layout: every column is bound to a
+ * setter that already knows the type of the field, whether it is encrypted and
+ * how its enum values are looked up, so mapping a row doesn't need to look at
+ * the result set meta data, the field type or its annotations any more.
+ */
+public class RowMapper {
+    private static final TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
+
+    private static final ConcurrentHashMap<Field, ColumnSetter> s_setters = new ConcurrentHashMap<Field, ColumnSetter>();
+
+    private static final ThreadLocal<LastMapping> s_lastMapping = new ThreadLocal<LastMapping>();
+
+    public interface ColumnSetter {
+        void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException;
+    }
+
+    private final ColumnSetter[] _setters;
+
+    /**
+     * @param fields fields to set, in the order of the columns of the result set.
+     */
+    public RowMapper(Field[] fields) {
+        _setters = new ColumnSetter[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            _setters[i] = getSetter(fields[i]);
+        }
+    }
+
+    public void map(Object entity, ResultSet rs) throws SQLException {
+        try {
+            for (int i = 0; i < _setters.length; i++) {
+                _setters[i].set(entity, rs, i + 1);
+            }
+        } catch (IllegalAccessException e) {
+            throw new CloudRuntimeException("Yikes! ", e);
+        }
+    }
+
+    /**
+     * @return the mapper last used by this thread for the result set and owner, null if there is none.
+     */
+    public static RowMapper getCurrent(ResultSet rs, Object owner, Class<?> entityClass) {
+        LastMapping last = s_lastMapping.get();
+        if (last != null && last._owner == owner && last._entityClass == entityClass && last._resultSet.get() == rs) {
+            return last._mapper;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers the mapper used for the result set so the next rows of it can be mapped without looking it up again.
+     */
+    public static void setCurrent(ResultSet rs, Object owner, Class<?> entityClass, RowMapper mapper) {
+        s_lastMapping.set(new LastMapping(rs, owner, entityClass, mapper));
+    }
+
+    public static ColumnSetter getSetter(Field field) {
+        ColumnSetter setter = s_setters.get(field);
+        if (setter == null) {
+            setter = createSetter(field);
+            s_setters.put(field, setter);
+        }
+        return setter;
+    }
+
+    protected static ColumnSetter createSetter(final Field field) {
+        final Class<?> type = field.getType();
+        if (type == String.class) {
+            Encrypt encrypt = field.getAnnotation(Encrypt.class);
+            return new StringSetter(field, encrypt != null && encrypt.encrypt());
+        } else if (type == long.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setLong(entity, rs.getLong(index));
+                }
+            };
+        } else if (type == Long.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    long value = rs.getLong(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type.isEnum()) {
+            final Enumerated enumerated = field.getAnnotation(Enumerated.class);
+            final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
+            return new EnumSetter(field, enumType);
+        } else if (type == int.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setInt(entity, rs.getInt(index));
+                }
+            };
+        } else if (type == Integer.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    int value = rs.getInt(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == Date.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    final Object data = rs.getDate(index);
+                    field.set(entity, data == null ? null : DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index)));
+                }
+            };
+        } else if (type == Calendar.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    final Object data = rs.getDate(index);
+                    if (data == null) {
+                        field.set(entity, null);
+                        return;
+                    }
+                    final Calendar cal = Calendar.getInstance();
+                    cal.setTime(DateUtil.parseDateString(s_gmtTimeZone, rs.getString(index)));
+                    field.set(entity, cal);
+                }
+            };
+        } else if (type == boolean.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setBoolean(entity, rs.getBoolean(index));
+                }
+            };
+        } else if (type == Boolean.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    boolean value = rs.getBoolean(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == URI.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    try {
+                        field.set(entity, str == null ? null : new URI(str));
+                    } catch (URISyntaxException e) {
+                        throw new CloudRuntimeException("Invalid URI: " + str, e);
+                    }
+                }
+            };
+        } else if (type == URL.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    String str = rs.getString(index);
+                    try {
+                        field.set(entity, str != null ? new URL(str) : null);
+                    } catch (MalformedURLException e) {
+                        throw new CloudRuntimeException("Invalid URL: " + str, e);
+                    }
+                }
+            };
+        } else if (type == Ip.class) {
+            final Enumerated enumerated = field.getAnnotation(Enumerated.class);
+            final EnumType enumType = (enumerated == null) ? EnumType.STRING : enumerated.value();
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    Ip ip = null;
+                    if (enumType == EnumType.STRING) {
+                        String s = rs.getString(index);
+                        ip = s == null ? null : new Ip(NetUtils.ip2Long(s));
+                    } else {
+                        ip = new Ip(rs.getLong(index));
+                    }
+                    field.set(entity, ip);
+                }
+            };
+        } else if (type == short.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setShort(entity, rs.getShort(index));
+                }
+            };
+        } else if (type == Short.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    short value = rs.getShort(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == float.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setFloat(entity, rs.getFloat(index));
+                }
+            };
+        } else if (type == Float.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    float value = rs.getFloat(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == double.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setDouble(entity, rs.getDouble(index));
+                }
+            };
+        } else if (type == Double.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    double value = rs.getDouble(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == byte.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.setByte(entity, rs.getByte(index));
+                }
+            };
+        } else if (type == Byte.class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    byte value = rs.getByte(index);
+                    field.set(entity, rs.wasNull() ? null : value);
+                }
+            };
+        } else if (type == byte[].class) {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.set(entity, rs.getBytes(index));
+                }
+            };
+        } else {
+            return new ColumnSetter() {
+                @Override
+                public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+                    field.set(entity, rs.getObject(index));
+                }
+            };
+        }
+    }
+
+    private static class StringSetter implements ColumnSetter {
+        private final Field _field;
+        private final boolean _encrypted;
+
+        StringSetter(Field field, boolean encrypted) {
+            _field = field;
+            _encrypted = encrypted;
+        }
+
+        @Override
+        public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+            byte[] bytes = rs.getBytes(index);
+            if (bytes == null) {
+                _field.set(entity, null);
+                return;
+            }
+            try {
+                String value = new String(bytes, "UTF-8");
+                _field.set(entity, _encrypted ? DBEncryptionUtil.decrypt(value) : value);
+            } catch (IllegalArgumentException e) {
+                assert (false);
+                throw new CloudRuntimeException("IllegalArgumentException when converting UTF-8 data");
+            } catch (UnsupportedEncodingException e) {
+                assert (false);
+                throw new CloudRuntimeException("UnsupportedEncodingException when converting UTF-8 data");
+            }
+        }
+    }
+
+    /**
+     * Looks enum values up by name, ignoring the case, or by ordinal.  A column
+     * that doesn't match any of the values leaves the field untouched.
+     */
+    private static class EnumSetter implements ColumnSetter {
+        private final Field _field;
+        private final EnumType _enumType;
+        private final Enum<?>[] _values;
+        private final Map<String, Enum<?>> _byName;
+
+        EnumSetter(Field field, EnumType enumType) {
+            _field = field;
+            _enumType = enumType;
+            _values = (Enum<?>[])field.getType().getEnumConstants();
+            _byName = new HashMap<String, Enum<?>>(_values.length * 4);
+            for (Enum<?> value : _values) {
+                _byName.put(value.name(), value);
+            }
+            for (Enum<?> value : _values) {
+                String upper = value.name().toUpperCase(Locale.ROOT);
+                if (!_byName.containsKey(upper)) {
+                    _byName.put(upper, value);
+                }
+            }
+        }
+
+        @Override
+        public void set(Object entity, ResultSet rs, int index) throws SQLException, IllegalAccessException {
+            Enum<?> value = null;
+            if (_enumType == EnumType.STRING) {
+                String name = rs.getString(index);
+                if (name != null) {
+                    value = _byName.get(name);
+                    if (value == null) {
+                        value = _byName.get(name.toUpperCase(Locale.ROOT));
+                    }
+                    if (value == null) {
+                        value = findIgnoreCase(name);
+                    }
+                }
+            } else {
+                int ordinal = rs.getInt(index);
+                if (ordinal >= 0 && ordinal < _values.length) {
+                    value = _values[ordinal];
+                }
+            }
+            if (value != null) {
+                _field.set(entity, value);
+            }
+        }
+
+        private Enum<?> findIgnoreCase(String name) {
+            for (Enum<?> value : _values) {
+                if (value.name().equalsIgnoreCase(name)) {
+                    return value;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class LastMapping {
+        final WeakReference<ResultSet> _resultSet;
+        final Object _owner;
+        final Class<?> _entityClass;
+        final RowMapper _mapper;
+
+        LastMapping(ResultSet rs, Object owner, Class<?> entityClass, RowMapper mapper) {
+            _resultSet = new WeakReference<ResultSet>(rs);
+            _owner = owner;
+            _entityClass = entityClass;
+            _mapper = mapper;
+        }
+    }
+}
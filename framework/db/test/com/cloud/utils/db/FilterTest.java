@@ -0,0 +1,39 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FilterTest {
+
+    @Test
+    public void testOrderByColumns() {
+        Filter filter = new Filter(DbTestVO.class, "fieldInt", true, null, null);
+        filter.addOrderBy(DbTestVO.class, "fieldLong", false);
+        assertEquals(" ORDER BY test.fld_int ASC , test.fld_long DESC ", filter.getOrderBy());
+    }
+
+    @Test
+    public void testOrderByExpression() {
+        Filter filter = new Filter(DbTestVO.class, null, true, 0l, 10l);
+        filter.addOrderBy("CASE test.fld_string WHEN 'a' THEN 0 ELSE 1 END", true);
+        filter.addOrderBy(DbTestVO.class, "id", true);
+        assertEquals(" ORDER BY CASE test.fld_string WHEN 'a' THEN 0 ELSE 1 END ASC , test.id ASC ", filter.getOrderBy());
+    }
+}
@@ -0,0 +1,176 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.cloud.utils.component.ComponentContext;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Tests persistBatch, updateBatch and findByIdsIncludingRemoved against test
+ * tables set up once for all the testcases, an entity of its own table and
+ * one that spans two tables.
+ */
+public class GenericDaoBaseBatchTest {
+    DbBatchTestDao _dao = ComponentContext.inject(DbBatchTestDao.class);
+    DbBatchTestDetailDao _detailDao = ComponentContext.inject(DbBatchTestDetailDao.class);
+
+    @BeforeClass
+    public static void oneTimeSetup() {
+        execute("CREATE TABLE `cloud`.`test_batch` (" + "`id` bigint unsigned NOT NULL UNIQUE AUTO_INCREMENT," + "`fld_name` varchar(255),"
+                + "`fld_value` int unsigned," + "PRIMARY KEY (`id`)" + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+        execute("CREATE TABLE `cloud`.`test_batch_detail` (" + "`id` bigint unsigned NOT NULL UNIQUE," + "`fld_detail` varchar(255),"
+                + "PRIMARY KEY (`id`)" + ") ENGINE=InnoDB DEFAULT CHARSET=utf8;");
+    }
+
+    @After
+    public void tearDown() {
+        execute("DELETE FROM `cloud`.`test_batch_detail`");
+        execute("DELETE FROM `cloud`.`test_batch`");
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() {
+        execute("DROP TABLE IF EXISTS `cloud`.`test_batch_detail`");
+        execute("DROP TABLE IF EXISTS `cloud`.`test_batch`");
+    }
+
+    private static void execute(String sql) {
+        try (
+                Connection conn = TransactionLegacy.getStandaloneConnection();
+                PreparedStatement pstmt = conn.prepareStatement(sql);
+            ) {
+            pstmt.execute();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Problem with sql", e);
+        }
+    }
+
+    @Test
+    public void testPersistBatchReturnsIdsInInputOrder() {
+        List<DbBatchTestVO> vos = new ArrayList<DbBatchTestVO>();
+        for (int i = 0; i < 5; i++) {
+            vos.add(new DbBatchTestVO("vo" + i, i));
+        }
+
+        List<DbBatchTestVO> persisted = _dao.persistBatch(vos);
+
+        Assert.assertEquals(5, persisted.size());
+        long previousId = 0;
+        for (int i = 0; i < 5; i++) {
+            DbBatchTestVO vo = persisted.get(i);
+            Assert.assertEquals("vo" + i, vo.getName());
+            Assert.assertEquals(i, vo.getValue());
+            Assert.assertEquals(vos.get(i).getId(), vo.getId());
+            Assert.assertTrue(vo.getId() > previousId);
+            previousId = vo.getId();
+        }
+    }
+
+    @Test
+    public void testPersistBatchOverSeveralTables() {
+        List<DbBatchTestDetailVO> persisted = _detailDao.persistBatch(Arrays.asList(new DbBatchTestDetailVO("vo0", 0, "detail0"),
+                new DbBatchTestDetailVO("vo1", 1, "detail1"), new DbBatchTestDetailVO("vo2", 2, "detail2")));
+
+        Assert.assertEquals(3, persisted.size());
+        for (int i = 0; i < 3; i++) {
+            DbBatchTestDetailVO vo = _detailDao.findById(persisted.get(i).getId());
+            Assert.assertEquals("vo" + i, vo.getName());
+            Assert.assertEquals("detail" + i, vo.getDetail());
+            Assert.assertEquals("vo" + i, _dao.findById(vo.getId()).getName());
+        }
+    }
+
+    @Test
+    public void testPersistBatchMixesEnhancedAndPlainEntities() {
+        DbBatchTestVO existing = _dao.findById(_dao.persist(new DbBatchTestVO("existing", 1)).getId());
+        existing.setValue(42);
+
+        List<DbBatchTestVO> persisted = _dao.persistBatch(Arrays.asList(new DbBatchTestVO("first", 2), existing, new DbBatchTestVO("last", 3)));
+
+        Assert.assertEquals(3, persisted.size());
+        Assert.assertEquals("first", persisted.get(0).getName());
+        Assert.assertSame(existing, persisted.get(1));
+        Assert.assertEquals("last", persisted.get(2).getName());
+        Assert.assertEquals(42, _dao.findById(existing.getId()).getValue());
+        Assert.assertEquals(3, _dao.listAll().size());
+    }
+
+    @Test
+    public void testUpdateBatchSkipsUnchangedEntities() {
+        List<Long> ids = new ArrayList<Long>();
+        for (DbBatchTestVO vo : _dao.persistBatch(Arrays.asList(new DbBatchTestVO("vo0", 0), new DbBatchTestVO("vo1", 1), new DbBatchTestVO("vo2", 2)))) {
+            ids.add(vo.getId());
+        }
+        List<DbBatchTestVO> vos = _dao.findByIdsIncludingRemoved(ids);
+        vos.get(0).setValue(10);
+        vos.get(2).setValue(12);
+
+        Assert.assertEquals(2, _dao.updateBatch(vos));
+        Assert.assertEquals(0, _dao.updateBatch(vos));
+
+        Assert.assertEquals(10, _dao.findById(ids.get(0)).getValue());
+        Assert.assertEquals(1, _dao.findById(ids.get(1)).getValue());
+        Assert.assertEquals(12, _dao.findById(ids.get(2)).getValue());
+    }
+
+    @Test
+    public void testUpdateBatchCountsRowsOfEachStatement() {
+        List<Long> ids = new ArrayList<Long>();
+        for (DbBatchTestDetailVO vo : _detailDao.persistBatch(Arrays.asList(new DbBatchTestDetailVO("vo0", 0, "detail0"),
+                new DbBatchTestDetailVO("vo1", 1, "detail1"), new DbBatchTestDetailVO("vo2", 2, "detail2")))) {
+            ids.add(vo.getId());
+        }
+        List<DbBatchTestDetailVO> vos = _detailDao.findByIdsIncludingRemoved(ids);
+        // Two rows change the same column and share a statement, the third one changes another column
+        vos.get(0).setDetail("changed0");
+        vos.get(1).setDetail("changed1");
+        vos.get(2).setName("changed2");
+
+        Assert.assertEquals(3, _detailDao.updateBatch(vos));
+
+        Assert.assertEquals("changed0", _detailDao.findById(ids.get(0)).getDetail());
+        Assert.assertEquals("changed1", _detailDao.findById(ids.get(1)).getDetail());
+        Assert.assertEquals("vo1", _detailDao.findById(ids.get(1)).getName());
+        Assert.assertEquals("changed2", _detailDao.findById(ids.get(2)).getName());
+        Assert.assertEquals("detail2", _detailDao.findById(ids.get(2)).getDetail());
+    }
+
+    @Test
+    public void testFindByIdsKeepsTheOrderOfTheIds() {
+        List<DbBatchTestVO> persisted = _dao.persistBatch(Arrays.asList(new DbBatchTestVO("vo0", 0), new DbBatchTestVO("vo1", 1)));
+
+        List<DbBatchTestVO> found = _dao.findByIdsIncludingRemoved(Arrays.asList(persisted.get(1).getId(), -1L, persisted.get(0).getId()));
+
+        Assert.assertEquals(3, found.size());
+        Assert.assertEquals("vo1", found.get(0).getName());
+        Assert.assertNull(found.get(1));
+        Assert.assertEquals("vo0", found.get(2).getName());
+    }
+}
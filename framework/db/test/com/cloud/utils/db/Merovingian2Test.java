@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -26,7 +28,7 @@ import org.junit.Test;
 
 public class Merovingian2Test extends TestCase {
     static final Logger s_logger = Logger.getLogger(Merovingian2Test.class);
-    Merovingian2 _lockMaster = Merovingian2.createLockMaster(1234);
+    Merovingian2 _lockMaster = Merovingian2.getLockMaster() != null ? Merovingian2.getLockMaster() : Merovingian2.createLockMaster(1234);
 
     @Override
     @Before
@@ -76,4 +78,75 @@ public class Merovingian2Test extends TestCase {
         Assert.assertTrue(result);
     }
 
+    @Test
+    public void testReentrantAcquireKeepsOneRow() {
+        Assert.assertTrue(_lockMaster.acquire("reentrant" + 1234, 5));
+        Assert.assertTrue(_lockMaster.acquire("reentrant" + 1234, 5));
+        Assert.assertTrue(_lockMaster.acquire("reentrant" + 1234, 5));
+        Assert.assertEquals(3, _lockMaster.owns("reentrant" + 1234));
+        Assert.assertEquals(1, _lockMaster.getLocksAcquiredByThisServer().size());
+
+        Assert.assertTrue(_lockMaster.release("reentrant" + 1234));
+        Assert.assertTrue(_lockMaster.release("reentrant" + 1234));
+        Assert.assertEquals(1, _lockMaster.getLocksAcquiredByThisServer().size());
+
+        Assert.assertTrue(_lockMaster.release("reentrant" + 1234));
+        Assert.assertEquals(0, _lockMaster.owns("reentrant" + 1234));
+        Assert.assertEquals(0, _lockMaster.getLocksAcquiredByThisServer().size());
+        Assert.assertFalse(_lockMaster.release("reentrant" + 1234));
+    }
+
+    @Test
+    public void testLocksSpreadOverConnections() {
+        Assert.assertTrue(_lockMaster.getLockConnectionCount() >= 1);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(_lockMaster.acquire("shard" + i, 5));
+        }
+        Assert.assertEquals(20, _lockMaster.getLocksAcquiredByThisServer().size());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(1, _lockMaster.owns("shard" + i));
+            Assert.assertTrue(_lockMaster.release("shard" + i));
+        }
+        Assert.assertEquals(0, _lockMaster.getLocksAcquiredByThisServer().size());
+    }
+
+    @Test
+    public void testCleanupDropsLocalCount() throws Exception {
+        Assert.assertTrue(_lockMaster.acquire("cleanup" + 1234, 5));
+        _lockMaster.cleanupThisServer();
+        Assert.assertEquals(0, _lockMaster.owns("cleanup" + 1234));
+
+        // Another thread takes the lock whose row was cleaned up
+        final AtomicBoolean acquired = new AtomicBoolean();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquired.set(_lockMaster.acquire("cleanup" + 1234, 5));
+            }
+        });
+        other.start();
+        other.join();
+        Assert.assertTrue(acquired.get());
+
+        // The former holder doesn't get it back through its stale count
+        Assert.assertFalse(_lockMaster.acquire("cleanup" + 1234, 1));
+        Assert.assertEquals(-1, _lockMaster.owns("cleanup" + 1234));
+        Assert.assertFalse(_lockMaster.release("cleanup" + 1234));
+    }
+
+    @Test
+    public void testReleaseAsLastResortDropsLocalCount() {
+        Assert.assertTrue(_lockMaster.acquire("lastresort" + 1234, 5));
+        Assert.assertTrue(_lockMaster.acquire("lastresort" + 1234, 5));
+        Assert.assertTrue(_lockMaster.releaseLockAsLastResortAndIReallyKnowWhatIAmDoing("lastresort" + 1234));
+
+        Assert.assertEquals(0, _lockMaster.owns("lastresort" + 1234));
+        Assert.assertFalse(_lockMaster.release("lastresort" + 1234));
+
+        // The next acquire goes to the database again
+        Assert.assertTrue(_lockMaster.acquire("lastresort" + 1234, 5));
+        Assert.assertEquals(1, _lockMaster.getLocksAcquiredByThisServer().size());
+        Assert.assertTrue(_lockMaster.release("lastresort" + 1234));
+    }
+
 }
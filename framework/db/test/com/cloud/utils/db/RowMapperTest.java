@@ -0,0 +1,118 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RowMapperTest {
+    @Mock
+    ResultSet resultSet;
+
+    enum State {
+        Running, Stopped
+    }
+
+    static class MappedVO {
+        long id;
+        Long hostId;
+        String name;
+        State state;
+        @Enumerated(value = EnumType.ORDINAL)
+        State ordinalState;
+    }
+
+    private RowMapper mapper(String... names) throws Exception {
+        Field[] fields = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            fields[i] = MappedVO.class.getDeclaredField(names[i]);
+            fields[i].setAccessible(true);
+        }
+        return new RowMapper(fields);
+    }
+
+    @Test
+    public void testMapsColumnsInOrder() throws Exception {
+        Mockito.when(resultSet.getLong(1)).thenReturn(5L);
+        Mockito.when(resultSet.getBytes(2)).thenReturn("vm-1".getBytes("UTF-8"));
+        Mockito.when(resultSet.getString(3)).thenReturn("Running");
+        Mockito.when(resultSet.getInt(4)).thenReturn(1);
+
+        MappedVO vo = new MappedVO();
+        mapper("id", "name", "state", "ordinalState").map(vo, resultSet);
+
+        Assert.assertEquals(5L, vo.id);
+        Assert.assertEquals("vm-1", vo.name);
+        Assert.assertEquals(State.Running, vo.state);
+        Assert.assertEquals(State.Stopped, vo.ordinalState);
+    }
+
+    @Test
+    public void testEnumNameIgnoresCase() throws Exception {
+        Mockito.when(resultSet.getString(1)).thenReturn("STOPPED");
+
+        MappedVO vo = new MappedVO();
+        mapper("state").map(vo, resultSet);
+
+        Assert.assertEquals(State.Stopped, vo.state);
+    }
+
+    @Test
+    public void testUnknownEnumLeavesField() throws Exception {
+        Mockito.when(resultSet.getString(1)).thenReturn("Migrating");
+
+        MappedVO vo = new MappedVO();
+        vo.state = State.Running;
+        mapper("state").map(vo, resultSet);
+
+        Assert.assertEquals(State.Running, vo.state);
+    }
+
+    @Test
+    public void testNullWrapper() throws Exception {
+        Mockito.when(resultSet.getLong(1)).thenReturn(0L);
+        Mockito.when(resultSet.wasNull()).thenReturn(true);
+
+        MappedVO vo = new MappedVO();
+        vo.hostId = 3L;
+        mapper("hostId").map(vo, resultSet);
+
+        Assert.assertNull(vo.hostId);
+    }
+
+    @Test
+    public void testCurrentMapperIsBoundToResultSet() throws Exception {
+        RowMapper mapper = mapper("id");
+        Object owner = new Object();
+        RowMapper.setCurrent(resultSet, owner, MappedVO.class, mapper);
+
+        Assert.assertSame(mapper, RowMapper.getCurrent(resultSet, owner, MappedVO.class));
+        Assert.assertNull(RowMapper.getCurrent(Mockito.mock(ResultSet.class), owner, MappedVO.class));
+        Assert.assertNull(RowMapper.getCurrent(resultSet, new Object(), MappedVO.class));
+    }
+}
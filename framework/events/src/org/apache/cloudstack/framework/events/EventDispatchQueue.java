@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.framework.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * Hands events over from the publishing threads to a single delivery thread
+ * through a bounded queue, so that a slow subscriber or message broker doesn't
+ * hold up the API and job threads.  The delivery thread takes the events that
+ * have piled up in batches.  When the queue is full the event is either
+ * dropped right away or after waiting for room, depending on the policy.
+ */
+public class EventDispatchQueue {
+    private static final Logger s_logger = Logger.getLogger(EventDispatchQueue.class);
+
+    public enum OverflowPolicy {
+        Drop, // drop the event if the queue is full
+        Block // wait up to the block timeout for room in the queue, then drop the event
+    }
+
+    public interface EventHandler {
+        /**
+         * Delivers a batch of events, in the order they were published.
+         */
+        void handle(List<Event> events) throws Exception;
+    }
+
+    private final String _name;
+    private final BlockingQueue<QueuedEvent> _queue;
+    private final int _maxBatch;
+    private final OverflowPolicy _policy;
+    private final long _blockTimeout;
+    private final EventHandler _handler;
+    private final ExecutorService _executor;
+    private volatile boolean _stopped;
+
+    private final AtomicLong _delivered = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _maxLatency = new AtomicLong();
+
+    /**
+     * @param capacity number of events that can wait for delivery.
+     * @param maxBatch maximum number of events handed to the handler at once.
+     * @param blockTimeout milliseconds to wait for room in the queue with the Block policy.
+     */
+    public EventDispatchQueue(String name, int capacity, int maxBatch, OverflowPolicy policy, long blockTimeout, EventHandler handler) {
+        _name = name;
+        _queue = new ArrayBlockingQueue<QueuedEvent>(capacity);
+        _maxBatch = maxBatch;
+        _policy = policy;
+        _blockTimeout = blockTimeout;
+        _handler = handler;
+        _executor = Executors.newSingleThreadExecutor(new NamedThreadFactory(name));
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        });
+    }
+
+    /**
+     * Queues the event for delivery.
+     *
+     * @return false if the event was dropped.
+     */
+    public boolean offer(Event event) {
+        boolean queued = false;
+        if (!_stopped) {
+            QueuedEvent queuedEvent = new QueuedEvent(event);
+            if (_policy == OverflowPolicy.Block) {
+                try {
+                    queued = _queue.offer(queuedEvent, _blockTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                queued = _queue.offer(queuedEvent);
+            }
+        }
+
+        if (!queued) {
+            long dropped = _dropped.incrementAndGet();
+            if (dropped % 1000 == 1) {
+                s_logger.warn(_name + " dropped event " + event.getEventType() + ", " + dropped + " events dropped so far");
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Stops taking events, the ones already queued are still delivered.
+     *
+     * @param timeout milliseconds to wait for the queued events to be delivered.
+     */
+    public void stop(long timeout) {
+        _stopped = true;
+        _executor.shutdown();
+        try {
+            if (!_executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                s_logger.warn(_name + " stopped with " + _queue.size() + " events not delivered");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch() {
+        List<QueuedEvent> batch = new ArrayList<QueuedEvent>(_maxBatch);
+        while (!_stopped || !_queue.isEmpty()) {
+            try {
+                QueuedEvent first = _queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                _queue.drainTo(batch, _maxBatch - 1);
+                deliver(batch);
+            } catch (InterruptedException e) {
+                s_logger.debug("[ignored] interrupted while waiting for events on " + _name);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void deliver(List<QueuedEvent> batch) {
+        List<Event> events = new ArrayList<Event>(batch.size());
+        for (QueuedEvent queuedEvent : batch) {
+            events.add(queuedEvent._event);
+        }
+
+        try {
+            _handler.handle(events);
+        } catch (Throwable th) {
+            _failed.addAndGet(events.size());
+            s_logger.warn(_name + " failed to deliver " + events.size() + " events", th);
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (QueuedEvent queuedEvent : batch) {
+            long latency = now - queuedEvent._queued;
+            _totalLatency.addAndGet(latency);
+            long max = _maxLatency.get();
+            while (latency > max && !_maxLatency.compareAndSet(max, latency)) {
+                max = _maxLatency.get();
+            }
+        }
+        _delivered.addAndGet(events.size());
+    }
+
+    public int getQueueDepth() {
+        return _queue.size();
+    }
+
+    public long getDeliveredCount() {
+        return _delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+    public long getFailedCount() {
+        return _failed.get();
+    }
+
+    /**
+     * @return average time in milliseconds between the publication and the delivery of the events.
+     */
+    public long getAverageLatency() {
+        long delivered = _delivered.get();
+        return delivered == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(_totalLatency.get() / delivered);
+    }
+
+    /**
+     * @return longest time in milliseconds between the publication and the delivery of an event.
+     */
+    public long getMaxLatency() {
+        return TimeUnit.NANOSECONDS.toMillis(_maxLatency.get());
+    }
+
+    @Override
+    public String toString() {
+        return _name + " queued: " + getQueueDepth() + ", delivered: " + getDeliveredCount() + ", dropped: " + getDroppedCount() + ", failed: " + getFailedCount() +
+            ", average latency: " + getAverageLatency() + "ms, max latency: " + getMaxLatency() + "ms";
+    }
+
+    private static class QueuedEvent {
+        final Event _event;
+        final long _queued;
+
+        QueuedEvent(Event event) {
+            _event = event;
+            _queued = System.nanoTime();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 // under the License.
 package org.apache.cloudstack.framework.jobs.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -43,4 +44,9 @@ public interface AsyncJobDao extends GenericDao<AsyncJobVO, Long> {
     List<AsyncJobVO> getResetJobs(long msid);
 
     List<AsyncJobVO> getFailureJobsSinceLastMsStart(long msId, String... cmds);
+
+    /**
+     * @return ids of the given jobs that are no longer in progress.
+     */
+    List<Long> listCompletedJobIds(Collection<Long> jobIds);
 }
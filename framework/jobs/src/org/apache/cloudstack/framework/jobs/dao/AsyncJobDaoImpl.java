@@ -18,6 +18,8 @@ package org.apache.cloudstack.framework.jobs.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -29,6 +31,7 @@ import org.apache.cloudstack.jobs.JobInfo;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
@@ -45,6 +48,7 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
     private final SearchBuilder<AsyncJobVO> expiringUnfinishedAsyncJobSearch;
     private final SearchBuilder<AsyncJobVO> expiringCompletedAsyncJobSearch;
     private final SearchBuilder<AsyncJobVO> failureMsidAsyncJobSearch;
+    private final GenericSearchBuilder<AsyncJobVO, Long> completedJobIdsSearch;
 
     public AsyncJobDaoImpl() {
         pendingAsyncJobSearch = createSearchBuilder();
@@ -93,6 +97,12 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
         failureMsidAsyncJobSearch.and("job_cmd", failureMsidAsyncJobSearch.entity().getCmd(), Op.IN);
         failureMsidAsyncJobSearch.done();
 
+        completedJobIdsSearch = createSearchBuilder(Long.class);
+        completedJobIdsSearch.selectFields(completedJobIdsSearch.entity().getId());
+        completedJobIdsSearch.and("ids", completedJobIdsSearch.entity().getId(), Op.IN);
+        completedJobIdsSearch.and("status", completedJobIdsSearch.entity().getStatus(), Op.NEQ);
+        completedJobIdsSearch.done();
+
     }
 
     @Override
@@ -126,6 +136,20 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
         return listBy(sc);
     }
 
+    @Override
+    public List<Long> listCompletedJobIds(Collection<Long> jobIds) {
+        List<Long> completed = new ArrayList<Long>();
+        List<Long> ids = new ArrayList<Long>(jobIds);
+        for (int from = 0; from < ids.size(); from += 500) {
+            List<Long> batch = ids.subList(from, Math.min(from + 500, ids.size()));
+            SearchCriteria<Long> sc = completedJobIdsSearch.create();
+            sc.setParameters("ids", batch.toArray(new Object[batch.size()]));
+            sc.setParameters("status", JobInfo.Status.IN_PROGRESS);
+            completed.addAll(customSearch(sc, null));
+        }
+        return completed;
+    }
+
     @Override
     public AsyncJobVO findPseudoJob(long threadId, long msid) {
         SearchCriteria<AsyncJobVO> sc = pseudoJobSearch.create();
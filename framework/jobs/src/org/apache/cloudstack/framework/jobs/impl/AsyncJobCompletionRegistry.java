@@ -0,0 +1,168 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageSubscriber;
+
+/**
+ * Keeps track of the threads waiting for a job to complete so they can be
+ * woken up directly when it does, instead of every waiter re-reading its job
+ * whenever any job completes.  Completions are fed in by the job manager, both
+ * for the jobs completed locally and for the ones it finds completed in the DB.
+ */
+public class AsyncJobCompletionRegistry {
+    private static final Logger s_logger = Logger.getLogger(AsyncJobCompletionRegistry.class);
+
+    public enum Wakeup {
+        COMPLETED, MESSAGE, TIMEOUT
+    }
+
+    private final Map<Long, Set<Waiter>> _waiters = new HashMap<Long, Set<Waiter>>();
+
+    /**
+     * @param messageBus message bus to listen on for the topics, may be null if there are none.
+     * @param topics topics that also wake up the waiter.
+     */
+    public Waiter register(long jobId, MessageBus messageBus, String[] topics) {
+        Waiter waiter = new Waiter(jobId, messageBus, topics);
+        synchronized (_waiters) {
+            Set<Waiter> waiters = _waiters.get(jobId);
+            if (waiters == null) {
+                waiters = new HashSet<Waiter>();
+                _waiters.put(jobId, waiters);
+            }
+            waiters.add(waiter);
+        }
+        if (messageBus != null) {
+            for (String topic : topics) {
+                messageBus.subscribe(topic, waiter);
+            }
+        }
+        return waiter;
+    }
+
+    public void jobCompleted(long jobId) {
+        List<Waiter> waiters;
+        synchronized (_waiters) {
+            Set<Waiter> registered = _waiters.get(jobId);
+            if (registered == null) {
+                return;
+            }
+            waiters = new ArrayList<Waiter>(registered);
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Wake up " + waiters.size() + " waiters of job-" + jobId);
+        }
+        for (Waiter waiter : waiters) {
+            waiter.completed();
+        }
+    }
+
+    /**
+     * @return ids of the jobs that are waited for.
+     */
+    public List<Long> getWaitedJobIds() {
+        synchronized (_waiters) {
+            return new ArrayList<Long>(_waiters.keySet());
+        }
+    }
+
+    private void unregister(Waiter waiter) {
+        synchronized (_waiters) {
+            Set<Waiter> waiters = _waiters.get(waiter._jobId);
+            if (waiters != null) {
+                waiters.remove(waiter);
+                if (waiters.isEmpty()) {
+                    _waiters.remove(waiter._jobId);
+                }
+            }
+        }
+    }
+
+    public class Waiter implements MessageSubscriber {
+        private final long _jobId;
+        private final MessageBus _messageBus;
+        private final String[] _topics;
+        private boolean _completed;
+        private boolean _messaged;
+
+        Waiter(long jobId, MessageBus messageBus, String[] topics) {
+            _jobId = jobId;
+            _messageBus = messageBus;
+            _topics = topics;
+        }
+
+        /**
+         * Waits until the job completes, a message is published on one of the topics or the timeout expires.
+         */
+        public synchronized Wakeup waitAny(long timeoutInMiliseconds) {
+            long deadline = System.currentTimeMillis() + timeoutInMiliseconds;
+            while (!_completed && !_messaged) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    s_logger.debug("[ignored] interupted while waiting on job-" + _jobId);
+                    break;
+                }
+            }
+
+            if (_completed) {
+                return Wakeup.COMPLETED;
+            }
+            if (_messaged) {
+                _messaged = false;
+                return Wakeup.MESSAGE;
+            }
+            return Wakeup.TIMEOUT;
+        }
+
+        public void close() {
+            if (_messageBus != null) {
+                for (String topic : _topics) {
+                    _messageBus.unsubscribe(topic, this);
+                }
+            }
+            unregister(this);
+        }
+
+        synchronized void completed() {
+            _completed = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onPublishMessage(String senderAddress, String subject, Object args) {
+            _messaged = true;
+            notifyAll();
+        }
+    }
+}
@@ -18,7 +18,7 @@
 package org.apache.cloudstack.framework.jobs.impl;
 
 import java.io.Serializable;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -49,7 +49,6 @@ import org.apache.cloudstack.framework.jobs.dao.AsyncJobJoinMapDao;
 import org.apache.cloudstack.framework.jobs.dao.AsyncJobJournalDao;
 import org.apache.cloudstack.framework.jobs.dao.SyncQueueItemDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
-import org.apache.cloudstack.framework.messagebus.MessageDetector;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
 import org.apache.cloudstack.jobs.JobInfo;
 import org.apache.cloudstack.jobs.JobInfo.Status;
@@ -100,6 +99,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;                // 10 seconds
+    // waiters only look their job up in the DB every that many check intervals, completions are signalled to them.
+    // Their predicate is still checked on every interval.
+    private static final int WAIT_FALLBACK_CHECK_INTERVALS = 10;
 
     @Inject
     private SyncQueueItemDao _queueItemDao;
@@ -122,7 +124,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     private volatile long _executionRunNumber = 1;
 
-    private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
+    private final AsyncJobCompletionRegistry _completionRegistry = new AsyncJobCompletionRegistry();
+
+    private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(2, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _apiJobExecutor;
     private ExecutorService _workerJobExecutor;
 
@@ -245,6 +249,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
             }
             // still purge item from queue to avoid any blocking
             _queueMgr.purgeAsyncJobQueueItemId(jobId);
+            _completionRegistry.jobCompleted(jobId);
             return;
         }
 
@@ -305,6 +310,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                         scheduleExecution(jobToWakeup, false);
                 }
         */
+        _completionRegistry.jobCompleted(jobId);
         _messageBus.publish(null, AsyncJob.Topics.JOB_STATE, PublishScope.GLOBAL, jobId);
     }
 
@@ -663,17 +669,36 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     @Override
     public boolean waitAndCheck(AsyncJob job, String[] wakeupTopicsOnMessageBus, long checkIntervalInMilliSeconds, long timeoutInMiliseconds, Predicate predicate) {
 
-        MessageDetector msgDetector = new MessageDetector();
-        String[] topics = Arrays.copyOf(wakeupTopicsOnMessageBus, wakeupTopicsOnMessageBus.length + 1);
-        topics[topics.length - 1] = AsyncJob.Topics.JOB_STATE;
+        // the completion of the job itself is signalled through the registry, so the waiter
+        // is not woken up by the completion of every other job
+        List<String> topics = new ArrayList<String>();
+        for (String topic : wakeupTopicsOnMessageBus) {
+            if (!AsyncJob.Topics.JOB_STATE.equals(topic)) {
+                topics.add(topic);
+            }
+        }
 
-        msgDetector.open(_messageBus, topics);
+        long jobId = job.getId();
+        AsyncJobCompletionRegistry.Waiter waiter = _completionRegistry.register(jobId, _messageBus, topics.toArray(new String[topics.size()]));
         try {
+            // the job may have completed before we registered
+            if (isJobDone(jobId)) {
+                return true;
+            }
+
+            if (checkIntervalInMilliSeconds < 100) {
+                checkIntervalInMilliSeconds = 100;
+            }
+            int intervals = 0;
             long startTick = System.currentTimeMillis();
             while (timeoutInMiliseconds < 0 || System.currentTimeMillis() - startTick < timeoutInMiliseconds) {
-                msgDetector.waitAny(checkIntervalInMilliSeconds);
-                job = _jobDao.findById(job.getId());
-                if (job != null && job.getStatus().done()) {
+                AsyncJobCompletionRegistry.Wakeup wakeup = waiter.waitAny(checkIntervalInMilliSeconds);
+                if (wakeup == AsyncJobCompletionRegistry.Wakeup.COMPLETED) {
+                    return true;
+                }
+
+                // safety net in case the completion was missed
+                if (wakeup == AsyncJobCompletionRegistry.Wakeup.TIMEOUT && ++intervals % WAIT_FALLBACK_CHECK_INTERVALS == 0 && isJobDone(jobId)) {
                     return true;
                 }
 
@@ -682,12 +707,17 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 }
             }
         } finally {
-            msgDetector.close();
+            waiter.close();
         }
 
         return false;
     }
 
+    private boolean isJobDone(long jobId) {
+        AsyncJobVO job = _jobDao.findById(jobId);
+        return job != null && job.getStatus().done();
+    }
+
     @Override
     public String marshallResultObject(Serializable obj) {
         if (obj != null)
@@ -723,6 +753,28 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         }
     }
 
+    /**
+     * Looks for the completion of the jobs waited for on this management server, to catch the
+     * ones completed by other management servers or outside of completeAsyncJob().
+     */
+    private Runnable getCompletionScanTask() {
+        return new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                try {
+                    List<Long> waitedJobIds = _completionRegistry.getWaitedJobIds();
+                    if (!waitedJobIds.isEmpty()) {
+                        for (Long jobId : _jobDao.listCompletedJobIds(waitedJobIds)) {
+                            _completionRegistry.jobCompleted(jobId);
+                        }
+                    }
+                } catch (Throwable e) {
+                    s_logger.error("Unexpected exception when scanning for completed jobs", e);
+                }
+            }
+        };
+    }
+
     private Runnable getHeartbeatTask() {
         return new ManagedContextRunnable() {
 
@@ -1023,6 +1075,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
         _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
+        _heartbeatScheduler.scheduleAtFixedRate(getCompletionScanTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
 
         return true;
     }
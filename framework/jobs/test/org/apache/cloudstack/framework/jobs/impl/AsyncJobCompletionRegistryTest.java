@@ -0,0 +1,98 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.cloudstack.framework.jobs.impl.AsyncJobCompletionRegistry.Waiter;
+import org.apache.cloudstack.framework.jobs.impl.AsyncJobCompletionRegistry.Wakeup;
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.MessageBusBase;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+
+public class AsyncJobCompletionRegistryTest {
+
+    AsyncJobCompletionRegistry _registry = new AsyncJobCompletionRegistry();
+
+    @Test
+    public void testWaiterIsWokenUpByItsJob() throws Exception {
+        final Waiter waiter = _registry.register(1L, null, new String[0]);
+        Waiter other = _registry.register(2L, null, new String[0]);
+        try {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                    }
+                    _registry.jobCompleted(2L);
+                    _registry.jobCompleted(1L);
+                }
+            }).start();
+
+            long start = System.currentTimeMillis();
+            Assert.assertEquals(Wakeup.COMPLETED, waiter.waitAny(10000));
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            Assert.assertEquals(Wakeup.COMPLETED, other.waitAny(10000));
+        } finally {
+            waiter.close();
+            other.close();
+        }
+        Assert.assertTrue(_registry.getWaitedJobIds().isEmpty());
+    }
+
+    @Test
+    public void testOtherJobsDoNotWakeUpWaiter() {
+        Waiter waiter = _registry.register(1L, null, new String[0]);
+        try {
+            _registry.jobCompleted(3L);
+            Assert.assertEquals(Wakeup.TIMEOUT, waiter.waitAny(200));
+            Assert.assertEquals(1, _registry.getWaitedJobIds().size());
+        } finally {
+            waiter.close();
+        }
+    }
+
+    @Test
+    public void testCompletionBeforeWaitIsNotLost() {
+        Waiter waiter = _registry.register(1L, null, new String[0]);
+        try {
+            _registry.jobCompleted(1L);
+            Assert.assertEquals(Wakeup.COMPLETED, waiter.waitAny(10000));
+        } finally {
+            waiter.close();
+        }
+    }
+
+    @Test
+    public void testMessageOnTopicWakesUpWaiter() {
+        MessageBus messageBus = new MessageBusBase();
+        Waiter waiter = _registry.register(1L, messageBus, new String[] {"vm.powerstate"});
+        try {
+            messageBus.publish(null, "vm.powerstate", PublishScope.LOCAL, 5L);
+            Assert.assertEquals(Wakeup.MESSAGE, waiter.waitAny(10000));
+            Assert.assertEquals(Wakeup.TIMEOUT, waiter.waitAny(100));
+        } finally {
+            waiter.close();
+        }
+
+        messageBus.publish(null, "vm.powerstate", PublishScope.LOCAL, 5L);
+        Assert.assertEquals(Wakeup.TIMEOUT, waiter.waitAny(100));
+    }
+}
@@ -0,0 +1,72 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.jobs.dao.AsyncJobDao;
+import org.apache.cloudstack.jobs.JobInfo;
+
+import com.cloud.utils.Predicate;
+
+public class AsyncJobManagerImplTest {
+
+    AsyncJobManagerImpl _jobMgr;
+    AsyncJobDao _jobDao;
+    AsyncJob _job;
+
+    @Before
+    public void setup() throws Exception {
+        _jobMgr = new AsyncJobManagerImpl();
+        _jobDao = Mockito.mock(AsyncJobDao.class);
+        Field jobDao = AsyncJobManagerImpl.class.getDeclaredField("_jobDao");
+        jobDao.setAccessible(true);
+        jobDao.set(_jobMgr, _jobDao);
+
+        _job = Mockito.mock(AsyncJob.class);
+        Mockito.when(_job.getId()).thenReturn(1L);
+        AsyncJobVO jobVO = Mockito.mock(AsyncJobVO.class);
+        Mockito.when(jobVO.getStatus()).thenReturn(JobInfo.Status.IN_PROGRESS);
+        Mockito.when(_jobDao.findById(1L)).thenReturn(jobVO);
+    }
+
+    @Test
+    public void testPredicateCheckedOnEveryInterval() {
+        final AtomicInteger checks = new AtomicInteger();
+        Predicate predicate = new Predicate() {
+            @Override
+            public boolean checkCondition() {
+                return checks.incrementAndGet() == 3;
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(_jobMgr.waitAndCheck(_job, new String[0], 100, 10000, predicate));
+
+        // the condition holds on the third interval, long before the job is looked up again
+        Assert.assertEquals(3, checks.get());
+        Assert.assertTrue(System.currentTimeMillis() - start < 900);
+        Mockito.verify(_jobDao, Mockito.times(1)).findById(1L);
+    }
+}
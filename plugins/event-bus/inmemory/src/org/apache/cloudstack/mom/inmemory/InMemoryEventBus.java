@@ -19,6 +19,8 @@
 
 package org.apache.cloudstack.mom.inmemory;
 
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -30,10 +32,13 @@ import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.framework.events.Event;
 import org.apache.cloudstack.framework.events.EventBus;
+import org.apache.cloudstack.framework.events.EventDispatchQueue;
+import org.apache.cloudstack.framework.events.EventDispatchQueue.OverflowPolicy;
 import org.apache.cloudstack.framework.events.EventBusException;
 import org.apache.cloudstack.framework.events.EventSubscriber;
 import org.apache.cloudstack.framework.events.EventTopic;
 
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 
@@ -43,14 +48,35 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
     private static final Logger s_logger = Logger.getLogger(InMemoryEventBus.class);
 
     private final static Map<UUID, Pair<EventTopic, EventSubscriber>> subscribers;
+    // Every subscriber gets its events from its own queue so a slow one doesn't hold up the others or the publisher
+    private final static Map<UUID, EventDispatchQueue> queues;
 
     static {
         subscribers = new ConcurrentHashMap<UUID, Pair<EventTopic, EventSubscriber>>();
+        queues = new ConcurrentHashMap<UUID, EventDispatchQueue>();
     }
 
+    private int _queueSize = 10000;
+    private int _batchSize = 100;
+    private OverflowPolicy _overflowPolicy = OverflowPolicy.Block;
+    private long _blockTimeout = 1000;
+
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _name = name;
+        if (params != null) {
+            _queueSize = NumbersUtil.parseInt((String)params.get("queue.size"), _queueSize);
+            _batchSize = NumbersUtil.parseInt((String)params.get("queue.batch.size"), _batchSize);
+            _blockTimeout = NumbersUtil.parseLong((String)params.get("queue.block.timeout"), _blockTimeout);
+            String policy = (String)params.get("queue.overflow.policy");
+            if (policy != null) {
+                try {
+                    _overflowPolicy = OverflowPolicy.valueOf(policy);
+                } catch (IllegalArgumentException e) {
+                    throw new ConfigurationException("Invalid queue.overflow.policy " + policy + ", it must be Drop or Block");
+                }
+            }
+        }
         return true;
     }
 
@@ -66,6 +92,7 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
         }
         UUID subscriberId = UUID.randomUUID();
 
+        queues.put(subscriberId, createQueue(subscriberId, subscriber));
         subscribers.put(subscriberId, new Pair<EventTopic, EventSubscriber>(topic, subscriber));
         return subscriberId;
     }
@@ -84,9 +111,28 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
             throw new EventBusException("No subscriber found with subscriber id " + subscriberId);
         } else {
             subscribers.remove(subscriberId);
+            EventDispatchQueue queue = queues.remove(subscriberId);
+            if (queue != null) {
+                queue.stop(0);
+            }
         }
     }
 
+    private EventDispatchQueue createQueue(UUID subscriberId, final EventSubscriber subscriber) {
+        return new EventDispatchQueue("InMemoryEventBus-" + subscriberId, _queueSize, _batchSize, _overflowPolicy, _blockTimeout, new EventDispatchQueue.EventHandler() {
+            @Override
+            public void handle(List<Event> events) {
+                for (Event event : events) {
+                    try {
+                        subscriber.onEvent(event);
+                    } catch (RuntimeException e) {
+                        s_logger.warn("Subscriber failed to handle event " + event.getEventType(), e);
+                    }
+                }
+            }
+        });
+    }
+
     @Override
     public void publish(Event event) throws EventBusException {
         if (subscribers == null || subscribers.isEmpty()) {
@@ -97,8 +143,10 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
             Pair<EventTopic, EventSubscriber>  subscriberDetails =  subscribers.get(subscriberId);
             // if the event matches subscribers interested event topic then call back the subscriber with the event
             if (isEventMatchesTopic(event, subscriberDetails.first())) {
-                EventSubscriber subscriber =  subscriberDetails.second();
-                subscriber.onEvent(event);
+                EventDispatchQueue queue = queues.get(subscriberId);
+                if (queue != null) {
+                    queue.offer(event);
+                }
             }
         }
     }
@@ -115,6 +163,9 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
 
     @Override
     public boolean stop() {
+        for (EventDispatchQueue queue : queues.values()) {
+            queue.stop(_blockTimeout);
+        }
         return true;
     }
 
@@ -122,6 +173,17 @@ public class InMemoryEventBus extends ManagerBase implements EventBus {
         return subscribers.size();
     }
 
+    /**
+     * @return delivery statistics of every subscriber.
+     */
+    public Map<UUID, String> getDeliveryStats() {
+        Map<UUID, String> stats = new HashMap<UUID, String>();
+        for (Map.Entry<UUID, EventDispatchQueue> entry : queues.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toString());
+        }
+        return stats;
+    }
+
     private String replaceNullWithWildcard(String key) {
         if (key == null || key.isEmpty()) {
             return "*";
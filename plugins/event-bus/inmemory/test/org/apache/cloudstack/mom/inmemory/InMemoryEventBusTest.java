@@ -19,13 +19,22 @@
 
 package org.apache.cloudstack.mom.inmemory;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.cloudstack.framework.events.Event;
 import org.apache.cloudstack.framework.events.EventBusException;
@@ -143,12 +152,69 @@ public class InMemoryEventBusTest {
 
         bus.publish(event);
 
-        verify(subscriber, times(1)).onEvent(event);
+        // events are delivered from the subscriber's own thread
+        verify(subscriber, timeout(5000).times(1)).onEvent(event);
 
         bus.unsubscribe(uuid, subscriber);
         assertTrue(bus.totalSubscribers() == 0);
     }
 
+    @Test
+    public void testEventsDeliveredInOrder() throws Exception {
+        EventTopic topic = mock(EventTopic.class);
+        RecordingSubscriber subscriber = new RecordingSubscriber(50, null);
+
+        InMemoryEventBus bus = new InMemoryEventBus();
+        UUID uuid = bus.subscribe(topic, subscriber);
+
+        List<Event> published = new ArrayList<Event>();
+        for (int i = 0; i < 50; i++) {
+            Event event = mock(Event.class);
+            published.add(event);
+            bus.publish(event);
+        }
+
+        assertTrue(subscriber.awaitDelivered(5000));
+        assertEquals(published, subscriber.getReceived());
+
+        bus.unsubscribe(uuid, subscriber);
+    }
+
+    @Test
+    public void testSlowSubscriberDoesNotBlockPublisher() throws Exception {
+        EventTopic topic = mock(EventTopic.class);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSubscriber subscriber = new RecordingSubscriber(3, release);
+
+        InMemoryEventBus bus = new InMemoryEventBus();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("queue.size", "2");
+        params.put("queue.overflow.policy", "Drop");
+        bus.configure("test", params);
+        UUID uuid = bus.subscribe(topic, subscriber);
+
+        List<Event> published = new ArrayList<Event>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            Event event = mock(Event.class);
+            published.add(event);
+            bus.publish(event);
+            if (i == 0) {
+                // the first event is held by the subscriber, so the queue is empty again
+                assertTrue(subscriber.awaitStarted(5000));
+            }
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        release.countDown();
+        bus.unsubscribe(uuid, subscriber);
+
+        // The one being delivered and the two queued ones, the others are dropped
+        assertTrue(subscriber.awaitDelivered(5000));
+        assertEquals(published.subList(0, 3), subscriber.getReceived());
+        assertEquals(3, subscriber.getReceived().size());
+    }
+
     @Test
     public void testPublishEmpty() throws Exception {
         EventSubscriber subscriber = mock(EventSubscriber.class);
@@ -159,4 +225,50 @@ public class InMemoryEventBusTest {
 
         verify(subscriber, times(0)).onEvent(event);
     }
-}
\ No newline at end of file
+
+    /**
+     * Records the events it receives.  If it is given a release latch, it holds
+     * on to the first event until the latch is released.
+     */
+    private static class RecordingSubscriber implements EventSubscriber {
+        private final List<Event> _received = Collections.synchronizedList(new ArrayList<Event>());
+        private final CountDownLatch _started = new CountDownLatch(1);
+        private final CountDownLatch _delivered;
+        private final CountDownLatch _release;
+
+        RecordingSubscriber(int expected, CountDownLatch release) {
+            _delivered = new CountDownLatch(expected);
+            _release = release;
+        }
+
+        @Override
+        public void onEvent(Event event) {
+            _started.countDown();
+            if (_release != null) {
+                try {
+                    if (!_release.await(5000, TimeUnit.MILLISECONDS)) {
+                        throw new IllegalStateException("subscriber was never released");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("interrupted while holding event", e);
+                }
+            }
+            _received.add(event);
+            _delivered.countDown();
+        }
+
+        boolean awaitStarted(long timeout) throws InterruptedException {
+            return _started.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        boolean awaitDelivered(long timeout) throws InterruptedException {
+            return _delivered.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        List<Event> getReceived() {
+            synchronized (_received) {
+                return new ArrayList<Event>(_received);
+            }
+        }
+    }
+}
@@ -21,9 +21,12 @@ package org.apache.cloudstack.mom.kafka;
 
 import java.io.FileInputStream;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Properties;
+import java.util.concurrent.Future;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -33,6 +36,8 @@ import org.apache.log4j.Logger;
 import org.apache.cloudstack.framework.events.Event;
 import org.apache.cloudstack.framework.events.EventBus;
 import org.apache.cloudstack.framework.events.EventBusException;
+import org.apache.cloudstack.framework.events.EventDispatchQueue;
+import org.apache.cloudstack.framework.events.EventDispatchQueue.OverflowPolicy;
 import org.apache.cloudstack.framework.events.EventSubscriber;
 import org.apache.cloudstack.framework.events.EventTopic;
 
@@ -41,7 +46,9 @@ import com.cloud.utils.component.ManagerBase;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.PropertiesUtil;
 
 @Local(value = EventBus.class)
@@ -52,12 +59,17 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     private String _topic = null;
     private Producer<String,String> _producer;
+    private EventDispatchQueue _queue;
     private static final Logger s_logger = Logger.getLogger(KafkaEventBus.class);
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
 
         final Properties props = new Properties();
+        int queueSize = 10000;
+        int batchSize = 100;
+        long blockTimeout = 1000;
+        OverflowPolicy overflowPolicy = OverflowPolicy.Block;
 
         try (final FileInputStream is = new FileInputStream(PropertiesUtil.findConfigFile("kafka.producer.properties"));) {
             props.load(is);
@@ -74,11 +86,26 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
             if (!props.containsKey("value.serializer")) {
                 props.put("value.serializer", DEFAULT_SERIALIZER);
             }
+
+            // Events wait in a queue for the producer instead of holding up the publishing threads
+            queueSize = NumbersUtil.parseInt((String)props.remove("queue.size"), queueSize);
+            batchSize = NumbersUtil.parseInt((String)props.remove("queue.batch.size"), batchSize);
+            blockTimeout = NumbersUtil.parseLong((String)props.remove("queue.block.timeout"), blockTimeout);
+            String policy = (String)props.remove("queue.overflow.policy");
+            if (policy != null) {
+                overflowPolicy = OverflowPolicy.valueOf(policy);
+            }
         } catch (Exception e) {
             throw new ConfigurationException("Could not read kafka properties");
         }
 
         _producer = new KafkaProducer<String,String>(props);
+        _queue = new EventDispatchQueue("KafkaEventBus", queueSize, batchSize, overflowPolicy, blockTimeout, new EventDispatchQueue.EventHandler() {
+            @Override
+            public void handle(List<Event> events) throws Exception {
+                sendBatch(events);
+            }
+        });
         _name = name;
 
         return true;
@@ -102,8 +129,7 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     @Override
     public void publish(Event event) throws EventBusException {
-        ProducerRecord<String, String> record = new ProducerRecord<String,String>(_topic, event.getResourceUUID(), event.getDescription());
-        _producer.send(record);
+        _queue.offer(event);
     }
 
     @Override
@@ -118,6 +144,29 @@ public class KafkaEventBus extends ManagerBase implements EventBus {
 
     @Override
     public boolean stop() {
+        _queue.stop(5000);
+        _producer.close();
         return true;
     }
+
+    /**
+     * Hands the whole batch to the producer before waiting for any of it, so
+     * the records go out together in as few requests as the partitions allow.
+     */
+    protected void sendBatch(List<Event> events) throws Exception {
+        List<Future<RecordMetadata>> sent = new ArrayList<Future<RecordMetadata>>(events.size());
+        for (Event event : events) {
+            sent.add(_producer.send(new ProducerRecord<String, String>(_topic, event.getResourceUUID(), event.getDescription())));
+        }
+        for (Future<RecordMetadata> result : sent) {
+            result.get();
+        }
+    }
+
+    /**
+     * @return the publication statistics.
+     */
+    public String getDeliveryStats() {
+        return _queue.toString();
+    }
 }
@@ -21,6 +21,7 @@ package org.apache.cloudstack.mom.rabbitmq;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -46,6 +47,8 @@ import com.rabbitmq.client.ShutdownSignalException;
 import org.apache.cloudstack.framework.events.Event;
 import org.apache.cloudstack.framework.events.EventBus;
 import org.apache.cloudstack.framework.events.EventBusException;
+import org.apache.cloudstack.framework.events.EventDispatchQueue;
+import org.apache.cloudstack.framework.events.EventDispatchQueue.OverflowPolicy;
 import org.apache.cloudstack.framework.events.EventSubscriber;
 import org.apache.cloudstack.framework.events.EventTopic;
 import org.apache.cloudstack.managed.context.ManagedContextRunnable;
@@ -82,6 +85,13 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private static Integer retryInterval;
 
+    // events wait in this queue for the AMQP server instead of holding up the publishing threads
+    private static Integer queueSize = 10000;
+    private static Integer queueBatchSize = 100;
+    private static Long queueBlockTimeout = 1000L;
+    private static String queueOverflowPolicy = OverflowPolicy.Block.name();
+    private EventDispatchQueue _publishQueue;
+
     // hashmap to book keep the registered subscribers
     private static ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>> s_subscribers;
 
@@ -133,13 +143,42 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
             throw new ConfigurationException("Invalid port number/retry interval");
         }
 
+        OverflowPolicy overflowPolicy;
+        try {
+            overflowPolicy = OverflowPolicy.valueOf(queueOverflowPolicy);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid configuration parameter for 'queueOverflowPolicy', it must be Drop or Block.");
+        }
+
         s_subscribers = new ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>>();
         executorService = Executors.newCachedThreadPool();
         disconnectHandler = new DisconnectHandler();
+        _publishQueue = new EventDispatchQueue("RabbitMQEventBus", queueSize, queueBatchSize, overflowPolicy, queueBlockTimeout, new EventDispatchQueue.EventHandler() {
+            @Override
+            public void handle(List<Event> events) throws Exception {
+                publishEvents(events);
+            }
+        });
 
         return true;
     }
 
+    public static void setQueueSize(Integer queueSize) {
+        RabbitMQEventBus.queueSize = queueSize;
+    }
+
+    public static void setQueueBatchSize(Integer queueBatchSize) {
+        RabbitMQEventBus.queueBatchSize = queueBatchSize;
+    }
+
+    public static void setQueueBlockTimeout(Long queueBlockTimeout) {
+        RabbitMQEventBus.queueBlockTimeout = queueBlockTimeout;
+    }
+
+    public static void setQueueOverflowPolicy(String queueOverflowPolicy) {
+        RabbitMQEventBus.queueOverflowPolicy = queueOverflowPolicy;
+    }
+
     public static void setServer(String amqpHost) {
         RabbitMQEventBus.amqpHost = amqpHost;
     }
@@ -262,15 +301,20 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     // publish event on to the exchange created on AMQP server
     @Override
     public void publish(Event event) throws EventBusException {
+        _publishQueue.offer(event);
+    }
 
-        String routingKey = createRoutingKey(event);
-        String eventDescription = event.getDescription();
-
+    /**
+     * Publishes a batch of events over one channel.
+     */
+    private void publishEvents(List<Event> events) throws EventBusException {
         try {
             Connection connection = getConnection();
             Channel channel = createChannel(connection);
             createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
+            for (Event event : events) {
+                publishEventToExchange(channel, amqpExchangeName, createRoutingKey(event), event.getDescription());
+            }
             channel.close();
         } catch (AlreadyClosedException e) {
             closeConnection();
@@ -280,6 +324,13 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
+    /**
+     * @return the publication statistics.
+     */
+    public String getDeliveryStats() {
+        return _publishQueue.toString();
+    }
+
     /** creates a routing key from the event details.
      *  created routing key will be used while publishing the message to exchange on AMQP server
      */
@@ -489,6 +540,8 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     @Override
     public synchronized boolean stop() {
+        _publishQueue.stop(queueBlockTimeout);
+
         if (s_connection.isOpen()) {
             for (String subscriberId : s_subscribers.keySet()) {
                 Ternary<String, Channel, EventSubscriber> subscriberDetails = s_subscribers.get(subscriberId);
@@ -31,13 +31,13 @@ import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import com.cloud.agent.manager.allocator.HostAllocator;
+import com.cloud.capacity.Capacity;
 import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
-import com.cloud.dc.dao.ClusterDao;
 import com.cloud.deploy.DeploymentPlan;
 import com.cloud.deploy.DeploymentPlanner.ExcludeList;
 import com.cloud.gpu.GPU;
@@ -48,7 +48,6 @@ import com.cloud.host.HostVO;
 import com.cloud.host.dao.HostDao;
 import com.cloud.host.dao.HostDetailsDao;
 import com.cloud.offering.ServiceOffering;
-import com.cloud.org.Cluster;
 import com.cloud.resource.ResourceManager;
 import com.cloud.service.ServiceOfferingDetailsVO;
 import com.cloud.service.dao.ServiceOfferingDetailsDao;
@@ -58,6 +57,7 @@ import com.cloud.storage.VMTemplateVO;
 import com.cloud.storage.dao.GuestOSCategoryDao;
 import com.cloud.storage.dao.GuestOSDao;
 import com.cloud.user.Account;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.AdapterBase;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachineProfile;
@@ -85,8 +85,6 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
     @Inject
     protected ResourceManager _resourceMgr;
     @Inject
-    ClusterDao _clusterDao;
-    @Inject
     ClusterDetailsDao _clusterDetailsDao;
     @Inject
     ServiceOfferingDetailsDao _serviceOfferingDetailsDao;
@@ -278,7 +276,17 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
         long serviceOfferingId = offering.getId();
         List<Host> suitableHosts = new ArrayList<Host>();
-        ServiceOfferingDetailsVO offeringDetails = null;
+
+        // Everything that only depends on the offering or the cluster is looked up once for all hosts
+        int cpu_requested = offering.getCpu() * offering.getSpeed();
+        long ram_requested = offering.getRamSize() * 1024L * 1024L;
+        ServiceOfferingDetailsVO offeringDetails = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString());
+        ServiceOfferingDetailsVO groupName = null;
+        if (offeringDetails != null) {
+            groupName = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.pciDevice.toString());
+        }
+        Map<Long, Pair<Float, Float>> clusterOvercommitRatios = new HashMap<Long, Pair<Float, Float>>();
+        Map<Long, CapacityVO[]> capacities = getHostCapacities(hosts);
 
         for (Host host : hosts) {
             if (suitableHosts.size() == returnUpTo) {
@@ -291,6 +299,19 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
                 continue;
             }
 
+            Pair<Float, Float> overcommitRatios = getClusterOvercommitRatios(host.getClusterId(), clusterOvercommitRatios);
+            Float cpuOvercommitRatio = overcommitRatios.first();
+            Float memoryOvercommitRatio = overcommitRatios.second();
+
+            // Rule out hosts that are short of capacity according to the capacities loaded above without any further queries
+            if (!hasCapacity(capacities.get(host.getId()), cpu_requested, ram_requested, cpuOvercommitRatio, memoryOvercommitRatio, considerReservedCapacity)) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Not using host " + host.getId() + "; host has no capacity");
+                }
+                avoid.addHost(host.getId());
+                continue;
+            }
+
             //find number of guest VMs occupying capacity on this host.
             if (_capacityMgr.checkIfHostReachMaxGuestLimit(host)) {
                 if (s_logger.isDebugEnabled()) {
@@ -301,22 +322,14 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
             }
 
             // Check if GPU device is required by offering and host has the availability
-            if ((offeringDetails   = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString())) != null) {
-                ServiceOfferingDetailsVO groupName = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.pciDevice.toString());
+            if (offeringDetails != null) {
                 if(!_resourceMgr.isGPUDeviceAvailable(host.getId(), groupName.getValue(), offeringDetails.getValue())){
                     s_logger.info("Host name: " + host.getName() + ", hostId: "+ host.getId() +" does not have required GPU devices available");
                     continue;
                 }
             }
 
-            int cpu_requested = offering.getCpu() * offering.getSpeed();
-            long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
-
+            // The capacities may have changed since they were loaded, verify against the DB
             boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host.getId(), offering.getCpu(), offering.getSpeed());
             boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
                 considerReservedCapacity);
@@ -341,6 +354,57 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         return suitableHosts;
     }
 
+    /**
+     * Loads the CPU and memory capacity of all the hosts with a single query.
+     * @return CPU and memory capacity, in that order, by host id
+     */
+    protected Map<Long, CapacityVO[]> getHostCapacities(List<? extends Host> hosts) {
+        Map<Long, CapacityVO[]> capacities = new HashMap<Long, CapacityVO[]>();
+        if (hosts.isEmpty()) {
+            return capacities;
+        }
+        List<Long> hostIds = new ArrayList<Long>(hosts.size());
+        for (Host host : hosts) {
+            hostIds.add(host.getId());
+        }
+        for (CapacityVO capacity : _capacityDao.listByHostIdsAndTypes(hostIds, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY)) {
+            CapacityVO[] hostCapacity = capacities.get(capacity.getHostOrPoolId());
+            if (hostCapacity == null) {
+                hostCapacity = new CapacityVO[2];
+                capacities.put(capacity.getHostOrPoolId(), hostCapacity);
+            }
+            hostCapacity[capacity.getCapacityType() == Capacity.CAPACITY_TYPE_CPU ? 0 : 1] = capacity;
+        }
+        return capacities;
+    }
+
+    /**
+     * Same computation as CapacityManager.checkIfHostHasCapacity() but on capacities that were already loaded.
+     */
+    protected static boolean hasCapacity(CapacityVO[] capacity, int cpu, long ram, float cpuOvercommitRatio, float memoryOvercommitRatio, boolean considerReservedCapacity) {
+        if (capacity == null || capacity[0] == null || capacity[1] == null) {
+            return false;
+        }
+        CapacityVO capacityCpu = capacity[0];
+        CapacityVO capacityMem = capacity[1];
+        long reservedCpu = considerReservedCapacity ? capacityCpu.getReservedCapacity() : 0;
+        long reservedMem = considerReservedCapacity ? capacityMem.getReservedCapacity() : 0;
+        long totalCpu = (long)(capacityCpu.getTotalCapacity() * cpuOvercommitRatio);
+        long totalMem = (long)(capacityMem.getTotalCapacity() * memoryOvercommitRatio);
+        return reservedCpu + capacityCpu.getUsedCapacity() + cpu <= totalCpu && reservedMem + capacityMem.getUsedCapacity() + ram <= totalMem;
+    }
+
+    private Pair<Float, Float> getClusterOvercommitRatios(Long clusterId, Map<Long, Pair<Float, Float>> cache) {
+        Pair<Float, Float> ratios = cache.get(clusterId);
+        if (ratios == null) {
+            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio");
+            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio");
+            ratios = new Pair<Float, Float>(Float.parseFloat(clusterDetailsCpuOvercommit.getValue()), Float.parseFloat(clusterDetailsRamOvercommmt.getValue()));
+            cache.put(clusterId, ratios);
+        }
+        return ratios;
+    }
+
     // Reorder hosts in the decreasing order of free capacity.
     private List<? extends Host> reorderHostsByCapacity(DeploymentPlan plan, List<? extends Host> hosts) {
         Long clusterId = plan.getClusterId();
@@ -26,9 +26,12 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.text.SimpleDateFormat;
 
@@ -46,6 +49,7 @@ import org.apache.cloudstack.api.BaseAsyncCreateCmd;
 import org.apache.cloudstack.api.BaseCmd;
 import org.apache.cloudstack.api.BaseCmd.CommandType;
 import org.apache.cloudstack.api.EntityReference;
+import org.apache.cloudstack.api.Identity;
 import org.apache.cloudstack.api.InternalIdentity;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.ServerApiException;
@@ -78,6 +82,34 @@ public class ParamProcessWorker implements DispatchWorker {
 
     List<SecurityChecker> _secChecker;
 
+    // How the parameters of each command class are bound, worked out the first time the command is dispatched.
+    // These hold all the parameters whatever the role of the caller, the roles are checked on every call.
+    private final Map<Class<?>, List<ParamBinding>> _bindings = new ConcurrentHashMap<Class<?>, List<ParamBinding>>();
+
+    /**
+     * A parameter field of a command class along with its annotations and the
+     * entities its ids refer to, so they are looked up once per class instead
+     * of on every API call.
+     */
+    static class ParamBinding {
+        final Field _field;
+        final Parameter _parameter;
+        final ACL _acl;
+        // There may be multiple entities defined on the @EntityReference of a Response.class,
+        // the first entityType of the parameter is used
+        final Class<?>[] _entities;
+
+        ParamBinding(final Field field) {
+            _field = field;
+            _field.setAccessible(true);
+            _parameter = field.getAnnotation(Parameter.class);
+            _acl = field.getAnnotation(ACL.class);
+            final Class<?>[] entityTypes = _parameter.entityType();
+            final EntityReference reference = entityTypes.length > 0 ? entityTypes[0].getAnnotation(EntityReference.class) : null;
+            _entities = reference != null ? reference.value() : new Class<?>[0];
+        }
+    }
+
     public List<SecurityChecker> getSecChecker() {
         return _secChecker;
     }
@@ -95,11 +127,18 @@ public class ParamProcessWorker implements DispatchWorker {
     @SuppressWarnings({"unchecked", "rawtypes"})
     public void processParameters(final BaseCmd cmd, final Map params) {
         final Map<Object, AccessType> entitiesToAccess = new HashMap<Object, AccessType>();
+        final Account caller = CallContext.current().getCallingAccount();
 
-        final List<Field> cmdFields = cmd.getParamFields();
-
-        for (final Field field : cmdFields) {
-            final Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
+        for (final ParamBinding binding : getBindings(cmd)) {
+            final Field field = binding._field;
+            final Parameter parameterAnnotation = binding._parameter;
+            // The bindings are shared by all the callers, so the role of this one is checked every time
+            if (!BaseCmd.isAuthorized(parameterAnnotation, caller)) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Ignoring paremeter " + parameterAnnotation.name() + " as the caller is not authorized to pass it in");
+                }
+                continue;
+            }
             final Object paramObj = params.get(parameterAnnotation.name());
             if (paramObj == null) {
                 if (parameterAnnotation.required()) {
@@ -112,7 +151,7 @@ public class ParamProcessWorker implements DispatchWorker {
 
             // marshall the parameter into the correct type and set the field value
             try {
-                setFieldValue(field, cmd, paramObj, parameterAnnotation);
+                setFieldValue(binding, cmd, paramObj);
             } catch (final IllegalArgumentException argEx) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Unable to execute API command " + cmd.getCommandName() + " due to invalid value " + paramObj + " for parameter " +
@@ -142,7 +181,7 @@ public class ParamProcessWorker implements DispatchWorker {
 
             //check access on the resource this field points to
             try {
-                final ACL checkAccess = field.getAnnotation(ACL.class);
+                final ACL checkAccess = binding._acl;
                 final CommandType fieldType = parameterAnnotation.type();
 
                 if (checkAccess != null) {
@@ -154,9 +193,8 @@ public class ParamProcessWorker implements DispatchWorker {
                     // for maps, specify access to be checkd on key or value.
                     // Find the controlled entity DBid by uuid
 
-                    if (parameterAnnotation.entityType() != null && parameterAnnotation.entityType().length > 0
-                            && parameterAnnotation.entityType()[0].getAnnotation(EntityReference.class) != null) {
-                        final Class<?>[] entityList = parameterAnnotation.entityType()[0].getAnnotation(EntityReference.class).value();
+                    if (binding._entities.length > 0) {
+                        final Class<?>[] entityList = binding._entities;
 
                         // Check if the parameter type is a single
                         // Id or list of id's/name's
@@ -220,6 +258,18 @@ public class ParamProcessWorker implements DispatchWorker {
         doAccessChecks(cmd, entitiesToAccess);
     }
 
+    protected List<ParamBinding> getBindings(final BaseCmd cmd) {
+        List<ParamBinding> bindings = _bindings.get(cmd.getClass());
+        if (bindings == null) {
+            bindings = new ArrayList<ParamBinding>();
+            for (final Field field : cmd.getAllParamFields()) {
+                bindings.add(new ParamBinding(field));
+            }
+            _bindings.put(cmd.getClass(), bindings);
+        }
+        return bindings;
+    }
+
 
     private void doAccessChecks(BaseCmd cmd, Map<Object, AccessType> entitiesToAccess) {
         Account caller = CallContext.current().getCallingAccount();
@@ -247,9 +297,10 @@ public class ParamProcessWorker implements DispatchWorker {
     }
 
     @SuppressWarnings({"unchecked", "rawtypes"})
-    private void setFieldValue(final Field field, final BaseCmd cmdObj, final Object paramObj, final Parameter annotation) throws IllegalArgumentException, ParseException {
+    private void setFieldValue(final ParamBinding binding, final BaseCmd cmdObj, final Object paramObj) throws IllegalArgumentException, ParseException {
+        final Field field = binding._field;
+        final Parameter annotation = binding._parameter;
         try {
-            field.setAccessible(true);
             final CommandType fieldType = annotation.type();
             switch (fieldType) {
             case BOOLEAN:
@@ -305,19 +356,20 @@ public class ParamProcessWorker implements DispatchWorker {
             case LIST:
                 final List listParam = new ArrayList();
                 final StringTokenizer st = new StringTokenizer(paramObj.toString(), ",");
+                final CommandType listType = annotation.collectionType();
+                if (listType == CommandType.UUID) {
+                    final List<String> uuids = new ArrayList<String>();
+                    while (st.hasMoreTokens()) {
+                        uuids.add(st.nextToken());
+                    }
+                    listParam.addAll(translateUuidsToInternalIds(uuids, binding));
+                }
                 while (st.hasMoreTokens()) {
                     final String token = st.nextToken();
-                    final CommandType listType = annotation.collectionType();
                     switch (listType) {
                     case INTEGER:
                         listParam.add(Integer.valueOf(token));
                         break;
-                    case UUID:
-                        if (token.isEmpty())
-                            break;
-                        final Long internalId = translateUuidToInternalId(token, annotation);
-                        listParam.add(internalId);
-                        break;
                     case LONG: {
                         listParam.add(Long.valueOf(token));
                     }
@@ -333,7 +385,7 @@ public class ParamProcessWorker implements DispatchWorker {
                 field.set(cmdObj, listParam);
                 break;
             case UUID:
-                final Long internalId = translateUuidToInternalId(paramObj.toString(), annotation);
+                final Long internalId = translateUuidToInternalId(paramObj.toString(), binding);
                 field.set(cmdObj, internalId);
                 break;
             case LONG:
@@ -381,7 +433,63 @@ public class ParamProcessWorker implements DispatchWorker {
         return cal.getTime();
     }
 
-    private Long translateUuidToInternalId(final String uuid, final Parameter annotation) {
+    /**
+     * Translates a list of uuids the same way as translateUuidToInternalId, looking up
+     * all the uuids of an entity type at once instead of one at a time.
+     */
+    private List<Long> translateUuidsToInternalIds(final List<String> uuids, final ParamBinding binding) {
+        final Set<String> toLookUp = new HashSet<String>();
+        for (final String uuid : uuids) {
+            if (!uuid.equals("-1") && isUuid(uuid)) {
+                toLookUp.add(uuid);
+            }
+        }
+
+        final Map<String, Long> internalIds = new HashMap<String, Long>();
+        final Map<String, Class<?>> resolvedEntities = new HashMap<String, Class<?>>();
+        for (final Class<?> entity : binding._entities) {
+            if (toLookUp.isEmpty()) {
+                break;
+            }
+            // For backward compatibility, we search within removed entities and let service layer deal
+            // with removed ones, return empty response or error
+            for (final Object objVO : _entityMgr.listByUuidsIncludingRemoved(entity, new ArrayList<String>(toLookUp))) {
+                if (!(objVO instanceof Identity) || !(objVO instanceof InternalIdentity)) {
+                    continue;
+                }
+                final String uuid = ((Identity)objVO).getUuid();
+                if (toLookUp.remove(uuid)) {
+                    internalIds.put(uuid, ((InternalIdentity)objVO).getId());
+                    resolvedEntities.put(uuid, entity);
+                }
+            }
+        }
+
+        // Populate CallContext in the order of the list; whatever wasn't found above
+        // goes through the one at a time lookup, which reports the invalid ones
+        final List<Long> result = new ArrayList<Long>(uuids.size());
+        for (final String uuid : uuids) {
+            if (uuid.isEmpty()) {
+                continue;
+            }
+            final Long internalId = internalIds.get(uuid);
+            if (internalId != null) {
+                CallContext.current().putContextParameter(resolvedEntities.get(uuid).getName(), uuid);
+                result.add(internalId);
+            } else {
+                result.add(translateUuidToInternalId(uuid, binding));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isUuid(final String uuid) {
+        // Match against Java's UUID regex to check if input is uuid string
+        return uuid.matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+    }
+
+    private Long translateUuidToInternalId(final String uuid, final ParamBinding binding) {
+        final Parameter annotation = binding._parameter;
         if (uuid.equals("-1")) {
             // FIXME: This is to handle a lot of hardcoded special cases where -1 is sent
             // APITODO: Find and get rid of all hardcoded params in API Cmds and service layer
@@ -390,15 +498,12 @@ public class ParamProcessWorker implements DispatchWorker {
         Long internalId = null;
         // If annotation's empty, the cmd existed before 3.x try conversion to long
         final boolean isPre3x = annotation.since().isEmpty();
-        // Match against Java's UUID regex to check if input is uuid string
-        final boolean isUuid = uuid.matches("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+        final boolean isUuid = isUuid(uuid);
         // Enforce that it's uuid for newly added apis from version 3.x
         if (!isPre3x && !isUuid)
             return null;
 
-        // There may be multiple entities defined on the @EntityReference of a Response.class
-        // UUID CommandType would expect only one entityType, so use the first entityType
-        final Class<?>[] entities = annotation.entityType()[0].getAnnotation(EntityReference.class).value();
+        final Class<?>[] entities = binding._entities;
 
         // Allow both uuid and internal id for pre3x apis
         if (isPre3x && !isUuid) {
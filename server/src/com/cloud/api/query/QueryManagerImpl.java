@@ -793,7 +793,10 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
         Boolean isRecursive = domainIdRecursiveListProject.second();
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
-        Filter searchFilter = new Filter(UserVmJoinVO.class, "id", true, cmd.getStartIndex(),
+        // With afterid the page starts right after the given vm instead of skipping
+        // startindex rows, so the cost of a page doesn't grow with its position
+        Long afterId = cmd.getAfterId();
+        Filter searchFilter = new Filter(UserVmJoinVO.class, "id", true, afterId != null ? 0L : cmd.getStartIndex(),
                 cmd.getPageSizeVal());
 
         List<Long> ids = null;
@@ -852,6 +855,7 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
 
         sb.and("displayName", sb.entity().getDisplayName(), SearchCriteria.Op.LIKE);
         sb.and("idIN", sb.entity().getId(), SearchCriteria.Op.IN);
+        sb.and("idGT", sb.entity().getId(), SearchCriteria.Op.GT);
         sb.and("name", sb.entity().getName(), SearchCriteria.Op.LIKE);
         sb.and("stateEQ", sb.entity().getState(), SearchCriteria.Op.EQ);
         sb.and("stateNEQ", sb.entity().getState(), SearchCriteria.Op.NEQ);
@@ -945,6 +949,10 @@ public class QueryManagerImpl extends ManagerBase implements QueryService, Confi
             sc.setParameters("idIN", ids.toArray());
         }
 
+        if (afterId != null) {
+            sc.setParameters("idGT", afterId);
+        }
+
         if (templateId != null) {
             sc.setParameters("templateId", templateId);
         }
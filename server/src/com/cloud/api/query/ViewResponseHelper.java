@@ -132,7 +132,8 @@ public class ViewResponseHelper {
     public static List<UserVmResponse> createUserVmResponse(ResponseView view, String objectName, EnumSet<VMDetails> details, UserVmJoinVO... userVms) {
         Account caller = CallContext.current().getCallingAccount();
 
-        Hashtable<Long, UserVmResponse> vmDataList = new Hashtable<Long, UserVmResponse>();
+        // Keep the vms in the order they were listed in
+        LinkedHashMap<Long, UserVmResponse> vmDataList = new LinkedHashMap<Long, UserVmResponse>();
         // Initialise the vmdatalist with the input data
 
         for (UserVmJoinVO userVm : userVms) {
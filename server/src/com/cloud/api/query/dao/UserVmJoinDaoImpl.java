@@ -51,6 +51,7 @@ import com.cloud.user.AccountManager;
 import com.cloud.user.User;
 import com.cloud.user.dao.UserDao;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
@@ -415,6 +416,8 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
         }
         // query details by batches
         List<UserVmJoinVO> uvList = new ArrayList<UserVmJoinVO>();
+        // keep the vms of a batch ordered by id, as the list apis page by id
+        Filter orderById = new Filter(UserVmJoinVO.class, "id", true, null, null);
         // query details by batches
         int curr_index = 0;
         if (vmIds.length > DETAILS_BATCH_SIZE) {
@@ -425,7 +428,7 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
                 }
                 SearchCriteria<UserVmJoinVO> sc = VmDetailSearch.create();
                 sc.setParameters("idIN", ids);
-                List<UserVmJoinVO> vms = searchIncludingRemoved(sc, null, null, false);
+                List<UserVmJoinVO> vms = searchIncludingRemoved(sc, orderById, null, false);
                 if (vms != null) {
                     uvList.addAll(vms);
                 }
@@ -441,7 +444,7 @@ public class UserVmJoinDaoImpl extends GenericDaoBase<UserVmJoinVO, Long> implem
             }
             SearchCriteria<UserVmJoinVO> sc = VmDetailSearch.create();
             sc.setParameters("idIN", ids);
-            List<UserVmJoinVO> vms = searchIncludingRemoved(sc, null, null, false);
+            List<UserVmJoinVO> vms = searchIncludingRemoved(sc, orderById, null, false);
             if (vms != null) {
                 uvList.addAll(vms);
             }
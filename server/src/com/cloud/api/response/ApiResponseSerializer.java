@@ -47,12 +47,15 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
 
+    private static final Map<Short, Gson> s_gsons = new ConcurrentHashMap<Short, Gson>();
+    private static final Map<Class<?>, SerializedField[]> s_serializedFields = new ConcurrentHashMap<Class<?>, SerializedField[]>();
+
     public static String toSerializedString(ResponseObject result, String responseType) {
         s_logger.trace("===Serializing Response===");
         if (HttpUtils.RESPONSE_TYPE_JSON.equalsIgnoreCase(responseType)) {
@@ -62,20 +65,67 @@ public class ApiResponseSerializer {
         }
     }
 
-    private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
-
     public static String unescape(String escaped) {
-        String str = escaped;
-        Matcher matcher = s_unicodeEscapePattern.matcher(str);
-        while (matcher.find()) {
-            str = str.replaceAll("\\" + matcher.group(0), Character.toString((char)Integer.parseInt(matcher.group(1), 16)));
+        if (escaped.indexOf("\\u") < 0) {
+            return escaped;
+        }
+        StringBuilder sb = new StringBuilder(escaped.length());
+        appendUnescaped(sb, escaped);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the string with its \\uXXXX escapes replaced by the characters
+     * they stand for, in a single pass over it.
+     */
+    private static void appendUnescaped(StringBuilder sb, String escaped) {
+        int length = escaped.length();
+        int start = 0;
+        int i = escaped.indexOf("\\u");
+        while (i >= 0) {
+            if (i + 6 <= length && isHexDigits(escaped, i + 2, i + 6)) {
+                sb.append(escaped, start, i).append((char)Integer.parseInt(escaped.substring(i + 2, i + 6), 16));
+                start = i + 6;
+                i = escaped.indexOf("\\u", start);
+            } else {
+                i = escaped.indexOf("\\u", i + 1);
+            }
+        }
+        sb.append(escaped, start, length);
+    }
+
+    private static boolean isHexDigits(String str, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = str.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
         }
-        return str;
+        return true;
+    }
+
+    /**
+     * Gson decides which fields the caller is authorized to see when it first
+     * serializes a class and keeps that decision, so one instance is kept per
+     * account type instead of building one for every response.
+     */
+    private static Gson getGson() {
+        CallContext context = CallContext.current();
+        Account caller = context != null ? context.getCallingAccount() : null;
+        if (caller == null) {
+            return ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+        }
+        Gson gson = s_gsons.get(caller.getType());
+        if (gson == null) {
+            gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            s_gsons.put(caller.getType(), gson);
+        }
+        return gson;
     }
 
     public static String toJSONSerializedString(ResponseObject result) {
         if (result != null) {
-            Gson gson = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            Gson gson = getGson();
 
             StringBuilder sb = new StringBuilder();
 
@@ -90,16 +140,16 @@ public class ApiResponseSerializer {
 
                 if ((responses != null) && !responses.isEmpty()) {
                     String jsonStr = gson.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
 
                     if (nonZeroCount) {
-                        sb.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(jsonStr);
+                        sb.append(",\"").append(responses.get(0).getObjectName()).append("\":[");
+                        appendUnescaped(sb, jsonStr);
                     }
 
                     for (int i = 1; i < ((ListResponse)result).getResponses().size(); i++) {
                         jsonStr = gson.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        sb.append(",").append(jsonStr);
+                        sb.append(",");
+                        appendUnescaped(sb, jsonStr);
                     }
                     sb.append("]}");
                 } else  {
@@ -182,30 +232,61 @@ public class ApiResponseSerializer {
         return fields.toArray(new Field[] {});
     }
 
+    /**
+     * A field of a response class that is serialized, with its annotations
+     * read once.
+     */
+    private static class SerializedField {
+        final Field field;
+        final SerializedName serializedName;
+        final Param param;
+
+        SerializedField(Field field, SerializedName serializedName, Param param) {
+            this.field = field;
+            this.serializedName = serializedName;
+            this.param = param;
+        }
+    }
+
+    private static SerializedField[] getSerializedFields(Class<?> clz) {
+        SerializedField[] serializedFields = s_serializedFields.get(clz);
+        if (serializedFields == null) {
+            List<SerializedField> list = new ArrayList<SerializedField>();
+            for (Field field : getFlattenFields(clz)) {
+                if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
+                    continue; // skip transient fields
+                }
+                SerializedName serializedName = field.getAnnotation(SerializedName.class);
+                if (serializedName == null) {
+                    continue; // skip fields w/o serialized name
+                }
+                field.setAccessible(true);
+                list.add(new SerializedField(field, serializedName, field.getAnnotation(Param.class)));
+            }
+            serializedFields = list.toArray(new SerializedField[list.size()]);
+            s_serializedFields.put(clz, serializedFields);
+        }
+        return serializedFields;
+    }
+
     private static void serializeResponseObjFieldsXML(StringBuilder sb, ResponseObject obj) {
         boolean isAsync = false;
         if (obj instanceof AsyncJobResponse)
             isAsync = true;
 
-        //Field[] fields = obj.getClass().getDeclaredFields();
-        Field[] fields = getFlattenFields(obj.getClass());
-        for (Field field : fields) {
-            if ((field.getModifiers() & Modifier.TRANSIENT) != 0) {
-                continue; // skip transient fields
-            }
-
+        Account caller = null;
+        for (SerializedField serializedField : getSerializedFields(obj.getClass())) {
+            Field field = serializedField.field;
+            SerializedName serializedName = serializedField.serializedName;
 
-            SerializedName serializedName = field.getAnnotation(SerializedName.class);
-            if (serializedName == null) {
-                continue; // skip fields w/o serialized name
-            }
-
-            Param param = field.getAnnotation(Param.class);
+            Param param = serializedField.param;
             if (param != null) {
                 RoleType[] allowedRoles = param.authorized();
                 if (allowedRoles.length > 0) {
                     boolean permittedParameter = false;
-                    Account caller = CallContext.current().getCallingAccount();
+                    if (caller == null) {
+                        caller = CallContext.current().getCallingAccount();
+                    }
                     for (RoleType allowedRole : allowedRoles) {
                         if (allowedRole.getValue() == caller.getType()) {
                             permittedParameter = true;
@@ -219,7 +300,6 @@ public class ApiResponseSerializer {
                 }
             }
 
-            field.setAccessible(true);
             Object fieldValue = null;
             try {
                 fieldValue = field.get(obj);
@@ -293,10 +373,19 @@ public class ApiResponseSerializer {
     }
 
     private static String escapeSpecialXmlChars(String originalString) {
-        char[] origChars = originalString.toCharArray();
-        StringBuilder resultString = new StringBuilder();
+        int length = originalString.length();
+        int i = 0;
+        while (i < length && !isSpecialXmlChar(originalString.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return originalString;
+        }
 
-        for (char singleChar : origChars) {
+        StringBuilder resultString = new StringBuilder(length + 16);
+        resultString.append(originalString, 0, i);
+        for (; i < length; i++) {
+            char singleChar = originalString.charAt(i);
             if (singleChar == '"') {
                 resultString.append("&quot;");
             } else if (singleChar == '\'') {
@@ -315,6 +404,10 @@ public class ApiResponseSerializer {
         return resultString.toString();
     }
 
+    private static boolean isSpecialXmlChar(char c) {
+        return c == '"' || c == '\'' || c == '<' || c == '>' || c == '&';
+    }
+
     private static String encodeParam(String value) {
         if (!ApiServer.isEncodeApiResponse()) {
             return value;
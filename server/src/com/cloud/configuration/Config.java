@@ -647,6 +647,14 @@ public enum Config {
             "10",
             "Numbers of threads using to check redundant router status.",
             null),
+    RouterStatsPoolSize(
+            "Advanced",
+            NetworkOrchestrationService.class,
+            Integer.class,
+            "router.stats.poolsize",
+            "10",
+            "Number of threads used to collect the network usage of the routers.",
+            null),
     RouterExtraPublicNics(
             "Advanced",
             NetworkOrchestrationService.class,
@@ -1341,6 +1349,14 @@ public enum Config {
             "Interval (in days) to check sanity of usage data",
             null),
     UsageAggregationTimezone("Usage", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParserThreads(
+            "Usage",
+            ManagementServer.class,
+            Integer.class,
+            "usage.parser.threads",
+            "1",
+            "Number of threads parsing the usage of the accounts in parallel, each thread parses a shard of the accounts in its own transaction",
+            null),
     TrafficSentinelIncludeZones(
             "Usage",
             ManagementServer.class,
@@ -1998,6 +2014,22 @@ public enum Config {
 
     // StatsCollector
     StatsOutPutGraphiteHost("Advanced", ManagementServer.class, String.class, "stats.output.uri", "", "URI to additionally send StatsCollector statistics to", null),
+    StatsHostCollectorThreads(
+            "Advanced",
+            ManagementServer.class,
+            Integer.class,
+            "stats.host.collector.threads",
+            "10",
+            "Number of hosts the host and VM stats collectors query at the same time.",
+            null),
+    StatsHostCollectorTimeout(
+            "Advanced",
+            ManagementServer.class,
+            Integer.class,
+            "stats.host.collector.timeout",
+            "30000",
+            "Time (in milliseconds) the stats collectors wait for one host before skipping it for the current cycle.",
+            null),
 
     SSVMPSK("Hidden", ManagementServer.class, String.class, "upload.post.secret.key", "", "PSK with SSVM", null);
 
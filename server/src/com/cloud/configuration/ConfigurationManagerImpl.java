@@ -369,6 +369,9 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
         configValuesForValidation.add("snapshot.poll.interval");
         configValuesForValidation.add("stop.retry.interval");
         configValuesForValidation.add("storage.stats.interval");
+        configValuesForValidation.add("stats.host.collector.threads");
+        configValuesForValidation.add("stats.host.collector.timeout");
+        configValuesForValidation.add("usage.parser.threads");
         configValuesForValidation.add("storage.cleanup.interval");
         configValuesForValidation.add("wait");
         configValuesForValidation.add("xenserver.heartbeat.interval");
@@ -511,6 +514,7 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
             default:
                 throw new InvalidParameterValueException("Scope provided is invalid");
             }
+            _configDepot.invalidate(name);
             return value;
         }
 
@@ -601,6 +605,7 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
         }
 
         txn.commit();
+        _configDepot.invalidate(name);
         return _configDao.getValue(name);
     }
 
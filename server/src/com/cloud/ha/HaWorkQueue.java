@@ -0,0 +1,227 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+/**
+ * Hands the HA work claimed by this management server out to the HA workers.
+ * Only one worker at a time claims work from the database, as many items as
+ * there are idle workers so that no claimed work waits here while the others
+ * are busy, and the claimed work is handed out by priority.
+ * Workers block on the queue and are woken up when work is scheduled instead
+ * of each polling the database.
+ */
+public class HaWorkQueue {
+
+    public interface WorkLoader {
+        /**
+         * Claims up to max work items from the database.
+         */
+        List<HaWorkVO> load(int max);
+
+        /**
+         * Gives up work items claimed by load() that will not be handed out.
+         */
+        void release(List<HaWorkVO> works);
+    }
+
+    /**
+     * Restarts first, then migrations, stops and destroys.  Among restarts the
+     * system VMs go first as the user VMs depend on them.
+     */
+    static final Comparator<HaWorkVO> s_priority = new Comparator<HaWorkVO>() {
+        @Override
+        public int compare(HaWorkVO w1, HaWorkVO w2) {
+            int c = Integer.compare(getWorkTypePriority(w1.getWorkType()), getWorkTypePriority(w2.getWorkType()));
+            if (c == 0) {
+                c = Integer.compare(getVmTypePriority(w1.getType()), getVmTypePriority(w2.getType()));
+            }
+            if (c == 0) {
+                c = Long.compare(w1.getTimeToTry(), w2.getTimeToTry());
+            }
+            if (c == 0) {
+                c = Long.compare(w1.getId(), w2.getId());
+            }
+            return c;
+        }
+    };
+
+    private final PriorityQueue<HaWorkVO> _queue = new PriorityQueue<HaWorkVO>(11, s_priority);
+    private final WorkLoader _loader;
+    private final int _maxBatch;
+    private final long _loadInterval;
+
+    private boolean _loading;
+    private boolean _signalled = true;
+    private boolean _closed;
+    private long _lastLoad;
+    private long _claimed;
+    private int _idle;
+
+    /**
+     * @param maxBatch maximum number of work items claimed at once, no more than there are workers.
+     * @param loadInterval milliseconds after which the database is checked again if nothing signalled new work.
+     */
+    public HaWorkQueue(WorkLoader loader, int maxBatch, long loadInterval) {
+        _loader = loader;
+        _maxBatch = maxBatch;
+        _loadInterval = loadInterval;
+    }
+
+    /**
+     * Takes the next work item, claiming more from the database if the queue is empty.
+     *
+     * @return the work item or null if there was none within the timeout.
+     */
+    public HaWorkVO take(long timeout) throws InterruptedException {
+        synchronized (this) {
+            _idle++;
+        }
+        try {
+            return takeOrLoad(timeout);
+        } finally {
+            synchronized (this) {
+                _idle--;
+            }
+        }
+    }
+
+    private HaWorkVO takeOrLoad(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            int max;
+            synchronized (this) {
+                while (true) {
+                    if (_closed) {
+                        return null;
+                    }
+                    HaWorkVO work = _queue.poll();
+                    if (work != null) {
+                        return work;
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (!_loading && (_signalled || now - _lastLoad >= _loadInterval)) {
+                        _loading = true;
+                        _signalled = false;
+                        _lastLoad = now;
+                        // One item for every worker waiting for work, this one included
+                        max = Math.min(_maxBatch, _idle);
+                        break;
+                    }
+                    if (now >= deadline) {
+                        return null;
+                    }
+                    wait(deadline - now);
+                }
+            }
+
+            List<HaWorkVO> works = null;
+            boolean closed = false;
+            try {
+                works = _loader.load(max);
+            } finally {
+                synchronized (this) {
+                    _loading = false;
+                    closed = _closed;
+                    if (works != null && !closed) {
+                        _queue.addAll(works);
+                        _claimed += works.size();
+                        if (works.size() >= max) {
+                            // There may be more, check again as soon as the queue runs dry
+                            _signalled = true;
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+            if (closed) {
+                // Claimed while closing, nobody is going to work on these
+                if (works != null && !works.isEmpty()) {
+                    _loader.release(works);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Wakes up the idle workers to check the database for new work.
+     */
+    public synchronized void signal() {
+        _signalled = true;
+        notifyAll();
+    }
+
+    /**
+     * Stops handing out work.  Work claimed by a load that is still running is
+     * given to WorkLoader.release() once the load returns.
+     *
+     * @return the claimed work items that have not been handed out.
+     */
+    public synchronized List<HaWorkVO> close() {
+        _closed = true;
+        List<HaWorkVO> works = new ArrayList<HaWorkVO>(_queue);
+        _queue.clear();
+        notifyAll();
+        return works;
+    }
+
+    public synchronized int getQueueDepth() {
+        return _queue.size();
+    }
+
+    public synchronized long getClaimedCount() {
+        return _claimed;
+    }
+
+    /**
+     * @return number of workers waiting for work.
+     */
+    public synchronized int getIdleCount() {
+        return _idle;
+    }
+
+    public static int getWorkTypePriority(WorkType type) {
+        switch (type) {
+        case HA:
+            return 0;
+        case Migration:
+            return 1;
+        case ForceStop:
+        case CheckStop:
+        case Stop:
+            return 2;
+        default:
+            return 3;
+        }
+    }
+
+    public static int getVmTypePriority(VirtualMachine.Type type) {
+        if (type == null || type == VirtualMachine.Type.User) {
+            return 1;
+        }
+        return 0;
+    }
+}
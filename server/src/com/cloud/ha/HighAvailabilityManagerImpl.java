@@ -106,6 +106,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
 
     protected static final Logger s_logger = Logger.getLogger(HighAvailabilityManagerImpl.class);
     WorkerThread[] _workers;
+    HaWorkQueue _workQueue;
     boolean _stopped;
     long _timeToSleep;
     @Inject
@@ -298,9 +299,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     }
 
     protected void wakeupWorkers() {
-        for (WorkerThread worker : _workers) {
-            worker.wakup();
-        }
+        _workQueue.signal();
     }
 
     @Override
@@ -783,6 +782,10 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
             if (nextTime == null) {
                 s_logger.info("Completed work " + work);
                 work.setStep(Step.Done);
+                if (wt == WorkType.HA && work.getCreated() != null) {
+                    s_logger.info("Time to restart vm " + work.getInstanceId() + ": " + (System.currentTimeMillis() - work.getCreated().getTime()) / 1000 + "s, HA work queue depth: " +
+                        _workQueue.getQueueDepth());
+                }
             } else {
                 rescheduleWork(work, nextTime.longValue());
             }
@@ -825,6 +828,23 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         value = params.get("time.to.sleep");
         _timeToSleep = (long)NumbersUtil.parseInt(value, 60) * 1000;
 
+        _workQueue = new HaWorkQueue(new HaWorkQueue.WorkLoader() {
+            @Override
+            public List<HaWorkVO> load(int max) {
+                s_logger.trace("Checking the database for work");
+                List<HaWorkVO> works = _haDao.take(_serverId, max);
+                if (!works.isEmpty() && s_logger.isDebugEnabled()) {
+                    s_logger.debug("Took " + works.size() + " HA work items, " + _workQueue.getQueueDepth() + " are waiting for a worker");
+                }
+                return works;
+            }
+
+            @Override
+            public void release(List<HaWorkVO> works) {
+                releaseWork(works);
+            }
+        }, count, _timeToSleep);
+
         value = params.get("max.retries");
         _maxRetries = NumbersUtil.parseInt(value, 5);
 
@@ -879,13 +899,23 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
     public boolean stop() {
         _stopped = true;
 
-        wakeupWorkers();
+        // Hand the work that no worker has started back to the other management servers
+        releaseWork(_workQueue.close());
 
         _executor.shutdown();
 
         return true;
     }
 
+    protected void releaseWork(List<HaWorkVO> works) {
+        for (HaWorkVO work : works) {
+            s_logger.debug("Releasing work " + work);
+            work.setServerId(null);
+            work.setDateTaken(null);
+            _haDao.update(work.getId(), work);
+        }
+    }
+
     protected class CleanupTask extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -921,18 +951,14 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         private void runWithContext() {
             HaWorkVO work = null;
             try {
-                s_logger.trace("Checking the database for work");
-                work = _haDao.take(_serverId);
+                try {
+                    work = _workQueue.take(_timeToSleep);
+                } catch (final InterruptedException e) {
+                    s_logger.info("Interrupted");
+                    return;
+                }
                 if (work == null) {
-                    try {
-                        synchronized (this) {
-                            wait(_timeToSleep);
-                        }
-                        return;
-                    } catch (final InterruptedException e) {
-                        s_logger.info("Interrupted");
-                        return;
-                    }
+                    return;
                 }
 
                 NDC.push("work-" + work.getId());
@@ -946,10 +972,6 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
                 }
             }
         }
-
-        public synchronized void wakup() {
-            notifyAll();
-        }
     }
 
     @Override
@@ -961,6 +983,7 @@ public class HighAvailabilityManagerImpl extends ManagerBase implements HighAvai
         for (ManagementServerHost node : nodeList) {
             _haDao.releaseWorkItems(node.getMsid());
         }
+        wakeupWorkers();
     }
 
     @Override
@@ -32,6 +32,16 @@ public interface HighAvailabilityDao extends GenericDao<HaWorkVO, Long> {
      */
     HaWorkVO take(long serverId);
 
+    /**
+     * Takes up to max available HA work items in one locking select.  The work is taken by
+     * priority, restarts of system VMs first, and then the ones to try first.
+     *
+     * @param serverId server that is taking them.
+     * @param max maximum number of work items to take.
+     * @return list of WorkVO or empty list.
+     */
+    List<HaWorkVO> take(long serverId, int max);
+
     /**
      * Finds all the work items related to this instance.
      *
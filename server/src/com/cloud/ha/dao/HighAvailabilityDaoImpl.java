@@ -24,6 +24,7 @@ import javax.ejb.Local;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
+import com.cloud.ha.HaWorkQueue;
 import com.cloud.ha.HaWorkVO;
 import com.cloud.ha.HighAvailabilityManager.Step;
 import com.cloud.ha.HighAvailabilityManager.WorkType;
@@ -34,6 +35,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.vm.VirtualMachine;
 
 @Component
 @Local(value = {HighAvailabilityDao.class})
@@ -51,6 +53,19 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
     private final SearchBuilder<HaWorkVO> RunningHaWorkSearch;
     private final SearchBuilder<HaWorkVO> PendingHaWorkSearch;
 
+    // The claim takes the work in the order the HaWorkQueue hands it out
+    private static final String WorkTypePriority;
+    private static final String VmTypePriority = "CASE op_ha_work.vm_type WHEN '" + VirtualMachine.Type.User + "' THEN " +
+        HaWorkQueue.getVmTypePriority(VirtualMachine.Type.User) + " ELSE " + HaWorkQueue.getVmTypePriority(VirtualMachine.Type.DomainRouter) + " END";
+
+    static {
+        StringBuilder sql = new StringBuilder("CASE op_ha_work.type");
+        for (WorkType type : WorkType.values()) {
+            sql.append(" WHEN '").append(type).append("' THEN ").append(HaWorkQueue.getWorkTypePriority(type));
+        }
+        WorkTypePriority = sql.append(" END").toString();
+    }
+
     protected HighAvailabilityDaoImpl() {
         super();
 
@@ -148,30 +163,41 @@ public class HighAvailabilityDaoImpl extends GenericDaoBase<HaWorkVO, Long> impl
 
     @Override
     public HaWorkVO take(final long serverId) {
+        final List<HaWorkVO> works = take(serverId, 1);
+        return works.isEmpty() ? null : works.get(0);
+    }
+
+    @Override
+    public List<HaWorkVO> take(final long serverId, final int max) {
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
         try {
             final SearchCriteria<HaWorkVO> sc = TBASearch.create();
             sc.setParameters("time", System.currentTimeMillis() >> 10);
             sc.setParameters("step", Step.Done, Step.Cancelled);
 
-            final Filter filter = new Filter(HaWorkVO.class, null, true, 0l, 1l);
+            final Filter filter = new Filter(HaWorkVO.class, null, true, 0l, (long)max);
+            filter.addOrderBy(WorkTypePriority, true);
+            filter.addOrderBy(VmTypePriority, true);
+            filter.addOrderBy(HaWorkVO.class, "timeToTry", true);
+            filter.addOrderBy(HaWorkVO.class, "id", true);
 
             txn.start();
             final List<HaWorkVO> vos = lockRows(sc, filter, true);
             if (vos.size() == 0) {
                 txn.commit();
-                return null;
+                return vos;
             }
 
-            final HaWorkVO work = vos.get(0);
-            work.setServerId(serverId);
-            work.setDateTaken(new Date());
-
-            update(work.getId(), work);
+            final Date taken = new Date();
+            for (final HaWorkVO work : vos) {
+                work.setServerId(serverId);
+                work.setDateTaken(taken);
+            }
+            updateBatch(vos);
 
             txn.commit();
 
-            return work;
+            return vos;
 
         } catch (final Throwable e) {
             throw new CloudRuntimeException("Unable to execute take", e);
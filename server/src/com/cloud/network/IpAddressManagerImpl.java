@@ -154,6 +154,7 @@ import com.cloud.utils.db.TransactionStatus;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionUtil;
 import com.cloud.utils.net.Ip;
+import com.cloud.utils.net.Ip4RangeBitmap;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
@@ -1661,19 +1662,17 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             return null;
         }
 
-        Set<Long> availableIps = _networkModel.getAvailableIps(network, requestedIp);
+        Ip4RangeBitmap availableIps = _networkModel.getAvailableIpBitmap(network, requestedIp);
 
-        if (availableIps == null || availableIps.isEmpty()) {
+        if (availableIps == null || availableIps.getFreeCount() == 0) {
             s_logger.debug("There are no free ips in the  network " + network);
             return null;
         }
 
-        Long[] array = availableIps.toArray(new Long[availableIps.size()]);
-
         if (requestedIp != null) {
             // check that requested ip has the same cidr
             String[] cidr = network.getCidr().split("/");
-            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, NetUtils.long2Ip(array[0]), Integer.parseInt(cidr[1]));
+            boolean isSameCidr = NetUtils.sameSubnetCIDR(requestedIp, cidr[0], Integer.parseInt(cidr[1]));
             if (!isSameCidr) {
                 s_logger.warn("Requested ip address " + requestedIp + " doesn't belong to the network " + network + " cidr");
                 return null;
@@ -1684,11 +1683,16 @@ public class IpAddressManagerImpl extends ManagerBase implements IpAddressManage
             return requestedIp;
         }
 
-        String result;
-        do {
-            result = NetUtils.long2Ip(array[_rand.nextInt(array.length)]);
-        } while (result.split("\\.")[3].equals("1"));
-        return result;
+        // Addresses ending with .1 are left for gateways
+        while (availableIps.getFreeCount() > 0) {
+            long ip = availableIps.getRandomFree(_rand);
+            if ((ip & 0xff) != 1) {
+                return NetUtils.long2Ip(ip);
+            }
+            availableIps.markUsed(ip);
+        }
+        s_logger.debug("There are no free ips in the  network " + network);
+        return null;
     }
 
     Random _rand = new Random(System.currentTimeMillis());
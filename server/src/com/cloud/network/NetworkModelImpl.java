@@ -28,7 +28,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -114,6 +113,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.net.Ip4RangeBitmap;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
@@ -128,6 +128,8 @@ import com.cloud.vm.dao.VMInstanceDao;
 @Local(value = {NetworkModel.class})
 public class NetworkModelImpl extends ManagerBase implements NetworkModel {
     static final Logger s_logger = Logger.getLogger(NetworkModelImpl.class);
+    // getAvailableIps returns at most this many addresses, the lowest ones
+    private static final int MAX_AVAILABLE_IPS = 255;
     @Inject
     EntityManager _entityMgr;
     @Inject
@@ -597,7 +599,7 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
                 s_logger.debug("Network - " + network.getId() +  " has NULL CIDR.");
                 return false;
             }
-            hasFreeIps = (getAvailableIps(network, null)).size() > 0;
+            hasFreeIps = getAvailableIpBitmap(network, null).getFreeCount() > 0;
         }
 
         return hasFreeIps;
@@ -1795,26 +1797,41 @@ public class NetworkModelImpl extends ManagerBase implements NetworkModel {
 
     @Override
     public Set<Long> getAvailableIps(Network network, String requestedIp) {
+        Ip4RangeBitmap availableIps = getAvailableIpBitmap(network, requestedIp);
+        if (availableIps == null) {
+            return null;
+        }
+        return availableIps.getFree(MAX_AVAILABLE_IPS);
+    }
+
+    @Override
+    public Ip4RangeBitmap getAvailableIpBitmap(Network network, String requestedIp) {
+        if (!NetUtils.isValidCIDR(network.getCidr())) {
+            throw new InvalidParameterValueException("Invalid cidr " + network.getCidr() + " of network " + network);
+        }
         String[] cidr = network.getCidr().split("/");
-        List<String> ips = getUsedIpsInNetwork(network);
-        Set<Long> usedIps = new TreeSet<Long>();
+        Ip4RangeBitmap availableIps;
+        try {
+            availableIps = new Ip4RangeBitmap(cidr[0], Integer.parseInt(cidr[1]));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidParameterValueException("Unable to allocate addresses from the cidr of network " + network + ": " + e.getMessage());
+        }
 
+        List<String> ips = getUsedIpsInNetwork(network);
         for (String ip : ips) {
             if (requestedIp != null && requestedIp.equals(ip)) {
                 s_logger.warn("Requested ip address " + requestedIp + " is already in use in network" + network);
                 return null;
             }
-
-            usedIps.add(NetUtils.ip2Long(ip));
+            availableIps.markUsed(ip);
         }
 
-        Set<Long> allPossibleIps = NetUtils.getAllIpsFromCidr(cidr[0], Integer.parseInt(cidr[1]), usedIps);
-
         String gateway = network.getGateway();
-        if ((gateway != null) && (allPossibleIps.contains(NetUtils.ip2Long(gateway))))
-            allPossibleIps.remove(NetUtils.ip2Long(gateway));
+        if (gateway != null) {
+            availableIps.markUsed(gateway);
+        }
 
-        return allPossibleIps;
+        return availableIps;
     }
 
     @Override
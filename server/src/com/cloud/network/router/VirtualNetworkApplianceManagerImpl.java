@@ -33,11 +33,14 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -77,6 +80,7 @@ import com.cloud.agent.api.CheckRouterCommand;
 import com.cloud.agent.api.CheckS2SVpnConnectionsAnswer;
 import com.cloud.agent.api.CheckS2SVpnConnectionsCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.Command.OnError;
 import com.cloud.agent.api.GetDomRVersionAnswer;
 import com.cloud.agent.api.GetDomRVersionCmd;
 import com.cloud.agent.api.GetRouterAlertsAnswer;
@@ -390,6 +394,8 @@ Configurable, StateListener<State, VirtualMachine.Event, VirtualMachine> {
     int _routerStatsInterval = 300;
     int _routerCheckInterval = 30;
     int _rvrStatusUpdatePoolSize = 10;
+    int _routerStatsPoolSize = 10;
+    static final int NETWORK_USAGE_BATCH_SIZE = 10;
     private String _dnsBasicZoneUpdates = "all";
     private final Set<String> _guestOSNeedGatewayOnNonDefaultNetwork = new HashSet<String>();
 
@@ -405,6 +411,7 @@ Configurable, StateListener<State, VirtualMachine.Event, VirtualMachine> {
     ScheduledExecutorService _checkExecutor;
     ScheduledExecutorService _networkStatsUpdateExecutor;
     ExecutorService _rvrStatusUpdateExecutor;
+    ExecutorService _networkUsageExecutor;
 
     BlockingQueue<Long> _vrUpdateQueue = null;
 
@@ -595,6 +602,10 @@ Configurable, StateListener<State, VirtualMachine.Event, VirtualMachine> {
         value = configs.get("router.stats.interval");
         _routerStatsInterval = NumbersUtil.parseInt(value, 300);
 
+        value = configs.get("router.stats.poolsize");
+        _routerStatsPoolSize = NumbersUtil.parseInt(value, 10);
+        _networkUsageExecutor = Executors.newFixedThreadPool(_routerStatsPoolSize, new NamedThreadFactory("RouterNetworkUsageCollector"));
+
         value = configs.get("router.check.interval");
         _routerCheckInterval = NumbersUtil.parseInt(value, 30);
 
@@ -732,6 +743,9 @@ Configurable, StateListener<State, VirtualMachine.Event, VirtualMachine> {
 
     @Override
     public boolean stop() {
+        if (_networkUsageExecutor != null) {
+            _networkUsageExecutor.shutdown();
+        }
         return true;
     }
 
@@ -746,111 +760,240 @@ Configurable, StateListener<State, VirtualMachine.Event, VirtualMachine> {
         @Override
         protected void runInContext() {
             try {
+                final long startTime = System.currentTimeMillis();
                 final List<DomainRouterVO> routers = _routerDao.listByStateAndNetworkType(State.Running, GuestType.Isolated, mgmtSrvrId);
                 s_logger.debug("Found " + routers.size() + " running routers. ");
 
-                for (final DomainRouterVO router : routers) {
-                    final String privateIP = router.getPrivateIpAddress();
+                final Map<Long, List<NetworkUsageItem>> itemsByHost = groupNetworkUsageItems(routers);
+                int itemCount = 0;
+                for (final List<NetworkUsageItem> items : itemsByHost.values()) {
+                    itemCount += items.size();
+                }
 
-                    if (privateIP != null) {
-                        final boolean forVpc = router.getVpcId() != null;
-                        final List<? extends Nic> routerNics = _nicDao.listByVmId(router.getId());
-                        for (final Nic routerNic : routerNics) {
-                            final Network network = _networkModel.getNetwork(routerNic.getNetworkId());
-                            // Send network usage command for public nic in VPC VR
-                            // Send network usage command for isolated guest nic of non) VPC VR
+                // Each worker sends one batch of commands at a time, which bounds the number of commands in flight
+                final AtomicInteger failures = new AtomicInteger();
+                final List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (final Map.Entry<Long, List<NetworkUsageItem>> entry : itemsByHost.entrySet()) {
+                    final List<NetworkUsageItem> items = entry.getValue();
+                    for (int from = 0; from < items.size(); from += NETWORK_USAGE_BATCH_SIZE) {
+                        final List<NetworkUsageItem> batch = items.subList(from, Math.min(from + NETWORK_USAGE_BATCH_SIZE, items.size()));
+                        futures.add(_networkUsageExecutor.submit(new NetworkUsageBatchTask(entry.getKey(), batch, failures)));
+                    }
+                }
+                for (final Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (final ExecutionException e) {
+                        s_logger.warn("Error while collecting network stats", e.getCause());
+                    }
+                }
 
-                            //[TODO] Avoiding the NPE now, but I have to find out what is going on with the network. - Wilder Rodrigues
-                            if (network == null) {
-                                s_logger.error("Could not find a network with ID => " + routerNic.getNetworkId() + ". It might be a problem!");
-                                continue;
-                            }
-                            if (forVpc && network.getTrafficType() == TrafficType.Public || !forVpc && network.getTrafficType() == TrafficType.Guest
-                                    && network.getGuestType() == Network.GuestType.Isolated) {
-                                final NetworkUsageCommand usageCmd = new NetworkUsageCommand(privateIP, router.getHostName(), forVpc, routerNic.getIPv4Address());
-                                final String routerType = router.getType().toString();
-                                final UserStatisticsVO previousStats = _userStatsDao.findBy(router.getAccountId(), router.getDataCenterId(), network.getId(),
-                                        forVpc ? routerNic.getIPv4Address() : null, router.getId(), routerType);
-                                NetworkUsageAnswer answer = null;
-                                try {
-                                    answer = (NetworkUsageAnswer) _agentMgr.easySend(router.getHostId(), usageCmd);
-                                } catch (final Exception e) {
-                                    s_logger.warn("Error while collecting network stats from router: " + router.getInstanceName() + " from host: " + router.getHostId(), e);
-                                    continue;
-                                }
+                final long duration = System.currentTimeMillis() - startTime;
+                final String summary = "Collected network stats of " + itemCount + " router nics on " + itemsByHost.size() + " hosts in " + duration + "ms, "
+                        + failures.get() + " failed";
+                if (duration > _routerStatsInterval * 1000L) {
+                    s_logger.warn(summary + "; this is longer than router.stats.interval, consider raising router.stats.poolsize");
+                } else if (failures.get() > 0) {
+                    s_logger.info(summary);
+                } else {
+                    s_logger.debug(summary);
+                }
+            } catch (final Exception e) {
+                s_logger.warn("Error while collecting network stats", e);
+            }
+        }
+    }
 
-                                if (answer != null) {
-                                    if (!answer.getResult()) {
-                                        s_logger.warn("Error while collecting network stats from router: " + router.getInstanceName() + " from host: " + router.getHostId()
-                                                + "; details: " + answer.getDetails());
-                                        continue;
-                                    }
-                                    try {
-                                        if (answer.getBytesReceived() == 0 && answer.getBytesSent() == 0) {
-                                            s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
-                                            continue;
-                                        }
-                                        final NetworkUsageAnswer answerFinal = answer;
-                                        Transaction.execute(new TransactionCallbackNoReturn() {
-                                            @Override
-                                            public void doInTransactionWithoutResult(final TransactionStatus status) {
-                                                final UserStatisticsVO stats = _userStatsDao.lock(router.getAccountId(), router.getDataCenterId(), network.getId(),
-                                                        forVpc ? routerNic.getIPv4Address() : null, router.getId(), routerType);
-                                                if (stats == null) {
-                                                    s_logger.warn("unable to find stats for account: " + router.getAccountId());
-                                                    return;
-                                                }
-
-                                                if (previousStats != null
-                                                        && (previousStats.getCurrentBytesReceived() != stats.getCurrentBytesReceived() || previousStats.getCurrentBytesSent() != stats
-                                                        .getCurrentBytesSent())) {
-                                                    s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. " + "Ignoring current answer. Router: "
-                                                            + answerFinal.getRouterName() + " Rcvd: " + answerFinal.getBytesReceived() + "Sent: " + answerFinal.getBytesSent());
-                                                    return;
-                                                }
-
-                                                if (stats.getCurrentBytesReceived() > answerFinal.getBytesReceived()) {
-                                                    if (s_logger.isDebugEnabled()) {
-                                                        s_logger.debug("Received # of bytes that's less than the last one.  "
-                                                                + "Assuming something went wrong and persisting it. Router: " + answerFinal.getRouterName() + " Reported: "
-                                                                + answerFinal.getBytesReceived() + " Stored: " + stats.getCurrentBytesReceived());
-                                                    }
-                                                    stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
-                                                }
-                                                stats.setCurrentBytesReceived(answerFinal.getBytesReceived());
-                                                if (stats.getCurrentBytesSent() > answerFinal.getBytesSent()) {
-                                                    if (s_logger.isDebugEnabled()) {
-                                                        s_logger.debug("Received # of bytes that's less than the last one.  "
-                                                                + "Assuming something went wrong and persisting it. Router: " + answerFinal.getRouterName() + " Reported: "
-                                                                + answerFinal.getBytesSent() + " Stored: " + stats.getCurrentBytesSent());
-                                                    }
-                                                    stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
-                                                }
-                                                stats.setCurrentBytesSent(answerFinal.getBytesSent());
-                                                if (!_dailyOrHourly) {
-                                                    // update agg bytes
-                                                    stats.setAggBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
-                                                    stats.setAggBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
-                                                }
-                                                _userStatsDao.update(stats.getId(), stats);
-                                            }
-                                        });
-
-                                    } catch (final Exception e) {
-                                        s_logger.warn("Unable to update user statistics for account: " + router.getAccountId() + " Rx: " + answer.getBytesReceived() + "; Tx: "
-                                                + answer.getBytesSent());
-                                    }
-                                }
-                            }
+    /**
+     * Collects the router nics to send network usage commands for, grouped by
+     * the host their router runs on.
+     */
+    protected Map<Long, List<NetworkUsageItem>> groupNetworkUsageItems(final List<DomainRouterVO> routers) {
+        final Map<Long, List<NetworkUsageItem>> itemsByHost = new HashMap<Long, List<NetworkUsageItem>>();
+        for (final DomainRouterVO router : routers) {
+            final String privateIP = router.getPrivateIpAddress();
+
+            if (privateIP != null) {
+                final boolean forVpc = router.getVpcId() != null;
+                final List<? extends Nic> routerNics = _nicDao.listByVmId(router.getId());
+                for (final Nic routerNic : routerNics) {
+                    final Network network = _networkModel.getNetwork(routerNic.getNetworkId());
+                    // Send network usage command for public nic in VPC VR
+                    // Send network usage command for isolated guest nic of non) VPC VR
+
+                    //[TODO] Avoiding the NPE now, but I have to find out what is going on with the network. - Wilder Rodrigues
+                    if (network == null) {
+                        s_logger.error("Could not find a network with ID => " + routerNic.getNetworkId() + ". It might be a problem!");
+                        continue;
+                    }
+                    if (forVpc && network.getTrafficType() == TrafficType.Public || !forVpc && network.getTrafficType() == TrafficType.Guest
+                            && network.getGuestType() == Network.GuestType.Isolated) {
+                        List<NetworkUsageItem> items = itemsByHost.get(router.getHostId());
+                        if (items == null) {
+                            items = new ArrayList<NetworkUsageItem>();
+                            itemsByHost.put(router.getHostId(), items);
                         }
+                        items.add(new NetworkUsageItem(router, network, routerNic));
                     }
                 }
+            }
+        }
+        return itemsByHost;
+    }
+
+    protected static class NetworkUsageItem {
+        final DomainRouterVO _router;
+        final Network _network;
+        final Nic _nic;
+        UserStatisticsVO _previousStats;
+        NetworkUsageAnswer _answer;
+
+        NetworkUsageItem(final DomainRouterVO router, final Network network, final Nic nic) {
+            _router = router;
+            _network = network;
+            _nic = nic;
+        }
+
+        boolean isForVpc() {
+            return _router.getVpcId() != null;
+        }
+
+        String getPublicIp() {
+            return isForVpc() ? _nic.getIPv4Address() : null;
+        }
+    }
+
+    /**
+     * Sends the network usage commands of a batch of router nics on the same
+     * host in one request and updates their user_statistics in one transaction.
+     */
+    protected class NetworkUsageBatchTask extends ManagedContextRunnable {
+        private final long _hostId;
+        private final List<NetworkUsageItem> _items;
+        private final AtomicInteger _failures;
+
+        public NetworkUsageBatchTask(final long hostId, final List<NetworkUsageItem> items, final AtomicInteger failures) {
+            _hostId = hostId;
+            _items = items;
+            _failures = failures;
+        }
+
+        @Override
+        protected void runInContext() {
+            final Commands cmds = new Commands(OnError.Continue);
+            for (final NetworkUsageItem item : _items) {
+                final DomainRouterVO router = item._router;
+                item._previousStats = _userStatsDao.findBy(router.getAccountId(), router.getDataCenterId(), item._network.getId(), item.getPublicIp(), router.getId(),
+                        router.getType().toString());
+                cmds.addCommand(new NetworkUsageCommand(router.getPrivateIpAddress(), router.getHostName(), item.isForVpc(), item._nic.getIPv4Address()));
+            }
+
+            Answer[] answers = null;
+            try {
+                answers = _agentMgr.send(_hostId, cmds);
+            } catch (final Exception e) {
+                s_logger.warn("Error while collecting network stats of " + _items.size() + " routers from host: " + _hostId, e);
+                _failures.addAndGet(_items.size());
+                return;
+            }
+
+            final List<NetworkUsageItem> answered = new ArrayList<NetworkUsageItem>(_items.size());
+            for (int i = 0; i < _items.size(); i++) {
+                final NetworkUsageItem item = _items.get(i);
+                final Answer answer = answers != null && i < answers.length ? answers[i] : null;
+                if (answer == null) {
+                    s_logger.warn("No answer for the network stats of router: " + item._router.getInstanceName() + " from host: " + _hostId);
+                    _failures.incrementAndGet();
+                    continue;
+                }
+                if (!answer.getResult() || !(answer instanceof NetworkUsageAnswer)) {
+                    s_logger.warn("Error while collecting network stats from router: " + item._router.getInstanceName() + " from host: " + _hostId + "; details: "
+                            + answer.getDetails());
+                    _failures.incrementAndGet();
+                    continue;
+                }
+                item._answer = (NetworkUsageAnswer)answer;
+                if (item._answer.getBytesReceived() == 0 && item._answer.getBytesSent() == 0) {
+                    s_logger.debug("Recieved and Sent bytes are both 0. Not updating user_statistics");
+                    continue;
+                }
+                answered.add(item);
+            }
+            if (answered.isEmpty()) {
+                return;
+            }
+
+            try {
+                updateNetworkUsage(answered);
             } catch (final Exception e) {
-                s_logger.warn("Error while collecting network stats", e);
+                s_logger.warn("Unable to update user statistics of " + answered.size() + " routers from host: " + _hostId, e);
+                _failures.addAndGet(answered.size());
             }
         }
     }
 
+    /**
+     * Updates the user_statistics of the answered router nics in one transaction.
+     */
+    protected void updateNetworkUsage(final List<NetworkUsageItem> answered) {
+        Transaction.execute(new TransactionCallbackNoReturn() {
+            @Override
+            public void doInTransactionWithoutResult(final TransactionStatus status) {
+                final List<UserStatisticsVO> updated = new ArrayList<UserStatisticsVO>(answered.size());
+                for (final NetworkUsageItem item : answered) {
+                    final DomainRouterVO router = item._router;
+                    final UserStatisticsVO stats = _userStatsDao.lock(router.getAccountId(), router.getDataCenterId(), item._network.getId(), item.getPublicIp(),
+                            router.getId(), router.getType().toString());
+                    if (stats == null) {
+                        s_logger.warn("unable to find stats for account: " + router.getAccountId());
+                        continue;
+                    }
+                    if (updateUserStatistics(stats, item._previousStats, item._answer)) {
+                        updated.add(stats);
+                    }
+                }
+                _userStatsDao.updateBatch(updated);
+            }
+        });
+    }
+
+    /**
+     * Applies the byte counts reported by the router to its user statistics.
+     *
+     * @return false if the statistics changed since the command was sent and the answer is ignored.
+     */
+    protected boolean updateUserStatistics(final UserStatisticsVO stats, final UserStatisticsVO previousStats, final NetworkUsageAnswer answer) {
+        if (previousStats != null
+                && (previousStats.getCurrentBytesReceived() != stats.getCurrentBytesReceived() || previousStats.getCurrentBytesSent() != stats.getCurrentBytesSent())) {
+            s_logger.debug("Router stats changed from the time NetworkUsageCommand was sent. " + "Ignoring current answer. Router: " + answer.getRouterName() + " Rcvd: "
+                    + answer.getBytesReceived() + "Sent: " + answer.getBytesSent());
+            return false;
+        }
+
+        if (stats.getCurrentBytesReceived() > answer.getBytesReceived()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Received # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Router: "
+                        + answer.getRouterName() + " Reported: " + answer.getBytesReceived() + " Stored: " + stats.getCurrentBytesReceived());
+            }
+            stats.setNetBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
+        }
+        stats.setCurrentBytesReceived(answer.getBytesReceived());
+        if (stats.getCurrentBytesSent() > answer.getBytesSent()) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Received # of bytes that's less than the last one.  " + "Assuming something went wrong and persisting it. Router: "
+                        + answer.getRouterName() + " Reported: " + answer.getBytesSent() + " Stored: " + stats.getCurrentBytesSent());
+            }
+            stats.setNetBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
+        }
+        stats.setCurrentBytesSent(answer.getBytesSent());
+        if (!_dailyOrHourly) {
+            // update agg bytes
+            stats.setAggBytesSent(stats.getNetBytesSent() + stats.getCurrentBytesSent());
+            stats.setAggBytesReceived(stats.getNetBytesReceived() + stats.getCurrentBytesReceived());
+        }
+        return true;
+    }
+
     protected class NetworkStatsUpdateTask extends ManagedContextRunnable {
 
         public NetworkStatsUpdateTask() {
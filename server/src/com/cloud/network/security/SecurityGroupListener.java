@@ -107,11 +107,13 @@ public class SecurityGroupListener implements Listener {
                     }
                 }
                 commandNum++;
-                if (_workTracker != null)
-                    _workTracker.processAnswers(agentId, seq, answers);
             }
         }
 
+        if (commandNum > 0 && _workTracker != null) {
+            _workTracker.processAnswers(agentId, seq, answers);
+        }
+
         if (affectedVms.size() > 0) {
             _securityGroupManager.scheduleRulesetUpdateToHosts(affectedVms, false, new Long(10 * 1000l));
         }
@@ -404,43 +404,69 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
             s_logger.trace("Security Group Mgr: acquired global work lock");
         }
 
+        final Set<Long> vmIds = new TreeSet<Long>(affectedVms);
         try {
             Transaction.execute(new TransactionCallbackNoReturn() {
                 @Override
                 public void doInTransactionWithoutResult(TransactionStatus status) {
-                    for (Long vmId : affectedVms) {
-                        if (s_logger.isTraceEnabled()) {
-                            s_logger.trace("Security Group Mgr: scheduling ruleset update for " + vmId);
+                    // Read and write the logs and work items of all the vms at once instead of vm by vm
+                    Map<Long, VmRulesetLogVO> logs = new HashMap<Long, VmRulesetLogVO>();
+                    for (VmRulesetLogVO log : _rulesetLogDao.listByVmIds(vmIds)) {
+                        logs.put(log.getInstanceId(), log);
+                    }
+                    List<VmRulesetLogVO> newLogs = new ArrayList<VmRulesetLogVO>();
+                    for (Long vmId : vmIds) {
+                        if (!logs.containsKey(vmId)) {
+                            newLogs.add(new VmRulesetLogVO(vmId));
                         }
-                        VmRulesetLogVO log = null;
-                        SecurityGroupWorkVO work = null;
-
-                        log = _rulesetLogDao.findByVmId(vmId);
-                        if (log == null) {
-                            log = new VmRulesetLogVO(vmId);
-                            log = _rulesetLogDao.persist(log);
+                    }
+                    if (!newLogs.isEmpty()) {
+                        for (VmRulesetLogVO log : _rulesetLogDao.persistBatch(newLogs)) {
+                            logs.put(log.getInstanceId(), log);
                         }
-
-                        if (log != null && updateSeqno) {
+                    }
+                    if (updateSeqno) {
+                        for (VmRulesetLogVO log : logs.values()) {
                             log.incrLogsequence();
-                            _rulesetLogDao.update(log.getId(), log);
-                        }
-                        work = _workDao.findByVmIdStep(vmId, Step.Scheduled);
-                        if (work == null) {
-                            work = new SecurityGroupWorkVO(vmId, null, null, SecurityGroupWork.Step.Scheduled, null);
-                            work = _workDao.persist(work);
-                            if (s_logger.isTraceEnabled()) {
-                                s_logger.trace("Security Group Mgr: created new work item for " + vmId + "; id = " + work.getId());
-                            }
                         }
+                        _rulesetLogDao.updateBatch(new ArrayList<VmRulesetLogVO>(logs.values()));
+                    }
 
-                        work.setLogsequenceNumber(log.getLogsequence());
-                        _workDao.update(work.getId(), work);
+                    Map<Long, SecurityGroupWorkVO> works = new HashMap<Long, SecurityGroupWorkVO>();
+                    for (SecurityGroupWorkVO work : _workDao.listByVmIdsStep(vmIds, Step.Scheduled)) {
+                        works.put(work.getInstanceId(), work);
+                    }
+                    List<SecurityGroupWorkVO> newWorks = new ArrayList<SecurityGroupWorkVO>();
+                    for (Long vmId : vmIds) {
+                        if (!works.containsKey(vmId)) {
+                            SecurityGroupWorkVO work = new SecurityGroupWorkVO(vmId, null, null, SecurityGroupWork.Step.Scheduled, null);
+                            work.setLogsequenceNumber(logs.get(vmId).getLogsequence());
+                            newWorks.add(work);
+                        }
+                    }
+                    if (!newWorks.isEmpty()) {
+                        _workDao.persistBatch(newWorks);
+                    }
+                    List<SecurityGroupWorkVO> changedWorks = new ArrayList<SecurityGroupWorkVO>(works.size());
+                    for (SecurityGroupWorkVO work : works.values()) {
+                        long seqno = logs.get(work.getInstanceId()).getLogsequence();
+                        if (work.getLogsequenceNumber() == null || work.getLogsequenceNumber() != seqno) {
+                            work.setLogsequenceNumber(seqno);
+                            changedWorks.add(work);
+                        }
+                    }
+                    if (!changedWorks.isEmpty()) {
+                        _workDao.updateBatch(changedWorks);
+                    }
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Security Group Mgr: scheduled ruleset updates for " + vmIds.size() + " vms, " + newLogs.size() + " new logs, " + newWorks.size() +
+                            " new work items, " + changedWorks.size() + " updated work items");
                     }
                 }
             });
 
-            for (Long vmId : affectedVms) {
+            // One worker per work item, vms listed more than once only got one
+            for (int i = 0; i < vmIds.size(); i++) {
                 _executorPool.schedule(new WorkerThread(), delayMs, TimeUnit.MILLISECONDS);
             }
         } finally {
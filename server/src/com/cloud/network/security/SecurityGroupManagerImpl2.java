@@ -16,7 +16,10 @@
 // under the License.
 package com.cloud.network.security;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,6 +33,7 @@ import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.managed.context.ManagedContext;
 
+import com.cloud.agent.api.Command.OnError;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
@@ -58,6 +62,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     ManagedContext _managedContext;
 
     WorkerThread[] _workers;
+    protected static final int WORK_BATCH_SIZE = 50;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
 
@@ -142,81 +147,132 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
-            for (SecurityGroupWork work : workItems) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Processing " + work.getInstanceId());
-                }
-
-                try {
-                    VmRulesetLogVO rulesetLog = _rulesetLogDao.findByVmId(work.getInstanceId());
-                    if (rulesetLog == null) {
-                        s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
-                        continue;
-                    }
-                    work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
-                    _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
-                } catch (Exception e) {
-                    s_logger.error("Problem during SG work " + work, e);
-                    work.setStep(Step.Error);
-                }
-            }
+            workItems = _workQueue.getWork(WORK_BATCH_SIZE);
         } catch (InterruptedException e1) {
             s_logger.warn("SG work: caught InterruptException", e1);
+            return;
         }
-    }
 
-    public void sendRulesetUpdates(SecurityGroupWork work) {
-        Long userVmId = work.getInstanceId();
-        UserVm vm = _userVMDao.findById(userVmId);
+        List<Long> vmIds = new ArrayList<Long>(workItems.size());
+        for (SecurityGroupWork work : workItems) {
+            vmIds.add(work.getInstanceId());
+        }
+        Map<Long, VmRulesetLogVO> rulesetLogs = new HashMap<Long, VmRulesetLogVO>();
+        for (VmRulesetLogVO rulesetLog : _rulesetLogDao.listByVmIds(vmIds)) {
+            rulesetLogs.put(rulesetLog.getInstanceId(), rulesetLog);
+        }
 
-        if (vm != null && vm.getState() == State.Running) {
+        List<SecurityGroupWork> toSend = new ArrayList<SecurityGroupWork>(workItems.size());
+        for (SecurityGroupWork work : workItems) {
             if (s_logger.isTraceEnabled()) {
-                s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
+                s_logger.trace("Processing " + work.getInstanceId());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
-            Long agentId = vm.getHostId();
-            if (agentId != null) {
-                String privateIp = vm.getPrivateIpAddress();
-                NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
-                List<String> nicSecIps = null;
-                if (nic != null) {
-                    if (nic.getSecondaryIp()) {
-                        //get secondary ips of the vm
-                        long networkId = nic.getNetworkId();
-                        nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
-                    }
+            VmRulesetLogVO rulesetLog = rulesetLogs.get(work.getInstanceId());
+            if (rulesetLog == null) {
+                s_logger.warn("Could not find ruleset log for vm " + work.getInstanceId());
+                continue;
+            }
+            work.setLogsequenceNumber(rulesetLog.getLogsequence());
+            toSend.add(work);
+        }
+
+        sendRulesetUpdates(toSend);
+        for (SecurityGroupWork work : toSend) {
+            if (work.getStep() != Step.Error) {
+                _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
+            }
+        }
+    }
+
+    public void sendRulesetUpdates(SecurityGroupWork work) {
+        List<SecurityGroupWork> workItems = new ArrayList<SecurityGroupWork>(1);
+        workItems.add(work);
+        sendRulesetUpdates(workItems);
+    }
+
+    /**
+     * Sends the rulesets of a batch of vms.  The rulesets of the vms that are
+     * members of the same groups are only computed once, and the rulesets of the
+     * vms running on the same host are sent to it in one request.
+     */
+    public void sendRulesetUpdates(List<SecurityGroupWork> workItems) {
+        RulesetCache cache = new RulesetCache();
+        Map<Long, Commands> cmdsByHost = new LinkedHashMap<Long, Commands>();
+        for (SecurityGroupWork work : workItems) {
+            try {
+                UserVm vm = _userVMDao.findById(work.getInstanceId());
+                SecurityGroupRulesCmd cmd = generateRulesetCmd(work, vm, cache);
+                if (cmd == null) {
+                    continue;
                 }
-                SecurityGroupRulesCmd cmd =
-                    generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
-                        ingressRules, egressRules, nicSecIps);
-                cmd.setMsId(_serverId);
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
-                        cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
-                        cmd.getSignature());
+                Long agentId = vm.getHostId();
+                Commands cmds = cmdsByHost.get(agentId);
+                if (cmds == null) {
+                    cmds = new Commands(OnError.Continue);
+                    cmdsByHost.put(agentId, cmds);
                 }
-                Commands cmds = new Commands(cmd);
-                try {
-                    _agentMgr.send(agentId, cmds, _answerListener);
-                    if (s_logger.isTraceEnabled()) {
-                        s_logger.trace("SecurityGroupManager v2: sent ruleset updates for " + vm.getInstanceName() + " curr queue size=" + _workQueue.size());
-                    }
-                } catch (AgentUnavailableException e) {
-                    s_logger.debug("Unable to send updates for vm: " + userVmId + "(agentid=" + agentId + ")");
-                    _workTracker.handleException(agentId);
+                cmds.addCommand(cmd);
+            } catch (Exception e) {
+                s_logger.error("Problem during SG work " + work, e);
+                work.setStep(Step.Error);
+            }
+        }
+
+        for (Map.Entry<Long, Commands> entry : cmdsByHost.entrySet()) {
+            Long agentId = entry.getKey();
+            try {
+                _agentMgr.send(agentId, entry.getValue(), _answerListener);
+                if (s_logger.isTraceEnabled()) {
+                    s_logger.trace("SecurityGroupManager v2: sent " + entry.getValue().size() + " ruleset updates to host " + agentId + " curr queue size=" +
+                        _workQueue.size());
                 }
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to send " + entry.getValue().size() + " ruleset updates to host " + agentId);
+                _workTracker.handleException(agentId);
             }
-        } else {
+        }
+    }
+
+    protected SecurityGroupRulesCmd generateRulesetCmd(SecurityGroupWork work, UserVm vm, RulesetCache cache) {
+        Long userVmId = work.getInstanceId();
+
+        if (vm == null || vm.getState() != State.Running) {
             if (s_logger.isDebugEnabled()) {
                 if (vm != null)
                     s_logger.debug("No rules sent to vm " + vm + "state=" + vm.getState());
                 else
                     s_logger.debug("Could not find vm: No rules sent to vm " + userVmId);
             }
+            return null;
+        }
+        if (s_logger.isTraceEnabled()) {
+            s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
         }
+        if (vm.getHostId() == null) {
+            return null;
+        }
+
+        Map<PortAndProto, Set<String>> ingressRules = cache.getRules(userVmId, SecurityRuleType.IngressRule);
+        Map<PortAndProto, Set<String>> egressRules = cache.getRules(userVmId, SecurityRuleType.EgressRule);
+        String privateIp = vm.getPrivateIpAddress();
+        NicVO nic = _nicDao.findByIp4AddressAndVmId(privateIp, vm.getId());
+        List<String> nicSecIps = null;
+        if (nic != null) {
+            if (nic.getSecondaryIp()) {
+                //get secondary ips of the vm
+                nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
+            }
+        }
+        SecurityGroupRulesCmd cmd =
+            generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(), ingressRules,
+                egressRules, nicSecIps);
+        cmd.setMsId(_serverId);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
+                cmd.getIngressRuleSet().length + ":egress num rules=" + cmd.getEgressRuleSet().length + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
+                cmd.getSignature());
+        }
+        return cmd;
     }
 
     @Override
@@ -232,37 +288,83 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
      */
     @Override
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        return new RulesetCache().getRules(userVmId, type);
+    }
 
-        Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
+    /**
+     * Remembers the rulesets computed while processing a batch of work.  The
+     * ruleset of a vm only depends on the groups it is a member of, so vms in
+     * the same groups share one ruleset, and the running members of an allowed
+     * group are only listed once per batch instead of once per vm.
+     */
+    protected class RulesetCache {
+        private final Map<String, Map<PortAndProto, Set<String>>> _rulesets = new HashMap<String, Map<PortAndProto, Set<String>>>();
+        private final Map<Long, List<SecurityGroupRuleVO>> _ingressRules = new HashMap<Long, List<SecurityGroupRuleVO>>();
+        private final Map<Long, List<SecurityGroupRuleVO>> _egressRules = new HashMap<Long, List<SecurityGroupRuleVO>>();
+        private final Map<Long, List<String>> _memberCidrs = new HashMap<Long, List<String>>();
+
+        public Map<PortAndProto, Set<String>> getRules(Long userVmId, SecurityRuleType type) {
+            List<Long> groupIds = new ArrayList<Long>();
+            for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(userVmId)) {
+                groupIds.add(mapVO.getSecurityGroupId());
+            }
+            Collections.sort(groupIds);
 
-        List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
-        for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
-            for (SecurityGroupRuleVO rule : rules) {
-                PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
-                Set<String> cidrs = allowed.get(portAndProto);
-                if (cidrs == null) {
-                    cidrs = new TreeSet<String>(new CidrComparator());
-                }
-                if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
+            String key = type + ":" + groupIds;
+            Map<PortAndProto, Set<String>> allowed = _rulesets.get(key);
+            if (allowed == null) {
+                allowed = generateRules(groupIds, type);
+                _rulesets.put(key, allowed);
+            }
+            return allowed;
+        }
+
+        private Map<PortAndProto, Set<String>> generateRules(List<Long> groupIds, SecurityRuleType type) {
+            Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
+            for (Long groupId : groupIds) {
+                for (SecurityGroupRuleVO rule : getGroupRules(groupId, type)) {
+                    PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
+                    Set<String> cidrs = allowed.get(portAndProto);
+                    if (cidrs == null) {
+                        cidrs = new TreeSet<String>(new CidrComparator());
+                    }
+                    if (rule.getAllowedNetworkId() != null) {
+                        cidrs.addAll(getMemberCidrs(rule.getAllowedNetworkId()));
+                    } else if (rule.getAllowedSourceIpCidr() != null) {
+                        cidrs.add(rule.getAllowedSourceIpCidr());
+                    }
+                    if (cidrs.size() > 0) {
+                        allowed.put(portAndProto, cidrs);
                     }
-                } else if (rule.getAllowedSourceIpCidr() != null) {
-                    cidrs.add(rule.getAllowedSourceIpCidr());
-                }
-                if (cidrs.size() > 0) {
-                    allowed.put(portAndProto, cidrs);
                 }
             }
+            return allowed;
+        }
+
+        private List<SecurityGroupRuleVO> getGroupRules(Long groupId, SecurityRuleType type) {
+            Map<Long, List<SecurityGroupRuleVO>> rulesByGroup = type == SecurityRuleType.IngressRule ? _ingressRules : _egressRules;
+            List<SecurityGroupRuleVO> rules = rulesByGroup.get(groupId);
+            if (rules == null) {
+                rules = _securityGroupRuleDao.listBySecurityGroupId(groupId, type);
+                rulesByGroup.put(groupId, rules);
+            }
+            return rules;
         }
 
-        return allowed;
+        private List<String> getMemberCidrs(Long groupId) {
+            List<String> cidrs = _memberCidrs.get(groupId);
+            if (cidrs == null) {
+                cidrs = new ArrayList<String>();
+                for (SecurityGroupVMMapVO ngmapVO : _securityGroupVMMapDao.listBySecurityGroup(groupId, State.Running)) {
+                    //here, we differ from the superclass: instead of creating N more queries to the
+                    //nics table, we use what's already there in the VO since the listBySecurityGroup already
+                    //did a join with the nics table
+                    cidrs.add(ngmapVO.getGuestIpAddress() + "/32");
+                }
+                _memberCidrs.put(groupId, cidrs);
+            }
+            return cidrs;
+        }
     }
 
     public int getQueueSize() {
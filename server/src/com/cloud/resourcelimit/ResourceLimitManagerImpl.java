@@ -19,6 +19,8 @@ package com.cloud.resourcelimit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -427,19 +429,70 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             project = _projectDao.findByProjectAccountId(account.getId());
         }
 
+        // Find the limits first, only the counts of the account and the domains that have a limit need
+        // to be locked and checked.  The ROOT domain and the domains without a limit are left alone,
+        // so the deployments under the same domain don't all queue up on their rows.
+        final long accountLimit = findCorrectResourceLimitForAccount(account, type);
+        final Map<Long, Long> domainLimits = new LinkedHashMap<Long, Long>();
+        Long domainId = null;
+        if (project != null) {
+            domainId = project.getDomainId();
+        } else {
+            domainId = account.getDomainId();
+        }
+
+        // check all domains in the account's domain hierarchy
+        while (domainId != null) {
+            DomainVO domain = _domainDao.findById(domainId);
+            // no limit check if it is ROOT domain
+            if (domainId != Domain.ROOT_DOMAIN) {
+                long domainLimit = findCorrectResourceLimitForDomain(domain, type);
+                if (domainLimit != Resource.RESOURCE_UNLIMITED) {
+                    domainLimits.put(domainId, domainLimit);
+                }
+            }
+            domainId = domain.getParent();
+        }
+
+        if (accountLimit == Resource.RESOURCE_UNLIMITED && domainLimits.isEmpty()) {
+            return;
+        }
+
         final Project projectFinal = project;
         Transaction.execute(new TransactionCallbackWithExceptionNoReturn<ResourceAllocationException>() {
             @Override
             public void doInTransactionWithoutResult(TransactionStatus status) throws ResourceAllocationException {
-            // Lock all rows first so nobody else can read it
-            Set<Long> rowIdsToLock = _resourceCountDao.listAllRowsToUpdate(account.getId(), ResourceOwnerType.Account, type);
-            SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
-            sc.setParameters("id", rowIdsToLock.toArray());
-            _resourceCountDao.lockRows(sc, null, true);
+            // Lock the rows to check first so nobody else can read them
+            List<Long> rowIdsToLock = new ArrayList<Long>();
+            if (accountLimit != Resource.RESOURCE_UNLIMITED) {
+                ResourceCountVO accountRow = _resourceCountDao.findByOwnerAndType(account.getId(), ResourceOwnerType.Account, type);
+                if (accountRow != null) {
+                    rowIdsToLock.add(accountRow.getId());
+                }
+            }
+            for (Long limitedDomainId : domainLimits.keySet()) {
+                ResourceCountVO domainRow = _resourceCountDao.findByOwnerAndType(limitedDomainId, ResourceOwnerType.Domain, type);
+                if (domainRow != null) {
+                    rowIdsToLock.add(domainRow.getId());
+                }
+            }
+
+            long accountCount = 0;
+            Map<Long, Long> domainCounts = new HashMap<Long, Long>();
+            if (!rowIdsToLock.isEmpty()) {
+                SearchCriteria<ResourceCountVO> sc = ResourceCountSearch.create();
+                sc.setParameters("id", rowIdsToLock.toArray());
+                for (ResourceCountVO row : _resourceCountDao.lockRows(sc, null, true)) {
+                    if (row.getResourceOwnerType() == ResourceOwnerType.Account) {
+                        accountCount = row.getCount();
+                    } else {
+                        domainCounts.put(row.getDomainId(), row.getCount());
+                    }
+                }
+            }
 
             // Check account limits
-            long accountLimit = findCorrectResourceLimitForAccount(account, type);
-            long potentialCount = _resourceCountDao.getResourceCount(account.getId(), ResourceOwnerType.Account, type) + numResources;
+            long potentialCount = accountCount + numResources;
             if (accountLimit != Resource.RESOURCE_UNLIMITED && potentialCount > accountLimit) {
                     String message =
                         "Maximum number of resources of type '" + type + "' for account name=" + account.getAccountName() + " in domain id=" + account.getDomainId() +
@@ -454,25 +507,12 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
                 throw e;
             }
 
-            // check all domains in the account's domain hierarchy
-            Long domainId = null;
-                if (projectFinal != null) {
-                    domainId = projectFinal.getDomainId();
-            } else {
-                domainId = account.getDomainId();
-            }
-
-            while (domainId != null) {
-                DomainVO domain = _domainDao.findById(domainId);
-                // no limit check if it is ROOT domain
-                if (domainId != Domain.ROOT_DOMAIN) {
-                    long domainLimit = findCorrectResourceLimitForDomain(domain, type);
-                    long domainCount = _resourceCountDao.getResourceCount(domainId, ResourceOwnerType.Domain, type) + numResources;
-                    if (domainLimit != Resource.RESOURCE_UNLIMITED && domainCount > domainLimit) {
-                        throw new ResourceAllocationException("Maximum number of resources of type '" + type + "' for domain id=" + domainId + " has been exceeded.", type);
-                    }
+            for (Map.Entry<Long, Long> domainLimit : domainLimits.entrySet()) {
+                Long domainCount = domainCounts.get(domainLimit.getKey());
+                if ((domainCount == null ? 0 : domainCount) + numResources > domainLimit.getValue()) {
+                    throw new ResourceAllocationException("Maximum number of resources of type '" + type + "' for domain id=" + domainLimit.getKey() + " has been exceeded.",
+                        type);
                 }
-                domainId = domain.getParent();
             }
         }
         });
@@ -793,11 +833,13 @@ public class ResourceLimitManagerImpl extends ManagerBase implements ResourceLim
             sc.setParameters("id", rowsToLock.toArray());
             List<ResourceCountVO> rowsToUpdate = _resourceCountDao.lockRows(sc, null, true);
 
+            // The rows are locked, so they can be updated from what was read while locking them
             for (ResourceCountVO rowToUpdate : rowsToUpdate) {
-                if (!_resourceCountDao.updateById(rowToUpdate.getId(), increment, delta)) {
-                    s_logger.trace("Unable to update resource count for the row " + rowToUpdate);
-                    result = false;
-                }
+                rowToUpdate.setCount(rowToUpdate.getCount() + (increment ? delta : -delta));
+            }
+            if (_resourceCountDao.updateBatch(rowsToUpdate) != rowsToUpdate.size()) {
+                s_logger.trace("Unable to update resource count for the rows " + rowsToUpdate);
+                result = false;
             }
 
                     return result;
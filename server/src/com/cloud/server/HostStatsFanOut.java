@@ -0,0 +1,248 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.host.HostVO;
+
+/**
+ * Runs one stats collection task per host on a bounded executor instead of
+ * walking the hosts one after the other.  Every host gets hostTimeout
+ * milliseconds from the moment its task starts; hosts that take longer are
+ * abandoned for this cycle and hosts that could not even be started before
+ * the cycle deadline are skipped.  The results of all other hosts are still
+ * published by the caller.
+ */
+public class HostStatsFanOut {
+    private static final Logger s_logger = Logger.getLogger(HostStatsFanOut.class);
+
+    public interface HostStatsTask {
+        void collect(HostVO host) throws Exception;
+    }
+
+    /**
+     * Timing of one collection cycle, kept by StatsCollector for each collector.
+     */
+    public static class CollectionCycle {
+        private final String _collector;
+        private final long _startTime;
+        private final long _duration;
+        private final int _hosts;
+        private final int _collected;
+        private final int _failed;
+        private final List<Long> _timedOutHostIds;
+        private final List<Long> _skippedHostIds;
+
+        public CollectionCycle(String collector, long startTime, long duration, int hosts, int collected, int failed, List<Long> timedOutHostIds,
+                List<Long> skippedHostIds) {
+            _collector = collector;
+            _startTime = startTime;
+            _duration = duration;
+            _hosts = hosts;
+            _collected = collected;
+            _failed = failed;
+            _timedOutHostIds = timedOutHostIds;
+            _skippedHostIds = skippedHostIds;
+        }
+
+        public String getCollector() {
+            return _collector;
+        }
+
+        public long getStartTime() {
+            return _startTime;
+        }
+
+        public long getDuration() {
+            return _duration;
+        }
+
+        public int getHosts() {
+            return _hosts;
+        }
+
+        public int getCollected() {
+            return _collected;
+        }
+
+        public int getFailed() {
+            return _failed;
+        }
+
+        public int getTimeouts() {
+            return _timedOutHostIds.size();
+        }
+
+        public int getSkipped() {
+            return _skippedHostIds.size();
+        }
+
+        public List<Long> getTimedOutHostIds() {
+            return _timedOutHostIds;
+        }
+
+        public List<Long> getSkippedHostIds() {
+            return _skippedHostIds;
+        }
+
+        @Override
+        public String toString() {
+            return _collector + " collected " + _collected + "/" + _hosts + " hosts in " + _duration + "ms, failed: " + _failed + ", timed out: " + getTimeouts() +
+                ", skipped: " + getSkipped();
+        }
+    }
+
+    private final String _name;
+    private final ExecutorService _executor;
+    private final long _hostTimeout;
+
+    public HostStatsFanOut(String name, ExecutorService executor, long hostTimeout) {
+        _name = name;
+        _executor = executor;
+        _hostTimeout = hostTimeout;
+    }
+
+    /**
+     * @param hosts hosts to collect from.
+     * @param task collection to run for each host, it must publish its own results.
+     * @param cycleTimeout milliseconds after which hosts that have not started are skipped.
+     * @return timing of the cycle.
+     */
+    public CollectionCycle collect(List<HostVO> hosts, HostStatsTask task, long cycleTimeout) {
+        long startTime = System.currentTimeMillis();
+        long cycleDeadline = startTime + cycleTimeout;
+
+        List<HostWork> works = new ArrayList<HostWork>(hosts.size());
+        List<Long> skipped = new ArrayList<Long>();
+        for (HostVO host : hosts) {
+            HostWork work = new HostWork(host, task, cycleDeadline);
+            try {
+                work._future = _executor.submit(work);
+                works.add(work);
+            } catch (RejectedExecutionException e) {
+                skipped.add(host.getId());
+            }
+        }
+
+        int collected = 0;
+        int failed = 0;
+        List<Long> timedOut = new ArrayList<Long>();
+        for (HostWork work : works) {
+            long hostId = work._host.getId();
+            try {
+                waitFor(work, cycleDeadline);
+                if (work._skipped) {
+                    skipped.add(hostId);
+                } else {
+                    collected++;
+                }
+            } catch (TimeoutException e) {
+                work._future.cancel(true);
+                if (work._startTime == 0) {
+                    skipped.add(hostId);
+                } else {
+                    timedOut.add(hostId);
+                    s_logger.warn(_name + " gave up on host " + hostId + " after " + _hostTimeout + "ms");
+                }
+            } catch (CancellationException e) {
+                skipped.add(hostId);
+            } catch (ExecutionException e) {
+                failed++;
+                s_logger.debug(_name + " failed to collect stats of host " + hostId + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                work._future.cancel(true);
+                skipped.add(hostId);
+            }
+        }
+
+        CollectionCycle cycle = new CollectionCycle(_name, startTime, System.currentTimeMillis() - startTime, hosts.size(), collected, failed, timedOut, skipped);
+        if (cycle.getTimeouts() > 0 || cycle.getSkipped() > 0) {
+            s_logger.info(cycle.toString());
+        } else if (s_logger.isDebugEnabled()) {
+            s_logger.debug(cycle.toString());
+        }
+        return cycle;
+    }
+
+    /**
+     * Waits for the host until hostTimeout has passed since its task started.
+     * While the task is still queued the wait is bounded by the cycle deadline.
+     */
+    private void waitFor(HostWork work, long cycleDeadline) throws InterruptedException, ExecutionException, TimeoutException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long started = work._startTime;
+            long wait = started == 0 ? Math.min(_hostTimeout, cycleDeadline - now) : started + _hostTimeout - now;
+            if (wait <= 0) {
+                throw new TimeoutException();
+            }
+            try {
+                work._future.get(wait, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                if (work._startTime != 0 && work._startTime + _hostTimeout <= System.currentTimeMillis()) {
+                    throw e;
+                }
+                // The host was still queued or only started in the meantime, keep waiting.
+            }
+        }
+    }
+
+    private static class HostWork extends ManagedContextRunnable {
+        final HostVO _host;
+        final HostStatsTask _task;
+        final long _cycleDeadline;
+        volatile long _startTime;
+        volatile boolean _skipped;
+        Future<?> _future;
+
+        HostWork(HostVO host, HostStatsTask task, long cycleDeadline) {
+            _host = host;
+            _task = task;
+            _cycleDeadline = cycleDeadline;
+        }
+
+        @Override
+        protected void runInContext() {
+            _startTime = System.currentTimeMillis();
+            if (_startTime > _cycleDeadline) {
+                // The cycle is over, leave the host to the next one
+                _skipped = true;
+                return;
+            }
+            try {
+                _task.collect(_host);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
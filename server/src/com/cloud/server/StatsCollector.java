@@ -28,7 +28,9 @@ import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -46,8 +48,10 @@ import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.datastore.db.ImageStoreDao;
 import org.apache.cloudstack.storage.datastore.db.PrimaryDataStoreDao;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
-import org.apache.cloudstack.utils.graphite.GraphiteClient;
-import org.apache.cloudstack.utils.graphite.GraphiteException;
+import org.apache.cloudstack.utils.metrics.AsyncLineExporter;
+import org.apache.cloudstack.utils.metrics.LineProtocol;
+import org.apache.cloudstack.utils.metrics.Metric;
+import org.apache.cloudstack.utils.metrics.MetricsExporter;
 
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.api.Answer;
@@ -88,6 +92,8 @@ import com.cloud.network.as.dao.ConditionDao;
 import com.cloud.network.as.dao.CounterDao;
 import com.cloud.resource.ResourceManager;
 import com.cloud.resource.ResourceState;
+import com.cloud.server.HostStatsFanOut.CollectionCycle;
+import com.cloud.server.HostStatsFanOut.HostStatsTask;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.StorageManager;
@@ -126,7 +132,7 @@ import com.cloud.vm.dao.VMInstanceDao;
 public class StatsCollector extends ManagerBase implements ComponentMethodInterceptable {
 
     public static enum externalStatsProtocol {
-        NONE("none"), GRAPHITE("graphite");
+        NONE("none"), GRAPHITE("graphite"), INFLUXDB("influxdb");
         String _type;
 
         externalStatsProtocol(String type) {
@@ -144,6 +150,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private static StatsCollector s_instance = null;
 
     private ScheduledExecutorService _executor = null;
+    private ThreadPoolExecutor _hostStatsExecutor = null;
     @Inject
     private AgentManager _agentMgr;
     @Inject
@@ -204,6 +211,7 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private final ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
     private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
     private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+    private final ConcurrentHashMap<String, CollectionCycle> _collectionCycles = new ConcurrentHashMap<String, CollectionCycle>();
 
     long hostStatsInterval = -1L;
     long hostAndVmStatsInterval = -1L;
@@ -211,14 +219,18 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     long volumeStatsInterval = -1L;
     long autoScaleStatsInterval = -1L;
     int vmDiskStatsInterval = 0;
+    int hostStatsConcurrency = 10;
+    long hostStatsTimeout = 30000L;
     List<Long> hostIds = null;
     private double _imageStoreCapacityThreshold = 0.90;
 
     String externalStatsPrefix = "";
     String externalStatsHost = null;
     int externalStatsPort = -1;
+    int externalStatsQueueSize = 100000;
     boolean externalStatsEnabled = false;
     externalStatsProtocol externalStatsType = externalStatsProtocol.NONE;
+    private MetricsExporter _statsExporter = null;
 
     private ScheduledExecutorService _diskStatsUpdateExecutor;
     private int _usageAggregationRange = 1440;
@@ -257,6 +269,12 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), -1L);
         autoScaleStatsInterval = NumbersUtil.parseLong(configs.get("autoscale.stats.interval"), 60000L);
         vmDiskStatsInterval = NumbersUtil.parseInt(configs.get("vm.disk.stats.interval"), 0);
+        hostStatsConcurrency = Math.max(1, NumbersUtil.parseInt(configs.get("stats.host.collector.threads"), 10));
+        hostStatsTimeout = NumbersUtil.parseLong(configs.get("stats.host.collector.timeout"), 30000L);
+
+        _hostStatsExecutor = new ThreadPoolExecutor(hostStatsConcurrency, hostStatsConcurrency, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("HostStatsCollector"));
+        _hostStatsExecutor.allowCoreThreadTimeOut(true);
 
         /* URI to send statistics to. Currently only Graphite is supported */
         String externalStatsUri = configs.get("stats.output.uri");
@@ -283,6 +301,8 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 }
 
                 externalStatsEnabled = true;
+
+                _statsExporter = createStatsExporter(uri);
             } catch (URISyntaxException e) {
                 s_logger.debug("Failed to parse external statistics URI: " + e.getMessage());
             }
@@ -354,6 +374,60 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
     }
 
+    /**
+     * Builds the exporter for stats.output.uri, e.g. graphite://host:2003/prefix or
+     * influxdb://host:8089/prefix?transport=tcp. Metrics are sent over UDP unless
+     * the transport is set to tcp.
+     */
+    private MetricsExporter createStatsExporter(URI uri) {
+        LineProtocol protocol;
+        if (externalStatsType == externalStatsProtocol.GRAPHITE) {
+            protocol = LineProtocol.GRAPHITE;
+        } else if (externalStatsType == externalStatsProtocol.INFLUXDB) {
+            protocol = LineProtocol.INFLUXDB;
+        } else {
+            return null;
+        }
+        AsyncLineExporter.Transport transport = AsyncLineExporter.Transport.UDP;
+        if (uri.getQuery() != null && uri.getQuery().toLowerCase().contains("transport=tcp")) {
+            transport = AsyncLineExporter.Transport.TCP;
+        }
+        s_logger.info("Sending statistics to " + protocol + " host " + externalStatsHost + " over " + transport);
+        return new AsyncLineExporter(externalStatsHost, externalStatsPort, protocol, externalStatsPrefix, transport, externalStatsQueueSize);
+    }
+
+    private void exportStats(List<Metric> metrics) {
+        MetricsExporter exporter = _statsExporter;
+        if (exporter != null && !metrics.isEmpty()) {
+            exporter.export(metrics);
+        }
+    }
+
+    /**
+     * @return exporter sending to stats.output.uri, with its sent and dropped counters, or null if none is configured.
+     */
+    public MetricsExporter getStatsExporter() {
+        return _statsExporter;
+    }
+
+    @Override
+    public boolean stop() {
+        // Stop the collectors first, they feed the host stats fan out and the exporter
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+        if (_diskStatsUpdateExecutor != null) {
+            _diskStatsUpdateExecutor.shutdownNow();
+        }
+        if (_hostStatsExecutor != null) {
+            _hostStatsExecutor.shutdownNow();
+        }
+        if (_statsExporter != null) {
+            _statsExporter.close();
+        }
+        return super.stop();
+    }
+
     class HostCollector extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -374,15 +448,35 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.L2Networking.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalDhcp.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalPxe.toString());
-                ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
+                final ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
                 List<HostVO> hosts = _hostDao.search(sc, null);
-                for (HostVO host : hosts) {
-                    HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
-                    if (stats != null) {
-                        hostStats.put(host.getId(), stats);
-                    } else {
-                        s_logger.warn("Received invalid host stats for host: " + host.getId());
+                CollectionCycle cycle = collectFromHosts("HostStatsCollector", hosts, new HostStatsTask() {
+                    @Override
+                    public void collect(HostVO host) {
+                        HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
+                        if (stats != null) {
+                            hostStats.put(host.getId(), stats);
+                            if (externalStatsEnabled) {
+                                long now = System.currentTimeMillis() / 1000;
+                                List<Metric> metrics = new ArrayList<Metric>();
+                                metrics.add(new Metric("hosts", host.getUuid(), "cpu.utilization", stats.getCpuUtilization(), now));
+                                metrics.add(new Metric("hosts", host.getUuid(), "memory.total_kbs", stats.getTotalMemoryKBs(), now));
+                                metrics.add(new Metric("hosts", host.getUuid(), "memory.free_kbs", stats.getFreeMemoryKBs(), now));
+                                metrics.add(new Metric("hosts", host.getUuid(), "network.read_kbs", stats.getNetworkReadKBs(), now));
+                                metrics.add(new Metric("hosts", host.getUuid(), "network.write_kbs", stats.getNetworkWriteKBs(), now));
+                                exportStats(metrics);
+                            }
+                        } else {
+                            s_logger.warn("Received invalid host stats for host: " + host.getId());
+                        }
                     }
+                }, hostStatsInterval);
+                // Hosts too slow to answer in this cycle keep their previous stats rather than disappearing
+                for (Long hostId : cycle.getTimedOutHostIds()) {
+                    keepPreviousHostStats(hostStats, hostId);
+                }
+                for (Long hostId : cycle.getSkippedHostIds()) {
+                    keepPreviousHostStats(hostStats, hostId);
                 }
                 _hostStats = hostStats;
                 // Get a subset of hosts with GPU support from the list of "hosts"
@@ -427,103 +521,116 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
                 List<HostVO> hosts = _hostDao.search(sc, null);
 
-                /* HashMap for metrics to be send to Graphite */
-                HashMap metrics = new HashMap<String, Integer>();
-
-                for (HostVO host : hosts) {
-                    List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                    List<Long> vmIds = new ArrayList<Long>();
-
-                    for (UserVmVO vm : vms) {
-                        vmIds.add(vm.getId());
+                collectFromHosts("VmStatsCollector", hosts, new HostStatsTask() {
+                    @Override
+                    public void collect(HostVO host) {
+                        collectVmStats(host);
                     }
+                }, hostAndVmStatsInterval);
 
-                    try {
-                        HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
-
-                        if (vmStatsById != null) {
-                            VmStatsEntry statsInMemory = null;
-
-                            Set<Long> vmIdSet = vmStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-                                statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
-
-                                if (statsInMemory == null) {
-                                    //no stats exist for this vm, directly persist
-                                    _VmStats.put(vmId, statsForCurrentIteration);
-                                } else {
-                                    //update each field
-                                    statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-                                    statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-                                    statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-                                    statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-                                    statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
-                                    statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
-                                    statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
-                                    statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
-
-                                    _VmStats.put(vmId, statsInMemory);
-                                }
+            } catch (Throwable t) {
+                s_logger.error("Error trying to retrieve VM stats", t);
+            }
+        }
+    }
 
-                                /**
-                                 * Add statistics to HashMap only when they should be send to a external stats collector
-                                 * Performance wise it seems best to only append to the HashMap when needed
-                                 */
-                                if (externalStatsEnabled) {
-                                    VMInstanceVO vmVO = _vmInstance.findById(vmId);
-                                    String vmName = vmVO.getUuid();
-
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
-                                }
+    /**
+     * Collects the stats of the VMs running on one host.  Runs concurrently for
+     * several hosts, so it only touches per host state and the concurrent _VmStats.
+     */
+    private void collectVmStats(HostVO host) {
+        /* Metrics to be send to the external stats collector */
+        List<Metric> metrics = new ArrayList<Metric>();
+        long now = System.currentTimeMillis() / 1000;
 
-                            }
+        List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+        List<Long> vmIds = new ArrayList<Long>();
 
-                            /**
-                             * Send the metrics to a external stats collector
-                             * We send it on a per-host basis to prevent that we flood the host
-                             * Currently only Graphite is supported
-                             */
-                            if (!metrics.isEmpty()) {
-                                if (externalStatsType != null && externalStatsType == externalStatsProtocol.GRAPHITE) {
+        for (UserVmVO vm : vms) {
+            vmIds.add(vm.getId());
+        }
 
-                                    if (externalStatsPort == -1) {
-                                        externalStatsPort = 2003;
-                                    }
+        try {
+            HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
 
-                                    s_logger.debug("Sending VmStats of host " + host.getId() + " to Graphite host " + externalStatsHost + ":" + externalStatsPort);
+            if (vmStatsById != null) {
+                VmStatsEntry statsInMemory = null;
 
-                                    try {
-                                        GraphiteClient g = new GraphiteClient(externalStatsHost, externalStatsPort);
-                                        g.sendMetrics(metrics);
-                                    } catch (GraphiteException e) {
-                                        s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + externalStatsPort + ": " + e.getMessage());
-                                    }
+                Set<Long> vmIdSet = vmStatsById.keySet();
+                for (Long vmId : vmIdSet) {
+                    VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
+                    statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
 
-                                    metrics.clear();
-                                }
-                            }
-                        }
+                    if (statsInMemory == null) {
+                        //no stats exist for this vm, directly persist
+                        _VmStats.put(vmId, statsForCurrentIteration);
+                    } else {
+                        //update each field
+                        statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
+                        statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
+                        statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
+                        statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
+                        statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
+                        statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
+                        statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
+                        statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
+
+                        _VmStats.put(vmId, statsInMemory);
+                    }
 
-                    } catch (Exception e) {
-                        s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-                        continue;
+                    /**
+                     * Add statistics to the list only when they should be send to a external stats collector
+                     * Performance wise it seems best to only append to the list when needed
+                     */
+                    if (externalStatsEnabled) {
+                        VMInstanceVO vmVO = _vmInstance.findById(vmId);
+                        String vmName = vmVO.getUuid();
+
+                        metrics.add(new Metric("instances", vmName, "cpu.num", statsForCurrentIteration.getNumCPUs(), now));
+                        metrics.add(new Metric("instances", vmName, "cpu.utilization", statsForCurrentIteration.getCPUUtilization(), now));
+                        metrics.add(new Metric("instances", vmName, "network.read_kbs", statsForCurrentIteration.getNetworkReadKBs(), now));
+                        metrics.add(new Metric("instances", vmName, "network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs(), now));
+                        metrics.add(new Metric("instances", vmName, "disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs(), now));
+                        metrics.add(new Metric("instances", vmName, "disk.read_kbs", statsForCurrentIteration.getDiskReadKBs(), now));
+                        metrics.add(new Metric("instances", vmName, "disk.write_iops", statsForCurrentIteration.getDiskWriteIOs(), now));
+                        metrics.add(new Metric("instances", vmName, "disk.read_iops", statsForCurrentIteration.getDiskReadIOs(), now));
                     }
+
                 }
 
-            } catch (Throwable t) {
-                s_logger.error("Error trying to retrieve VM stats", t);
+                /**
+                 * Hand the metrics to the external stats exporter, it sends them
+                 * asynchronously so collection never waits for the network
+                 */
+                exportStats(metrics);
             }
+
+        } catch (Exception e) {
+            s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
+        }
+    }
+
+    private CollectionCycle collectFromHosts(String collector, List<HostVO> hosts, HostStatsTask task, long interval) {
+        HostStatsFanOut fanOut = new HostStatsFanOut(collector, _hostStatsExecutor, hostStatsTimeout);
+        CollectionCycle cycle = fanOut.collect(hosts, task, interval);
+        _collectionCycles.put(collector, cycle);
+        return cycle;
+    }
+
+    private void keepPreviousHostStats(Map<Long, HostStats> hostStats, Long hostId) {
+        HostStats previous = _hostStats.get(hostId);
+        if (previous != null) {
+            hostStats.put(hostId, previous);
         }
     }
 
+    /**
+     * @return timing of the last cycle of the given collector, HostStatsCollector or VmStatsCollector.
+     */
+    public CollectionCycle getLastCollectionCycle(String collector) {
+        return _collectionCycles.get(collector);
+    }
+
     public VmStats getVmStats(long id) {
         return _VmStats.get(id);
     }
@@ -725,6 +832,9 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                     Answer answer = ssAhost.sendMessage(command);
                     if (answer != null && answer.getResult()) {
                         storageStats.put(storeId, (StorageStats)answer);
+                        if (externalStatsEnabled) {
+                            exportStorageStats("imagestores", store.getUuid(), (StorageStats)answer);
+                        }
                         s_logger.trace("HostId: " + storeId + " Used: " + ((StorageStats)answer).getByteUsed() + " Total Available: " +
                                 ((StorageStats)answer).getCapacityBytes());
                     }
@@ -744,6 +854,9 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                         Answer answer = _storageManager.sendToPool(pool, command);
                         if (answer != null && answer.getResult()) {
                             storagePoolStats.put(pool.getId(), (StorageStats)answer);
+                            if (externalStatsEnabled) {
+                                exportStorageStats("storagepools", pool.getUuid(), (StorageStats)answer);
+                            }
 
                             // Seems like we have dynamically updated the pool size since the prev. size and the current do not match
                             if (_storagePoolStats.get(poolId) != null && _storagePoolStats.get(poolId).getCapacityBytes() != ((StorageStats)answer).getCapacityBytes()) {
@@ -764,6 +877,14 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
         }
     }
 
+    private void exportStorageStats(String measurement, String uuid, StorageStats stats) {
+        long now = System.currentTimeMillis() / 1000;
+        List<Metric> metrics = new ArrayList<Metric>();
+        metrics.add(new Metric(measurement, uuid, "bytes.used", stats.getByteUsed(), now));
+        metrics.add(new Metric(measurement, uuid, "bytes.capacity", stats.getCapacityBytes(), now));
+        exportStats(metrics);
+    }
+
     class AutoScaleMonitor extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
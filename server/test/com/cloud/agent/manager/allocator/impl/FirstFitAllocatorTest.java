@@ -0,0 +1,184 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.deploy.DeploymentPlan;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.host.Host;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.service.dao.ServiceOfferingDetailsDao;
+
+public class FirstFitAllocatorTest {
+    private static final long MB = 1024L * 1024L;
+
+    FirstFitAllocator _allocator;
+    ServiceOffering _offering;
+
+    @Before
+    public void setup() {
+        _allocator = new FirstFitAllocator();
+        _allocator._allocationAlgorithm = "firstfit";
+        _allocator._capacityDao = Mockito.mock(CapacityDao.class);
+        _allocator._capacityMgr = Mockito.mock(CapacityManager.class);
+        _allocator._clusterDetailsDao = Mockito.mock(ClusterDetailsDao.class);
+        _allocator._serviceOfferingDetailsDao = Mockito.mock(ServiceOfferingDetailsDao.class);
+
+        Mockito.when(_allocator._clusterDetailsDao.findDetail(1L, "cpuOvercommitRatio")).thenReturn(new ClusterDetailsVO(1L, "cpuOvercommitRatio", "1"));
+        Mockito.when(_allocator._clusterDetailsDao.findDetail(1L, "memoryOvercommitRatio")).thenReturn(new ClusterDetailsVO(1L, "memoryOvercommitRatio", "1"));
+        Mockito.when(_allocator._capacityMgr.checkIfHostHasCpuCapability(Matchers.anyLong(), Matchers.anyInt(), Matchers.anyInt())).thenReturn(true);
+        Mockito.when(
+            _allocator._capacityMgr.checkIfHostHasCapacity(Matchers.anyLong(), Matchers.anyInt(), Matchers.anyLong(), Matchers.anyBoolean(), Matchers.anyFloat(),
+                Matchers.anyFloat(), Matchers.anyBoolean())).thenReturn(true);
+
+        // 2 cpus of 1000 Mhz and 1 GB of memory
+        _offering = Mockito.mock(ServiceOffering.class);
+        Mockito.when(_offering.getId()).thenReturn(1L);
+        Mockito.when(_offering.getCpu()).thenReturn(2);
+        Mockito.when(_offering.getSpeed()).thenReturn(1000);
+        Mockito.when(_offering.getRamSize()).thenReturn(1024);
+    }
+
+    @Test
+    public void testHasCapacity() {
+        CapacityVO[] capacity = capacity(1L, 1000, 4000, 0, 1024 * MB, 4096 * MB, 0);
+
+        Assert.assertTrue(FirstFitAllocator.hasCapacity(capacity, 2000, 1024 * MB, 1f, 1f, true));
+        Assert.assertTrue(FirstFitAllocator.hasCapacity(capacity, 3000, 3072 * MB, 1f, 1f, true));
+        Assert.assertFalse(FirstFitAllocator.hasCapacity(capacity, 3001, 1024 * MB, 1f, 1f, true));
+        Assert.assertFalse(FirstFitAllocator.hasCapacity(capacity, 2000, 3073 * MB, 1f, 1f, true));
+    }
+
+    @Test
+    public void testHasCapacityWithOvercommit() {
+        CapacityVO[] capacity = capacity(1L, 4000, 4000, 0, 4096 * MB, 4096 * MB, 0);
+
+        Assert.assertFalse(FirstFitAllocator.hasCapacity(capacity, 2000, 1024 * MB, 1f, 1f, true));
+        Assert.assertFalse(FirstFitAllocator.hasCapacity(capacity, 2000, 1024 * MB, 2f, 1f, true));
+        Assert.assertTrue(FirstFitAllocator.hasCapacity(capacity, 2000, 1024 * MB, 2f, 1.5f, true));
+    }
+
+    @Test
+    public void testHasCapacityWithReservedCapacity() {
+        CapacityVO[] capacity = capacity(1L, 1000, 4000, 2000, 1024 * MB, 4096 * MB, 0);
+
+        Assert.assertFalse(FirstFitAllocator.hasCapacity(capacity, 2000, 1024 * MB, 1f, 1f, true));
+        Assert.assertTrue(FirstFitAllocator.hasCapacity(capacity, 2000, 1024 * MB, 1f, 1f, false));
+    }
+
+    @Test
+    public void testHasCapacityWithoutCapacityRows() {
+        Assert.assertFalse(FirstFitAllocator.hasCapacity(null, 2000, 1024 * MB, 1f, 1f, true));
+        Assert.assertFalse(FirstFitAllocator.hasCapacity(new CapacityVO[2], 2000, 1024 * MB, 1f, 1f, true));
+    }
+
+    @Test
+    public void testPrefilterAcceptsHostsWithCapacity() {
+        Host host1 = mockHost(1L);
+        Host host2 = mockHost(2L);
+        mockCapacities(Arrays.asList(capacity(1L, 0, 4000, 0, 0, 4096 * MB, 0), capacity(2L, 2000, 4000, 0, 3072 * MB, 4096 * MB, 0)));
+        ExcludeList avoid = new ExcludeList();
+
+        List<Host> suitable = _allocator.allocateTo(Mockito.mock(DeploymentPlan.class), _offering, null, avoid, Arrays.asList(host1, host2), 10, true, null);
+
+        Assert.assertEquals(Arrays.asList(host1, host2), suitable);
+        Assert.assertFalse(avoid.shouldAvoid(host1));
+        Assert.assertFalse(avoid.shouldAvoid(host2));
+        Mockito.verify(_allocator._capacityDao, Mockito.times(1)).listByHostIdsAndTypes(Arrays.asList(1L, 2L), Capacity.CAPACITY_TYPE_CPU,
+            Capacity.CAPACITY_TYPE_MEMORY);
+        // cluster overcommit ratios are only looked up once for both hosts
+        Mockito.verify(_allocator._clusterDetailsDao, Mockito.times(1)).findDetail(1L, "cpuOvercommitRatio");
+    }
+
+    @Test
+    public void testPrefilterRejectsHostsWithoutCapacity() {
+        Host fits = mockHost(1L);
+        Host shortOfCpu = mockHost(2L);
+        Host shortOfMemory = mockHost(3L);
+        Host noCapacity = mockHost(4L);
+        mockCapacities(Arrays.asList(capacity(1L, 0, 4000, 0, 0, 4096 * MB, 0), capacity(2L, 3000, 4000, 0, 0, 4096 * MB, 0),
+            capacity(3L, 0, 4000, 0, 3584 * MB, 4096 * MB, 0)));
+        ExcludeList avoid = new ExcludeList();
+
+        List<Host> suitable = _allocator.allocateTo(Mockito.mock(DeploymentPlan.class), _offering, null, avoid,
+            Arrays.asList(fits, shortOfCpu, shortOfMemory, noCapacity), 10, true, null);
+
+        Assert.assertEquals(Arrays.asList(fits), suitable);
+        Assert.assertTrue(avoid.shouldAvoid(shortOfCpu));
+        Assert.assertTrue(avoid.shouldAvoid(shortOfMemory));
+        Assert.assertTrue(avoid.shouldAvoid(noCapacity));
+        // the hosts ruled out by the prefilter are not checked any further
+        for (long hostId : new long[] {2L, 3L, 4L}) {
+            Mockito.verify(_allocator._capacityMgr, Mockito.never()).checkIfHostHasCapacity(Matchers.eq(hostId), Matchers.anyInt(), Matchers.anyLong(),
+                Matchers.anyBoolean(), Matchers.anyFloat(), Matchers.anyFloat(), Matchers.anyBoolean());
+        }
+    }
+
+    @Test
+    public void testPrefilteredHostStillVerified() {
+        Host host = mockHost(1L);
+        mockCapacities(Arrays.asList(capacity(1L, 0, 4000, 0, 0, 4096 * MB, 0)));
+        Mockito.when(
+            _allocator._capacityMgr.checkIfHostHasCapacity(Matchers.eq(1L), Matchers.anyInt(), Matchers.anyLong(), Matchers.anyBoolean(), Matchers.anyFloat(),
+                Matchers.anyFloat(), Matchers.anyBoolean())).thenReturn(false);
+        ExcludeList avoid = new ExcludeList();
+
+        List<Host> suitable = _allocator.allocateTo(Mockito.mock(DeploymentPlan.class), _offering, null, avoid, Arrays.asList(host), 10, true, null);
+
+        Assert.assertTrue(suitable.isEmpty());
+        Assert.assertTrue(avoid.shouldAvoid(host));
+    }
+
+    private void mockCapacities(List<CapacityVO[]> capacities) {
+        List<CapacityVO> rows = new ArrayList<CapacityVO>();
+        for (CapacityVO[] capacity : capacities) {
+            rows.addAll(Arrays.asList(capacity));
+        }
+        Mockito.when(_allocator._capacityDao.listByHostIdsAndTypes(Matchers.anyListOf(Long.class), Matchers.<Short> anyVararg())).thenReturn(rows);
+    }
+
+    private static Host mockHost(long id) {
+        Host host = Mockito.mock(Host.class);
+        Mockito.when(host.getId()).thenReturn(id);
+        Mockito.when(host.getClusterId()).thenReturn(1L);
+        Mockito.when(host.getName()).thenReturn("host" + id);
+        return host;
+    }
+
+    private static CapacityVO[] capacity(long hostId, long usedCpu, long totalCpu, long reservedCpu, long usedMem, long totalMem, long reservedMem) {
+        CapacityVO cpu = new CapacityVO(hostId, 1L, 1L, 1L, usedCpu, totalCpu, Capacity.CAPACITY_TYPE_CPU);
+        cpu.setReservedCapacity(reservedCpu);
+        CapacityVO mem = new CapacityVO(hostId, 1L, 1L, 1L, usedMem, totalMem, Capacity.CAPACITY_TYPE_MEMORY);
+        mem.setReservedCapacity(reservedMem);
+        return new CapacityVO[] {cpu, mem};
+    }
+}
@@ -18,7 +18,9 @@
  */
 package com.cloud.api.dispatch;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -29,9 +31,11 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import org.apache.cloudstack.acl.RoleType;
 import org.apache.cloudstack.api.BaseCmd;
 import org.apache.cloudstack.api.Parameter;
 import org.apache.cloudstack.api.ServerApiException;
+import org.apache.cloudstack.api.response.VolumeResponse;
 import org.apache.cloudstack.context.CallContext;
 
 import com.cloud.exception.ConcurrentOperationException;
@@ -39,9 +43,11 @@ import com.cloud.exception.InsufficientCapacityException;
 import com.cloud.exception.NetworkRuleConflictException;
 import com.cloud.exception.ResourceAllocationException;
 import com.cloud.exception.ResourceUnavailableException;
+import com.cloud.storage.Volume;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
 import com.cloud.user.User;
+import com.cloud.utils.db.EntityManager;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ParamProcessWorkerTest {
@@ -49,6 +55,9 @@ public class ParamProcessWorkerTest {
     @Mock
     protected AccountManager accountManager;
 
+    @Mock
+    protected EntityManager entityManager;
+
     protected ParamProcessWorker paramProcessWorker;
 
     public static class TestCmd extends BaseCmd {
@@ -62,6 +71,12 @@ public class ParamProcessWorkerTest {
         @Parameter(name = "boolparam1", type = CommandType.BOOLEAN)
         boolean boolparam1;
 
+        @Parameter(name = "adminparam", authorized = {RoleType.Admin})
+        String adminparam;
+
+        @Parameter(name = "volumeids", type = CommandType.LIST, collectionType = CommandType.UUID, entityType = VolumeResponse.class, since = "4.6.0")
+        List<Long> volumeids;
+
         @Override
         public void execute() throws ResourceUnavailableException, InsufficientCapacityException, ServerApiException, ConcurrentOperationException,
             ResourceAllocationException, NetworkRuleConflictException {
@@ -85,6 +100,7 @@ public class ParamProcessWorkerTest {
         CallContext.register(Mockito.mock(User.class), Mockito.mock(Account.class));
         paramProcessWorker = new ParamProcessWorker();
         paramProcessWorker._accountMgr = accountManager;
+        paramProcessWorker._entityMgr = entityManager;
     }
 
     @After
@@ -104,4 +120,73 @@ public class ParamProcessWorkerTest {
         Assert.assertEquals(100, cmd.intparam1);
     }
 
+    @Test
+    public void processUuidListLooksUpAllUuidsAtOnce() {
+        final String uuid1 = "7ab7bd27-0b6f-4b41-a3d2-0bd6a2d9d7a1";
+        final String uuid2 = "0fd2e0c3-46d9-4b5b-9d0c-1de8c5d6a3b2";
+        final Volume volume1 = Mockito.mock(Volume.class);
+        Mockito.when(volume1.getUuid()).thenReturn(uuid1);
+        Mockito.when(volume1.getId()).thenReturn(1L);
+        final Volume volume2 = Mockito.mock(Volume.class);
+        Mockito.when(volume2.getUuid()).thenReturn(uuid2);
+        Mockito.when(volume2.getId()).thenReturn(2L);
+        Mockito.doReturn(Arrays.asList(volume2, volume1)).when(entityManager)
+                .listByUuidsIncludingRemoved(Mockito.eq(Volume.class), Mockito.anyCollectionOf(String.class));
+
+        final HashMap<String, String> params = new HashMap<String, String>();
+        params.put("volumeids", uuid1 + "," + uuid2);
+        final TestCmd cmd = new TestCmd();
+        paramProcessWorker.processParameters(cmd, params);
+
+        Assert.assertEquals(Arrays.asList(1L, 2L), cmd.volumeids);
+        Mockito.verify(entityManager, Mockito.times(1)).listByUuidsIncludingRemoved(Mockito.eq(Volume.class), Mockito.anyCollectionOf(String.class));
+        Mockito.verify(entityManager, Mockito.never()).findByUuidIncludingRemoved(Mockito.eq(Volume.class), Mockito.anyString());
+    }
+
+    @Test(expected = ServerApiException.class)
+    public void processUuidListWithUnknownUuid() {
+        final HashMap<String, String> params = new HashMap<String, String>();
+        params.put("volumeids", "7ab7bd27-0b6f-4b41-a3d2-0bd6a2d9d7a1");
+        paramProcessWorker.processParameters(new TestCmd(), params);
+    }
+
+    @Test
+    public void processAdminParameterAfterAdminCall() {
+        final HashMap<String, String> params = new HashMap<String, String>();
+        params.put("adminparam", "foo");
+
+        final TestCmd adminCmd = new TestCmd();
+        processParametersAs(Account.ACCOUNT_TYPE_ADMIN, adminCmd, params);
+        Assert.assertEquals("foo", adminCmd.adminparam);
+
+        // The bindings of the command class are cached by the admin call, they must not let the user set the admin only parameter
+        final TestCmd userCmd = new TestCmd();
+        processParametersAs(Account.ACCOUNT_TYPE_NORMAL, userCmd, params);
+        Assert.assertNull(userCmd.adminparam);
+    }
+
+    @Test
+    public void processAdminParameterAfterUserCall() {
+        final HashMap<String, String> params = new HashMap<String, String>();
+        params.put("adminparam", "foo");
+
+        final TestCmd userCmd = new TestCmd();
+        processParametersAs(Account.ACCOUNT_TYPE_NORMAL, userCmd, params);
+        Assert.assertNull(userCmd.adminparam);
+
+        final TestCmd adminCmd = new TestCmd();
+        processParametersAs(Account.ACCOUNT_TYPE_ADMIN, adminCmd, params);
+        Assert.assertEquals("foo", adminCmd.adminparam);
+    }
+
+    private void processParametersAs(final short accountType, final BaseCmd cmd, final HashMap<String, String> params) {
+        final Account account = Mockito.mock(Account.class);
+        Mockito.when(account.getType()).thenReturn(accountType);
+        CallContext.register(Mockito.mock(User.class), account);
+        try {
+            paramProcessWorker.processParameters(cmd, params);
+        } finally {
+            CallContext.unregister();
+        }
+    }
 }
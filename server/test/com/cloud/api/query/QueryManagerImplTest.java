@@ -0,0 +1,186 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import org.apache.cloudstack.api.command.user.vm.ListVMsCmd;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.UserVmResponse;
+import org.apache.cloudstack.context.CallContext;
+
+import com.cloud.api.query.dao.UserVmJoinDaoImpl;
+import com.cloud.api.query.vo.UserVmJoinVO;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.User;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Attribute;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+
+public class QueryManagerImplTest {
+
+    private static final List<Long> VM_IDS = Arrays.asList(3L, 7L, 8L, 12L, 15L, 21L, 30L);
+
+    /**
+     * Answers the vm id search from VM_IDS the way the database would, ordered by id and
+     * starting after the idGT value, and records the filters it was given.
+     */
+    static class PagingUserVmJoinDao extends UserVmJoinDaoImpl {
+        final List<Filter> _filters = new ArrayList<Filter>();
+
+        @Override
+        public Pair<List<UserVmJoinVO>, Integer> searchAndCount(SearchCriteria<UserVmJoinVO> sc, Filter filter) {
+            _filters.add(filter);
+            long afterId = 0;
+            for (Pair<Attribute, Object> value : sc.getValues()) {
+                // idIN isn't set, so the only value on the id column is idGT
+                if ("id".equals(value.first().getColumnName())) {
+                    afterId = (Long)value.second();
+                }
+            }
+            List<UserVmJoinVO> vms = new ArrayList<UserVmJoinVO>();
+            int count = 0;
+            for (Long id : VM_IDS) {
+                if (id > afterId) {
+                    count++;
+                    if (count > filter.getOffset() && vms.size() < filter.getLimit()) {
+                        vms.add(ViewResponseHelperTest.mockVm(id));
+                    }
+                }
+            }
+            return new Pair<List<UserVmJoinVO>, Integer>(vms, count);
+        }
+
+        @Override
+        public List<UserVmJoinVO> searchByIds(Long... vmIds) {
+            // Two rows per vm, one per nic
+            List<UserVmJoinVO> vms = new ArrayList<UserVmJoinVO>();
+            for (Long id : vmIds) {
+                vms.add(ViewResponseHelperTest.mockVm(id));
+                vms.add(ViewResponseHelperTest.mockVm(id));
+            }
+            return vms;
+        }
+    }
+
+    private QueryManagerImpl _queryManager;
+    private PagingUserVmJoinDao _userVmJoinDao;
+    private Object _savedUserVmJoinDao;
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = QueryManagerImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(_queryManager, value);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Account caller = Mockito.mock(Account.class);
+        Mockito.when(caller.getId()).thenReturn(2L);
+        AccountManager accountMgr = Mockito.mock(AccountManager.class);
+        Mockito.when(accountMgr.isAdmin(2L)).thenReturn(true);
+        Mockito.when(accountMgr.isRootAdmin(2L)).thenReturn(true);
+
+        _queryManager = new QueryManagerImpl();
+        _userVmJoinDao = new PagingUserVmJoinDao();
+        setField("_accountMgr", accountMgr);
+        setField("_userVmJoinDao", _userVmJoinDao);
+
+        _savedUserVmJoinDao = ViewResponseHelperTest.setUserVmJoinDao(ViewResponseHelperTest.mockUserVmJoinDao());
+        CallContext.register(Mockito.mock(User.class), caller);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CallContext.unregister();
+        ViewResponseHelperTest.setUserVmJoinDao(_savedUserVmJoinDao);
+    }
+
+    private ListResponse<UserVmResponse> listVms(Long afterId, long pageSize, long startIndex) {
+        ListVMsCmd cmd = Mockito.mock(ListVMsCmd.class);
+        Mockito.when(cmd.getAfterId()).thenReturn(afterId);
+        Mockito.when(cmd.getPageSizeVal()).thenReturn(pageSize);
+        Mockito.when(cmd.getStartIndex()).thenReturn(startIndex);
+        return _queryManager.searchForUserVMs(cmd);
+    }
+
+    @Test
+    public void testAfterIdWithPageSize() {
+        ListResponse<UserVmResponse> response = listVms(8L, 2, 0);
+
+        assertEquals(Arrays.asList("vm-12", "vm-15"), ViewResponseHelperTest.responseIds(response.getResponses()));
+        assertEquals(Integer.valueOf(4), response.getCount());
+        Filter filter = _userVmJoinDao._filters.get(0);
+        assertEquals(Long.valueOf(0), filter.getOffset());
+        assertEquals(Long.valueOf(2), filter.getLimit());
+        assertEquals(" ORDER BY user_vm_view.id ASC ", filter.getOrderBy());
+    }
+
+    @Test
+    public void testAfterIdIgnoresStartIndex() {
+        // The start index of a page number doesn't skip rows after afterid
+        ListResponse<UserVmResponse> response = listVms(8L, 2, 4);
+
+        assertEquals(Arrays.asList("vm-12", "vm-15"), ViewResponseHelperTest.responseIds(response.getResponses()));
+        assertEquals(Long.valueOf(0), _userVmJoinDao._filters.get(0).getOffset());
+    }
+
+    @Test
+    public void testWalkingPagesByAfterIdMatchesPagingByIndex() {
+        List<String> byAfterId = new ArrayList<String>();
+        Long afterId = null;
+        while (true) {
+            ListResponse<UserVmResponse> response = listVms(afterId, 3, 0);
+            List<String> page = ViewResponseHelperTest.responseIds(response.getResponses());
+            if (page.isEmpty()) {
+                break;
+            }
+            byAfterId.addAll(page);
+            String last = page.get(page.size() - 1);
+            afterId = Long.valueOf(last.substring("vm-".length()));
+        }
+
+        List<String> byIndex = new ArrayList<String>();
+        for (long startIndex = 0; startIndex < VM_IDS.size(); startIndex += 3) {
+            byIndex.addAll(ViewResponseHelperTest.responseIds(listVms(null, 3, startIndex).getResponses()));
+        }
+
+        assertEquals(Arrays.asList("vm-3", "vm-7", "vm-8", "vm-12", "vm-15", "vm-21", "vm-30"), byAfterId);
+        assertEquals(byIndex, byAfterId);
+    }
+
+    @Test
+    public void testLastPageAfterId() {
+        ListResponse<UserVmResponse> response = listVms(30L, 3, 0);
+
+        assertEquals(0, response.getResponses().size());
+        assertEquals(Integer.valueOf(0), response.getCount());
+        assertEquals(Long.valueOf(0), _userVmJoinDao._filters.get(0).getOffset());
+    }
+}
@@ -0,0 +1,134 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.apache.cloudstack.api.ApiConstants.VMDetails;
+import org.apache.cloudstack.api.ResponseObject.ResponseView;
+import org.apache.cloudstack.api.response.UserVmResponse;
+import org.apache.cloudstack.context.CallContext;
+
+import com.cloud.api.ApiDBUtils;
+import com.cloud.api.query.dao.UserVmJoinDao;
+import com.cloud.api.query.vo.UserVmJoinVO;
+import com.cloud.user.Account;
+import com.cloud.user.User;
+
+public class ViewResponseHelperTest {
+
+    private UserVmJoinDao _userVmJoinDao;
+    private Object _savedUserVmJoinDao;
+
+    /**
+     * Environment hack, the responses are built through the static ApiDBUtils.
+     */
+    static Object setUserVmJoinDao(Object dao) throws Exception {
+        Field field = ApiDBUtils.class.getDeclaredField("s_userVmJoinDao");
+        field.setAccessible(true);
+        Object saved = field.get(null);
+        field.set(null, dao);
+        return saved;
+    }
+
+    /**
+     * Builds a response with the uuid of the vm and counts the detail rows merged into it.
+     */
+    static UserVmJoinDao mockUserVmJoinDao() {
+        UserVmJoinDao dao = Mockito.mock(UserVmJoinDao.class);
+        Mockito.when(dao.newUserVmResponse(Matchers.any(ResponseView.class), Matchers.anyString(), Matchers.any(UserVmJoinVO.class),
+                Matchers.<EnumSet<VMDetails>>any(), Matchers.any(Account.class))).thenAnswer(new Answer<UserVmResponse>() {
+                    @Override
+                    public UserVmResponse answer(InvocationOnMock invocation) throws Throwable {
+                        UserVmResponse response = new UserVmResponse();
+                        response.setId(((UserVmJoinVO)invocation.getArguments()[2]).getUuid());
+                        return response;
+                    }
+                });
+        Mockito.when(dao.setUserVmResponse(Matchers.any(ResponseView.class), Matchers.any(UserVmResponse.class), Matchers.any(UserVmJoinVO.class))).thenAnswer(
+                new Answer<UserVmResponse>() {
+                    @Override
+                    public UserVmResponse answer(InvocationOnMock invocation) throws Throwable {
+                        return (UserVmResponse)invocation.getArguments()[1];
+                    }
+                });
+        return dao;
+    }
+
+    static UserVmJoinVO mockVm(long id) {
+        UserVmJoinVO vm = Mockito.mock(UserVmJoinVO.class);
+        Mockito.when(vm.getId()).thenReturn(id);
+        Mockito.when(vm.getUuid()).thenReturn("vm-" + id);
+        return vm;
+    }
+
+    static List<String> responseIds(List<UserVmResponse> responses) {
+        List<String> ids = new ArrayList<String>();
+        for (UserVmResponse response : responses) {
+            ids.add(response.getId());
+        }
+        return ids;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _userVmJoinDao = mockUserVmJoinDao();
+        _savedUserVmJoinDao = setUserVmJoinDao(_userVmJoinDao);
+        CallContext.register(Mockito.mock(User.class), Mockito.mock(Account.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CallContext.unregister();
+        setUserVmJoinDao(_savedUserVmJoinDao);
+    }
+
+    @Test
+    public void testUserVmResponsesKeepTheListedOrder() {
+        // Ids a Hashtable would hand back in a different order, the second row of a vm is one of its nics
+        UserVmJoinVO[] vms = new UserVmJoinVO[] {mockVm(3), mockVm(17), mockVm(17), mockVm(40), mockVm(101), mockVm(101), mockVm(1000)};
+
+        List<UserVmResponse> responses = ViewResponseHelper.createUserVmResponse(ResponseView.Restricted, "virtualmachine", vms);
+
+        assertEquals(Arrays.asList("vm-3", "vm-17", "vm-40", "vm-101", "vm-1000"), responseIds(responses));
+        Mockito.verify(_userVmJoinDao, Mockito.times(2)).setUserVmResponse(Matchers.any(ResponseView.class), Matchers.any(UserVmResponse.class),
+                Matchers.any(UserVmJoinVO.class));
+    }
+
+    @Test
+    public void testUserVmResponsesInDescendingOrder() {
+        UserVmJoinVO[] vms = new UserVmJoinVO[] {mockVm(1000), mockVm(101), mockVm(40), mockVm(17), mockVm(3)};
+
+        List<UserVmResponse> responses = ViewResponseHelper.createUserVmResponse(ResponseView.Restricted, "virtualmachine", vms);
+
+        assertEquals(Arrays.asList("vm-1000", "vm-101", "vm-40", "vm-17", "vm-3"), responseIds(responses));
+    }
+}
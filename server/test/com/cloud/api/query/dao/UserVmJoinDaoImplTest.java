@@ -0,0 +1,105 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.query.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+
+import com.cloud.api.query.vo.UserVmJoinVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.Attribute;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+
+public class UserVmJoinDaoImplTest {
+
+    /**
+     * Answers the detail searches from the ids they ask for and records the filters they use.
+     */
+    static class RecordingUserVmJoinDao extends UserVmJoinDaoImpl {
+        final List<Filter> _filters = new ArrayList<Filter>();
+        final List<List<Object>> _batches = new ArrayList<List<Object>>();
+
+        @Override
+        public List<UserVmJoinVO> searchIncludingRemoved(SearchCriteria<UserVmJoinVO> sc, Filter filter, Boolean lock, boolean cache) {
+            _filters.add(filter);
+            List<Object> ids = new ArrayList<Object>();
+            for (Pair<Attribute, Object> value : sc.getValues()) {
+                ids.add(value.second());
+            }
+            _batches.add(ids);
+            List<UserVmJoinVO> vms = new ArrayList<UserVmJoinVO>();
+            for (Object id : ids) {
+                UserVmJoinVO vm = Mockito.mock(UserVmJoinVO.class);
+                Mockito.when(vm.getId()).thenReturn((Long)id);
+                vms.add(vm);
+            }
+            return vms;
+        }
+    }
+
+    private RecordingUserVmJoinDao createDao(String batchSize) throws Exception {
+        RecordingUserVmJoinDao dao = new RecordingUserVmJoinDao();
+        ConfigurationDao configDao = Mockito.mock(ConfigurationDao.class);
+        Mockito.when(configDao.getValue("detail.batch.query.size")).thenReturn(batchSize);
+        Field configDaoField = UserVmJoinDaoImpl.class.getDeclaredField("_configDao");
+        configDaoField.setAccessible(true);
+        configDaoField.set(dao, configDao);
+        return dao;
+    }
+
+    @Test
+    public void testSearchByIdsOrdersEachBatchById() throws Exception {
+        RecordingUserVmJoinDao dao = createDao("2");
+
+        List<UserVmJoinVO> vms = dao.searchByIds(3L, 7L, 8L, 12L, 15L);
+
+        assertEquals(3, dao._filters.size());
+        for (Filter filter : dao._filters) {
+            assertEquals(" ORDER BY user_vm_view.id ASC ", filter.getOrderBy());
+            assertEquals(null, filter.getLimit());
+        }
+        assertEquals(Arrays.<Object>asList(3L, 7L), dao._batches.get(0));
+        assertEquals(Arrays.<Object>asList(8L, 12L), dao._batches.get(1));
+        assertEquals(Arrays.<Object>asList(15L), dao._batches.get(2));
+
+        List<Long> ids = new ArrayList<Long>();
+        for (UserVmJoinVO vm : vms) {
+            ids.add(vm.getId());
+        }
+        assertEquals(Arrays.asList(3L, 7L, 8L, 12L, 15L), ids);
+    }
+
+    @Test
+    public void testSearchByIdsInOneBatch() throws Exception {
+        RecordingUserVmJoinDao dao = createDao(null);
+
+        dao.searchByIds(3L, 7L);
+
+        assertEquals(1, dao._filters.size());
+        assertEquals(" ORDER BY user_vm_view.id ASC ", dao._filters.get(0).getOrderBy());
+    }
+}
@@ -0,0 +1,62 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ApiResponseSerializerTest {
+    private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
+
+    // The regular expression based unescape the serializer used before
+    private static String regexUnescape(String escaped) {
+        String str = escaped;
+        Matcher matcher = s_unicodeEscapePattern.matcher(str);
+        while (matcher.find()) {
+            str = str.replaceAll("\\" + matcher.group(0), Character.toString((char)Integer.parseInt(matcher.group(1), 16)));
+        }
+        return str;
+    }
+
+    private static void assertSameAsRegex(String escaped) {
+        Assert.assertEquals(regexUnescape(escaped), ApiResponseSerializer.unescape(escaped));
+    }
+
+    @Test
+    public void testUnescapeNothingToUnescape() {
+        String str = "{\"name\":\"vm-1\",\"state\":\"Running\"}";
+        Assert.assertSame(str, ApiResponseSerializer.unescape(str));
+    }
+
+    @Test
+    public void testUnescapeGsonHtmlEscapes() {
+        assertSameAsRegex("{\"displaytext\":\"\\u003cb\\u003evm\\u003c/b\\u003e \\u0026 \\u0027quoted\\u0027 a\\u003db\"}");
+        assertSameAsRegex("\\u003C\\u003c");
+    }
+
+    @Test
+    public void testUnescapeIncompleteEscapes() {
+        assertSameAsRegex("\\u12");
+        assertSameAsRegex("\\u12zz\\u0026");
+        assertSameAsRegex("\\\\u0026");
+        assertSameAsRegex("\\u\\u003e");
+        assertSameAsRegex("end\\u");
+    }
+}
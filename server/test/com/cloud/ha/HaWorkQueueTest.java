@@ -0,0 +1,261 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.ha;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.ha.HighAvailabilityManager.WorkType;
+import com.cloud.vm.VirtualMachine;
+
+public class HaWorkQueueTest {
+
+    static class TestLoader implements HaWorkQueue.WorkLoader {
+        final List<HaWorkVO> _works = new ArrayList<HaWorkVO>();
+        final List<HaWorkVO> _released = new ArrayList<HaWorkVO>();
+        final AtomicInteger _loads = new AtomicInteger();
+        final List<Integer> _maxes = new ArrayList<Integer>();
+
+        @Override
+        public synchronized List<HaWorkVO> load(int max) {
+            _loads.incrementAndGet();
+            _maxes.add(max);
+            List<HaWorkVO> taken = new ArrayList<HaWorkVO>(_works.subList(0, Math.min(max, _works.size())));
+            _works.removeAll(taken);
+            return taken;
+        }
+
+        @Override
+        public synchronized void release(List<HaWorkVO> works) {
+            _released.addAll(works);
+        }
+
+        synchronized void add(HaWorkVO... works) {
+            _works.addAll(Arrays.asList(works));
+        }
+    }
+
+    private HaWorkVO work(long id, WorkType workType, VirtualMachine.Type vmType) {
+        HaWorkVO work = Mockito.mock(HaWorkVO.class);
+        Mockito.when(work.getId()).thenReturn(id);
+        Mockito.when(work.getWorkType()).thenReturn(workType);
+        Mockito.when(work.getType()).thenReturn(vmType);
+        return work;
+    }
+
+    @Test
+    public void testWorkIsHandedOutByPriority() throws Exception {
+        HaWorkVO destroy = work(1, WorkType.Destroy, VirtualMachine.Type.User);
+        HaWorkVO userRestart = work(2, WorkType.HA, VirtualMachine.Type.User);
+        HaWorkVO migration = work(3, WorkType.Migration, VirtualMachine.Type.User);
+        HaWorkVO routerRestart = work(4, WorkType.HA, VirtualMachine.Type.DomainRouter);
+
+        List<HaWorkVO> works = new ArrayList<HaWorkVO>(Arrays.asList(destroy, userRestart, migration, routerRestart));
+        Collections.sort(works, HaWorkQueue.s_priority);
+        Assert.assertEquals(Arrays.asList(routerRestart, userRestart, migration, destroy), works);
+    }
+
+    @Test
+    public void testClaimsOnlyForIdleWorkers() throws Exception {
+        TestLoader loader = new TestLoader();
+        HaWorkVO restart1 = work(1, WorkType.HA, VirtualMachine.Type.User);
+        HaWorkVO restart2 = work(2, WorkType.HA, VirtualMachine.Type.User);
+        loader.add(restart1, restart2);
+
+        // With a single worker waiting only one item is claimed, the other is left to the other management servers
+        HaWorkQueue queue = new HaWorkQueue(loader, 4, 60000);
+        Assert.assertSame(restart1, queue.take(1000));
+        Assert.assertEquals(0, queue.getQueueDepth());
+        Assert.assertEquals(Arrays.asList(1), loader._maxes);
+        Assert.assertEquals(1, loader._works.size());
+
+        Assert.assertSame(restart2, queue.take(1000));
+        Assert.assertEquals(0, queue.getIdleCount());
+    }
+
+    @Test
+    public void testClaimsForEveryIdleWorker() throws Exception {
+        TestLoader loader = new TestLoader();
+        final HaWorkQueue queue = new HaWorkQueue(loader, 4, 60000);
+        Assert.assertNull(queue.take(10));
+        final List<HaWorkVO> taken = Collections.synchronizedList(new ArrayList<HaWorkVO>());
+        List<Thread> workers = startWorkers(queue, 3, 10000, taken);
+        awaitIdle(queue, 3);
+
+        loader.add(work(1, WorkType.HA, VirtualMachine.Type.User), work(2, WorkType.HA, VirtualMachine.Type.User),
+            work(3, WorkType.HA, VirtualMachine.Type.User), work(4, WorkType.HA, VirtualMachine.Type.User));
+        queue.signal();
+        for (Thread worker : workers) {
+            worker.join(10000);
+        }
+
+        // The first load found nothing, the second one claimed for the three idle workers at once
+        Assert.assertEquals(3, taken.size());
+        Assert.assertEquals(Arrays.asList(1, 3), loader._maxes);
+        Assert.assertEquals(1, loader._works.size());
+        Assert.assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void testIdleQueueDoesNotPollUntilSignalled() throws Exception {
+        TestLoader loader = new TestLoader();
+        final HaWorkQueue queue = new HaWorkQueue(loader, 1, 60000);
+
+        Assert.assertNull(queue.take(50));
+        Assert.assertNull(queue.take(50));
+        Assert.assertEquals(1, loader._loads.get());
+
+        final HaWorkVO restart = work(1, WorkType.HA, VirtualMachine.Type.User);
+        loader.add(restart);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                queue.signal();
+            }
+        }).start();
+
+        long start = System.currentTimeMillis();
+        Assert.assertSame(restart, queue.take(10000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testCloseReturnsUnhandedWork() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicReference<Thread> loadingWorker = new AtomicReference<Thread>();
+        TestLoader loader = new TestLoader() {
+            @Override
+            public List<HaWorkVO> load(int max) {
+                List<HaWorkVO> works = super.load(max);
+                if (!works.isEmpty()) {
+                    loadingWorker.set(Thread.currentThread());
+                    loading.countDown();
+                    try {
+                        proceed.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                return works;
+            }
+        };
+        HaWorkQueue queue = new HaWorkQueue(loader, 2, 60000);
+        Assert.assertNull(queue.take(10));
+        List<HaWorkVO> taken = Collections.synchronizedList(new ArrayList<HaWorkVO>());
+        List<Thread> workers = startWorkers(queue, 2, 10000, taken);
+        awaitIdle(queue, 2);
+
+        // Claim for both workers, but the one not claiming stops waiting before the claim returns
+        loader.add(work(1, WorkType.HA, VirtualMachine.Type.User), work(2, WorkType.HA, VirtualMachine.Type.User));
+        queue.signal();
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+        Thread other = workers.get(0) == loadingWorker.get() ? workers.get(1) : workers.get(0);
+        other.interrupt();
+        other.join(10000);
+        proceed.countDown();
+        loadingWorker.get().join(10000);
+
+        Assert.assertEquals(Arrays.asList(1, 2), loader._maxes);
+        Assert.assertEquals(1, taken.size());
+        Assert.assertEquals(1, queue.getQueueDepth());
+        List<HaWorkVO> unhanded = queue.close();
+        Assert.assertEquals(1, unhanded.size());
+        Assert.assertEquals(2, unhanded.get(0).getId());
+        Assert.assertNull(queue.take(1000));
+    }
+
+    @Test
+    public void testWorkClaimedWhileClosingIsReleased() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final HaWorkVO restart = work(1, WorkType.HA, VirtualMachine.Type.User);
+        TestLoader loader = new TestLoader() {
+            @Override
+            public List<HaWorkVO> load(int max) {
+                loading.countDown();
+                try {
+                    closed.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+                return new ArrayList<HaWorkVO>(Arrays.asList(restart));
+            }
+        };
+        final HaWorkQueue queue = new HaWorkQueue(loader, 1, 60000);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loading.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+                Assert.assertTrue(queue.close().isEmpty());
+                closed.countDown();
+            }
+        }).start();
+
+        Assert.assertNull(queue.take(10000));
+        Assert.assertEquals(1, loader._released.size());
+        Assert.assertSame(restart, loader._released.get(0));
+        Assert.assertEquals(0, queue.getQueueDepth());
+        Assert.assertEquals(0, queue.getClaimedCount());
+    }
+
+    private static List<Thread> startWorkers(final HaWorkQueue queue, int count, final long timeout, final List<HaWorkVO> taken) {
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < count; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        HaWorkVO work = queue.take(timeout);
+                        if (work != null) {
+                            taken.add(work);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        return workers;
+    }
+
+    private static void awaitIdle(HaWorkQueue queue, int idle) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (queue.getIdleCount() < idle) {
+            Assert.assertTrue("workers never became idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
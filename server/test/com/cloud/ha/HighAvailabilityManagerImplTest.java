@@ -140,6 +140,9 @@ public class HighAvailabilityManagerImplTest {
                         injectField.set(highAvailabilityManager, obj);
                     }
                 }
+            } else if (injectField.getName().equals("_workQueue")) {
+                injectField.setAccessible(true);
+                injectField.set(highAvailabilityManager, new HaWorkQueue(null, 1, 60000));
             } else if (injectField.getName().equals("_maxRetries")) {
                 injectField.setAccessible(true);
                 injectField.set(highAvailabilityManager, 5);
@@ -16,18 +16,39 @@
 // under the License.
 package com.cloud.network.router;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.NetworkUsageAnswer;
+import com.cloud.agent.api.NetworkUsageCommand;
+import com.cloud.agent.manager.Commands;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.dc.dao.ClusterDao;
 import com.cloud.dc.dao.DataCenterDao;
 import com.cloud.dc.dao.HostPodDao;
 import com.cloud.dc.dao.VlanDao;
+import com.cloud.exception.OperationTimedoutException;
 import com.cloud.host.dao.HostDao;
+import com.cloud.network.Network;
+import com.cloud.network.Network.GuestType;
+import com.cloud.network.NetworkModel;
+import com.cloud.network.Networks.TrafficType;
 import com.cloud.network.dao.FirewallRulesDao;
 import com.cloud.network.dao.IPAddressDao;
 import com.cloud.network.dao.LoadBalancerDao;
@@ -43,15 +64,20 @@ import com.cloud.network.dao.Site2SiteVpnGatewayDao;
 import com.cloud.network.dao.UserIpv6AddressDao;
 import com.cloud.network.dao.VirtualRouterProviderDao;
 import com.cloud.network.dao.VpnUserDao;
+import com.cloud.network.router.VirtualNetworkApplianceManagerImpl.NetworkUsageItem;
 import com.cloud.network.rules.dao.PortForwardingRulesDao;
 import com.cloud.offerings.dao.NetworkOfferingDao;
 import com.cloud.service.dao.ServiceOfferingDao;
 import com.cloud.storage.dao.GuestOSDao;
 import com.cloud.storage.dao.VMTemplateDao;
 import com.cloud.storage.dao.VolumeDao;
+import com.cloud.user.UserStatisticsVO;
 import com.cloud.user.dao.UserDao;
 import com.cloud.user.dao.UserStatisticsDao;
 import com.cloud.user.dao.UserStatsLogDao;
+import com.cloud.vm.DomainRouterVO;
+import com.cloud.vm.NicVO;
+import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachineManager;
 import com.cloud.vm.dao.DomainRouterDao;
 import com.cloud.vm.dao.NicDao;
@@ -177,6 +203,12 @@ public class VirtualNetworkApplianceManagerImplTest {
 
     @Mock private VirtualMachineManager _itMgr;
 
+    @Mock
+    private AgentManager _agentMgr;
+
+    @Mock
+    private NetworkModel _networkModel;
+
     //    @InjectMocks
     //    private VirtualNetworkApplianceManagerImpl virtualNetworkApplianceManagerImpl;
 
@@ -202,4 +234,215 @@ public class VirtualNetworkApplianceManagerImplTest {
         //        // TODO: more elaborate mocking needed to have a vr returned
         //assertEquals(vr, null);
     }
+
+    @Test
+    public void testUpdateUserStatistics() {
+        VirtualNetworkApplianceManagerImpl mgr = new VirtualNetworkApplianceManagerImpl();
+        UserStatisticsVO stats = new UserStatisticsVO(1L, 1L, null, 1L, "DomainRouter", 1L);
+        stats.setCurrentBytesReceived(100);
+        stats.setCurrentBytesSent(200);
+        NetworkUsageCommand cmd = new NetworkUsageCommand("169.254.0.1", "r-1-VM", false, "10.1.1.1");
+
+        // The router was restarted, its counters start from zero again
+        Assert.assertTrue(mgr.updateUserStatistics(stats, null, new NetworkUsageAnswer(cmd, null, 20L, 10L)));
+        Assert.assertEquals(10, stats.getCurrentBytesReceived());
+        Assert.assertEquals(100, stats.getNetBytesReceived());
+        Assert.assertEquals(20, stats.getCurrentBytesSent());
+        Assert.assertEquals(200, stats.getNetBytesSent());
+        Assert.assertEquals(110, stats.getAggBytesReceived());
+        Assert.assertEquals(220, stats.getAggBytesSent());
+    }
+
+    @Test
+    public void testUpdateUserStatisticsChangedSinceSent() {
+        VirtualNetworkApplianceManagerImpl mgr = new VirtualNetworkApplianceManagerImpl();
+        UserStatisticsVO previousStats = new UserStatisticsVO(1L, 1L, null, 1L, "DomainRouter", 1L);
+        UserStatisticsVO stats = new UserStatisticsVO(1L, 1L, null, 1L, "DomainRouter", 1L);
+        stats.setCurrentBytesReceived(100);
+        NetworkUsageCommand cmd = new NetworkUsageCommand("169.254.0.1", "r-1-VM", false, "10.1.1.1");
+
+        Assert.assertFalse(mgr.updateUserStatistics(stats, previousStats, new NetworkUsageAnswer(cmd, null, 300L, 300L)));
+        Assert.assertEquals(100, stats.getCurrentBytesReceived());
+    }
+
+    @Test
+    public void testGroupNetworkUsageItemsByHost() {
+        final VirtualNetworkApplianceManagerImpl mgr = createManager(null);
+        final Network guest = mockNetwork(10L, TrafficType.Guest, GuestType.Isolated);
+        final Network shared = mockNetwork(11L, TrafficType.Guest, GuestType.Shared);
+        final Network pub = mockNetwork(12L, TrafficType.Public, null);
+        final DomainRouterVO router1 = mockRouter(1L, 100L, null, "169.254.0.1");
+        final DomainRouterVO router2 = mockRouter(2L, 200L, 5L, "169.254.0.2");
+        final DomainRouterVO router3 = mockRouter(3L, 100L, null, "169.254.0.3");
+        final DomainRouterVO noPrivateIp = mockRouter(4L, 100L, null, null);
+        final NicVO guestNic1 = mockNic(10L, "10.1.1.1");
+        final NicVO guestNic3 = mockNic(10L, "10.1.1.3");
+        final NicVO publicNic2 = mockNic(12L, "192.168.1.2");
+        Mockito.when(_nicDao.listByVmId(1L)).thenReturn(Arrays.asList(guestNic1, mockNic(11L, "10.2.1.1"), mockNic(12L, "192.168.1.1")));
+        Mockito.when(_nicDao.listByVmId(2L)).thenReturn(Arrays.asList(mockNic(10L, "10.1.1.2"), publicNic2));
+        // The network of the second nic can not be found
+        Mockito.when(_nicDao.listByVmId(3L)).thenReturn(Arrays.asList(guestNic3, mockNic(13L, "10.3.1.3")));
+        Mockito.when(_networkModel.getNetwork(10L)).thenReturn(guest);
+        Mockito.when(_networkModel.getNetwork(11L)).thenReturn(shared);
+        Mockito.when(_networkModel.getNetwork(12L)).thenReturn(pub);
+
+        final Map<Long, List<NetworkUsageItem>> itemsByHost = mgr.groupNetworkUsageItems(Arrays.asList(router1, router2, router3, noPrivateIp));
+
+        Assert.assertEquals(2, itemsByHost.size());
+        final List<NetworkUsageItem> host100 = itemsByHost.get(100L);
+        Assert.assertEquals(2, host100.size());
+        assertItem(host100.get(0), router1, guest, guestNic1);
+        assertItem(host100.get(1), router3, guest, guestNic3);
+        final List<NetworkUsageItem> host200 = itemsByHost.get(200L);
+        Assert.assertEquals(1, host200.size());
+        assertItem(host200.get(0), router2, pub, publicNic2);
+        Assert.assertEquals("192.168.1.2", host200.get(0).getPublicIp());
+        Mockito.verify(_nicDao, Mockito.never()).listByVmId(4L);
+    }
+
+    @Test
+    public void testNetworkUsageBatchTaskMapsAnswersToItems() throws Exception {
+        final List<NetworkUsageItem> updated = new ArrayList<NetworkUsageItem>();
+        final VirtualNetworkApplianceManagerImpl mgr = createManager(updated);
+        final List<NetworkUsageItem> items = createItems(5);
+        final UserStatisticsVO previousStats = new UserStatisticsVO(1L, 1L, null, 10L, "DomainRouter", 3L);
+        Mockito.when(_userStatsDao.findBy(1L, 1L, 10L, null, 3L, VirtualMachine.Type.DomainRouter.toString())).thenReturn(previousStats);
+        final ArgumentCaptor<Commands> cmds = ArgumentCaptor.forClass(Commands.class);
+        Mockito.when(_agentMgr.send(Matchers.eq(100L), cmds.capture())).thenAnswer(new org.mockito.stubbing.Answer<Answer[]>() {
+            @Override
+            public Answer[] answer(final org.mockito.invocation.InvocationOnMock invocation) {
+                final Command[] sent = ((Commands)invocation.getArguments()[1]).toCommands();
+                // The answer of the last command is missing
+                return new Answer[] {new Answer(sent[0], false, "router is down"), null, new NetworkUsageAnswer((NetworkUsageCommand)sent[2], null, 20L, 10L),
+                        new NetworkUsageAnswer((NetworkUsageCommand)sent[3], null, 0L, 0L)};
+            }
+        });
+        final AtomicInteger failures = new AtomicInteger();
+
+        mgr.new NetworkUsageBatchTask(100L, items, failures).runInContext();
+
+        final Command[] sent = cmds.getValue().toCommands();
+        Assert.assertEquals(items.size(), sent.length);
+        for (int i = 0; i < items.size(); i++) {
+            Assert.assertEquals(items.get(i)._router.getPrivateIpAddress(), ((NetworkUsageCommand)sent[i]).getPrivateIP());
+        }
+        // The failed, the null and the missing answer
+        Assert.assertEquals(3, failures.get());
+        Assert.assertEquals(1, updated.size());
+        final NetworkUsageItem item = updated.get(0);
+        Assert.assertSame(items.get(2), item);
+        Assert.assertSame(previousStats, item._previousStats);
+        Assert.assertEquals(20L, item._answer.getBytesSent());
+        Assert.assertEquals(10L, item._answer.getBytesReceived());
+        Assert.assertNull(items.get(0)._answer);
+        Assert.assertNotNull(items.get(3)._answer);
+    }
+
+    @Test
+    public void testNetworkUsageBatchTaskCountsSendFailure() throws Exception {
+        final List<NetworkUsageItem> updated = new ArrayList<NetworkUsageItem>();
+        final VirtualNetworkApplianceManagerImpl mgr = createManager(updated);
+        Mockito.when(_agentMgr.send(Matchers.eq(100L), Matchers.any(Commands.class))).thenThrow(new OperationTimedoutException(null, 100L, 1L, 60, false));
+        final AtomicInteger failures = new AtomicInteger(1);
+
+        mgr.new NetworkUsageBatchTask(100L, createItems(3), failures).runInContext();
+
+        Assert.assertEquals(4, failures.get());
+        Assert.assertTrue(updated.isEmpty());
+    }
+
+    @Test
+    public void testNetworkUsageBatchTaskCountsNullAnswers() throws Exception {
+        final List<NetworkUsageItem> updated = new ArrayList<NetworkUsageItem>();
+        final VirtualNetworkApplianceManagerImpl mgr = createManager(updated);
+        Mockito.when(_agentMgr.send(Matchers.eq(100L), Matchers.any(Commands.class))).thenReturn(null);
+        final AtomicInteger failures = new AtomicInteger();
+
+        mgr.new NetworkUsageBatchTask(100L, createItems(3), failures).runInContext();
+
+        Assert.assertEquals(3, failures.get());
+        Assert.assertTrue(updated.isEmpty());
+    }
+
+    @Test
+    public void testNetworkUsageBatchTaskCountsUpdateFailure() throws Exception {
+        final VirtualNetworkApplianceManagerImpl mgr = createManager(null);
+        Mockito.when(_agentMgr.send(Matchers.eq(100L), Matchers.any(Commands.class))).thenAnswer(new org.mockito.stubbing.Answer<Answer[]>() {
+            @Override
+            public Answer[] answer(final org.mockito.invocation.InvocationOnMock invocation) {
+                final Command[] sent = ((Commands)invocation.getArguments()[1]).toCommands();
+                return new Answer[] {new NetworkUsageAnswer((NetworkUsageCommand)sent[0], null, 1L, 1L), new NetworkUsageAnswer((NetworkUsageCommand)sent[1], null, 1L, 1L)};
+            }
+        });
+        final AtomicInteger failures = new AtomicInteger();
+
+        mgr.new NetworkUsageBatchTask(100L, createItems(2), failures).runInContext();
+
+        Assert.assertEquals(2, failures.get());
+    }
+
+    /**
+     * Creates a manager with the mocked daos, which records the items it would
+     * update the user statistics of, or fails to update them if updated is null.
+     */
+    private VirtualNetworkApplianceManagerImpl createManager(final List<NetworkUsageItem> updated) {
+        final VirtualNetworkApplianceManagerImpl mgr = new VirtualNetworkApplianceManagerImpl() {
+            @Override
+            protected void updateNetworkUsage(final List<NetworkUsageItem> answered) {
+                if (updated == null) {
+                    throw new IllegalStateException("unable to update user statistics");
+                }
+                updated.addAll(answered);
+            }
+        };
+        mgr._agentMgr = _agentMgr;
+        mgr._networkModel = _networkModel;
+        mgr._nicDao = _nicDao;
+        mgr._userStatsDao = _userStatsDao;
+        return mgr;
+    }
+
+    private List<NetworkUsageItem> createItems(final int count) {
+        final Network guest = mockNetwork(10L, TrafficType.Guest, GuestType.Isolated);
+        final List<NetworkUsageItem> items = new ArrayList<NetworkUsageItem>(count);
+        for (int i = 1; i <= count; i++) {
+            items.add(new NetworkUsageItem(mockRouter(i, 100L, null, "169.254.0." + i), guest, mockNic(10L, "10.1.1." + i)));
+        }
+        return items;
+    }
+
+    private static DomainRouterVO mockRouter(final long id, final Long hostId, final Long vpcId, final String privateIp) {
+        final DomainRouterVO router = Mockito.mock(DomainRouterVO.class);
+        Mockito.when(router.getId()).thenReturn(id);
+        Mockito.when(router.getHostId()).thenReturn(hostId);
+        Mockito.when(router.getVpcId()).thenReturn(vpcId);
+        Mockito.when(router.getPrivateIpAddress()).thenReturn(privateIp);
+        Mockito.when(router.getInstanceName()).thenReturn("r-" + id + "-VM");
+        Mockito.when(router.getHostName()).thenReturn("r-" + id + "-VM");
+        Mockito.when(router.getType()).thenReturn(VirtualMachine.Type.DomainRouter);
+        Mockito.when(router.getAccountId()).thenReturn(1L);
+        Mockito.when(router.getDataCenterId()).thenReturn(1L);
+        return router;
+    }
+
+    private static Network mockNetwork(final long id, final TrafficType trafficType, final GuestType guestType) {
+        final Network network = Mockito.mock(Network.class);
+        Mockito.when(network.getId()).thenReturn(id);
+        Mockito.when(network.getTrafficType()).thenReturn(trafficType);
+        Mockito.when(network.getGuestType()).thenReturn(guestType);
+        return network;
+    }
+
+    private static NicVO mockNic(final long networkId, final String ip) {
+        final NicVO nic = Mockito.mock(NicVO.class);
+        Mockito.when(nic.getNetworkId()).thenReturn(networkId);
+        Mockito.when(nic.getIPv4Address()).thenReturn(ip);
+        return nic;
+    }
+
+    private static void assertItem(final NetworkUsageItem item, final DomainRouterVO router, final Network network, final NicVO nic) {
+        Assert.assertSame(router, item._router);
+        Assert.assertSame(network, item._network);
+        Assert.assertSame(nic, item._nic);
+    }
 }
@@ -0,0 +1,64 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.SecurityGroupRuleAnswer;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.network.security.SecurityGroupWork.Step;
+import com.cloud.network.security.dao.SecurityGroupWorkDao;
+
+public class SecurityGroupListenerTest {
+    SecurityGroupListener _listener;
+    SecurityGroupWorkDao _workDao;
+    SecurityGroupWorkTracker _workTracker;
+
+    @Before
+    public void setup() {
+        _workDao = Mockito.mock(SecurityGroupWorkDao.class);
+        _workTracker = Mockito.mock(SecurityGroupWorkTracker.class);
+        _listener = new SecurityGroupListener(null, null, _workDao);
+        _listener.setWorkDispatcher(_workTracker);
+    }
+
+    @Test
+    public void testAnswersOfOneRequestProcessedOnce() {
+        Answer[] answers = new Answer[] {newAnswer(1L), newAnswer(2L), newAnswer(3L)};
+
+        _listener.processAnswers(5L, 100L, answers);
+
+        Mockito.verify(_workDao, Mockito.times(3)).updateStep(Matchers.anyLong(), Matchers.anyLong(), Matchers.eq(Step.Done));
+        Mockito.verify(_workTracker, Mockito.times(1)).processAnswers(5L, 100L, answers);
+    }
+
+    @Test
+    public void testOtherAnswersNotTracked() {
+        _listener.processAnswers(5L, 100L, new Answer[] {new Answer(null)});
+
+        Mockito.verify(_workTracker, Mockito.never()).processAnswers(Matchers.anyLong(), Matchers.anyLong(), Matchers.any(Answer[].class));
+    }
+
+    private static SecurityGroupRuleAnswer newAnswer(long vmId) {
+        SecurityGroupRulesCmd cmd = new SecurityGroupRulesCmd("10.1.1." + vmId, "02:00:00:00:00:0" + vmId, "i-2-" + vmId + "-VM", vmId, null, 1L, null, null);
+        return new SecurityGroupRuleAnswer(cmd);
+    }
+}
@@ -0,0 +1,135 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.manager.Commands;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityGroupWork.Step;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+import com.cloud.network.security.dao.SecurityGroupRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.vm.UserVmVO;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.NicDao;
+import com.cloud.vm.dao.UserVmDao;
+
+public class SecurityGroupRulesetCacheTest {
+    SecurityGroupManagerImpl2 _sgMgr;
+
+    @Before
+    public void setup() {
+        _sgMgr = new SecurityGroupManagerImpl2();
+        _sgMgr._securityGroupVMMapDao = Mockito.mock(SecurityGroupVMMapDao.class);
+        _sgMgr._securityGroupRuleDao = Mockito.mock(SecurityGroupRuleDao.class);
+
+        // vms 1 and 2 are in group 10, vm 3 in groups 10 and 20; group 10 allows tcp 22 from its own members
+        Mockito.when(_sgMgr._securityGroupVMMapDao.listByInstanceId(1L)).thenReturn(Arrays.asList(new SecurityGroupVMMapVO(10L, 1L)));
+        Mockito.when(_sgMgr._securityGroupVMMapDao.listByInstanceId(2L)).thenReturn(Arrays.asList(new SecurityGroupVMMapVO(10L, 2L)));
+        Mockito.when(_sgMgr._securityGroupVMMapDao.listByInstanceId(3L)).thenReturn(
+                Arrays.asList(new SecurityGroupVMMapVO(20L, 3L), new SecurityGroupVMMapVO(10L, 3L)));
+        Mockito.when(_sgMgr._securityGroupRuleDao.listBySecurityGroupId(10L, SecurityRuleType.IngressRule)).thenReturn(
+                Arrays.asList(new SecurityGroupRuleVO(SecurityRuleType.IngressRule, 10L, 22, 22, "tcp", 10L)));
+        Mockito.when(_sgMgr._securityGroupRuleDao.listBySecurityGroupId(20L, SecurityRuleType.IngressRule)).thenReturn(
+                Arrays.asList(new SecurityGroupRuleVO(SecurityRuleType.IngressRule, 20L, 80, 80, "tcp", "0.0.0.0/0")));
+
+        SecurityGroupVMMapVO member1 = Mockito.mock(SecurityGroupVMMapVO.class);
+        Mockito.when(member1.getGuestIpAddress()).thenReturn("10.1.1.1");
+        SecurityGroupVMMapVO member2 = Mockito.mock(SecurityGroupVMMapVO.class);
+        Mockito.when(member2.getGuestIpAddress()).thenReturn("10.1.1.2");
+        Mockito.when(_sgMgr._securityGroupVMMapDao.listBySecurityGroup(10L, State.Running)).thenReturn(Arrays.asList(member1, member2));
+    }
+
+    @Test
+    public void testVmsInSameGroupsShareRuleset() {
+        SecurityGroupManagerImpl2.RulesetCache cache = _sgMgr.new RulesetCache();
+        Map<PortAndProto, Set<String>> rules1 = cache.getRules(1L, SecurityRuleType.IngressRule);
+        Map<PortAndProto, Set<String>> rules2 = cache.getRules(2L, SecurityRuleType.IngressRule);
+
+        Assert.assertSame(rules1, rules2);
+        Assert.assertEquals(1, rules1.size());
+        Assert.assertEquals(2, rules1.values().iterator().next().size());
+        Mockito.verify(_sgMgr._securityGroupVMMapDao, Mockito.times(1)).listBySecurityGroup(10L, State.Running);
+        Mockito.verify(_sgMgr._securityGroupRuleDao, Mockito.times(1)).listBySecurityGroupId(10L, SecurityRuleType.IngressRule);
+    }
+
+    @Test
+    public void testGroupMembersListedOncePerBatch() {
+        SecurityGroupManagerImpl2.RulesetCache cache = _sgMgr.new RulesetCache();
+        cache.getRules(1L, SecurityRuleType.IngressRule);
+        Map<PortAndProto, Set<String>> rules3 = cache.getRules(3L, SecurityRuleType.IngressRule);
+
+        Assert.assertEquals(2, rules3.size());
+        Mockito.verify(_sgMgr._securityGroupVMMapDao, Mockito.times(1)).listBySecurityGroup(10L, State.Running);
+    }
+
+    @Test
+    public void testSameRulesAsWithoutCache() {
+        SecurityGroupManagerImpl2.RulesetCache cache = _sgMgr.new RulesetCache();
+        cache.getRules(1L, SecurityRuleType.IngressRule);
+        Assert.assertEquals(_sgMgr.generateRulesForVM(3L, SecurityRuleType.IngressRule), cache.getRules(3L, SecurityRuleType.IngressRule));
+    }
+
+    @Test
+    public void testSendRulesetUpdatesLoadsEachVmOnce() throws Exception {
+        _sgMgr._userVMDao = Mockito.mock(UserVmDao.class);
+        _sgMgr._nicDao = Mockito.mock(NicDao.class);
+        _sgMgr._agentMgr = Mockito.mock(AgentManager.class);
+        UserVmVO vm1 = mockRunningVm(1L, 5L);
+        UserVmVO vm2 = mockRunningVm(2L, 5L);
+        Mockito.when(_sgMgr._userVMDao.findById(1L)).thenReturn(vm1);
+        Mockito.when(_sgMgr._userVMDao.findById(2L)).thenReturn(vm2);
+
+        _sgMgr.sendRulesetUpdates(Arrays.<SecurityGroupWork> asList(newWork(1L), newWork(2L)));
+
+        Mockito.verify(_sgMgr._userVMDao, Mockito.times(1)).findById(1L);
+        Mockito.verify(_sgMgr._userVMDao, Mockito.times(1)).findById(2L);
+        ArgumentCaptor<Commands> cmds = ArgumentCaptor.forClass(Commands.class);
+        Mockito.verify(_sgMgr._agentMgr, Mockito.times(1)).send(Matchers.eq(5L), cmds.capture(), Matchers.any(Listener.class));
+        Assert.assertEquals(2, cmds.getValue().size());
+    }
+
+    private static UserVmVO mockRunningVm(long id, long hostId) {
+        UserVmVO vm = Mockito.mock(UserVmVO.class);
+        Mockito.when(vm.getId()).thenReturn(id);
+        Mockito.when(vm.getState()).thenReturn(State.Running);
+        Mockito.when(vm.getHostId()).thenReturn(hostId);
+        Mockito.when(vm.getInstanceName()).thenReturn("i-2-" + id + "-VM");
+        Mockito.when(vm.getPrivateIpAddress()).thenReturn("10.1.1." + id);
+        Mockito.when(vm.getPrivateMacAddress()).thenReturn("02:00:00:00:00:0" + id);
+        return vm;
+    }
+
+    private static SecurityGroupWorkVO newWork(long vmId) {
+        SecurityGroupWorkVO work = new SecurityGroupWorkVO(vmId, null, new Date(), Step.Processing, null);
+        work.setLogsequenceNumber(1L);
+        return work;
+    }
+}
@@ -22,8 +22,25 @@ import org.apache.log4j.Logger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.cloud.configuration.Resource.ResourceType;
+import com.cloud.configuration.ResourceCountVO;
 import com.cloud.configuration.ResourceLimit;
+import com.cloud.configuration.dao.ResourceCountDao;
+import com.cloud.configuration.dao.ResourceLimitDao;
+import com.cloud.domain.DomainVO;
+import com.cloud.domain.dao.DomainDao;
+import com.cloud.projects.dao.ProjectDao;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
 import com.cloud.vpc.MockResourceLimitManagerImpl;
 
 public class ResourceLimitManagerImplTest extends TestCase {
@@ -31,10 +48,24 @@ public class ResourceLimitManagerImplTest extends TestCase {
 
     MockResourceLimitManagerImpl _resourceLimitService = new MockResourceLimitManagerImpl();
 
+    @Mock
+    AccountManager _accountMgr;
+    @Mock
+    DomainDao _domainDao;
+    @Mock
+    ProjectDao _projectDao;
+    @Mock
+    ResourceCountDao _resourceCountDao;
+    @Mock
+    ResourceLimitDao _resourceLimitDao;
+
+    @InjectMocks
+    ResourceLimitManagerImpl _resourceLimitMgr = new ResourceLimitManagerImpl();
+
     @Override
     @Before
     public void setUp() {
-
+        MockitoAnnotations.initMocks(this);
     }
 
     @Override
@@ -100,4 +131,14 @@ public class ResourceLimitManagerImplTest extends TestCase {
             fail(msg);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCheckResourceLimitWithoutLimitsLocksNothing() throws Exception {
+        Mockito.when(_domainDao.findById(2L)).thenReturn(new DomainVO("reseller", 1L, 1L, null));
+        Mockito.when(_domainDao.findById(1L)).thenReturn(new DomainVO("ROOT", 1L, null, null));
+
+        _resourceLimitMgr.checkResourceLimit(new AccountVO("customer", 2L, null, Account.ACCOUNT_TYPE_NORMAL, "uuid"), ResourceType.user_vm);
+
+        Mockito.verify(_resourceCountDao, Mockito.never()).lockRows(Matchers.<SearchCriteria<ResourceCountVO>>any(), Matchers.any(Filter.class), Matchers.anyBoolean());
+    }
+}
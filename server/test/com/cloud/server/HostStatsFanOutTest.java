@@ -0,0 +1,141 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.host.HostVO;
+import com.cloud.server.HostStatsFanOut.CollectionCycle;
+import com.cloud.server.HostStatsFanOut.HostStatsTask;
+
+public class HostStatsFanOutTest {
+
+    ExecutorService executor;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCollectsAllHostsConcurrently() {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final ConcurrentHashMap<Long, Long> results = new ConcurrentHashMap<Long, Long>();
+
+        CollectionCycle cycle = new HostStatsFanOut("test", executor, 5000).collect(hosts(8), new HostStatsTask() {
+            @Override
+            public void collect(HostVO host) throws Exception {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                Thread.sleep(100);
+                results.put(host.getId(), host.getId());
+                running.decrementAndGet();
+            }
+        }, 60000);
+
+        Assert.assertEquals(8, results.size());
+        Assert.assertEquals(8, cycle.getCollected());
+        Assert.assertEquals(0, cycle.getTimeouts());
+        Assert.assertEquals(0, cycle.getSkipped());
+        Assert.assertTrue("hosts were not queried in parallel", maxRunning.get() > 1);
+        Assert.assertTrue("concurrency limit was exceeded", maxRunning.get() <= 4);
+    }
+
+    @Test
+    public void testSlowHostTimesOutOthersArePublished() {
+        final ConcurrentHashMap<Long, Long> results = new ConcurrentHashMap<Long, Long>();
+
+        CollectionCycle cycle = new HostStatsFanOut("test", executor, 200).collect(hosts(3), new HostStatsTask() {
+            @Override
+            public void collect(HostVO host) throws Exception {
+                if (host.getId() == 2L) {
+                    Thread.sleep(10000);
+                }
+                results.put(host.getId(), host.getId());
+            }
+        }, 60000);
+
+        Assert.assertEquals(2, cycle.getCollected());
+        Assert.assertEquals(1, cycle.getTimeouts());
+        Assert.assertEquals(Long.valueOf(2L), cycle.getTimedOutHostIds().get(0));
+        Assert.assertTrue(results.containsKey(1L));
+        Assert.assertTrue(results.containsKey(3L));
+        Assert.assertFalse(results.containsKey(2L));
+    }
+
+    @Test
+    public void testFailingHostIsCounted() {
+        CollectionCycle cycle = new HostStatsFanOut("test", executor, 5000).collect(hosts(2), new HostStatsTask() {
+            @Override
+            public void collect(HostVO host) throws Exception {
+                if (host.getId() == 1L) {
+                    throw new Exception("agent is gone");
+                }
+            }
+        }, 60000);
+
+        Assert.assertEquals(1, cycle.getCollected());
+        Assert.assertEquals(1, cycle.getFailed());
+    }
+
+    @Test
+    public void testHostsNotStartedBeforeCycleDeadlineAreSkipped() {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            CollectionCycle cycle = new HostStatsFanOut("test", single, 5000).collect(hosts(3), new HostStatsTask() {
+                @Override
+                public void collect(HostVO host) throws Exception {
+                    Thread.sleep(400);
+                }
+            }, 200);
+
+            Assert.assertEquals(1, cycle.getCollected());
+            Assert.assertEquals(2, cycle.getSkipped());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    private List<HostVO> hosts(int count) {
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (long id = 1; id <= count; id++) {
+            HostVO host = Mockito.mock(HostVO.class);
+            Mockito.when(host.getId()).thenReturn(id);
+            hosts.add(host);
+        }
+        return hosts;
+    }
+}
@@ -17,7 +17,6 @@
 package org.apache.cloudstack.iam;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -29,6 +28,7 @@ import org.apache.cloudstack.acl.PermissionScope;
 import org.apache.cloudstack.acl.SecurityChecker;
 import org.apache.cloudstack.acl.SecurityChecker.AccessType;
 import org.apache.cloudstack.api.InternalIdentity;
+import org.apache.cloudstack.iam.api.IAMAccessCacheKey;
 import org.apache.cloudstack.iam.api.IAMGroup;
 import org.apache.cloudstack.iam.api.IAMPolicy;
 import org.apache.cloudstack.iam.api.IAMPolicyPermission;
@@ -60,25 +60,6 @@ public class RoleBasedEntityAccessChecker extends DomainChecker implements Secur
         return checkAccess(caller, entity, accessType, null);
     }
 
-    private String buildAccessCacheKey(Account caller, ControlledEntity entity, AccessType accessType, String action) {
-        StringBuffer key = new StringBuffer();
-        key.append(caller.getAccountId());
-        key.append("-");
-        String entityType = null;
-        if (entity != null && entity.getEntityType() != null) {
-            entityType = entity.getEntityType().getSimpleName();
-            if (entity instanceof InternalIdentity) {
-                entityType += ((InternalIdentity)entity).getId();
-            }
-        }
-        key.append(entityType != null ? entityType : "null");
-        key.append("-");
-        key.append(accessType != null ? accessType.toString() : "null");
-        key.append("-");
-        key.append(action != null ? action : "null");
-        return key.toString();
-    }
-
     @Override
     public boolean checkAccess(Account caller, ControlledEntity entity, AccessType accessType, String action)
             throws PermissionDeniedException {
@@ -91,41 +72,30 @@ public class RoleBasedEntityAccessChecker extends DomainChecker implements Secur
             throw new InvalidParameterValueException("Entity and action cannot be both NULL in checkAccess!");
         }
 
-        // check IAM cache first
-        String accessKey = buildAccessCacheKey(caller, entity, accessType, action);
-        CheckAccessResult allowDeny = (CheckAccessResult)_iamSrv.getFromIAMCache(accessKey);
-        if (allowDeny != null) {
-            s_logger.debug("IAM access check for " + accessKey + " from cache: " + allowDeny.isAllow());
-            if (allowDeny.isAllow()) {
-                return true;
-            } else {
-                if (allowDeny.getDenyMsg() != null) {
-                    throw new PermissionDeniedException(allowDeny.getDenyMsg());
+        if (entity == null && action != null) {
+            // check if caller can do this action, check IAM cache first
+            IAMAccessCacheKey accessKey = new IAMAccessCacheKey(caller.getAccountId(), null, null, action);
+            CheckAccessResult allowDeny = (CheckAccessResult)_iamSrv.getFromIAMCache(accessKey);
+            if (allowDeny == null) {
+                List<IAMPolicy> policies = _iamSrv.listIAMPolicies(caller.getAccountId());
+
+                boolean isAllowed = _iamSrv.isActionAllowedForPolicies(action, policies);
+                if (!isAllowed) {
+                    allowDeny = new CheckAccessResult("The action '" + action + "' not allowed for account " + caller);
                 } else {
-                    return false;
+                    allowDeny = new CheckAccessResult(true);
                 }
+                _iamSrv.addToIAMCache(accessKey, allowDeny);
             }
-        }
-
-        if (entity == null && action != null) {
-            // check if caller can do this action
-            List<IAMPolicy> policies = _iamSrv.listIAMPolicies(caller.getAccountId());
-
-            boolean isAllowed = _iamSrv.isActionAllowedForPolicies(action, policies);
-            if (!isAllowed) {
-                String msg = "The action '" + action + "' not allowed for account " + caller;
-                _iamSrv.addToIAMCache(accessKey, new CheckAccessResult(msg));
-                throw new PermissionDeniedException(msg);
+            if (!allowDeny.isAllow()) {
+                throw new PermissionDeniedException(allowDeny.getDenyMsg());
             }
-            _iamSrv.addToIAMCache(accessKey, new CheckAccessResult(true));
             return true;
         }
 
 
         // if a Project entity, skip
-        Account entityAccount = _accountService.getAccount(entity.getAccountId());
-        if (entityAccount != null && entityAccount.getType() == Account.ACCOUNT_TYPE_PROJECT) {
-            _iamSrv.addToIAMCache(accessKey, new CheckAccessResult(false));
+        if (isProjectAccount(entity.getAccountId())) {
             return false;
         }
 
@@ -138,67 +108,91 @@ public class RoleBasedEntityAccessChecker extends DomainChecker implements Secur
             accessType = AccessType.UseEntry;
         }
 
-        // get all Policies of this caller by considering recursive domain group policy
-        List<IAMPolicy> policies = getEffectivePolicies(caller);
-        HashMap<IAMPolicy, Boolean> policyPermissionMap = new HashMap<IAMPolicy, Boolean>();
-
-        for (IAMPolicy policy : policies) {
-            List<IAMPolicyPermission> permissions = new ArrayList<IAMPolicyPermission>();
-
-            if (action != null) {
-                permissions = _iamSrv.listPolicyPermissionByActionAndEntity(policy.getId(), action, entityType);
-                if (permissions.isEmpty()) {
-                    if (accessType != null) {
-                        for (AccessType type : AccessType.values()) {
-                            if (type.ordinal() >= accessType.ordinal()) {
-                                permissions.addAll(_iamSrv.listPolicyPermissionByAccessAndEntity(policy.getId(),
-                                        type.toString(), entityType));
-                            }
-                        }
-                    }
-                }
-            } else {
-                if (accessType != null) {
-                    for (AccessType type : AccessType.values()) {
-                        if (type.ordinal() >= accessType.ordinal()) {
-                            permissions.addAll(_iamSrv.listPolicyPermissionByAccessAndEntity(policy.getId(),
-                                    type.toString(), entityType));
-                        }
-                    }
-                }
-            }
+        // The permissions of the caller's policies don't depend on the entity, only their scopes are checked against it
+        CompiledPermissions compiled = getCompiledPermissions(caller, entityType, accessType, action);
+        for (List<IAMPolicyPermission> permissions : compiled.getPolicyPermissions()) {
+            Boolean granted = null;
             for (IAMPolicyPermission permission : permissions) {
                 if (checkPermissionScope(caller, permission.getScope(), permission.getScopeId(), entity)) {
                     if (permission.getEntityType().equals(entityType)) {
-                        policyPermissionMap.put(policy, permission.getPermission().isGranted());
+                        granted = permission.getPermission().isGranted();
                         break;
                     } else if (permission.getEntityType().equals("*")) {
-                        policyPermissionMap.put(policy, permission.getPermission().isGranted());
+                        granted = permission.getPermission().isGranted();
                     }
                 }
             }
-            if (policyPermissionMap.containsKey(policy) && policyPermissionMap.get(policy)) {
-                _iamSrv.addToIAMCache(accessKey, new CheckAccessResult(true));
+            if (granted != null && granted) {
                 return true;
             }
         }
 
-        if (!policies.isEmpty()) { // Since we reach this point, none of the
-                                   // roles granted access
+        if (compiled.hasPolicies()) { // Since we reach this point, none of the
+                                      // roles granted access
 
             String msg = "Account " + caller + " does not have permission to access resource " + entity
                     + " for access type: " + accessType;
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(msg);
             }
-            _iamSrv.addToIAMCache(accessKey, new CheckAccessResult(msg));
             throw new PermissionDeniedException(msg);
         }
 
-        _iamSrv.addToIAMCache(accessKey, new CheckAccessResult(false));
         return false;
     }
 
+    /**
+     * Looks up the permissions of all the caller's policies that may apply to
+     * the entity type, access type and action.  They are cached for the caller
+     * so that checking the access to a list of entities takes no lookups per entity.
+     */
+    private CompiledPermissions getCompiledPermissions(Account caller, String entityType, AccessType accessType, String action) {
+        IAMAccessCacheKey accessKey = new IAMAccessCacheKey(caller.getAccountId(), entityType, accessType.toString(), action);
+        CompiledPermissions compiled = (CompiledPermissions)_iamSrv.getFromIAMCache(accessKey);
+        if (compiled != null) {
+            return compiled;
+        }
+
+        // get all Policies of this caller by considering recursive domain group policy
+        List<IAMPolicy> policies = getEffectivePolicies(caller);
+        List<List<IAMPolicyPermission>> policyPermissions = new ArrayList<List<IAMPolicyPermission>>(policies.size());
+
+        for (IAMPolicy policy : policies) {
+            List<IAMPolicyPermission> permissions = new ArrayList<IAMPolicyPermission>();
+
+            if (action != null) {
+                permissions = _iamSrv.listPolicyPermissionByActionAndEntity(policy.getId(), action, entityType);
+            }
+            if (permissions.isEmpty()) {
+                for (AccessType type : AccessType.values()) {
+                    if (type.ordinal() >= accessType.ordinal()) {
+                        permissions.addAll(_iamSrv.listPolicyPermissionByAccessAndEntity(policy.getId(),
+                                type.toString(), entityType));
+                    }
+                }
+            }
+            policyPermissions.add(permissions);
+        }
+
+        compiled = new CompiledPermissions(policyPermissions);
+        _iamSrv.addToIAMCache(accessKey, compiled);
+        return compiled;
+    }
+
+    private boolean isProjectAccount(long accountId) {
+        // Kept with the account's access decisions, no permission check is cached without an access type
+        IAMAccessCacheKey accountKey = new IAMAccessCacheKey(accountId, Account.class.getSimpleName(), null, null);
+        Boolean isProject = (Boolean)_iamSrv.getFromIAMCache(accountKey);
+        if (isProject == null) {
+            Account entityAccount = _accountService.getAccount(accountId);
+            isProject = entityAccount != null && entityAccount.getType() == Account.ACCOUNT_TYPE_PROJECT;
+            if (entityAccount != null) {
+                _iamSrv.addToIAMCache(accountKey, isProject);
+            }
+        }
+        return isProject;
+    }
+
     @Override
     public boolean checkAccess(Account caller, AccessType accessType, String action, ControlledEntity... entities)
             throws PermissionDeniedException {
@@ -291,6 +285,25 @@ public class RoleBasedEntityAccessChecker extends DomainChecker implements Secur
         return policies;
     }
 
+    private static class CompiledPermissions {
+        private final List<List<IAMPolicyPermission>> _policyPermissions;
+
+        public CompiledPermissions(List<List<IAMPolicyPermission>> policyPermissions) {
+            _policyPermissions = policyPermissions;
+        }
+
+        /**
+         * @return the permissions of each of the caller's policies, in the order of the policies.
+         */
+        public List<List<IAMPolicyPermission>> getPolicyPermissions() {
+            return _policyPermissions;
+        }
+
+        public boolean hasPolicies() {
+            return !_policyPermissions.isEmpty();
+        }
+    }
+
     private class CheckAccessResult {
         boolean allow;
         String denyMsg;
@@ -0,0 +1,70 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.iam.api;
+
+/**
+ * Key of the access decisions kept in the IAM cache.  The decisions are
+ * made for an account, so they can be dropped for the accounts whose
+ * policies changed.
+ */
+public class IAMAccessCacheKey {
+    private final long _accountId;
+    private final String _entityType;
+    private final String _accessType;
+    private final String _action;
+
+    public IAMAccessCacheKey(long accountId, String entityType, String accessType, String action) {
+        _accountId = accountId;
+        _entityType = entityType;
+        _accessType = accessType;
+        _action = action;
+    }
+
+    public long getAccountId() {
+        return _accountId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IAMAccessCacheKey)) {
+            return false;
+        }
+        IAMAccessCacheKey other = (IAMAccessCacheKey)obj;
+        return _accountId == other._accountId && equals(_entityType, other._entityType) && equals(_accessType, other._accessType) && equals(_action, other._action);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int)(_accountId ^ (_accountId >>> 32));
+        result = 31 * result + (_entityType == null ? 0 : _entityType.hashCode());
+        result = 31 * result + (_accessType == null ? 0 : _accessType.hashCode());
+        result = 31 * result + (_action == null ? 0 : _action.hashCode());
+        return result;
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    @Override
+    public String toString() {
+        return _accountId + "-" + _entityType + "-" + _accessType + "-" + _action;
+    }
+}
@@ -96,4 +96,7 @@ public interface IAMService {
 
     void invalidateIAMCache();
 
+    /* Drops the cached checkAccess results of the given accounts, keyed by IAMAccessCacheKey */
+    void invalidateIAMCache(List<Long> accountIds);
+
 }
@@ -19,6 +19,7 @@ package org.apache.cloudstack.iam.server;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.ejb.Local;
 import javax.inject.Inject;
@@ -31,6 +32,7 @@ import net.sf.ehcache.Element;
 import org.apache.log4j.Logger;
 
 import org.apache.cloudstack.acl.PermissionScope;
+import org.apache.cloudstack.iam.api.IAMAccessCacheKey;
 import org.apache.cloudstack.iam.api.IAMGroup;
 import org.apache.cloudstack.iam.api.IAMPolicy;
 import org.apache.cloudstack.iam.api.IAMPolicyPermission;
@@ -89,6 +91,8 @@ public class IAMServiceImpl extends ManagerBase implements IAMService, Manager {
     @Inject
     IAMPolicyPermissionDao _policyPermissionDao;
 
+    // The access decisions keyed by IAMAccessCacheKey are kept in one element per account,
+    // so that the ones of an account are dropped together
     private Cache _iamCache;
 
     private void createIAMCache(final Map<String, ? extends Object> params) {
@@ -108,11 +112,24 @@ public class IAMServiceImpl extends ManagerBase implements IAMService, Manager {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void addToIAMCache(Object accessKey, Object allowDeny) {
         if (_iamCache != null) {
             try {
                 s_logger.debug("Put IAM access check for " + accessKey + " in cache");
-                _iamCache.put(new Element(accessKey, allowDeny));
+                if (accessKey instanceof IAMAccessCacheKey) {
+                    final Long accountId = ((IAMAccessCacheKey)accessKey).getAccountId();
+                    Element element = _iamCache.get(accountId);
+                    if (element == null) {
+                        final Element previous = _iamCache.putIfAbsent(new Element(accountId, new ConcurrentHashMap<IAMAccessCacheKey, Object>()));
+                        element = previous != null ? previous : _iamCache.get(accountId);
+                    }
+                    if (element != null) {
+                        ((Map<IAMAccessCacheKey, Object>)element.getObjectValue()).put((IAMAccessCacheKey)accessKey, allowDeny);
+                    }
+                } else {
+                    _iamCache.put(new Element(accessKey, allowDeny));
+                }
             } catch (final Exception e) {
                 s_logger.debug("Can't put " + accessKey + " to IAM cache", e);
             }
@@ -129,8 +146,23 @@ public class IAMServiceImpl extends ManagerBase implements IAMService, Manager {
     }
 
     @Override
+    public void invalidateIAMCache(List<Long> accountIds) {
+        if (_iamCache != null) {
+            s_logger.debug("Invalidate IAM cache for accounts " + accountIds);
+            for (Long accountId : accountIds) {
+                _iamCache.remove(accountId);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
     public Object getFromIAMCache(Object accessKey) {
         if (_iamCache != null) {
+            if (accessKey instanceof IAMAccessCacheKey) {
+                final Element element = _iamCache.get(((IAMAccessCacheKey)accessKey).getAccountId());
+                return element == null ? null : ((Map<IAMAccessCacheKey, Object>)element.getObjectValue()).get(accessKey);
+            }
             final Element element = _iamCache.get(accessKey);
             return element == null ? null : element.getObjectValue();
         }
@@ -249,7 +281,7 @@ public class IAMServiceImpl extends ManagerBase implements IAMService, Manager {
             }
         });
 
-        invalidateIAMCache();
+        invalidateIAMCache(acctIds);
         return group;
     }
 
@@ -277,7 +309,7 @@ public class IAMServiceImpl extends ManagerBase implements IAMService, Manager {
             }
         });
 
-        invalidateIAMCache();
+        invalidateIAMCache(acctIds);
         return group;
     }
 
@@ -668,7 +700,7 @@ public class IAMServiceImpl extends ManagerBase implements IAMService, Manager {
             }
         });
 
-        invalidateIAMCache();
+        invalidateIAMCache(acctIds);
     }
 
     @Override
@@ -693,7 +725,7 @@ public class IAMServiceImpl extends ManagerBase implements IAMService, Manager {
             }
         });
 
-        invalidateIAMCache();
+        invalidateIAMCache(acctIds);
     }
 
     @DB
@@ -16,13 +16,18 @@
 // under the License.
 package org.apache.cloudstack.iam;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -45,6 +50,7 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.support.AnnotationConfigContextLoader;
 
+import org.apache.cloudstack.iam.api.IAMAccessCacheKey;
 import org.apache.cloudstack.iam.api.IAMGroup;
 import org.apache.cloudstack.iam.api.IAMPolicy;
 import org.apache.cloudstack.iam.api.IAMService;
@@ -89,10 +95,23 @@ public class IAMServiceUnitTest {
     @Inject
     IAMPolicyPermissionDao _policyPermissionDao;
 
+    private static boolean s_cacheConfigured = false;
+
     @BeforeClass
     public static void setUpClass() throws ConfigurationException {
     }
 
+    private void enableCache() throws ConfigurationException {
+        if (!s_cacheConfigured) {
+            Map<String, Object> params = new HashMap<String, Object>();
+            params.put("cache.size", "100");
+            IAMServiceImpl iamService = ComponentContext.getTargetObject(_iamService);
+            iamService.configure("IAMServiceUnitTestCache", params);
+            s_cacheConfigured = true;
+        }
+        _iamService.invalidateIAMCache();
+    }
+
     @Before
     public void setUp() {
         ComponentContext.initComponentsLifeCycle();
@@ -160,6 +179,43 @@ public class IAMServiceUnitTest {
         _iamService.deleteIAMPolicy(34L);
     }
 
+    @Test
+    public void attachPolicyInvalidatesOnlyItsAccounts() throws ConfigurationException {
+        enableCache();
+        IAMAccessCacheKey key1 = new IAMAccessCacheKey(100L, "VirtualMachine", "UseEntry", null);
+        IAMAccessCacheKey key2 = new IAMAccessCacheKey(100L, null, null, "listVirtualMachines");
+        IAMAccessCacheKey otherKey = new IAMAccessCacheKey(200L, "VirtualMachine", "UseEntry", null);
+        _iamService.addToIAMCache(key1, "permissions1");
+        _iamService.addToIAMCache(key2, "permissions2");
+        _iamService.addToIAMCache(otherKey, "otherPermissions");
+        assertEquals("permissions1", _iamService.getFromIAMCache(key1));
+
+        when(_aclPolicyDao.findById(34L)).thenReturn(new IAMPolicyVO("policy1", "my first policy"));
+        _iamService.attachIAMPolicyToAccounts(34L, Arrays.asList(100L));
+
+        assertNull(_iamService.getFromIAMCache(key1));
+        assertNull(_iamService.getFromIAMCache(key2));
+        assertEquals("otherPermissions", _iamService.getFromIAMCache(otherKey));
+    }
+
+    @Test
+    public void groupChangeInvalidatesOnlyItsAccounts() throws ConfigurationException {
+        enableCache();
+        IAMAccessCacheKey key = new IAMAccessCacheKey(100L, "VirtualMachine", "UseEntry", null);
+        IAMAccessCacheKey otherKey = new IAMAccessCacheKey(200L, "VirtualMachine", "UseEntry", null);
+        _iamService.addToIAMCache(key, "permissions");
+        _iamService.addToIAMCache(otherKey, "otherPermissions");
+
+        when(_aclGroupDao.findById(20L)).thenReturn(new IAMGroupVO("group1", "my first group"));
+        _iamService.removeAccountsFromGroup(Arrays.asList(200L), 20L);
+
+        assertEquals("permissions", _iamService.getFromIAMCache(key));
+        assertNull(_iamService.getFromIAMCache(otherKey));
+
+        _iamService.invalidateIAMCache();
+        assertNull(_iamService.getFromIAMCache(key));
+    }
+
     @Configuration
     @ComponentScan(basePackageClasses = {IAMServiceImpl.class}, includeFilters = {@Filter(value = TestConfiguration.Library.class, type = FilterType.CUSTOM)}, useDefaultFilters = false)
     public static class TestConfiguration extends SpringUtils.CloudStackTestConfiguration {
@@ -20,11 +20,14 @@ import java.net.InetAddress;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -48,6 +51,7 @@ import com.cloud.event.UsageEventDetailsVO;
 import com.cloud.event.UsageEventVO;
 import com.cloud.event.dao.UsageEventDao;
 import com.cloud.event.dao.UsageEventDetailsDao;
+import com.cloud.usage.UsageParseShards.ShardStats;
 import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageIPAddressDao;
 import com.cloud.usage.dao.UsageJobDao;
@@ -81,6 +85,7 @@ import com.cloud.user.VmDiskStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
 import com.cloud.user.dao.VmDiskStatisticsDao;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
 import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
@@ -101,6 +106,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private static final int HOURLY_TIME = 60;
     private static final int DAILY_TIME = 60 * 24;
     private static final int THREE_DAYS_IN_MINUTES = 60 * 24 * 3;
+    private static final long ACCOUNT_PAGE_SIZE = 500;
 
     @Inject
     private AccountDao _accountDao;
@@ -149,6 +155,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private final Calendar _jobExecTime = Calendar.getInstance();
     private int _aggregationDuration = 0;
     private int _sanityCheckInterval = 0;
+    private int _parserThreads = 1;
     String _hostname = null;
     int _pid = 0;
     TimeZone _usageTimezone = TimeZone.getTimeZone("GMT");;
@@ -159,6 +166,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
     private final ScheduledExecutorService _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
     private final ScheduledExecutorService _heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
     private final ScheduledExecutorService _sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
+    private ExecutorService _parserExecutor = null;
     private Future _scheduledFuture = null;
     private Future _heartbeat = null;
     private Future _sanity = null;
@@ -202,6 +210,14 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (sanityCheckInterval != null) {
             _sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
+        String parserThreads = configs.get("usage.parser.threads");
+        if (parserThreads != null) {
+            _parserThreads = Integer.parseInt(parserThreads);
+        }
+        if (_parserThreads > 1) {
+            // the shards wait for each other before committing, so every shard needs its own thread
+            _parserExecutor = Executors.newFixedThreadPool(_parserThreads, new NamedThreadFactory("Usage-Parser"));
+        }
 
         if (aggreagationTimeZone != null && !aggreagationTimeZone.isEmpty()) {
             _usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
@@ -306,6 +322,9 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         if (_sanity != null) {
             _sanity.cancel(true);
         }
+        if (_parserExecutor != null) {
+            _parserExecutor.shutdownNow();
+        }
         return true;
     }
 
@@ -710,9 +729,7 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                 usageTxn.start();
 
                 boolean parsed = false;
-                numAcctsProcessed = 0;
 
-                Date currentStartDate = startDate;
                 Date currentEndDate = endDate;
                 Date tempDate = endDate;
 
@@ -725,72 +742,42 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
                     tempDate = aggregateCal.getTime();
                 }
 
+                // split the range into aggregation periods, each account is parsed for every period
+                final List<Pair<Date, Date>> periods = new ArrayList<Pair<Date, Date>>();
+                Date currentStartDate = startDate;
                 while (!currentEndDate.after(endDate) || (currentEndDate.getTime() - endDate.getTime() < 60000)) {
-                    Long offset = Long.valueOf(0);
-                    Long limit = Long.valueOf(500);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-                        accounts = _accountDao.listAll(filter);
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
-                            }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
-                    // reset offset
-                    offset = Long.valueOf(0);
-
-                    do {
-                        Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
-
-                        accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
-
-                        if ((accounts != null) && !accounts.isEmpty()) {
-                            for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
-                                for (Long templateId : publicTemplates) {
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
-                                                "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved());
-                                        _usageStorageDao.update(storageVO);
-                                    }
-                                }
-                                numAcctsProcessed++;
-                            }
-                        }
-                        offset = new Long(offset.longValue() + limit.longValue());
-                    } while ((accounts != null) && !accounts.isEmpty());
-
+                    periods.add(new Pair<Date, Date>(currentStartDate, currentEndDate));
                     currentStartDate = new Date(currentEndDate.getTime() + 1);
                     aggregateCal.setTime(currentEndDate);
                     aggregateCal.add(Calendar.MINUTE, _aggregationDuration);
                     currentEndDate = aggregateCal.getTime();
                 }
 
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
+                // the accounts are listed once for all the shards and periods
+                final List<AccountVO> activeAccounts = listAllAccounts(null);
+                final List<AccountVO> deletedAccounts = listAllAccounts(recentlyDeletedDate);
+                List<ShardStats> parseStats = null;
+                if (_parserThreads > 1) {
+                    // the shards parse in their own transactions and only commit when all of them succeeded
+                    parseStats = new UsageParseShards(_parserExecutor, _parserThreads).parse(new UsageParseShards.ShardParser() {
+                        @Override
+                        public boolean parse(int shard, int shards, ShardStats stats) {
+                            return parseAccounts(shard, shards, periods, activeAccounts, deletedAccounts, stats);
+                        }
+                    });
+                    parsed = parseStats != null;
+                } else {
+                    long parseStart = System.currentTimeMillis();
+                    ShardStats stats = new ShardStats(0);
+                    parsed = parseAccounts(0, 1, periods, activeAccounts, deletedAccounts, stats);
+                    stats.setDuration(System.currentTimeMillis() - parseStart);
+                    parseStats = Collections.singletonList(stats);
+                }
+                if (parseStats != null) {
+                    logParseStats(parseStats);
                 }
 
-                // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
-                //        do we want to break out of processing accounts and rollback if there are errors?
+                // the other accounts are still parsed when one fails, but then the whole range is rolled back
                 if (!parsed) {
                     usageTxn.rollback();
                 } else {
@@ -826,88 +813,207 @@ public class UsageManagerImpl extends ManagerBase implements UsageManager, Runna
         }
     }
 
-    private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate) {
-        boolean parsed = false;
-
-        parsed = VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("vm usage instances successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+    /**
+     * @param recentlyDeletedDate null to list the active accounts, otherwise the accounts removed after this date.
+     * @return the page of accounts starting at offset, ordered by id.
+     */
+    private List<AccountVO> listAccounts(Date recentlyDeletedDate, long offset) {
+        Filter filter = new Filter(AccountVO.class, "id", true, offset, ACCOUNT_PAGE_SIZE);
+        List<AccountVO> accounts = null;
+        if (recentlyDeletedDate == null) {
+            accounts = _accountDao.listAll(filter);
+        } else {
+            accounts = _accountDao.findRecentlyDeletedAccounts(null, recentlyDeletedDate, filter);
         }
+        return accounts != null ? accounts : new ArrayList<AccountVO>();
+    }
 
-        parsed = NetworkUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("network usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
+    /**
+     * @param recentlyDeletedDate null to list the active accounts, otherwise the accounts removed after this date.
+     * @return all the accounts ordered by id, listed a page at a time.
+     */
+    private List<AccountVO> listAllAccounts(Date recentlyDeletedDate) {
+        List<AccountVO> allAccounts = new ArrayList<AccountVO>();
+        List<AccountVO> accounts = null;
+        for (long offset = 0; !(accounts = listAccounts(recentlyDeletedDate, offset)).isEmpty(); offset += ACCOUNT_PAGE_SIZE) {
+            allAccounts.addAll(accounts);
+        }
+        return allAccounts;
+    }
 
-        parsed = VmDiskUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("vm disk usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    /**
+     * Parses the usage of the accounts of the shard.  A shard without any accounts
+     * has nothing to parse and succeeds.
+     *
+     * @return false if the usage of any of the accounts could not be parsed.
+     */
+    boolean parseAccounts(int shard, int shards, List<Pair<Date, Date>> periods, List<AccountVO> activeAccounts, List<AccountVO> deletedAccounts,
+            ShardStats stats) {
+        boolean parsed = true;
+        int numActiveAccts = 0;
+        int numDeletedAccts = 0;
+        for (Pair<Date, Date> period : periods) {
+            numActiveAccts = 0;
+            for (AccountVO account : activeAccounts) {
+                if (UsageParseShards.isInShard(account, shard, shards)) {
+                    if (!parseHelperTables(account, period.first(), period.second(), stats)) {
+                        parsed = false;
+                    }
+                    numActiveAccts++;
+                }
             }
-        }
 
-        parsed = VolumeUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("volume usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+            numDeletedAccts = 0;
+            for (AccountVO account : deletedAccounts) {
+                if (UsageParseShards.isInShard(account, shard, shards)) {
+                    if (!parseHelperTables(account, period.first(), period.second(), stats)) {
+                        parsed = false;
+                    }
+                    numDeletedAccts++;
+                }
             }
         }
 
-        parsed = StorageUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("storage usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+        for (AccountVO account : deletedAccounts) {
+            if (!UsageParseShards.isInShard(account, shard, shards)) {
+                continue;
             }
-        }
-
-        parsed = SecurityGroupUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("Security Group usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+            List<Long> publicTemplates = _usageDao.listPublicTemplatesByAccount(account.getId());
+            for (Long templateId : publicTemplates) {
+                //mark public templates owned by deleted accounts as deleted
+                List<UsageStorageVO> storageVOs = _usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+                if (storageVOs.size() > 1) {
+                    s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() +
+                            "; marking them all as deleted...");
+                }
+                for (UsageStorageVO storageVO : storageVOs) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                    }
+                    storageVO.setDeleted(account.getRemoved());
+                    _usageStorageDao.update(storageVO);
+                }
             }
         }
 
-        parsed = LoadBalancerUsageParser.parse(account, currentStartDate, currentEndDate);
+        stats.setAccounts(numActiveAccts + numDeletedAccts);
         if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("load balancer usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+            s_logger.debug("processed Usage for " + numActiveAccts + " ACTIVE accts and " + numDeletedAccts + " RECENTLY DELETED accts");
         }
+        return parsed;
+    }
 
-        parsed = PortForwardingUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("port forwarding usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    private void logParseStats(List<ShardStats> parseStats) {
+        Map<String, Long> parserTimes = new LinkedHashMap<String, Long>();
+        for (ShardStats stats : parseStats) {
+            s_logger.info("Usage " + stats);
+            for (Map.Entry<String, Long> entry : stats.getParserTimes().entrySet()) {
+                Long time = parserTimes.get(entry.getKey());
+                parserTimes.put(entry.getKey(), time == null ? entry.getValue() : time + entry.getValue());
             }
         }
-
-        parsed = NetworkOfferingUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("network offering usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
+        StringBuilder sb = new StringBuilder("Usage parsers took");
+        for (Map.Entry<String, Long> entry : parserTimes.entrySet()) {
+            sb.append(" ").append(entry.getKey()).append(": ").append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append("ms");
         }
+        s_logger.info(sb.toString());
+    }
 
-        parsed = IPAddressUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("IPAddress usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    private enum HelperTableParser {
+        VM("vm usage instances") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VMInstanceUsageParser.parse(account, startDate, endDate);
             }
-        }
-        parsed = VPNUserUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VPN user usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+        },
+        NETWORK("network usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return NetworkUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        VM_DISK("vm disk usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VmDiskUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        VOLUME("volume usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VolumeUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        STORAGE("storage usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return StorageUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        SECURITY_GROUP("Security Group usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return SecurityGroupUsageParser.parse(account, startDate, endDate);
             }
+        },
+        LOAD_BALANCER("load balancer usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return LoadBalancerUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        PORT_FORWARDING("port forwarding usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return PortForwardingUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        NETWORK_OFFERING("network offering usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return NetworkOfferingUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        IP_ADDRESS("IPAddress usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return IPAddressUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        VPN_USER("VPN user usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VPNUserUsageParser.parse(account, startDate, endDate);
+            }
+        },
+        VM_SNAPSHOT("VM Snapshot usage") {
+            @Override
+            boolean parse(AccountVO account, Date startDate, Date endDate) {
+                return VMSnapshotUsageParser.parse(account, startDate, endDate);
+            }
+        };
+
+        private final String _description;
+
+        HelperTableParser(String description) {
+            _description = description;
         }
-        parsed = VMSnapshotUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VM Snapshot usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+
+        abstract boolean parse(AccountVO account, Date startDate, Date endDate);
+    }
+
+    protected boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate, ShardStats stats) {
+        boolean parsed = true;
+
+        for (HelperTableParser parser : HelperTableParser.values()) {
+            long start = System.nanoTime();
+            boolean parserParsed = parser.parse(account, currentStartDate, currentEndDate);
+            stats.addParserTime(parser.name(), System.nanoTime() - start);
+            if (!parserParsed) {
+                parsed = false;
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(parser._description + " successfully parsed? " + parserParsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+                }
             }
         }
         return parsed;
@@ -0,0 +1,233 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+
+import com.cloud.user.AccountVO;
+import com.cloud.utils.db.TransactionLegacy;
+
+/**
+ * Parses the usage of the accounts in several shards at the same time, the
+ * accounts being spread over the shards by id.  Every shard runs in its own
+ * usage DB transaction, and no shard commits before all of them are done
+ * parsing: if any shard fails to parse they all roll back and the job is
+ * recorded as failed, so the next run parses the same range again.
+ *
+ * The shards don't share a transaction though.  If a commit fails after other
+ * shards have committed, the usage records of those shards are kept while the
+ * job is still recorded as failed, and re-parsing the range creates their
+ * records a second time.  This is logged as an error with the shards that
+ * committed, their duplicate records have to be removed from cloud_usage.
+ */
+public class UsageParseShards {
+    private static final Logger s_logger = Logger.getLogger(UsageParseShards.class);
+
+    public interface ShardParser {
+        /**
+         * Parses the usage of the accounts of the shard, see isInShard().
+         *
+         * @return false if the usage of the accounts could not be parsed.
+         */
+        boolean parse(int shard, int shards, ShardStats stats) throws Exception;
+    }
+
+    /**
+     * Timing of one shard, the parser times are in nanoseconds by parser name.
+     */
+    public static class ShardStats {
+        private final int _shard;
+        private int _accounts;
+        private final Map<String, Long> _parserTimes = new LinkedHashMap<String, Long>();
+        private long _duration;
+
+        public ShardStats(int shard) {
+            _shard = shard;
+        }
+
+        public int getShard() {
+            return _shard;
+        }
+
+        public int getAccounts() {
+            return _accounts;
+        }
+
+        public void setAccounts(int accounts) {
+            _accounts = accounts;
+        }
+
+        public long getDuration() {
+            return _duration;
+        }
+
+        public Map<String, Long> getParserTimes() {
+            return _parserTimes;
+        }
+
+        public void setDuration(long duration) {
+            _duration = duration;
+        }
+
+        public void addParserTime(String parser, long nanos) {
+            Long time = _parserTimes.get(parser);
+            _parserTimes.put(parser, time == null ? nanos : time + nanos);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("shard ").append(_shard).append(" parsed ").append(_accounts).append(" accounts in ").append(_duration).append("ms");
+            for (Map.Entry<String, Long> entry : _parserTimes.entrySet()) {
+                sb.append(", ").append(entry.getKey()).append(": ").append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append("ms");
+            }
+            return sb.toString();
+        }
+    }
+
+    private final ExecutorService _executor;
+    private final int _shards;
+
+    /**
+     * @param executor must be able to run all the shards at the same time, as they wait for each other before committing.
+     */
+    public UsageParseShards(ExecutorService executor, int shards) {
+        _executor = executor;
+        _shards = shards;
+    }
+
+    /**
+     * @return the stats of every shard, or null if the usage could not be parsed.
+     */
+    public List<ShardStats> parse(ShardParser parser) {
+        List<ShardWork> works = new ArrayList<ShardWork>();
+        for (int i = 0; i < _shards; i++) {
+            works.add(new ShardWork(new ShardStats(i), parser));
+        }
+
+        CountDownLatch parsed = new CountDownLatch(works.size());
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (ShardWork work : works) {
+            work._parsed = parsed;
+            work._failed = failed;
+            futures.add(_executor.submit(work));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                failed.set(true);
+                s_logger.warn("Interrupted while waiting for usage shards to complete");
+            } catch (ExecutionException e) {
+                failed.set(true);
+                s_logger.error("Unable to complete usage shard", e.getCause());
+            }
+        }
+
+        List<ShardStats> stats = new ArrayList<ShardStats>();
+        List<Integer> committed = new ArrayList<Integer>();
+        for (ShardWork work : works) {
+            stats.add(work._stats);
+            if (work._committed) {
+                committed.add(work._stats.getShard());
+            }
+        }
+        if (failed.get() && !committed.isEmpty()) {
+            s_logger.error("Usage shards " + committed + " of " + _shards + " committed their usage records but the others did not, re-parsing the range will " +
+                    "create the records of the accounts in these shards again");
+        }
+        return failed.get() ? null : stats;
+    }
+
+    /**
+     * Spreads the accounts over the shards by id, so an account always lands in the same shard.
+     */
+    public static boolean isInShard(AccountVO account, int shard, int shards) {
+        return account.getId() % shards == shard;
+    }
+
+    protected TransactionLegacy openTransaction() {
+        return TransactionLegacy.open(TransactionLegacy.USAGE_DB);
+    }
+
+    private class ShardWork extends ManagedContextRunnable {
+        final ShardStats _stats;
+        final ShardParser _parser;
+        CountDownLatch _parsed;
+        AtomicBoolean _failed;
+        volatile boolean _committed;
+
+        ShardWork(ShardStats stats, ShardParser parser) {
+            _stats = stats;
+            _parser = parser;
+        }
+
+        @Override
+        protected void runInContext() {
+            long start = System.currentTimeMillis();
+            TransactionLegacy txn = openTransaction();
+            try {
+                try {
+                    txn.start();
+                    if (!_parser.parse(_stats.getShard(), _shards, _stats)) {
+                        _failed.set(true);
+                    }
+                } catch (Exception e) {
+                    s_logger.error("Unable to parse usage of shard " + _stats.getShard(), e);
+                    _failed.set(true);
+                } finally {
+                    _parsed.countDown();
+                }
+
+                // Only commit once every other shard is done and succeeded
+                try {
+                    _parsed.await();
+                } catch (InterruptedException e) {
+                    _failed.set(true);
+                }
+                if (_failed.get()) {
+                    txn.rollback();
+                } else {
+                    try {
+                        txn.commit();
+                        _committed = true;
+                    } catch (RuntimeException e) {
+                        s_logger.error("Unable to commit usage of shard " + _stats.getShard(), e);
+                        _failed.set(true);
+                    }
+                }
+            } finally {
+                txn.close();
+                _stats.setDuration(System.currentTimeMillis() - start);
+            }
+        }
+    }
+}
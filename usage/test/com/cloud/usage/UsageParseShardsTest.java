@@ -0,0 +1,224 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.cloud.usage.UsageParseShards.ShardParser;
+import com.cloud.usage.UsageParseShards.ShardStats;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.Pair;
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class UsageParseShardsTest {
+
+    ExecutorService executor;
+    List<TransactionLegacy> transactions;
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool(4);
+        transactions = Collections.synchronizedList(new ArrayList<TransactionLegacy>());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testAllShardsCommit() {
+        final List<AccountVO> accounts = accounts(1, 13);
+        final ConcurrentHashMap<Long, Integer> parsedBy = new ConcurrentHashMap<Long, Integer>();
+
+        List<ShardStats> stats = shards().parse(new ShardParser() {
+            @Override
+            public boolean parse(int shard, int shards, ShardStats stats) {
+                int parsed = 0;
+                for (AccountVO account : accounts) {
+                    if (UsageParseShards.isInShard(account, shard, shards)) {
+                        Assert.assertNull(parsedBy.put(account.getId(), shard));
+                        parsed++;
+                    }
+                }
+                stats.setAccounts(parsed);
+                stats.addParserTime("VM", 1000000L);
+                return true;
+            }
+        });
+
+        Assert.assertNotNull(stats);
+        Assert.assertEquals(4, stats.size());
+        Assert.assertEquals(13, parsedBy.size());
+        for (Long accountId : parsedBy.keySet()) {
+            Assert.assertEquals(accountId % 4, (long)parsedBy.get(accountId));
+        }
+        Assert.assertEquals(4, stats.get(1).getAccounts());
+        Assert.assertEquals(4, transactions.size());
+        for (TransactionLegacy txn : transactions) {
+            Mockito.verify(txn).commit();
+            Mockito.verify(txn, Mockito.never()).rollback();
+            Mockito.verify(txn).close();
+        }
+    }
+
+    @Test
+    public void testOneFailingShardRollsBackAll() {
+        List<ShardStats> stats = shards().parse(new ShardParser() {
+            @Override
+            public boolean parse(int shard, int shards, ShardStats stats) throws Exception {
+                if (shard == 2) {
+                    throw new Exception("usage db is gone");
+                }
+                return true;
+            }
+        });
+
+        Assert.assertNull(stats);
+        Assert.assertEquals(4, transactions.size());
+        for (TransactionLegacy txn : transactions) {
+            Mockito.verify(txn).rollback();
+            Mockito.verify(txn, Mockito.never()).commit();
+            Mockito.verify(txn).close();
+        }
+    }
+
+    @Test
+    public void testFailedCommitFailsTheParse() {
+        List<ShardStats> stats = new UsageParseShards(executor, 4) {
+            @Override
+            protected TransactionLegacy openTransaction() {
+                TransactionLegacy txn = Mockito.mock(TransactionLegacy.class);
+                if (transactions.isEmpty()) {
+                    Mockito.doThrow(new CloudRuntimeException("commit failed")).when(txn).commit();
+                }
+                transactions.add(txn);
+                return txn;
+            }
+        }.parse(new ShardParser() {
+            @Override
+            public boolean parse(int shard, int shards, ShardStats stats) {
+                return true;
+            }
+        });
+
+        // The other shards may have committed already, the job is still recorded as failed
+        Assert.assertNull(stats);
+        Assert.assertEquals(4, transactions.size());
+        for (TransactionLegacy txn : transactions) {
+            Mockito.verify(txn).close();
+        }
+    }
+
+    @Test
+    public void testMoreShardsThanAccounts() {
+        final List<AccountVO> accounts = accounts(1, 2);
+        final RecordingUsageManager usageMgr = new RecordingUsageManager(null);
+
+        List<ShardStats> stats = shards().parse(usageMgr.shardParser(accounts));
+
+        // shards 0 and 3 have no accounts, they have nothing to parse and must not fail the job
+        Assert.assertNotNull(stats);
+        Assert.assertEquals(0, stats.get(0).getAccounts());
+        Assert.assertEquals(1, stats.get(1).getAccounts());
+        Assert.assertEquals(1, stats.get(2).getAccounts());
+        Assert.assertEquals(0, stats.get(3).getAccounts());
+        Assert.assertEquals(2, usageMgr.parsed.size());
+        for (TransactionLegacy txn : transactions) {
+            Mockito.verify(txn).commit();
+            Mockito.verify(txn, Mockito.never()).rollback();
+        }
+    }
+
+    @Test
+    public void testFailingAccountFailsItsShard() {
+        final List<AccountVO> accounts = accounts(1, 8);
+        final RecordingUsageManager usageMgr = new RecordingUsageManager(6L);
+
+        List<ShardStats> stats = shards().parse(usageMgr.shardParser(accounts));
+
+        Assert.assertNull(stats);
+        // the accounts after the failing one are still parsed
+        Assert.assertEquals(8, usageMgr.parsed.size());
+        for (TransactionLegacy txn : transactions) {
+            Mockito.verify(txn).rollback();
+            Mockito.verify(txn, Mockito.never()).commit();
+        }
+    }
+
+    /**
+     * Parses the accounts with the usage manager, recording the accounts instead of parsing their helper tables.
+     */
+    private static class RecordingUsageManager extends UsageManagerImpl {
+        final List<Long> parsed = Collections.synchronizedList(new ArrayList<Long>());
+        final Long _failingAccountId;
+
+        RecordingUsageManager(Long failingAccountId) {
+            _failingAccountId = failingAccountId;
+        }
+
+        @Override
+        protected boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate, ShardStats stats) {
+            parsed.add(account.getId());
+            return _failingAccountId == null || account.getId() != _failingAccountId;
+        }
+
+        ShardParser shardParser(final List<AccountVO> accounts) {
+            final List<Pair<Date, Date>> periods = Collections.singletonList(new Pair<Date, Date>(new Date(0), new Date()));
+            return new ShardParser() {
+                @Override
+                public boolean parse(int shard, int shards, ShardStats stats) {
+                    return parseAccounts(shard, shards, periods, accounts, Collections.<AccountVO> emptyList(), stats);
+                }
+            };
+        }
+    }
+
+    private UsageParseShards shards() {
+        return new UsageParseShards(executor, 4) {
+            @Override
+            protected TransactionLegacy openTransaction() {
+                TransactionLegacy txn = Mockito.mock(TransactionLegacy.class);
+                transactions.add(txn);
+                return txn;
+            }
+        };
+    }
+
+    private List<AccountVO> accounts(long first, long last) {
+        List<AccountVO> accounts = new ArrayList<AccountVO>();
+        for (long id = first; id <= last; id++) {
+            AccountVO account = new AccountVO();
+            account.setId(id);
+            accounts.add(account);
+        }
+        return accounts;
+    }
+}
@@ -0,0 +1,125 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps the used host addresses of an IPv4 cidr in a bitmap, one bit per
+ * address.  The network and broadcast addresses are not part of the range,
+ * except for a /31 where both addresses are hosts (RFC 3021).  A /32 has no
+ * host addresses to hand out.  A /16 takes 8KB instead of one boxed Long per
+ * address.
+ */
+public class Ip4RangeBitmap {
+    private final long _first;
+    private final int _size;
+    private final BitSet _used;
+    private int _usedCount;
+
+    /**
+     * @param cidr any address of the cidr.
+     * @param cidrSize size of the cidr, between 1 and 32.
+     * @throws IllegalArgumentException if the address or the size is not valid.
+     */
+    public Ip4RangeBitmap(String cidr, int cidrSize) {
+        if (!NetUtils.isValidIp(cidr)) {
+            throw new IllegalArgumentException("Invalid IPv4 address: " + cidr);
+        }
+        if (cidrSize < 1 || cidrSize > 32) {
+            throw new IllegalArgumentException("Can't allocate host addresses from a /" + cidrSize);
+        }
+        long netmask = NetUtils.ip2Long(NetUtils.getCidrNetmask(cidrSize));
+        if (cidrSize == 32) {
+            _first = NetUtils.ip2Long(cidr);
+            _size = 0;
+        } else if (cidrSize == 31) {
+            _first = NetUtils.ip2Long(cidr) & netmask;
+            _size = 2;
+        } else {
+            _first = (NetUtils.ip2Long(cidr) & netmask) + 1;
+            _size = (int)((1L << (32 - cidrSize)) - 2);
+        }
+        _used = new BitSet(_size);
+    }
+
+    /**
+     * Marks the address as used, addresses outside of the range are ignored.
+     */
+    public void markUsed(long ip) {
+        long offset = ip - _first;
+        if (offset >= 0 && offset < _size && !_used.get((int)offset)) {
+            _used.set((int)offset);
+            _usedCount++;
+        }
+    }
+
+    public void markUsed(String ip) {
+        markUsed(NetUtils.ip2Long(ip));
+    }
+
+    public boolean isFree(long ip) {
+        long offset = ip - _first;
+        return offset >= 0 && offset < _size && !_used.get((int)offset);
+    }
+
+    public int getFreeCount() {
+        return _size - _usedCount;
+    }
+
+    /**
+     * @return the lowest free address or -1 if there is none.
+     */
+    public long getFirstFree() {
+        int offset = _used.nextClearBit(0);
+        return offset < _size ? _first + offset : -1;
+    }
+
+    /**
+     * Picks a random position in the range and returns the first free address
+     * from there on, wrapping around at the end of the range.
+     *
+     * @return a free address or -1 if there is none.
+     */
+    public long getRandomFree(Random random) {
+        if (getFreeCount() == 0) {
+            return -1;
+        }
+        int offset = _used.nextClearBit(random.nextInt(_size));
+        if (offset >= _size) {
+            offset = _used.nextClearBit(0);
+        }
+        return _first + offset;
+    }
+
+    /**
+     * @return up to max free addresses, lowest first.
+     */
+    public Set<Long> getFree(int max) {
+        Set<Long> result = new TreeSet<Long>();
+        for (int offset = _used.nextClearBit(0); offset < _size && result.size() < max; offset = _used.nextClearBit(offset + 1)) {
+            result.add(_first + offset);
+        }
+        return result;
+    }
+}
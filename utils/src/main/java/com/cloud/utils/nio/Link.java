@@ -54,6 +54,7 @@ import com.cloud.utils.db.DbProperties;
  */
 public class Link {
     private static final Logger s_logger = Logger.getLogger(Link.class);
+    private static final ThreadLocal<ByteBuffer> s_writeBuffer = new ThreadLocal<ByteBuffer>();
 
     private final InetSocketAddress _addr;
     private final NioConnection _connection;
@@ -144,13 +145,16 @@ public class Link {
     }
      */
 
-    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
-        SSLSession sslSession = sslEngine.getSession();
-        ByteBuffer pkgBuf = ByteBuffer.allocate(sslSession.getPacketBufferSize() + 40);
+    /**
+     * Wraps the buffers into SSL packets, each preceded by its 4 byte header, and
+     * appends them to outBuf.  The packets are flushed to the channel whenever
+     * outBuf cannot take another full packet, so a caller may append several
+     * messages before calling flush() and have them go out in a single write.
+     */
+    private static void doWrite(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine, ByteBuffer outBuf) throws IOException {
+        int packetSize = sslEngine.getSession().getPacketBufferSize() + 40;
         SSLEngineResult engResult;
 
-        ByteBuffer headBuf = ByteBuffer.allocate(4);
-
         int totalLen = 0;
         for (ByteBuffer buffer : buffers) {
             totalLen += buffer.limit();
@@ -158,9 +162,13 @@ public class Link {
 
         int processedLen = 0;
         while (processedLen < totalLen) {
-            headBuf.clear();
-            pkgBuf.clear();
-            engResult = sslEngine.wrap(buffers, pkgBuf);
+            if (outBuf.remaining() < packetSize + 4) {
+                flush(ch, outBuf);
+            }
+
+            int headerPos = outBuf.position();
+            outBuf.position(headerPos + 4);
+            engResult = sslEngine.wrap(buffers, outBuf);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
                 throw new IOException("SSL: SSLEngine return bad result! " + engResult);
@@ -171,31 +179,25 @@ public class Link {
                 processedLen += buffer.position();
             }
 
-            int dataRemaining = pkgBuf.position();
-            int header = dataRemaining;
-            int headRemaining = 4;
-            pkgBuf.flip();
+            int header = outBuf.position() - headerPos - 4;
             if (processedLen < totalLen) {
                 header = header | HEADER_FLAG_FOLLOWING;
             }
-            headBuf.putInt(header);
-            headBuf.flip();
+            outBuf.putInt(headerPos, header);
+        }
+    }
 
-            while (headRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Header " + headRemaining);
-                }
-                long count = ch.write(headBuf);
-                headRemaining -= count;
-            }
-            while (dataRemaining > 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Writing Data " + dataRemaining);
-                }
-                long count = ch.write(pkgBuf);
-                dataRemaining -= count;
+    private static void flush(SocketChannel ch, ByteBuffer outBuf) throws IOException {
+        outBuf.flip();
+        int dataRemaining = outBuf.remaining();
+        while (dataRemaining > 0) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Writing Data " + dataRemaining);
             }
+            long count = ch.write(outBuf);
+            dataRemaining -= count;
         }
+        outBuf.clear();
     }
 
     /**
@@ -209,13 +211,40 @@ public class Link {
      */
     public static void write(SocketChannel ch, ByteBuffer[] buffers, SSLEngine sslEngine) throws IOException {
         synchronized (ch) {
-            doWrite(ch, buffers, sslEngine);
+            ByteBuffer outBuf = getWriteBuffer((sslEngine.getSession().getPacketBufferSize() + 44) * PACKETS_PER_WRITE);
+            try {
+                doWrite(ch, buffers, sslEngine, outBuf);
+                flush(ch, outBuf);
+            } finally {
+                outBuf.clear();
+            }
         }
     }
 
+    /**
+     * @return the buffer the static write() of the calling thread wraps into.
+     * Callers of the static write() are not on a selector thread, so each of
+     * them keeps its own buffer instead of sharing the one of the connection.
+     */
+    static ByteBuffer getWriteBuffer(int capacity) {
+        ByteBuffer outBuf = s_writeBuffer.get();
+        if (outBuf == null || outBuf.capacity() < capacity) {
+            outBuf = ByteBuffer.allocate(capacity);
+            s_writeBuffer.set(outBuf);
+        }
+        outBuf.clear();
+        return outBuf;
+    }
+
     /* SSL has limitation of 16k, we may need to split packets. 18000 is 16k + some extra SSL informations */
     protected static final int MAX_SIZE_PER_PACKET = 18000;
     protected static final int HEADER_FLAG_FOLLOWING = 0x10000;
+    /* Number of SSL packets coalesced into one socket write */
+    protected static final int PACKETS_PER_WRITE = 4;
+    /* Plaintext buffers grown beyond this are released once the message is delivered */
+    protected static final int MAX_RETAINED_PLAINTEXT_SIZE = 64 * 1024;
+    /* Queued to request the connection to be closed once everything before it is written */
+    private static final ByteBuffer[] CLOSE_REQUEST = new ByteBuffer[0];
 
     public byte[] read(SocketChannel ch) throws IOException {
         if (_readHeader) {   // Start of a packet
@@ -243,7 +272,10 @@ public class Link {
             }
 
             if (!_gotFollowingPacket) {
-                _plaintextBuffer = ByteBuffer.allocate(2000);
+                if (_plaintextBuffer == null) {
+                    _plaintextBuffer = ByteBuffer.allocate(2048);
+                }
+                _plaintextBuffer.clear();
             }
 
             if ((header & HEADER_FLAG_FOLLOWING) != 0) {
@@ -277,15 +309,14 @@ public class Link {
 
         _readBuffer.flip();
 
-        ByteBuffer appBuf;
-
         SSLSession sslSession = _sslEngine.getSession();
+        ByteBuffer appBuf = _connection.getUnwrapBuffer(sslSession.getApplicationBufferSize() + 40);
         SSLEngineResult engResult;
         int remaining = 0;
 
         while (_readBuffer.hasRemaining()) {
             remaining = _readBuffer.remaining();
-            appBuf = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + 40);
+            appBuf.clear();
             engResult = _sslEngine.unwrap(_readBuffer, appBuf);
             if (engResult.getHandshakeStatus() != HandshakeStatus.FINISHED && engResult.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING &&
                     engResult.getStatus() != SSLEngineResult.Status.OK) {
@@ -297,8 +328,8 @@ public class Link {
 
             appBuf.flip();
             if (_plaintextBuffer.remaining() < appBuf.limit()) {
-                // We need to expand _plaintextBuffer for more data
-                ByteBuffer newBuffer = ByteBuffer.allocate(_plaintextBuffer.capacity() + appBuf.limit() * 5);
+                // We need to expand _plaintextBuffer for more data, doubling it keeps the copies amortized
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(_plaintextBuffer.capacity() * 2, _plaintextBuffer.position() + appBuf.limit()));
                 _plaintextBuffer.flip();
                 newBuffer.put(_plaintextBuffer);
                 _plaintextBuffer = newBuffer;
@@ -316,6 +347,9 @@ public class Link {
             _plaintextBuffer.flip();
             byte[] result = new byte[_plaintextBuffer.limit()];
             _plaintextBuffer.get(result);
+            if (_plaintextBuffer.capacity() > MAX_RETAINED_PLAINTEXT_SIZE) {
+                _plaintextBuffer = null;
+            }
             return result;
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -334,24 +368,17 @@ public class Link {
     }
 
     public void send(ByteBuffer[] data, boolean close) throws ClosedChannelException {
-        ByteBuffer[] item = new ByteBuffer[data.length + 1];
-        int remaining = 0;
-        for (int i = 0; i < data.length; i++) {
-            remaining += data[i].remaining();
-            item[i + 1] = data[i];
-        }
-
-        item[0] = ByteBuffer.allocate(4);
-        item[0].putInt(remaining);
-        item[0].flip();
-
         if (s_logger.isTraceEnabled()) {
+            int remaining = 0;
+            for (ByteBuffer buffer : data) {
+                remaining += buffer.remaining();
+            }
             s_logger.trace("Sending packet of length " + remaining);
         }
 
-        _writeQueue.add(item);
+        _writeQueue.add(data);
         if (close) {
-            _writeQueue.add(new ByteBuffer[0]);
+            _writeQueue.add(CLOSE_REQUEST);
         }
         synchronized (this) {
             if (_key == null) {
@@ -371,20 +398,32 @@ public class Link {
         }
     }
 
+    /**
+     * Writes out everything queued on this link.  Queued messages are coalesced
+     * into the connection's write buffer so that a burst of small messages goes
+     * out in as few socket writes as possible.  Must be called from the selector
+     * thread.
+     *
+     * @return true if the connection was requested to be closed.
+     */
     public boolean write(SocketChannel ch) throws IOException {
+        ByteBuffer outBuf = _connection.getWriteBuffer((_sslEngine.getSession().getPacketBufferSize() + 44) * PACKETS_PER_WRITE);
         ByteBuffer[] data = null;
-        while ((data = _writeQueue.poll()) != null) {
-            if (data.length == 0) {
-                if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Closing connection requested");
+        try {
+            while ((data = _writeQueue.poll()) != null) {
+                if (data == CLOSE_REQUEST) {
+                    if (s_logger.isTraceEnabled()) {
+                        s_logger.trace("Closing connection requested");
+                    }
+                    flush(ch, outBuf);
+                    return true;
                 }
-                return true;
-            }
 
-            ByteBuffer[] raw_data = new ByteBuffer[data.length - 1];
-            System.arraycopy(data, 1, raw_data, 0, data.length - 1);
-
-            doWrite(ch, raw_data, _sslEngine);
+                doWrite(ch, data, _sslEngine, outBuf);
+            }
+            flush(ch, outBuf);
+        } finally {
+            outBuf.clear();
         }
         return false;
     }
@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
@@ -66,6 +67,11 @@ public abstract class NioConnection implements Runnable {
     protected String _name;
     protected ExecutorService _executor;
 
+    // Scratch buffers shared by all links of this connection.  Links only read
+    // and write on the selector thread, so they never need to be synchronized.
+    private ByteBuffer _writeBuffer;
+    private ByteBuffer _unwrapBuffer;
+
     public NioConnection(String name, int port, int workers, HandlerFactory factory) {
         _name = name;
         _isRunning = false;
@@ -408,6 +414,30 @@ public abstract class NioConnection implements Runnable {
         }
     }
 
+    /**
+     * @return the direct buffer links coalesce their outgoing SSL packets into.
+     * Only to be used from the selector thread.
+     */
+    ByteBuffer getWriteBuffer(int capacity) {
+        if (_writeBuffer == null || _writeBuffer.capacity() < capacity) {
+            _writeBuffer = ByteBuffer.allocateDirect(capacity);
+        }
+        _writeBuffer.clear();
+        return _writeBuffer;
+    }
+
+    /**
+     * @return the buffer links unwrap incoming SSL packets into.
+     * Only to be used from the selector thread.
+     */
+    ByteBuffer getUnwrapBuffer(int capacity) {
+        if (_unwrapBuffer == null || _unwrapBuffer.capacity() < capacity) {
+            _unwrapBuffer = ByteBuffer.allocate(capacity);
+        }
+        _unwrapBuffer.clear();
+        return _unwrapBuffer;
+    }
+
     protected void closeConnection(SelectionKey key) {
         if (key != null) {
             SocketChannel channel = (SocketChannel)key.channel();
@@ -0,0 +1,219 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package org.apache.cloudstack.utils.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exporter that queues metrics in a bounded ring buffer and sends them from
+ * its own thread, batching as many lines as fit in a datagram (UDP) or in one
+ * write (TCP).  The threads producing metrics never touch the network; when the
+ * buffer is full new metrics are dropped and counted.
+ */
+public class AsyncLineExporter implements MetricsExporter, Runnable {
+    private static final Logger s_logger = Logger.getLogger(AsyncLineExporter.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* Stay below the usual MTU so a datagram is never fragmented */
+    protected static final int MAX_DATAGRAM_SIZE = 1400;
+    protected static final int MAX_BATCH = 1000;
+    protected static final int CONNECT_TIMEOUT = 5000;
+
+    public enum Transport {
+        UDP, TCP
+    }
+
+    private final String host;
+    private final int port;
+    private final LineProtocol protocol;
+    private final String prefix;
+    private final Transport transport;
+    private final ArrayBlockingQueue<Metric> queue;
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread sender;
+    private volatile boolean running = true;
+
+    private DatagramSocket datagramSocket;
+    private Socket socket;
+    private OutputStream socketOut;
+
+    /**
+     * @param host host of the collector
+     * @param port port of the collector, -1 for the default port of the protocol
+     * @param protocol line protocol the collector speaks
+     * @param prefix prepended to every metric name, may be empty
+     * @param transport UDP or TCP
+     * @param capacity number of metrics that can be queued before they are dropped
+     */
+    public AsyncLineExporter(String host, int port, LineProtocol protocol, String prefix, Transport transport, int capacity) {
+        this.host = host;
+        this.port = port == -1 ? protocol.getDefaultPort() : port;
+        this.protocol = protocol;
+        this.prefix = prefix == null ? "" : prefix;
+        this.transport = transport;
+        queue = new ArrayBlockingQueue<Metric>(capacity);
+        sender = new Thread(this, "MetricsExporter-" + protocol.name().toLowerCase());
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public void export(Collection<Metric> metrics) {
+        for (Metric metric : metrics) {
+            if (!queue.offer(metric)) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        sender.interrupt();
+    }
+
+    @Override
+    public void run() {
+        List<Metric> batch = new ArrayList<Metric>(MAX_BATCH);
+        while (running) {
+            // Only this thread sends, so whatever sent grows by below belongs to the current batch
+            long sentBefore = sent.get();
+            try {
+                Metric first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                send(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                dropped.addAndGet(batch.size() - (sent.get() - sentBefore));
+                s_logger.debug("Failed to send " + batch.size() + " metrics to " + protocol + " host " + host + ":" + port + ": " + e.getMessage());
+                disconnect();
+            } catch (RuntimeException e) {
+                dropped.addAndGet(batch.size() - (sent.get() - sentBefore));
+                s_logger.warn("Unexpected error sending metrics to " + host + ":" + port, e);
+            } finally {
+                batch.clear();
+            }
+        }
+        disconnect();
+    }
+
+    protected void send(List<Metric> batch) throws IOException {
+        StringBuilder lines = new StringBuilder(batch.size() * 96);
+        if (transport == Transport.TCP) {
+            for (Metric metric : batch) {
+                protocol.format(metric, prefix, lines);
+            }
+            writeTcp(lines.toString().getBytes(UTF8));
+            sent.addAndGet(batch.size());
+            return;
+        }
+
+        InetAddress addr = InetAddress.getByName(host);
+        int inPacket = 0;
+        for (Metric metric : batch) {
+            int mark = lines.length();
+            protocol.format(metric, prefix, lines);
+            if (lines.length() > MAX_DATAGRAM_SIZE && mark > 0) {
+                // This line does not fit anymore, send what we have and start over with it
+                String line = lines.substring(mark);
+                lines.setLength(mark);
+                sendDatagram(addr, lines);
+                sent.addAndGet(inPacket);
+                lines.setLength(0);
+                lines.append(line);
+                inPacket = 0;
+            }
+            inPacket++;
+        }
+        if (lines.length() > 0) {
+            sendDatagram(addr, lines);
+            sent.addAndGet(inPacket);
+        }
+    }
+
+    private void sendDatagram(InetAddress addr, StringBuilder lines) throws IOException {
+        if (datagramSocket == null) {
+            datagramSocket = new DatagramSocket();
+        }
+        byte[] message = lines.toString().getBytes(UTF8);
+        datagramSocket.send(new DatagramPacket(message, message.length, addr, port));
+    }
+
+    private void writeTcp(byte[] message) throws IOException {
+        if (socket == null) {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socketOut = socket.getOutputStream();
+        }
+        socketOut.write(message);
+        socketOut.flush();
+    }
+
+    private void disconnect() {
+        if (datagramSocket != null) {
+            datagramSocket.close();
+            datagramSocket = null;
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                s_logger.debug("[ignored] failed to close metrics socket: " + e.getMessage());
+            }
+            socket = null;
+            socketOut = null;
+        }
+    }
+}
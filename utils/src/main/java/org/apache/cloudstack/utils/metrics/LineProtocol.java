@@ -0,0 +1,81 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package org.apache.cloudstack.utils.metrics;
+
+/**
+ * Text protocols metrics can be sent in, one metric per line.
+ */
+public enum LineProtocol {
+    /**
+     * prefix.cloudstack.stats.measurement.entity.field value timestamp
+     */
+    GRAPHITE(2003) {
+        @Override
+        public void format(Metric metric, String prefix, StringBuilder out) {
+            out.append(prefix).append("cloudstack.stats.").append(metric.getMeasurement()).append('.').append(metric.getEntity()).append('.')
+                .append(metric.getField()).append(' ').append(metric.getValue()).append(' ').append(metric.getTimeStamp()).append('\n');
+        }
+    },
+
+    /**
+     * prefix.cloudstack.stats.measurement,uuid=entity field=value timestamp, the timestamp in nanoseconds.
+     */
+    INFLUXDB(8089) {
+        @Override
+        public void format(Metric metric, String prefix, StringBuilder out) {
+            escape(prefix + "cloudstack.stats." + metric.getMeasurement(), out);
+            out.append(",uuid=");
+            escape(metric.getEntity(), out);
+            out.append(' ');
+            escape(metric.getField().replace('.', '_'), out);
+            out.append('=').append(metric.getValue());
+            Number value = metric.getValue();
+            if (value instanceof Integer || value instanceof Long || value instanceof Short) {
+                out.append('i');
+            }
+            out.append(' ').append(metric.getTimeStamp()).append("000000000").append('\n');
+        }
+
+        private void escape(String value, StringBuilder out) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == ',' || c == ' ' || c == '=') {
+                    out.append('\\');
+                }
+                out.append(c);
+            }
+        }
+    };
+
+    private final int defaultPort;
+
+    private LineProtocol(int defaultPort) {
+        this.defaultPort = defaultPort;
+    }
+
+    public int getDefaultPort() {
+        return defaultPort;
+    }
+
+    /**
+     * Appends the metric, terminated by a newline, to out.
+     */
+    public abstract void format(Metric metric, String prefix, StringBuilder out);
+}
@@ -0,0 +1,67 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package org.apache.cloudstack.utils.metrics;
+
+/**
+ * A single value of one entity, for instance the CPU utilization of a VM.
+ * How it is named on the wire is up to the {@link LineProtocol}.
+ */
+public class Metric {
+    private final String measurement;
+    private final String entity;
+    private final String field;
+    private final Number value;
+    private final long timeStamp;
+
+    /**
+     * @param measurement kind of entity, e.g. "instances" or "hosts"
+     * @param entity identifier of the entity, usually its uuid
+     * @param field what is measured, e.g. "cpu.utilization"
+     * @param value the value
+     * @param timeStamp seconds since epoch
+     */
+    public Metric(String measurement, String entity, String field, Number value, long timeStamp) {
+        this.measurement = measurement;
+        this.entity = entity;
+        this.field = field;
+        this.value = value;
+        this.timeStamp = timeStamp;
+    }
+
+    public String getMeasurement() {
+        return measurement;
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public Number getValue() {
+        return value;
+    }
+
+    public long getTimeStamp() {
+        return timeStamp;
+    }
+}
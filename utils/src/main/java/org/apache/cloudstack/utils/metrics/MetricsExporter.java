@@ -0,0 +1,49 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package org.apache.cloudstack.utils.metrics;
+
+import java.util.Collection;
+
+/**
+ * Sends metrics to an external collector.  Implementations must not block the
+ * caller on the network; metrics that cannot be queued are dropped and counted.
+ */
+public interface MetricsExporter {
+
+    /**
+     * Queues the metrics to be sent.  Never blocks.
+     */
+    void export(Collection<Metric> metrics);
+
+    /**
+     * @return number of metrics handed to the network so far.
+     */
+    long getSentCount();
+
+    /**
+     * @return number of metrics dropped so far, because the queue was full or sending them failed.
+     */
+    long getDroppedCount();
+
+    /**
+     * Stops sending, metrics still queued are discarded.
+     */
+    void close();
+}
@@ -0,0 +1,118 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.net;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Ip4RangeBitmapTest {
+
+    @Test
+    public void testRangeExcludesNetworkAndBroadcast() {
+        Ip4RangeBitmap bitmap = new Ip4RangeBitmap("10.1.1.0", 24);
+        Assert.assertEquals(254, bitmap.getFreeCount());
+        Assert.assertFalse(bitmap.isFree(NetUtils.ip2Long("10.1.1.0")));
+        Assert.assertFalse(bitmap.isFree(NetUtils.ip2Long("10.1.1.255")));
+        Assert.assertTrue(bitmap.isFree(NetUtils.ip2Long("10.1.1.254")));
+        Assert.assertEquals(NetUtils.ip2Long("10.1.1.1"), bitmap.getFirstFree());
+    }
+
+    @Test
+    public void testMarkUsed() {
+        Ip4RangeBitmap bitmap = new Ip4RangeBitmap("10.1.1.77", 24);
+        bitmap.markUsed("10.1.1.1");
+        bitmap.markUsed("10.1.1.1");
+        bitmap.markUsed("10.1.2.1");
+        Assert.assertEquals(253, bitmap.getFreeCount());
+        Assert.assertEquals(NetUtils.ip2Long("10.1.1.2"), bitmap.getFirstFree());
+    }
+
+    @Test
+    public void testGetFreeMatchesGetAllIpsFromCidr() {
+        Ip4RangeBitmap bitmap = new Ip4RangeBitmap("192.168.0.0", 16);
+        bitmap.markUsed("192.168.0.3");
+        bitmap.markUsed("192.168.0.10");
+
+        Set<Long> expected = NetUtils.getAllIpsFromCidr("192.168.0.0", 16, new HashSet<Long>(Arrays.asList(
+                NetUtils.ip2Long("192.168.0.3"), NetUtils.ip2Long("192.168.0.10"))));
+        Assert.assertEquals(expected, bitmap.getFree(255));
+        Assert.assertEquals(65534 - 2, bitmap.getFreeCount());
+    }
+
+    @Test
+    public void testRandomFreeWrapsAround() {
+        Ip4RangeBitmap bitmap = new Ip4RangeBitmap("10.1.1.0", 29);
+        for (int i = 2; i <= 6; i++) {
+            bitmap.markUsed("10.1.1." + i);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(NetUtils.ip2Long("10.1.1.1"), bitmap.getRandomFree(random));
+        }
+        bitmap.markUsed("10.1.1.1");
+        Assert.assertEquals(0, bitmap.getFreeCount());
+        Assert.assertEquals(-1, bitmap.getRandomFree(random));
+        Assert.assertEquals(-1, bitmap.getFirstFree());
+    }
+
+    @Test
+    public void testSlash31HasTwoHosts() {
+        Ip4RangeBitmap bitmap = new Ip4RangeBitmap("192.168.24.1", 31);
+        Assert.assertEquals(2, bitmap.getFreeCount());
+        Assert.assertTrue(bitmap.isFree(NetUtils.ip2Long("192.168.24.0")));
+        Assert.assertTrue(bitmap.isFree(NetUtils.ip2Long("192.168.24.1")));
+        Assert.assertFalse(bitmap.isFree(NetUtils.ip2Long("192.168.24.2")));
+
+        bitmap.markUsed("192.168.24.0");
+        Assert.assertEquals(NetUtils.ip2Long("192.168.24.1"), bitmap.getFirstFree());
+        Assert.assertEquals(NetUtils.ip2Long("192.168.24.1"), bitmap.getRandomFree(new Random(1)));
+    }
+
+    @Test
+    public void testSlash32IsEmpty() {
+        Ip4RangeBitmap bitmap = new Ip4RangeBitmap("10.1.1.5", 32);
+        bitmap.markUsed("10.1.1.5");
+        Assert.assertEquals(0, bitmap.getFreeCount());
+        Assert.assertFalse(bitmap.isFree(NetUtils.ip2Long("10.1.1.5")));
+        Assert.assertEquals(-1, bitmap.getFirstFree());
+        Assert.assertEquals(-1, bitmap.getRandomFree(new Random(1)));
+        Assert.assertTrue(bitmap.getFree(10).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCidrSize() {
+        new Ip4RangeBitmap("10.1.1.0", 33);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroCidrSize() {
+        new Ip4RangeBitmap("10.1.1.0", 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAddress() {
+        new Ip4RangeBitmap("10.1.1", 24);
+    }
+}
@@ -0,0 +1,156 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLSession;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class LinkTest {
+    /* Largest record the fake engine produces, small so messages are split */
+    private static final int RECORD_SIZE = 100;
+
+    private SSLEngine _sslEngine;
+    private SocketChannel _channel;
+    private final List<ByteBuffer> _written = new ArrayList<ByteBuffer>();
+    private final ByteArrayOutputStream _wire = new ByteArrayOutputStream();
+
+    @Before
+    public void setUp() throws Exception {
+        SSLSession session = Mockito.mock(SSLSession.class);
+        Mockito.when(session.getPacketBufferSize()).thenReturn(RECORD_SIZE);
+
+        // Wraps without encrypting, at most RECORD_SIZE bytes per record
+        _sslEngine = Mockito.mock(SSLEngine.class);
+        Mockito.when(_sslEngine.getSession()).thenReturn(session);
+        Mockito.when(_sslEngine.wrap(Matchers.any(ByteBuffer[].class), Matchers.any(ByteBuffer.class))).thenAnswer(new Answer<SSLEngineResult>() {
+            @Override
+            public SSLEngineResult answer(InvocationOnMock invocation) {
+                ByteBuffer[] srcs = (ByteBuffer[])invocation.getArguments()[0];
+                ByteBuffer dst = (ByteBuffer)invocation.getArguments()[1];
+                int produced = 0;
+                for (ByteBuffer src : srcs) {
+                    while (src.hasRemaining() && produced < RECORD_SIZE) {
+                        dst.put(src.get());
+                        produced++;
+                    }
+                }
+                return new SSLEngineResult(Status.OK, HandshakeStatus.NOT_HANDSHAKING, produced, produced);
+            }
+        });
+
+        _channel = Mockito.mock(SocketChannel.class);
+        Mockito.when(_channel.write(Matchers.any(ByteBuffer.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                ByteBuffer buffer = (ByteBuffer)invocation.getArguments()[0];
+                _written.add(buffer);
+                int count = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    _wire.write(buffer.get());
+                }
+                return count;
+            }
+        });
+    }
+
+    @Test
+    public void testStaticWriteReusesBuffer() throws Exception {
+        byte[][] messages = new byte[][] {randomBytes(30), randomBytes(RECORD_SIZE * 2 + 50), randomBytes(10), randomBytes(RECORD_SIZE * 9)};
+        for (byte[] message : messages) {
+            Link.write(_channel, new ByteBuffer[] {ByteBuffer.wrap(message)}, _sslEngine);
+        }
+
+        // The message of 9 records does not fit in one buffer and is flushed twice
+        Assert.assertEquals(messages.length + 1, _written.size());
+        for (ByteBuffer buffer : _written) {
+            Assert.assertSame(_written.get(0), buffer);
+        }
+        Assert.assertSame(_written.get(0), Link.getWriteBuffer(0));
+
+        ByteBuffer wire = ByteBuffer.wrap(_wire.toByteArray());
+        for (byte[] message : messages) {
+            Assert.assertArrayEquals(message, readMessage(wire));
+        }
+        Assert.assertFalse(wire.hasRemaining());
+    }
+
+    @Test
+    public void testWriteBufferIsPerThread() throws Exception {
+        final ByteBuffer buffer = Link.getWriteBuffer(1024);
+        Assert.assertSame(buffer, Link.getWriteBuffer(512));
+        Assert.assertEquals(0, buffer.position());
+
+        final AtomicReference<ByteBuffer> other = new AtomicReference<ByteBuffer>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other.set(Link.getWriteBuffer(1024));
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertNotNull(other.get());
+        Assert.assertNotSame(buffer, other.get());
+
+        // A larger message replaces the buffer of the thread
+        ByteBuffer larger = Link.getWriteBuffer(4096);
+        Assert.assertNotSame(buffer, larger);
+        Assert.assertSame(larger, Link.getWriteBuffer(1024));
+    }
+
+    private static byte[] readMessage(ByteBuffer wire) {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        int header;
+        do {
+            header = wire.getInt();
+            int length = header & ~Link.HEADER_FLAG_FOLLOWING;
+            Assert.assertTrue(length <= RECORD_SIZE);
+            byte[] record = new byte[length];
+            wire.get(record);
+            message.write(record, 0, length);
+        } while ((header & Link.HEADER_FLAG_FOLLOWING) != 0);
+        return message.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
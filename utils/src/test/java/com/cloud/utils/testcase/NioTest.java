@@ -146,9 +146,42 @@ public class NioTest extends TestCase {
         }
     }
 
+    private static final int SMALL_MESSAGE_SIZE = 512;
+    private static final int SMALL_MESSAGE_COUNT = 2000;
+
+    public void testManySmallMessages() {
+        try {
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < SMALL_MESSAGE_COUNT; i++) {
+                byte[] message = new byte[SMALL_MESSAGE_SIZE];
+                for (int j = 0; j < message.length; j++) {
+                    message[j] = (byte)(i + j);
+                }
+                getOneMoreTest();
+                _clientLink.send(message);
+            }
+            while (!isTestsDone()) {
+                Thread.sleep(10);
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            s_logger.info("Client: " + SMALL_MESSAGE_COUNT + " messages delivered in " + elapsed + "ms, " + (SMALL_MESSAGE_COUNT * 1000L / elapsed) + " messages/s");
+        } catch (ClosedChannelException e) {
+            Assert.fail("Link closed while sending: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Assert.fail("Interrupted while waiting for delivery");
+        }
+    }
+
     protected void doServerProcess(byte[] data) {
         oneMoreTestDone();
-        Assert.assertArrayEquals(_testBytes, data);
+        if (data.length == SMALL_MESSAGE_SIZE) {
+            byte first = data[0];
+            for (int j = 0; j < data.length; j++) {
+                Assert.assertEquals((byte)(first + j), data[j]);
+            }
+        } else {
+            Assert.assertArrayEquals(_testBytes, data);
+        }
         s_logger.info("Verify done.");
     }
 
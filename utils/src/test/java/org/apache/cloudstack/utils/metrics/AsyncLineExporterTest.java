@@ -0,0 +1,108 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package org.apache.cloudstack.utils.metrics;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.cloudstack.utils.metrics.AsyncLineExporter.Transport;
+
+public class AsyncLineExporterTest {
+
+    @Test
+    public void testMetricsAreBatchedIntoDatagrams() throws Exception {
+        DatagramSocket receiver = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        receiver.setSoTimeout(5000);
+        AsyncLineExporter exporter = new AsyncLineExporter("127.0.0.1", receiver.getLocalPort(), LineProtocol.GRAPHITE, "", Transport.UDP, 1000);
+        try {
+            List<Metric> metrics = new ArrayList<Metric>();
+            for (int i = 0; i < 100; i++) {
+                metrics.add(new Metric("instances", "vm" + i, "cpu.num", i, 1400000000L));
+            }
+            exporter.export(metrics);
+
+            int lines = 0;
+            int datagrams = 0;
+            byte[] buf = new byte[65536];
+            while (lines < 100) {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                receiver.receive(packet);
+                Assert.assertTrue(packet.getLength() <= AsyncLineExporter.MAX_DATAGRAM_SIZE);
+                String payload = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+                Assert.assertTrue(payload.endsWith("\n"));
+                lines += payload.split("\n").length;
+                datagrams++;
+            }
+            Assert.assertEquals(100, lines);
+            Assert.assertTrue("lines were not batched", datagrams < 100);
+            Assert.assertEquals(100, exporter.getSentCount());
+            Assert.assertEquals(0, exporter.getDroppedCount());
+        } finally {
+            exporter.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testExportDropsWhenQueueIsFull() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncLineExporter exporter = new AsyncLineExporter("127.0.0.1", 2003, LineProtocol.GRAPHITE, "", Transport.UDP, 10) {
+            @Override
+            protected void send(List<Metric> batch) throws IOException {
+                // A collector that does not keep up
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+        };
+        try {
+            // Block the sender on a first batch so nothing leaves the queue while offering
+            exporter.export(Collections.singletonList(new Metric("hosts", "host", "cpu.utilization", 1.0d, 1400000000L)));
+            Assert.assertTrue("sender did not pick up the first metric", sending.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, exporter.getQueueSize());
+
+            List<Metric> metrics = new ArrayList<Metric>();
+            for (int i = 0; i < 50; i++) {
+                metrics.add(new Metric("hosts", "host" + i, "cpu.utilization", 1.0d, 1400000000L));
+            }
+            exporter.export(metrics);
+            // The queue holds 10 metrics, the other 40 are dropped
+            Assert.assertEquals(10, exporter.getQueueSize());
+            Assert.assertEquals(40, exporter.getDroppedCount());
+        } finally {
+            release.countDown();
+            exporter.close();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package org.apache.cloudstack.utils.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LineProtocolTest {
+
+    @Test
+    public void testGraphiteKeepsExistingNames() {
+        StringBuilder out = new StringBuilder();
+        LineProtocol.GRAPHITE.format(new Metric("instances", "b6a2-11", "cpu.num", 2, 1400000000L), "dc1.", out);
+        Assert.assertEquals("dc1.cloudstack.stats.instances.b6a2-11.cpu.num 2 1400000000\n", out.toString());
+    }
+
+    @Test
+    public void testInfluxLineProtocol() {
+        StringBuilder out = new StringBuilder();
+        LineProtocol.INFLUXDB.format(new Metric("hosts", "b6a2-11", "cpu.utilization", 12.5d, 1400000000L), "", out);
+        LineProtocol.INFLUXDB.format(new Metric("storagepools", "my pool", "bytes.used", 1024L, 1400000000L), "", out);
+        Assert.assertEquals("cloudstack.stats.hosts,uuid=b6a2-11 cpu_utilization=12.5 1400000000000000000\n"
+                + "cloudstack.stats.storagepools,uuid=my\\ pool bytes_used=1024i 1400000000000000000\n", out.toString());
+    }
+}